@@ -1,11 +1,22 @@
 package hk.edu.polyu.comp.comp2021.clevis;
 
 import hk.edu.polyu.comp.comp2021.clevis.controller.Clevis;
+import hk.edu.polyu.comp.comp2021.clevis.model.Checkpointer;
+import hk.edu.polyu.comp.comp2021.clevis.model.ClevisLogger;
+
+import java.util.Locale;
 
 /**
  * Responsibilities:
  * - Initialize Clevis system (REQ1: Logging setup)
  * - Pass HTML and text log file paths to Clevis
+ * - Optionally replay a script file given as an argument ("--parallel" runs it concurrently)
+ * - Optionally log asynchronously ("--async-log=block|drop|spill")
+ * - Optionally write the log through memory-mapped files ("--log-mode=mapped")
+ * - Optionally sample or only count read-only commands in the log ("--log-queries=log|count|sample:N")
+ * - Optionally recover the scene from, and journal changes to, a mutation journal ("--journal=file"),
+ *   checkpointing it in the background every N changes ("--checkpoint-every=N", 0 for never)
+ * - Optionally change how many changes 'undo' can take back ("--undo-depth=N", 0 for none)
  * - Start the interactive command loop
  */
 public class Application {
@@ -13,7 +24,10 @@ public class Application {
     /**
      * Main entry point for the Clevis system.
      *
-     * @param args command-line arguments (not used)
+     * @param args command-line arguments
+     *             (optional: [--parallel] [--async-log=block|drop|spill] [--log-mode=channel|mapped]
+     *             [--log-queries=log|count|sample:N] [--journal=file] [--checkpoint-every=N]
+     *             [--undo-depth=N] script file to replay first)
      */
     public static void main(final String[] args) {
         // === REQ1: Logging Setup ===
@@ -29,7 +43,50 @@ public class Application {
         // Initialize Clevis core (REQ2–REQ15)
         final Clevis clevis = new Clevis(htmlLog, txtLog);
 
-        // Start main command loop
-        clevis.run();
+        try {
+            boolean parallel = false;
+            String script = null;
+            String journal = null;
+            long checkpointEvery = Checkpointer.DEFAULT_EVERY_RECORDS;
+            for (String arg : args) {
+                if ("--parallel".equals(arg)) {
+                    parallel = true;
+                } else if (arg.startsWith("--async-log=")) {
+                    final String policy = arg.substring("--async-log=".length()).toUpperCase(Locale.ROOT);
+                    clevis.startAsyncLogging(ClevisLogger.OverflowPolicy.valueOf(policy));
+                } else if (arg.startsWith("--log-mode=")) {
+                    final String mode = arg.substring("--log-mode=".length()).toUpperCase(Locale.ROOT);
+                    clevis.setLogWriteMode(ClevisLogger.WriteMode.valueOf(mode));
+                } else if (arg.startsWith("--log-queries=")) {
+                    final String[] mode = arg.substring("--log-queries=".length()).split(":", 2);
+                    clevis.setQueryLogging(ClevisLogger.QueryLogging.valueOf(mode[0].toUpperCase(Locale.ROOT)),
+                            mode.length > 1 ? Long.parseLong(mode[1]) : 1);
+                } else if (arg.startsWith("--journal=")) {
+                    journal = arg.substring("--journal=".length());
+                } else if (arg.startsWith("--checkpoint-every=")) {
+                    checkpointEvery = Long.parseLong(arg.substring("--checkpoint-every=".length()));
+                } else if (arg.startsWith("--undo-depth=")) {
+                    clevis.setUndoDepth(Integer.parseInt(arg.substring("--undo-depth=".length())));
+                } else {
+                    script = arg;
+                }
+            }
+
+            // Recover the scene before anything changes it
+            if (journal != null) {
+                clevis.openJournal(journal, checkpointEvery);
+            }
+
+            // Replay a script, if given, before handing over to the user
+            if (script != null) {
+                clevis.runScript(script, parallel);
+            }
+
+            // Start main command loop
+            clevis.run();
+        } finally {
+            // Render the logs and close the journal however the session ends
+            clevis.close();
+        }
     }
 }
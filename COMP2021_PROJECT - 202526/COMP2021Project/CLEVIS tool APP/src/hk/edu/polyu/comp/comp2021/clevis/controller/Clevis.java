@@ -3,7 +3,13 @@ package hk.edu.polyu.comp.comp2021.clevis.controller;
 import hk.edu.polyu.comp.comp2021.clevis.model.*;
 import hk.edu.polyu.comp.comp2021.clevis.view.ConsoleView;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.function.Consumer;
 
 /**
  * Clevis main logic and shapes.
@@ -33,9 +39,111 @@ public class Clevis {
         this.view = new ConsoleView();
     }
 
+    /**
+     * Switch logging to asynchronous mode so commands never wait for the disk.
+     *
+     * @param policy what to do with log records while the ring buffer is full
+     */
+    public void startAsyncLogging(final ClevisLogger.OverflowPolicy policy) {
+        logger.startAsync(ClevisLogger.DEFAULT_RING_CAPACITY, policy);
+    }
+
+    /**
+     * Choose how log records are written. {@link ClevisLogger.WriteMode#MAPPED}
+     * appends through memory-mapped windows; unless a durability mode was already
+     * chosen, it also forces the log to disk at most once a second.
+     *
+     * @param mode the log write mode
+     */
+    public void setLogWriteMode(final ClevisLogger.WriteMode mode) {
+        logger.setWriteMode(mode, ClevisLogger.DEFAULT_MAP_CHUNK);
+        if (mode == ClevisLogger.WriteMode.MAPPED && logger.getDurability() == ClevisLogger.Durability.NONE) {
+            logger.setDurability(ClevisLogger.Durability.INTERVAL, 1000);
+        }
+    }
+
+    /**
+     * Choose which read-only commands are logged. Commands that change the scene
+     * are always logged.
+     *
+     * @param mode        the query logging mode
+     * @param sampleEvery for {@link ClevisLogger.QueryLogging#SAMPLE}, log one query in this many
+     */
+    public void setQueryLogging(final ClevisLogger.QueryLogging mode, final long sampleEvery) {
+        logger.setQueryLogging(mode, sampleEvery);
+    }
+
+    /**
+     * Set how many changes 'undo' can take back.
+     *
+     * @param depth maximum number of undoable changes (0 turns undo off)
+     */
+    public void setUndoDepth(final int depth) {
+        shapeManager.setUndoDepth(depth);
+    }
+
+    /**
+     * Rebuild the scene from a mutation journal, if it exists, and journal every
+     * later change to it so the scene survives a crash. A checkpoint of the scene
+     * is written in the background every {@code checkpointEvery} journal records,
+     * so recovery only replays the changes made since the last one.
+     *
+     * @param path            journal file (created if missing)
+     * @param checkpointEvery journal records between checkpoints (0 for none)
+     */
+    public void openJournal(final String path, final long checkpointEvery) {
+        final File file = new File(path);
+        try {
+            final Checkpointer checkpointer = Checkpointer.open(file, shapeManager, checkpointEvery);
+            if (checkpointer.getDiscardedBytes() > 0) {
+                view.showMessage("Warning: discarded " + checkpointer.getDiscardedBytes()
+                        + " byte(s) of torn or corrupt journal records from " + path);
+            }
+            if (checkpointer.isRestored()) {
+                view.showMessage("Recovered " + shapeManager.getAllShapes().size() + " shape(s) from the checkpoint and "
+                        + checkpointer.getReplayed() + " later change(s) from " + path);
+            } else if (checkpointer.getReplayed() > 0) {
+                view.showMessage("Recovered " + checkpointer.getReplayed() + " change(s) from " + path);
+            }
+        } catch (IOException e) {
+            view.showError("Cannot open journal " + path + ": " + e.getMessage()
+                    + " (changes in this session are not journaled)");
+        }
+    }
+
+    /**
+     * Replay a script file through the staged {@link ScriptPipeline}, or through the
+     * {@link ParallelScriptExecutor} when {@code parallel} is set.
+     * A 'quit' line in the script ends the replay without exiting.
+     *
+     * @param path     script file with one command per line
+     * @param parallel run non-conflicting commands concurrently
+     */
+    public void runScript(final String path, final boolean parallel) {
+        // Replays write many records back to back; flush them once at the end.
+        final ClevisLogger.FlushPolicy previous = logger.getFlushPolicy();
+        logger.setFlushPolicy(ClevisLogger.FlushPolicy.BUFFERED);
+        try (InputStream in = new FileInputStream(path)) {
+            final long count = parallel
+                    ? new ParallelScriptExecutor(parser, shapeManager, logger,
+                            Runtime.getRuntime().availableProcessors()).run(in, System.out)
+                    : new ScriptPipeline(parser, logger, ScriptPipeline.DEFAULT_QUEUE_CAPACITY).run(in, System.out);
+            view.showMessage("Replayed " + count + " command(s) from " + path);
+        } catch (IOException e) {
+            view.showError("Cannot run script " + path + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            logger.setFlushPolicy(previous);
+            logger.flush();
+            parser.showCheckpointWarnings();
+        }
+    }
+
     /**
      * Run interactive CLI.
-     * The program terminates only when 'quit' is entered.
+     * The program terminates when 'quit' is entered; at the end of input the loop
+     * ends and the session is closed as by 'quit', without exiting.
      */
     public void run() {
         try (Scanner in = new Scanner(System.in)) {
@@ -56,12 +164,24 @@ public class Clevis {
                 }
 
                 parser.execute(line);
+                parser.showCheckpointWarnings();
             }
 
             view.showTerminationMessage();
+        } finally {
+            close();
         }
     }
 
+    /**
+     * Ends the session: waits for the checkpoint being written, closes the mutation
+     * journal and closes the logger, which renders the text and HTML logs.
+     * Only the first call has any effect.
+     */
+    public void close() {
+        parser.close();
+    }
+
 
     /**
      * CommandParser is responsible for interpreting and executing all Clevis commands.
@@ -78,6 +198,24 @@ public class Clevis {
     public static class CommandParser {
         private final ShapeManager manager;
         private final ClevisLogger logger;
+        private final ConsoleView view = new ConsoleView();
+        /** Commands that may be queued inside a batch. */
+        private static final Set<String> BATCHABLE = Set.of(
+                "rectangle", "line", "circle", "square", "group", "ungroup", "delete",
+                "boundingbox", "move", "shapeat", "intersect", "list", "listall");
+        /**
+         * Commands refused while a batch is open: they would act at once, out of order with the
+         * queued ones, and a failing commit would take back their effect along with the batch.
+         */
+        private static final Set<String> NOT_IN_BATCH = Set.of(
+                "save", "load", "open", "import", "exportsvg", "exportpng",
+                "undo", "redo", "checkpoint", "rollback", "dropcheckpoint");
+        /** Commands that never change the scene; their logging follows the logger's query policy. */
+        private static final Set<String> READ_ONLY = Set.of(
+                "boundingbox", "shapeat", "intersect", "list", "listall", "history", "diff", "help");
+
+        /** Commands queued since 'begin', or null when no batch is open. */
+        private List<String> batch;
 
         /**
          * Constructs a new {@code CommandParser} instance.
@@ -95,89 +233,316 @@ public class Clevis {
         }
 
         /**
-         * Execute a single command string.
+         * Execute a single command string and print its result.
          * Logs every executed command (REQ1).
          *
          * @param command user input command string
          */
         public void execute(final String command) {
+            view.showResult(run(command), System.out);
+        }
+
+        /**
+         * Execute a single command string and return its typed result without
+         * rendering any text. Logs every executed command (REQ1).
+         *
+         * @param command user input command string
+         * @return result of the command ({@link CommandResult#NONE} for blank input)
+         */
+        public CommandResult run(final String command) {
             if (command == null) {
-                return;
+                return CommandResult.NONE;
             }
 
             final String trimmed = command.trim();
             if (trimmed.isEmpty()) {
-                return;
+                return CommandResult.NONE;
             }
 
-            // Log command (REQ1). We log before execution so even failing commands appear.
-            logger.logCommand(trimmed);
+            return execute(trimmed, trimmed.split("\\s+"), logger::logCommand);
+        }
+
+        /**
+         * Execute an already trimmed and tokenized command.
+         * Log records go to {@code log}, which lets the script runners hand them
+         * to their own stage.
+         *
+         * @param trimmed the trimmed, non-empty command line
+         * @param tokens  the command line split on whitespace
+         * @param log     destination for log records (REQ1)
+         * @return result of the command
+         */
+        CommandResult execute(final String trimmed, final String[] tokens, final Consumer<String> log) {
+            return execute(trimmed, tokens, log, true);
+        }
 
-            final String[] tokens = trimmed.split("\\s+");
+        /**
+         * Execute an already trimmed and tokenized command, optionally leaving the
+         * logger's query policy to the caller: a runner that emits log records
+         * later then decides in script order which queries are logged.
+         *
+         * @param trimmed       the trimmed, non-empty command line
+         * @param tokens        the command line split on whitespace
+         * @param log           destination for log records (REQ1)
+         * @param queryPolicy   false to log every query (see {@link #isQuery})
+         * @return result of the command
+         */
+        CommandResult execute(final String trimmed, final String[] tokens, final Consumer<String> log,
+                              final boolean queryPolicy) {
             final String op = tokens[0].toLowerCase(Locale.ROOT);
 
+            // Batch control commands are logged as part of the grouped batch record.
+            // 'rollback name' rolls back to a checkpoint and is an ordinary command.
+            switch (op) {
+                case "begin":
+                    return beginBatch(tokens);
+                case "commit":
+                    return commitBatch(tokens, log);
+                case "rollback":
+                    if (tokens.length == 1) {
+                        return rollbackBatch(tokens, log);
+                    }
+                    break;
+                default:
+                    break;
+            }
+            if (batch != null && BATCHABLE.contains(op)) {
+                batch.add(trimmed);
+                return CommandResult.NONE;
+            }
+
+            // Log command (REQ1). We log before execution so even failing commands appear.
+            // Queries may be sampled or only counted, depending on the logger's policy.
+            if (!queryPolicy || !READ_ONLY.contains(op) || logger.shouldLogQuery()) {
+                log.accept(trimmed);
+            }
+
             try {
-                switch (op) {
-                    case "rectangle":
-                        createRectangle(tokens);
-                        break;
-                    case "line":
-                        createLine(tokens);
-                        break;
-                    case "circle":
-                        createCircle(tokens);
-                        break;
-                    case "square":
-                        createSquare(tokens);
-                        break;
-                    case "group":
-                        groupShapes(tokens);
-                        break;
-                    case "ungroup":
-                        ungroupShapes(tokens);
-                        break;
-                    case "delete":
-                        deleteShape(tokens);
-                        break;
-                    case "boundingbox":
-                        calculateBoundingBox(tokens);
-                        break;
-                    case "move":
-                        moveShape(tokens);
-                        break;
-                    case "shapeat":
-                        findTopmost(tokens);
-                        break;
-                    case "intersect":
-                        intersect(tokens);
-                        break;
-                    case "list":
-                        listShape(tokens);
-                        break;
-                    case "listall":
-                        listAll(tokens);
-                        break;
-                    case "quit":
-                        // Log this quit command (REQ1)
-                        logger.logCommand(trimmed);
-                        quit();
-                        break;
-                    case "help":
-                        showHelp();
-                        break;
-
-                    default:
-                        System.out.println("Unknown command: " + op);
+                if (batch != null && NOT_IN_BATCH.contains(op)) {
+                    throw new ClevisException("'" + tokens[0] + "' cannot be used inside a batch; commit or rollback first.");
                 }
-            } catch (ClevisException e) {
-                System.out.println("Error: " + e.getMessage());
-            } catch (NumberFormatException e) {
-                System.out.println("Error: invalid number format.");
-            } catch (RuntimeException e) {
-                System.out.println("Runtime error: " + e.getMessage());
+                return dispatch(op, tokens, trimmed);
             } catch (Exception e) {
+                return failureOf(e);
+            }
+        }
+
+        /**
+         * Tells whether a command never changes the scene, so that its logging
+         * follows the logger's query policy.
+         *
+         * @param tokens command tokens (tokens[0] is the command name)
+         * @return true for a query
+         */
+        static boolean isQuery(final String[] tokens) {
+            return READ_ONLY.contains(tokens[0].toLowerCase(Locale.ROOT));
+        }
+
+        /**
+         * Runs a single tokenized command, propagating any failure to the caller.
+         *
+         * @param op      lower-cased command name
+         * @param tokens  command tokens (tokens[0] is the command name)
+         * @param trimmed the original trimmed command line
+         * @return result of the command
+         * @throws Exception if the command fails
+         */
+        private CommandResult dispatch(final String op, final String[] tokens, final String trimmed)
+                throws Exception {
+            switch (op) {
+                case "rectangle":
+                    return createRectangle(tokens);
+                case "line":
+                    return createLine(tokens);
+                case "circle":
+                    return createCircle(tokens);
+                case "square":
+                    return createSquare(tokens);
+                case "group":
+                    return groupShapes(tokens);
+                case "ungroup":
+                    return ungroupShapes(tokens);
+                case "delete":
+                    return deleteShape(tokens);
+                case "boundingbox":
+                    return calculateBoundingBox(tokens);
+                case "move":
+                    return moveShape(tokens);
+                case "shapeat":
+                    return findTopmost(tokens);
+                case "intersect":
+                    return intersect(tokens);
+                case "list":
+                    return listShape(tokens);
+                case "listall":
+                    return listAll(tokens);
+                case "quit":
+                    // Log this quit command (REQ1)
+                    logger.logCommand(trimmed);
+                    quit();
+                    return CommandResult.NONE;
+                case "history":
+                    return history(tokens);
+                case "save":
+                    return saveScene(tokens);
+                case "load":
+                    return loadScene(tokens);
+                case "open":
+                    return openScene(tokens);
+                case "exportsvg":
+                    return exportSvg(tokens);
+                case "exportpng":
+                    return exportPng(tokens);
+                case "diff":
+                    return diffScenes(tokens);
+                case "import":
+                    return importShapes(tokens);
+                case "undo":
+                    return undo(tokens);
+                case "redo":
+                    return redo(tokens);
+                case "checkpoint":
+                    return markCheckpoint(tokens);
+                case "rollback":
+                    return rollbackToCheckpoint(tokens);
+                case "dropcheckpoint":
+                    return dropCheckpoint(tokens);
+                case "help":
+                    return showHelp();
+
+                default:
+                    return new CommandResult.Failure(CommandResult.ErrorCode.UNKNOWN_COMMAND, op);
+            }
+        }
+
+        /**
+         * Maps an exception thrown by a command handler to a typed failure.
+         */
+        private static CommandResult.Failure failureOf(final Exception e) {
+            final CommandResult.ErrorCode code;
+            String message = e.getMessage();
+            if (e instanceof ClevisException.DuplicateShapeException) {
+                code = CommandResult.ErrorCode.DUPLICATE_SHAPE;
+            } else if (e instanceof ClevisException.ShapeNotFoundException) {
+                code = CommandResult.ErrorCode.SHAPE_NOT_FOUND;
+            } else if (e instanceof ClevisException.GroupingException) {
+                code = CommandResult.ErrorCode.GROUPING;
+            } else if (e instanceof ClevisException) {
+                code = CommandResult.ErrorCode.INVALID_COMMAND;
+            } else if (e instanceof NumberFormatException) {
+                code = CommandResult.ErrorCode.INVALID_NUMBER;
+                message = "invalid number format.";
+            } else if (e instanceof RuntimeException) {
+                code = CommandResult.ErrorCode.RUNTIME;
+            } else {
                 throw new RuntimeException(e);
             }
+            return new CommandResult.Failure(code, message);
+        }
+
+        /**
+         * Batch command: begin
+         * Effect: Starts queuing commands so they can be applied atomically by 'commit'.
+         */
+        private CommandResult beginBatch(final String[] tokens) {
+            if (tokens.length != 1) {
+                return invalid("Usage: begin");
+            }
+            if (batch != null) {
+                return invalid("A batch is already open; use commit or rollback first.");
+            }
+            batch = new ArrayList<>();
+            return new CommandResult.Message("Batch started.");
+        }
+
+        /**
+         * Batch command: commit
+         * Effect: Applies every queued command in order as one atomic change.
+         * The whole batch is written as a single log record; if any command fails,
+         * the changes already applied are taken back and the undo history is kept.
+         */
+        private CommandResult commitBatch(final String[] tokens, final Consumer<String> log) {
+            if (tokens.length != 1) {
+                return invalid("Usage: commit");
+            }
+            if (batch == null) {
+                return invalid("No open batch to commit.");
+            }
+            final List<String> commands = batch;
+            batch = null;
+            log.accept(batchRecord(commands, "commit"));
+
+            final List<CommandResult> results = new ArrayList<>(commands.size() + 1);
+            manager.beginTransaction();
+            for (String command : commands) {
+                final String[] cmdTokens = command.split("\\s+");
+                final String cmdOp = cmdTokens[0].toLowerCase(Locale.ROOT);
+                CommandResult result;
+                try {
+                    result = dispatch(cmdOp, cmdTokens, command);
+                } catch (Exception e) {
+                    result = failureOf(e);
+                }
+                if (result.isFailure()) {
+                    manager.abortTransaction();
+                    final CommandResult.Failure cause = firstFailure(result);
+                    results.add(new CommandResult.Failure(cause.getCode(),
+                            cause.getMessage() + " (in '" + command + "'); batch rolled back."));
+                    return new CommandResult.Sequence(results);
+                }
+                results.add(result);
+            }
+            try {
+                manager.commitTransaction();
+            } catch (UncheckedIOException e) {
+                results.add(failureOf(e));
+                return new CommandResult.Sequence(results);
+            }
+            results.add(new CommandResult.Message("Committed batch of " + commands.size() + " command(s)."));
+            return new CommandResult.Sequence(results);
+        }
+
+        /**
+         * Batch command: rollback
+         * Effect: Discards every queued command without applying it.
+         */
+        private CommandResult rollbackBatch(final String[] tokens, final Consumer<String> log) {
+            if (tokens.length != 1) {
+                return invalid("Usage: rollback");
+            }
+            if (batch == null) {
+                return invalid("No open batch to roll back.");
+            }
+            final List<String> commands = batch;
+            batch = null;
+            log.accept(batchRecord(commands, "rollback"));
+            return new CommandResult.Message("Discarded batch of " + commands.size() + " command(s).");
+        }
+
+        /**
+         * Builds the single grouped log record written for a batch.
+         */
+        private static String batchRecord(final List<String> commands, final String end) {
+            final StringBuilder sb = new StringBuilder("begin; ");
+            for (String c : commands) {
+                sb.append(c).append("; ");
+            }
+            return sb.append(end).toString();
+        }
+
+        private static CommandResult.Failure firstFailure(final CommandResult result) {
+            if (result instanceof CommandResult.Sequence seq) {
+                for (CommandResult r : seq.getResults()) {
+                    if (r.isFailure()) {
+                        return firstFailure(r);
+                    }
+                }
+            }
+            return (CommandResult.Failure) result;
+        }
+
+        private static CommandResult.Failure invalid(final String message) {
+            return new CommandResult.Failure(CommandResult.ErrorCode.INVALID_COMMAND, message);
         }
 
 
@@ -189,7 +554,7 @@ public class Clevis {
          * Effect: Creates a new rectangle that has a name n, whose top-left corner is at
          * location (x, y), and whose width and height are w and h, respectively.
          */
-        private void createRectangle(final String[] tokens) throws ClevisException {
+        private CommandResult createRectangle(final String[] tokens) throws ClevisException {
             if (tokens.length != 6) {
                 throw new ClevisException("Rectangle command requires 5 parameters: name, x, y, width, height");
             }
@@ -202,8 +567,7 @@ public class Clevis {
 
                 final Rectangle rectangle = new Rectangle(name, x, y, width, height);
                 manager.addShape(rectangle);
-                System.out.printf("Created a Rectangle named %s at (%.2f,%.2f) w=%.2f h=%.2f%n",
-                        name, x, y, width, height);
+                return new CommandResult.Created(rectangle);
             } catch (NumberFormatException e) {
                 throw new ClevisException("The parameters except for name must be valid numbers.");
             }
@@ -215,7 +579,7 @@ public class Clevis {
          * Effect: Creates a new line segment that has a name n and whose two ends are at
          * locations (x1, y1) and (x2, y2), respectively.
          */
-        private void createLine(final String[] tokens) throws ClevisException {
+        private CommandResult createLine(final String[] tokens) throws ClevisException {
             if (tokens.length != 6) {
                 throw new ClevisException("Line command requires 5 parameters: name, x1, y1, x2, y2");
             }
@@ -228,8 +592,7 @@ public class Clevis {
 
                 final Line line = new Line(name, x1, y1, x2, y2);
                 manager.addShape(line);
-                System.out.printf("Created line %s from (%.2f,%.2f) to (%.2f,%.2f)%n",
-                        name, x1, y1, x2, y2);
+                return new CommandResult.Created(line);
             } catch (NumberFormatException e) {
                 throw new ClevisException("The parameters except for name must be valid numbers.");
             }
@@ -241,7 +604,7 @@ public class Clevis {
          * Effect: Creates a new circle that has a name n, whose center is at location (x, y),
          * and whose radius is r.
          */
-        private void createCircle(final String[] tokens) throws ClevisException {
+        private CommandResult createCircle(final String[] tokens) throws ClevisException {
             if (tokens.length != 5) {
                 throw new ClevisException("Circle command requires 4 parameters: name, x, y, radius");
             }
@@ -253,8 +616,7 @@ public class Clevis {
 
                 final Circle circle = new Circle(name, x, y, radius);
                 manager.addShape(circle);
-                System.out.printf("Created circle %s center=(%.2f,%.2f) r=%.2f%n",
-                        name, x, y, radius);
+                return new CommandResult.Created(circle);
             } catch (NumberFormatException e) {
                 throw new ClevisException("The parameters except for name must be valid numbers.");
             }
@@ -266,7 +628,7 @@ public class Clevis {
          * Effect: Creates a new square that has a name n, whose top-left corner is at
          * location (x, y), and whose side length is l.
          */
-        private void createSquare(final String[] tokens) throws ClevisException {
+        private CommandResult createSquare(final String[] tokens) throws ClevisException {
             if (tokens.length != 5) {
                 throw new ClevisException("Square command requires 4 parameters: name, x, y, length");
             }
@@ -278,7 +640,7 @@ public class Clevis {
 
                 final Square square = new Square(name, x, y, length);
                 manager.addShape(square);
-                System.out.printf("Created square %s at (%.2f,%.2f) side=%.2f%n", name, x, y, length);
+                return new CommandResult.Created(square);
             } catch (NumberFormatException e) {
                 throw new ClevisException("The parameters except for name must be valid numbers.");
             }
@@ -289,39 +651,15 @@ public class Clevis {
          * Command: group n n1 n2 ...
          * Effect: Creates a new shape named n by grouping existing shapes named n1, n2, ...
          */
-        private void groupShapes(final String[] tokens) throws ClevisException {
+        private CommandResult groupShapes(final String[] tokens) throws ClevisException {
             if (tokens.length < 3) {
                 throw new ClevisException("Usage: group n n1 n2 ...");
             }
 
             final String groupName = tokens[1];
-            final List<Shape> members = new ArrayList<>();
-
-            for (int i = 2; i < tokens.length; i++) {
-                final Shape s = manager.getShape(tokens[i]);
-                if (s == null) {
-                    throw new ClevisException.ShapeNotFoundException("Shape not found: " + tokens[i]);
-                }
-                members.add(s);
-            }
-
-            if (members.isEmpty()) {
-                throw new ClevisException("Group must have at least one member.");
-            }
-
-            final Group newGroup = new Group(groupName, members);
-            for (Shape s : members) {
-                manager.deleteShape(s.getName());
-            }
-            manager.addShape(newGroup);
-
-            StringBuilder memberNames = new StringBuilder();
-            for (int i = 0; i < members.size(); i++) {
-                if (i > 0) memberNames.append(",");
-                memberNames.append(members.get(i).getName());
-            }
-
-            System.out.printf("Created group %s containing: %s%n", groupName, memberNames.toString());
+            final List<String> memberNames = new ArrayList<>(Arrays.asList(tokens).subList(2, tokens.length));
+            manager.group(groupName, memberNames);
+            return new CommandResult.Grouping(groupName, memberNames, true);
         }
 
         /**
@@ -329,44 +667,49 @@ public class Clevis {
          * Command: ungroup n
          * Effect: Ungroups shape n into its component shapes.
          */
-        private void ungroupShapes(final String[] tokens) throws ClevisException {
+        private CommandResult ungroupShapes(final String[] tokens) throws ClevisException {
             if (tokens.length != 2) {
                 throw new ClevisException("Usage: ungroup n");
             }
 
             final String groupName = tokens[1];
-            final Shape s = manager.getShape(groupName);
-            if (s == null) {
-                throw new ClevisException.ShapeNotFoundException("Shape not found: " + groupName);
-            }
-            if (!(s instanceof Group g)) {
-                throw new ClevisException("Shape '" + groupName + "' is not a group.");
-            }
+            final Group g = manager.ungroup(groupName);
 
-            StringBuilder memberNames = new StringBuilder();
-            List<Shape> members = g.getMembers();
-            for (int i = 0; i < members.size(); i++) {
-                if (i > 0) memberNames.append(",");
-                memberNames.append(members.get(i).getName());
-            }
-
-            manager.deleteShape(groupName);
+            final List<String> memberNames = new ArrayList<>();
             for (Shape m : g.getMembers()) {
-                manager.addShape(m);
+                memberNames.add(m.getName());
             }
 
-            System.out.printf("Ungrouped %s into: %s%n", groupName, memberNames.toString());
+            return new CommandResult.Grouping(groupName, memberNames, false);
         }
 
         /**
          * [REQ8] Delete a shape by name.
+         * The name may also be a selector (glob and/or type filter) to delete every match.
          */
-        private void deleteShape(final String[] tokens) throws ClevisException {
+        private CommandResult deleteShape(final String[] tokens) throws ClevisException {
             if (tokens.length != 2) {
                 throw new ClevisException("Usage: delete n");
             }
+            if (isSelector(tokens[1])) {
+                final List<Shape> matches = selectMatches(tokens[1]);
+                // All or none: a failure part way takes back the deletions already made.
+                manager.beginTransaction();
+                try {
+                    for (Shape s : matches) {
+                        if (manager.getShape(s.getName()) != null) {
+                            manager.deleteShape(s.getName());
+                        }
+                    }
+                } catch (ClevisException | RuntimeException e) {
+                    manager.abortTransaction();
+                    throw e;
+                }
+                manager.commitTransaction();
+                return new CommandResult.Changed(tokens[1], matches.size(), true, false, 0, 0);
+            }
             manager.deleteShape(tokens[1]);
-            System.out.println("Deleted shape " + tokens[1]);
+            return new CommandResult.Changed(tokens[1], 1, false, false, 0, 0);
         }
 
         /**
@@ -374,22 +717,25 @@ public class Clevis {
          * Command: boundingbox n
          * Effect: Calculates and outputs the minimum bounding box of the shape name n.
          */
-        private void calculateBoundingBox(final String[] tokens) throws ClevisException {
+        private CommandResult calculateBoundingBox(final String[] tokens) throws ClevisException {
             if (tokens.length != 2) {
                 throw new ClevisException("Usage: boundingbox n");
             }
 
             final String name = tokens[1].trim();
-            final String bbox = manager.getBoundingBox(name);
-
-            String[] parts = bbox.split(" ");
-            double x = Double.parseDouble(parts[0]);
-            double y = Double.parseDouble(parts[1]);
-            double w = Double.parseDouble(parts[2]);
-            double h = Double.parseDouble(parts[3]);
-
-            System.out.printf("Bounding box of %s: (x=%.2f, y=%.2f, width=%.2f, height=%.2f)%n",
-                    name, x, y, w, h);
+            if (isSelector(name)) {
+                final List<Shape> matches = selectMatches(name);
+                BoundingBox box = matches.get(0).getBounds();
+                for (int i = 1; i < matches.size(); i++) {
+                    box = box.union(matches.get(i).getBounds());
+                }
+                return new CommandResult.Bounds(name, box);
+            }
+            final Shape shape = manager.getShape(name);
+            if (shape == null) {
+                throw new ClevisException.ShapeNotFoundException("Shape not found: " + name);
+            }
+            return new CommandResult.Bounds(name, shape.getBounds());
         }
 
         /**
@@ -397,7 +743,7 @@ public class Clevis {
          * Command: move n dx dy
          * Effect: Moves the shape named n, horizontally by dx and vertically by dy.
          */
-        private void moveShape(final String[] tokens) throws ClevisException {
+        private CommandResult moveShape(final String[] tokens) throws ClevisException {
             if (tokens.length != 4) {
                 throw new ClevisException("Usage: move n dx dy");
             }
@@ -406,12 +752,23 @@ public class Clevis {
                 final double dx = Double.parseDouble(tokens[2]);
                 final double dy = Double.parseDouble(tokens[3]);
 
-                final Shape s = manager.getShape(name);
-                if (s == null) {
-                    throw new ClevisException.ShapeNotFoundException("Shape not found: " + name);
+                if (isSelector(name)) {
+                    final List<Shape> matches = selectMatches(name);
+                    manager.beginTransaction();
+                    try {
+                        for (Shape s : matches) {
+                            manager.moveShape(s.getName(), dx, dy);
+                        }
+                    } catch (ClevisException | RuntimeException e) {
+                        manager.abortTransaction();
+                        throw e;
+                    }
+                    manager.commitTransaction();
+                    return new CommandResult.Changed(name, matches.size(), true, true, dx, dy);
                 }
-                s.move(dx, dy);
-                System.out.printf("Moved %s by (%.2f,%.2f)%n", name, dx, dy);
+
+                manager.moveShape(name, dx, dy);
+                return new CommandResult.Changed(name, 1, false, true, dx, dy);
             } catch (NumberFormatException e) {
                 throw new ClevisException("The parameters except for name must be valid numbers.");
             }
@@ -422,22 +779,14 @@ public class Clevis {
          * Command: shapeAt x y
          * Effect: Returns the name of the shape with the highest Z-index that covers point (x, y).
          */
-        private void findTopmost(final String[] tokens) {
+        private CommandResult findTopmost(final String[] tokens) {
             if (tokens.length != 3) {
                 throw new IllegalArgumentException("Usage: shapeAt x y");
             }
             final double x = Double.parseDouble(tokens[1]);
             final double y = Double.parseDouble(tokens[2]);
-            final List<Shape> allShapes = manager.getAllShapes();
-
-            for (int i = allShapes.size() - 1; i >= 0; i--) {
-                final Shape shape = allShapes.get(i);
-                if (shape.coversPoint(x, y)) {
-                    System.out.println("The topmost shape covering point (" + x + ", " + y + ") is: " + shape.getName());
-                    return;
-                }
-            }
-            System.out.println("No shape covers the given point (" + x + ", " + y + ").");
+            final Shape shape = manager.topmostAt(x, y);
+            return new CommandResult.Hit(x, y, shape == null ? null : shape.getName());
         }
 
         /**
@@ -445,7 +794,7 @@ public class Clevis {
          * Command: intersect n1 n2
          * Effect: Reports whether two shapes n1 and n2 intersect with each other.
          */
-        private void intersect(final String[] tokens) {
+        private CommandResult intersect(final String[] tokens) {
             if (tokens.length != 3) {
                 throw new IllegalArgumentException("Usage: intersect n1 n2");
             }
@@ -460,22 +809,7 @@ public class Clevis {
                 throw new RuntimeException("One or both shapes were not found: " + n1 + ", " + n2);
             }
 
-            final String[] box1 = shape1.getBoundingBox().split("\\s+");
-            final String[] box2 = shape2.getBoundingBox().split("\\s+");
-
-            final double x1 = Double.parseDouble(box1[0]);
-            final double y1 = Double.parseDouble(box1[1]);
-            final double w1 = Double.parseDouble(box1[2]);
-            final double h1 = Double.parseDouble(box1[3]);
-
-            final double x2 = Double.parseDouble(box2[0]);
-            final double y2 = Double.parseDouble(box2[1]);
-            final double w2 = Double.parseDouble(box2[2]);
-            final double h2 = Double.parseDouble(box2[3]);
-
-            final boolean separated = (x1 + w1 < x2) || (x2 + w2 < x1) || (y1 + h1 < y2) || (y2 + h2 < y1);
-            final boolean result = !separated;
-            System.out.printf("Shapes %s and %s intersect: %b%n", n1, n2, result);
+            return new CommandResult.Intersection(n1, n2, shape1.getBounds().intersects(shape2.getBounds()));
         }
 
         /**
@@ -483,17 +817,23 @@ public class Clevis {
          * Command: list n
          * Effect: Lists the basic information about the shape named n.
          */
-        private void listShape(final String[] tokens) {
+        private CommandResult listShape(final String[] tokens) {
             if (tokens.length != 2) {
                 throw new IllegalArgumentException("Usage: list n");
             }
             final String name = tokens[1].trim();
+            if (isSelector(name)) {
+                final List<Shape> matches = manager.select(name);
+                if (matches.isEmpty()) {
+                    throw new RuntimeException("No shapes match: " + name);
+                }
+                return new CommandResult.Listing(matches, false);
+            }
             final Shape shape = manager.getShape(name);
             if (shape == null) {
                 throw new RuntimeException("Shape not found: " + name);
             }
-            System.out.println("Shape " + name + ": " + shape.getInfo());
-
+            return new CommandResult.Listing(List.of(shape), false);
         }
 
         /**
@@ -501,25 +841,299 @@ public class Clevis {
          * Command: listAll
          * Effect: Lists the basic information about all shapes in decreasing Z-order.
          */
-        private void listAll(final String[] tokens) {
+        private CommandResult listAll(final String[] tokens) {
             if (tokens.length != 1) {
                 throw new IllegalArgumentException("Usage: listAll");
             }
+            return new CommandResult.Listing(manager.getAllShapes(), true);
+        }
 
-            final List<Shape> allShapes = manager.getAllShapes();
-            if (allShapes.isEmpty()) {
-                System.out.println("No shapes currently exist.");
-                return;
+        /**
+         * Command: history t1 t2
+         * Effect: Lists the commands logged between t1 and t2 (inclusive), in this and
+         * earlier sessions. Times are HH:mm[:ss] (today), yyyy-MM-dd,
+         * yyyy-MM-ddTHH:mm[:ss] or epoch milliseconds.
+         */
+        private CommandResult history(final String[] tokens) throws ClevisException {
+            if (tokens.length != 3) {
+                throw new ClevisException("Usage: history t1 t2");
+            }
+            final long from;
+            final long to;
+            try {
+                from = LogHistory.parseTime(tokens[1], false);
+                to = LogHistory.parseTime(tokens[2], true);
+            } catch (IllegalArgumentException e) {
+                throw new ClevisException(e.getMessage());
+            }
+            if (from > to) {
+                throw new ClevisException("Start of range is after its end.");
             }
+            final List<String> lines = new ArrayList<>();
+            try {
+                logger.history(from, to, lines::add);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return new CommandResult.History(tokens[1], tokens[2], lines);
+        }
 
-                System.out.println("Listing all shapes (bottom to top):");
-            for (Shape shape : allShapes) {
-                System.out.println(" - " + shape.getInfo());
+        /**
+         * Command: save file [compressed]
+         * Effect: Writes every shape, the group hierarchy and the Z-order to a binary scene file;
+         * 'compressed' writes the smaller format, which 'load' reads but 'open' cannot map.
+         */
+        private CommandResult saveScene(final String[] tokens) throws ClevisException {
+            final boolean compressed = tokens.length == 3 && tokens[2].equalsIgnoreCase("compressed");
+            if (tokens.length != 2 && !compressed) {
+                throw new ClevisException("Usage: save file [compressed]");
+            }
+            try {
+                final File file = new File(tokens[1]);
+                final long saved = compressed ? CompressedSceneFile.save(file, manager) : SceneFile.save(file, manager);
+                return new CommandResult.Message("Saved " + saved + " shape(s) to " + tokens[1]
+                        + (compressed ? " (compressed)" : ""));
+            } catch (IOException e) {
+                throw new ClevisException("Cannot save " + tokens[1] + ": " + e.getMessage());
+            }
+        }
 
-                if (shape instanceof Group group) {
-                    for (Shape member : group.getMembers()) {
-                        System.out.println("  " + member.getName() + ": " + member.getInfo());
-                    }
+        /**
+         * Command: load file
+         * Effect: Replaces the current scene with one written by 'save'.
+         */
+        private CommandResult loadScene(final String[] tokens) throws ClevisException {
+            if (tokens.length != 2) {
+                throw new ClevisException("Usage: load file");
+            }
+            try {
+                final long loaded = SceneFile.load(new File(tokens[1]), manager);
+                return new CommandResult.Message("Loaded " + loaded + " shape(s) from " + tokens[1]);
+            } catch (IOException e) {
+                throw new ClevisException("Cannot load " + tokens[1] + ": " + e.getMessage());
+            }
+        }
+
+        /**
+         * Command: open file
+         * Effect: Maps a file written by 'save' read-only in place of the current scene.
+         * Shapes are read from the file on demand; editing commands are refused until 'load'.
+         */
+        private CommandResult openScene(final String[] tokens) throws ClevisException {
+            if (tokens.length != 2) {
+                throw new ClevisException("Usage: open file");
+            }
+            try {
+                final MappedScene scene = MappedScene.open(new File(tokens[1]));
+                manager.open(scene);
+                return new CommandResult.Message("Opened " + scene.size() + " shape(s) from " + tokens[1]
+                        + " (read-only)");
+            } catch (IOException e) {
+                throw new ClevisException("Cannot open " + tokens[1] + ": " + e.getMessage());
+            }
+        }
+
+        /**
+         * Command: diff a b
+         * Effect: Lists the shapes added, removed, moved, changed, regrouped or re-ordered
+         * from scene file a to scene file b (saved scenes or checkpoints), matched by name.
+         */
+        private CommandResult diffScenes(final String[] tokens) throws ClevisException {
+            if (tokens.length != 3) {
+                throw new ClevisException("Usage: diff a b");
+            }
+            try {
+                return new CommandResult.Difference(tokens[1], tokens[2],
+                        SceneDiff.compare(new File(tokens[1]), new File(tokens[2])));
+            } catch (IOException e) {
+                throw new ClevisException("Cannot compare " + tokens[1] + " with " + tokens[2] + ": " + e.getMessage());
+            }
+        }
+
+        /**
+         * Command: import file
+         * Effect: Adds every shape of a CSV or SVG file on top of the scene, as one change.
+         */
+        private CommandResult importShapes(final String[] tokens) throws ClevisException {
+            if (tokens.length != 2) {
+                throw new ClevisException("Usage: import file");
+            }
+            try {
+                final long imported = SceneImport.read(new File(tokens[1]), manager);
+                return new CommandResult.Message("Imported " + imported + " shape(s) from " + tokens[1]);
+            } catch (IOException e) {
+                throw new ClevisException("Cannot import " + tokens[1] + ": " + e.getMessage());
+            }
+        }
+
+        /**
+         * Command: undo
+         * Effect: Takes back the latest change not undone yet; a batch or a
+         * selector command is taken back as a whole.
+         */
+        private CommandResult undo(final String[] tokens) throws ClevisException {
+            if (tokens.length != 1) {
+                throw new ClevisException("Usage: undo");
+            }
+            final int changes = manager.undo();
+            if (changes == 0) {
+                throw new ClevisException("Nothing to undo.");
+            }
+            return new CommandResult.Message("Undid " + changes + " change(s).");
+        }
+
+        /**
+         * Command: redo
+         * Effect: Applies again the latest change taken back by 'undo'.
+         */
+        private CommandResult redo(final String[] tokens) throws ClevisException {
+            if (tokens.length != 1) {
+                throw new ClevisException("Usage: redo");
+            }
+            final int changes = manager.redo();
+            if (changes == 0) {
+                throw new ClevisException("Nothing to redo.");
+            }
+            return new CommandResult.Message("Redid " + changes + " change(s).");
+        }
+
+        /**
+         * Command: checkpoint name
+         * Effect: Marks the current scene so 'rollback name' can return to it.
+         * Nothing is copied; the checkpoint keeps the changes made after it undoable.
+         */
+        private CommandResult markCheckpoint(final String[] tokens) throws ClevisException {
+            if (tokens.length != 2) {
+                throw new ClevisException("Usage: checkpoint name");
+            }
+            manager.markCheckpoint(tokens[1]);
+            return new CommandResult.Message("Checkpoint " + tokens[1] + " set.");
+        }
+
+        /**
+         * Command: rollback name
+         * Effect: Returns the scene to checkpoint 'name' by undoing the changes since it;
+         * 'redo' applies them again.
+         */
+        private CommandResult rollbackToCheckpoint(final String[] tokens) throws ClevisException {
+            if (tokens.length != 2) {
+                throw new ClevisException("Usage: rollback name");
+            }
+            final int steps = manager.rollbackToCheckpoint(tokens[1]);
+            return new CommandResult.Message("Rolled back to checkpoint " + tokens[1]
+                    + " (" + steps + " change(s)).");
+        }
+
+        /**
+         * Command: dropCheckpoint name
+         * Effect: Forgets checkpoint 'name' and the history it kept.
+         */
+        private CommandResult dropCheckpoint(final String[] tokens) throws ClevisException {
+            if (tokens.length != 2) {
+                throw new ClevisException("Usage: dropCheckpoint name");
+            }
+            manager.dropCheckpoint(tokens[1]);
+            return new CommandResult.Message("Dropped checkpoint " + tokens[1] + ".");
+        }
+
+        /**
+         * Command: exportSvg file [x y w h]
+         * Effect: Writes the scene as SVG, or only the shapes intersecting the
+         * viewport (x, y, w, h), which then becomes the SVG view box.
+         */
+        private CommandResult exportSvg(final String[] tokens) throws ClevisException {
+            if (tokens.length != 2 && tokens.length != 6) {
+                throw new ClevisException("Usage: exportSvg file [x y w h]");
+            }
+            BoundingBox viewport = null;
+            if (tokens.length == 6) {
+                try {
+                    viewport = new BoundingBox(Double.parseDouble(tokens[2]), Double.parseDouble(tokens[3]),
+                            Double.parseDouble(tokens[4]), Double.parseDouble(tokens[5]));
+                } catch (NumberFormatException e) {
+                    throw new ClevisException("The viewport must be four valid numbers.");
+                }
+                if (viewport.getWidth() <= 0 || viewport.getHeight() <= 0) {
+                    throw new ClevisException("The viewport width and height must be positive.");
+                }
+            }
+            try {
+                final long exported = SvgExport.write(new File(tokens[1]), manager, viewport);
+                return new CommandResult.Message("Exported " + exported + " shape(s) to " + tokens[1]);
+            } catch (IOException e) {
+                throw new ClevisException("Cannot export " + tokens[1] + ": " + e.getMessage());
+            }
+        }
+
+        /**
+         * Command: exportPng file width height [x y w h]
+         * Effect: Renders the scene, or the viewport (x, y, w, h), into a PNG image of
+         * width x height pixels, tile by tile in parallel.
+         */
+        private CommandResult exportPng(final String[] tokens) throws ClevisException {
+            if (tokens.length != 4 && tokens.length != 8) {
+                throw new ClevisException("Usage: exportPng file width height [x y w h]");
+            }
+            final int width;
+            final int height;
+            try {
+                width = Integer.parseInt(tokens[2]);
+                height = Integer.parseInt(tokens[3]);
+            } catch (NumberFormatException e) {
+                throw new ClevisException("The image width and height must be whole numbers.");
+            }
+            if (width <= 0 || height <= 0 || (long) width * height > PngExport.MAX_PIXELS) {
+                throw new ClevisException("The image must be at least 1x1 and at most "
+                        + PngExport.MAX_PIXELS + " pixels.");
+            }
+            BoundingBox viewport = null;
+            if (tokens.length == 8) {
+                try {
+                    viewport = new BoundingBox(Double.parseDouble(tokens[4]), Double.parseDouble(tokens[5]),
+                            Double.parseDouble(tokens[6]), Double.parseDouble(tokens[7]));
+                } catch (NumberFormatException e) {
+                    throw new ClevisException("The viewport must be four valid numbers.");
+                }
+                if (viewport.getWidth() <= 0 || viewport.getHeight() <= 0) {
+                    throw new ClevisException("The viewport width and height must be positive.");
+                }
+            }
+            try {
+                final int tiles = PngExport.write(new File(tokens[1]), manager, width, height, viewport);
+                return new CommandResult.Message("Exported a " + width + "x" + height + " image (" + tiles
+                        + " tile(s)) to " + tokens[1]);
+            } catch (IOException e) {
+                throw new ClevisException("Cannot export " + tokens[1] + ": " + e.getMessage());
+            }
+        }
+
+        /**
+         * Tells whether a name argument is a selector. An existing shape whose
+         * name happens to look like a selector is still addressed by name.
+         */
+        private boolean isSelector(final String name) {
+            return ShapeManager.isSelector(name) && manager.getShape(name) == null;
+        }
+
+        /**
+         * Resolves a selector, failing if nothing matches.
+         */
+        private List<Shape> selectMatches(final String selector) throws ClevisException.ShapeNotFoundException {
+            final List<Shape> matches = manager.select(selector);
+            if (matches.isEmpty()) {
+                throw new ClevisException.ShapeNotFoundException("No shapes match: " + selector);
+            }
+            return matches;
+        }
+
+        /**
+         * Shows the problems background checkpoints have met since the last call.
+         */
+        private void showCheckpointWarnings() {
+            final Checkpointer checkpointer = manager.getCheckpointer();
+            if (checkpointer != null) {
+                for (String warning : checkpointer.takeWarnings()) {
+                    view.showError(warning);
                 }
             }
         }
@@ -530,17 +1144,36 @@ public class Clevis {
          * Effect: Exits the Clevis application safely.
          */
         private void quit() {
-            System.out.println("Clevis session ended. Logs saved.");
-            logger.close();
+            view.showMessage("Clevis session ended. Logs saved.");
+            close();
             System.exit(0);
         }
+
+        /**
+         * Closes the checkpointer, the mutation journal and the logger (all idempotent).
+         */
+        private void close() {
+            try {
+                final Checkpointer checkpointer = manager.getCheckpointer();
+                if (checkpointer != null) {
+                    checkpointer.close();
+                    showCheckpointWarnings();
+                }
+                final MutationJournal journal = manager.getJournal();
+                if (journal != null) {
+                    journal.close();
+                }
+            } finally {
+                logger.close();
+            }
+        }
         /**
          * [REQ16] Help command: displays all available commands and usage instructions.
          * Command: help
          * Effect: Prints information about how to use Clevis and its supported commands.
          */
-        private void showHelp() {
-            System.out.println("""
+        private CommandResult showHelp() {
+            return new CommandResult.Message("""
             ========================= CLEVIS HELP =========================
             Clevis is a command-line drawing and shape manipulation tool.
 
@@ -554,10 +1187,29 @@ public class Clevis {
               "delete n": Delete a shape (or group) named n.
               "move n dx dy": Move shape n by dx horizontally and dy vertically.
               "boundingbox n": Display the minimum bounding box of shape n.
+              move, delete, list and boundingbox also accept selectors in place of n:
+                a glob such as "row7_*" or "c?", optionally with a type filter such as "circle:*".
               "shapeAt x y": Find the topmost shape covering point (x, y).
               "intersect n1 n2": Check if two shapes (n1, n2) intersect.
               "list n": Show detailed info about a single shape.
               "listAll": List all shapes in Clevis (bottom to top).
+              "begin": Start a batch; shape commands are queued, not applied; file and history commands are refused.
+              "commit": Apply the queued batch atomically (all or nothing).
+              "rollback": Discard the queued batch.
+              "undo": Take back the latest change (a whole batch or selector command at once).
+              "redo": Apply again the latest change taken back by "undo".
+              "checkpoint name": Mark the current scene; "rollback name" returns to it.
+              "dropCheckpoint name": Forget a checkpoint.
+              "save file [compressed]": Save the scene (shapes, groups and Z-order) to a binary file,
+                optionally in a smaller compressed format that "open" cannot map.
+              "load file": Replace the scene with one saved by "save".
+              "open file": View a scene saved by "save" read-only, without loading it into memory.
+              "diff a b": Compare two scene files (saved or checkpoints) shape by shape.
+              "exportSvg file [x y w h]": Write the scene as SVG, or only the shapes in the viewport.
+              "exportPng file width height [x y w h]": Render the scene, or the viewport, to a PNG image.
+              "import file": Add the shapes of a CSV file (type,name,values...) or an SVG file.
+              "history t1 t2": List the commands logged between times t1 and t2
+                (HH:mm[:ss], yyyy-MM-dd, yyyy-MM-ddTHH:mm[:ss] or epoch ms).
               "help": Show this help guide.
               "quit": Exit Clevis and save logs.
             =================================================================
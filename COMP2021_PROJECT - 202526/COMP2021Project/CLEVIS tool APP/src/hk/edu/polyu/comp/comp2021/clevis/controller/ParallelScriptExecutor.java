@@ -0,0 +1,391 @@
+package hk.edu.polyu.comp.comp2021.clevis.controller;
+
+import hk.edu.polyu.comp.comp2021.clevis.model.ClevisLogger;
+import hk.edu.polyu.comp.comp2021.clevis.model.CommandResult;
+import hk.edu.polyu.comp.comp2021.clevis.model.Group;
+import hk.edu.polyu.comp.comp2021.clevis.model.Shape;
+import hk.edu.polyu.comp.comp2021.clevis.model.ShapeManager;
+import hk.edu.polyu.comp.comp2021.clevis.view.ConsoleView;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Replays a command script, running commands that touch disjoint shapes concurrently.
+ * <p>
+ * Each command's read/write set of shape names is worked out before it runs
+ * (group membership is tracked so ungroup/delete cover member names too), and
+ * a command only starts once every earlier command it conflicts with is done.
+ * Commands that change the set of shapes (create, delete, group, ungroup) also
+ * write a shared "scene" resource so Z-order matches serial execution, and hold
+ * an exclusive lock on the ShapeManager while they run. Commands whose effect
+ * cannot be bounded up front (selectors, shapeAt, listAll, batches) act as barriers.
+ * Commands that rewind, replace or bulk-add to the scene (undo, redo, rollback to
+ * a checkpoint, load, open, import) also end the analysis window: the tracked group
+ * membership is read again from the scene once they have run. So do the ends of a
+ * batch (commit, rollback), since membership was tracked as if the queued commands
+ * had run, and a rolled-back or failed batch undoes them.
+ * <p>
+ * Moves run under the shared lock; {@link ShapeManager} lets moves of different
+ * shapes apply and journal concurrently.
+ * <p>
+ * Results and log records are kept per command and emitted in script order,
+ * so the final scene and the printed output are identical to serial execution.
+ * Which queries are logged is decided then as well, so a sampling query policy
+ * picks the same records as a serial run.
+ */
+public final class ParallelScriptExecutor {
+
+    /** Number of commands analysed and scheduled together. */
+    private static final int WINDOW = 8192;
+
+    /** Pseudo resource written by every command that adds or removes shapes. */
+    private static final String SCENE = "\u0000scene";
+
+    private final Clevis.CommandParser parser;
+    private final ShapeManager manager;
+    private final ClevisLogger logger;
+    private final int threads;
+    private final ReadWriteLock sceneLock = new ReentrantReadWriteLock();
+    private final ConsoleView view = new ConsoleView();
+
+    /**
+     * Creates a parallel executor.
+     *
+     * @param parser  parser used to run each command
+     * @param manager the parser's shape manager (used to seed group membership)
+     * @param logger  logger that records every command
+     * @param threads number of worker threads (must be positive)
+     */
+    public ParallelScriptExecutor(final Clevis.CommandParser parser, final ShapeManager manager,
+                                  final ClevisLogger logger, final int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Thread count must be positive.");
+        }
+        this.parser = parser;
+        this.manager = manager;
+        this.logger = logger;
+        this.threads = threads;
+    }
+
+    /**
+     * Runs every command read from {@code input}; output is printed to {@code output}
+     * in script order. A 'quit' line ends the script without exiting the JVM.
+     *
+     * @param input  script source (UTF-8)
+     * @param output destination for command output
+     * @return number of commands executed
+     * @throws IOException if the script cannot be read
+     */
+    public long run(final InputStream input, final PrintStream output) throws IOException {
+        final Map<String, List<String>> groups = new HashMap<>();
+        seedGroups(groups);
+
+        final ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            final Thread t = new Thread(r, "clevis-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        long executed = 0;
+        try (BufferedReader in = new BufferedReader(
+                new InputStreamReader(input, StandardCharsets.UTF_8), 1 << 16)) {
+            final Analyzer analyzer = new Analyzer(groups);
+            final List<Task> window = new ArrayList<>(WINDOW);
+            String quitLine = null;
+            String line;
+            while ((line = in.readLine()) != null) {
+                final String trimmed = line.trim();
+                if (trimmed.isEmpty()) {
+                    continue;
+                }
+                final String[] tokens = trimmed.split("\\s+");
+                if ("quit".equals(tokens[0].toLowerCase(Locale.ROOT))) {
+                    quitLine = trimmed;
+                    break;
+                }
+                window.add(analyzer.schedule(new Task(trimmed, tokens), pool));
+                if (window.size() == WINDOW || replacesScene(tokens)) {
+                    executed += drain(window, output);
+                    analyzer.reset();
+                    if (replacesScene(tokens)) {
+                        seedGroups(groups);
+                    }
+                }
+            }
+            executed += drain(window, output);
+            if (quitLine != null) {
+                logger.logCommand(quitLine);
+            }
+        } finally {
+            pool.shutdown();
+        }
+        output.flush();
+        return executed;
+    }
+
+    /**
+     * Waits for each task in script order and emits its log records and result.
+     */
+    private long drain(final List<Task> window, final PrintStream output) {
+        for (Task t : window) {
+            t.done.join();
+            // A queued query (inside a batch) leaves no record and is not counted.
+            if (t.logRecords.isEmpty() || !Clevis.CommandParser.isQuery(t.tokens) || logger.shouldLogQuery()) {
+                for (String record : t.logRecords) {
+                    logger.logCommand(record);
+                }
+            }
+            view.showResult(t.result, output);
+        }
+        final int n = window.size();
+        window.clear();
+        return n;
+    }
+
+    private void runTask(final Task t) {
+        final Lock lock = t.exclusive ? sceneLock.writeLock() : sceneLock.readLock();
+        lock.lock();
+        try {
+            t.result = parser.execute(t.trimmed, t.tokens, t.logRecords::add, false);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the tracked group membership with the groups now in the scene.
+     */
+    private void seedGroups(final Map<String, List<String>> groups) {
+        groups.clear();
+        for (Shape s : manager.getAllShapes()) {
+            if (s instanceof Group g) {
+                groups.put(g.getName(), memberNames(g));
+            }
+        }
+    }
+
+    /**
+     * Tells whether a command can bring back, replace or add groups in ways the
+     * analysis cannot see from the script, or ends a batch whose effect on
+     * membership is only known once it has run.
+     */
+    private static boolean replacesScene(final String[] tokens) {
+        switch (tokens[0].toLowerCase(Locale.ROOT)) {
+            case "undo":
+            case "redo":
+            case "load":
+            case "open":
+            case "import":
+            case "commit":
+            case "rollback":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static List<String> memberNames(final Group g) {
+        final List<String> names = new ArrayList<>();
+        for (Shape m : g.getMembers()) {
+            names.add(m.getName());
+        }
+        return names;
+    }
+
+    /** One command with its result and log records. */
+    private static final class Task {
+        private final String trimmed;
+        private final String[] tokens;
+        private final List<String> logRecords = new ArrayList<>(1);
+        private boolean exclusive;
+        private CommandResult result;
+        private CompletableFuture<Void> done;
+
+        private Task(final String trimmed, final String[] tokens) {
+            this.trimmed = trimmed;
+            this.tokens = tokens;
+        }
+    }
+
+    /**
+     * Works out read/write sets and wires each task after the tasks it conflicts with.
+     * Runs on the calling thread only.
+     */
+    private final class Analyzer {
+        private final Map<String, List<String>> groups;
+        private final Map<String, Task> lastWriter = new HashMap<>();
+        private final Map<String, List<Task>> readersSinceWrite = new HashMap<>();
+        private final List<Task> sinceBarrier = new ArrayList<>();
+        private Task lastBarrier;
+        private boolean batchOpen;
+
+        private Analyzer(final Map<String, List<String>> groups) {
+            this.groups = groups;
+        }
+
+        /** Forgets dependency state once every scheduled task has finished. */
+        private void reset() {
+            lastWriter.clear();
+            readersSinceWrite.clear();
+            sinceBarrier.clear();
+            lastBarrier = null;
+        }
+
+        private Task schedule(final Task t, final ExecutorService pool) {
+            final Set<String> reads = new HashSet<>();
+            final Set<String> writes = new HashSet<>();
+            final boolean barrier = !accessOf(t.tokens, reads, writes);
+            t.exclusive = barrier || writes.contains(SCENE);
+
+            final Set<Task> deps = new LinkedHashSet<>();
+            if (lastBarrier != null) {
+                deps.add(lastBarrier);
+            }
+            if (barrier) {
+                deps.addAll(sinceBarrier);
+            } else {
+                for (String r : reads) {
+                    addIfPresent(deps, lastWriter.get(r));
+                }
+                for (String w : writes) {
+                    addIfPresent(deps, lastWriter.get(w));
+                    final List<Task> readers = readersSinceWrite.get(w);
+                    if (readers != null) {
+                        deps.addAll(readers);
+                    }
+                }
+            }
+
+            final CompletableFuture<?>[] waits = new CompletableFuture<?>[deps.size()];
+            int i = 0;
+            for (Task d : deps) {
+                waits[i++] = d.done;
+            }
+            t.done = CompletableFuture.allOf(waits).thenRunAsync(() -> runTask(t), pool);
+
+            if (barrier) {
+                reset();
+                lastBarrier = t;
+            } else {
+                sinceBarrier.add(t);
+                for (String r : reads) {
+                    readersSinceWrite.computeIfAbsent(r, k -> new ArrayList<>()).add(t);
+                }
+                for (String w : writes) {
+                    lastWriter.put(w, t);
+                    readersSinceWrite.remove(w);
+                }
+            }
+            return t;
+        }
+
+        private void addIfPresent(final Set<Task> deps, final Task t) {
+            if (t != null) {
+                deps.add(t);
+            }
+        }
+
+        /**
+         * Fills the read/write sets of a command and updates tracked group membership.
+         * Commands inside a begin/commit batch still update group membership but run
+         * as barriers, since the parser's batch state is shared.
+         *
+         * @return false if the command must run as a barrier
+         */
+        private boolean accessOf(final String[] tokens, final Set<String> reads, final Set<String> writes) {
+            final boolean bounded = boundedAccessOf(tokens, reads, writes);
+            return bounded && !batchOpen;
+        }
+
+        private boolean boundedAccessOf(final String[] tokens, final Set<String> reads, final Set<String> writes) {
+            final String op = tokens[0].toLowerCase(Locale.ROOT);
+            switch (op) {
+                case "begin":
+                    batchOpen = true;
+                    return false;
+                case "commit":
+                    batchOpen = false;
+                    return false;
+                case "rollback":
+                    if (tokens.length == 1) {
+                        batchOpen = false;
+                    }
+                    return false;
+                case "rectangle":
+                case "line":
+                case "circle":
+                case "square":
+                    if (tokens.length > 1) {
+                        writes.add(tokens[1]);
+                    }
+                    writes.add(SCENE);
+                    return true;
+                case "group":
+                    if (tokens.length < 3) {
+                        return false;
+                    }
+                    final List<String> members = new ArrayList<>();
+                    for (int i = 1; i < tokens.length; i++) {
+                        writes.add(tokens[i]);
+                        if (i > 1) {
+                            members.add(tokens[i]);
+                        }
+                    }
+                    writes.add(SCENE);
+                    // Merge rather than replace: if this group command fails because the
+                    // name is taken, the earlier membership is still the real one.
+                    groups.merge(tokens[1], members, (old, added) -> {
+                        final List<String> union = new ArrayList<>(old);
+                        union.addAll(added);
+                        return union;
+                    });
+                    return true;
+                case "ungroup":
+                case "delete":
+                    if (tokens.length != 2) {
+                        return false;
+                    }
+                    if (ShapeManager.isSelector(tokens[1])) {
+                        return false;
+                    }
+                    final List<String> known = groups.remove(tokens[1]);
+                    if (known != null) {
+                        writes.addAll(known);
+                    }
+                    writes.add(tokens[1]);
+                    writes.add(SCENE);
+                    return true;
+                case "move":
+                    if (tokens.length < 2 || ShapeManager.isSelector(tokens[1])) {
+                        return false;
+                    }
+                    writes.add(tokens[1]);
+                    return true;
+                case "boundingbox":
+                case "list":
+                    if (tokens.length < 2 || ShapeManager.isSelector(tokens[1])) {
+                        return false;
+                    }
+                    reads.add(tokens[1]);
+                    return true;
+                case "intersect":
+                    for (int i = 1; i < tokens.length; i++) {
+                        reads.add(tokens[i]);
+                    }
+                    return true;
+                case "help":
+                    return true;
+                default:
+                    // shapeAt, listAll and anything unknown: run alone.
+                    return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package hk.edu.polyu.comp.comp2021.clevis.controller;
+
+import hk.edu.polyu.comp.comp2021.clevis.model.ClevisLogger;
+import hk.edu.polyu.comp.comp2021.clevis.model.CommandResult;
+import hk.edu.polyu.comp.comp2021.clevis.view.ConsoleView;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Replays a command script through a staged pipeline.
+ * <p>
+ * Stages, each connected by a bounded queue so memory stays bounded:
+ * <ol>
+ *   <li>reader thread: decodes input lines,</li>
+ *   <li>parser thread: trims and tokenizes ahead of execution,</li>
+ *   <li>executor (calling thread): applies commands to the ShapeManager strictly in order,</li>
+ *   <li>logger thread: writes log records (REQ1) in command order,</li>
+ *   <li>output thread: renders the result of each command in command order.</li>
+ * </ol>
+ * A full queue blocks its producer (backpressure), so a slow disk or console
+ * throttles the whole pipeline instead of buffering without limit. If the log
+ * or output stage fails, the executor stops handing it work and the failure
+ * is reported once the other stages have ended.
+ * A 'quit' line ends the script; it is logged but does not exit the JVM.
+ */
+public final class ScriptPipeline {
+
+    /** Default capacity of each inter-stage queue. */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    /** How often a producer waiting on a full queue checks that its consumer is still running. */
+    private static final long HAND_OFF_POLL_MILLIS = 50;
+
+    /** End-of-stream marker for the text queues, compared by identity. */
+    private static final String END = new String("<end>");
+    /** End-of-stream marker for the command queue. */
+    private static final Parsed END_COMMAND = new Parsed(null, null);
+    /** End-of-stream marker for the result queue, compared by identity. */
+    private static final CommandResult END_RESULT = new CommandResult.Message("<end>");
+
+    private final Clevis.CommandParser parser;
+    private final ClevisLogger logger;
+    private final int capacity;
+
+    private volatile Throwable failure;
+    private volatile boolean cancelled;
+
+    /**
+     * Creates a pipeline around an existing parser and logger.
+     *
+     * @param parser   parser whose ShapeManager receives the commands
+     * @param logger   logger that records every command
+     * @param capacity capacity of each inter-stage queue (must be positive)
+     */
+    public ScriptPipeline(final Clevis.CommandParser parser, final ClevisLogger logger, final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity must be positive.");
+        }
+        this.parser = parser;
+        this.logger = logger;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Runs every command read from {@code input} and prints their output to {@code output}.
+     *
+     * @param input  script source (UTF-8)
+     * @param output destination for command output
+     * @return number of commands executed
+     * @throws IOException          if the script cannot be read
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public long run(final InputStream input, final PrintStream output) throws IOException, InterruptedException {
+        final BlockingQueue<String> lines = new ArrayBlockingQueue<>(capacity);
+        final BlockingQueue<Parsed> commands = new ArrayBlockingQueue<>(capacity);
+        final BlockingQueue<String> logRecords = new ArrayBlockingQueue<>(capacity);
+        final BlockingQueue<CommandResult> results = new ArrayBlockingQueue<>(capacity);
+        failure = null;
+        cancelled = false;
+
+        final Thread reader = stage("clevis-reader", () -> {
+            try (BufferedReader in = new BufferedReader(
+                    new InputStreamReader(input, StandardCharsets.UTF_8), 1 << 16)) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    lines.put(line);
+                }
+            } finally {
+                if (!cancelled) {
+                    lines.put(END);
+                }
+            }
+        });
+        final Thread tokenizer = stage("clevis-parser", () -> {
+            try {
+                String line;
+                while ((line = lines.take()) != END) {
+                    final String trimmed = line.trim();
+                    if (!trimmed.isEmpty()) {
+                        commands.put(new Parsed(trimmed, trimmed.split("\\s+")));
+                    }
+                }
+            } finally {
+                if (!cancelled) {
+                    commands.put(END_COMMAND);
+                }
+            }
+        });
+        final Thread logWriter = stage("clevis-log", () -> {
+            String record;
+            while ((record = logRecords.take()) != END) {
+                logger.logCommand(record);
+            }
+        });
+        final Thread printer = stage("clevis-output", () -> {
+            final ConsoleView view = new ConsoleView();
+            CommandResult result;
+            while ((result = results.take()) != END_RESULT) {
+                view.showResult(result, output);
+            }
+            output.flush();
+        });
+
+        final Consumer<String> log = record -> {
+            try {
+                handOff(logRecords, record, logWriter);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        long executed = 0;
+        try {
+            Parsed cmd;
+            // A failed stage ends the run: its queue is no longer drained.
+            while (failure == null && (cmd = commands.take()) != END_COMMAND) {
+                if ("quit".equals(cmd.tokens[0].toLowerCase(Locale.ROOT))) {
+                    handOff(logRecords, cmd.trimmed, logWriter);
+                    break;
+                }
+                final CommandResult result = parser.execute(cmd.trimmed, cmd.tokens, log);
+                executed++;
+                if (result != CommandResult.NONE) {
+                    handOff(results, result, printer);
+                }
+            }
+        } finally {
+            // Stop the upstream stages if the executor ended early, then drain downstream.
+            cancelled = true;
+            reader.interrupt();
+            tokenizer.interrupt();
+            handOff(logRecords, END, logWriter);
+            handOff(results, END_RESULT, printer);
+            logWriter.join();
+            printer.join();
+        }
+
+        final Throwable t = failure;
+        if (t instanceof IOException io) {
+            throw io;
+        } else if (t != null) {
+            throw new IOException("Script pipeline stage failed: " + t.getMessage(), t);
+        }
+        return executed;
+    }
+
+    /**
+     * Puts an item on a stage's queue, waiting while the queue is full, unless
+     * the stage has ended (it failed) and will never take it.
+     *
+     * @return true if the item was queued
+     */
+    private static <T> boolean handOff(final BlockingQueue<T> queue, final T item, final Thread consumer)
+            throws InterruptedException {
+        while (!queue.offer(item, HAND_OFF_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+            if (!consumer.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Thread stage(final String name, final StageBody body) {
+        final Thread t = new Thread(() -> {
+            try {
+                body.run();
+            } catch (InterruptedException e) {
+                // Stage was cancelled; nothing left to do.
+            } catch (Throwable e) {
+                failure = e;
+            }
+        }, name);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    /** Body of a pipeline stage. */
+    @FunctionalInterface
+    private interface StageBody {
+        void run() throws Exception;
+    }
+
+    /** A trimmed command line with its tokens. */
+    private static final class Parsed {
+        private final String trimmed;
+        private final String[] tokens;
+
+        private Parsed(final String trimmed, final String[] tokens) {
+            this.trimmed = trimmed;
+            this.tokens = tokens;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package hk.edu.polyu.comp.comp2021.clevis.model;
+
+import java.util.Locale;
+
+/**
+ * Immutable axis-aligned bounding box given by its top-left corner and size.
+ */
+public final class BoundingBox {
+
+    private final double x;
+    private final double y;
+    private final double width;
+    private final double height;
+
+    /**
+     * Constructs a bounding box.
+     *
+     * @param x      x-coordinate of the top-left corner
+     * @param y      y-coordinate of the top-left corner
+     * @param width  box width
+     * @param height box height
+     */
+    public BoundingBox(final double x, final double y, final double width, final double height) {
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Returns the x-coordinate of the top-left corner.
+     *
+     * @return left edge
+     */
+    public double getX() {
+        return x;
+    }
+
+    /**
+     * Returns the y-coordinate of the top-left corner.
+     *
+     * @return top edge
+     */
+    public double getY() {
+        return y;
+    }
+
+    /**
+     * Returns the width of the box.
+     *
+     * @return width
+     */
+    public double getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the box.
+     *
+     * @return height
+     */
+    public double getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the smallest box containing both this box and another.
+     *
+     * @param other other box
+     * @return union of the two boxes
+     */
+    public BoundingBox union(final BoundingBox other) {
+        final double minX = Math.min(x, other.x);
+        final double minY = Math.min(y, other.y);
+        final double maxX = Math.max(x + width, other.x + other.width);
+        final double maxY = Math.max(y + height, other.y + other.height);
+        return new BoundingBox(minX, minY, maxX - minX, maxY - minY);
+    }
+
+    /**
+     * Tells whether this box and another overlap (touching edges count as overlapping).
+     *
+     * @param other other box
+     * @return true if the boxes intersect
+     */
+    public boolean intersects(final BoundingBox other) {
+        return !(x + width < other.x || other.x + other.width < x
+                || y + height < other.y || other.y + other.height < y);
+    }
+
+    /**
+     * Formats the box as "x y w h" with two decimals, as used by {@link Shape#getBoundingBox()}.
+     *
+     * @return formatted bounding box
+     */
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%.2f %.2f %.2f %.2f", x, y, width, height);
+    }
+}
@@ -0,0 +1,329 @@
+package hk.edu.polyu.comp.comp2021.clevis.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Periodic background checkpoints of a journaled scene, so recovery replays at
+ * most one checkpoint interval of the {@link MutationJournal}.
+ * <p>
+ * Once the journal holds {@code everyRecords} records, the next mutation
+ * outside a transaction starts a checkpoint. On the command thread, and holding
+ * the manager's scene lock exclusively, it captures the top-level shapes ({@link ShapeManager#capture()})
+ * with their Z sequence numbers and switches journals: the journal of generation {@code g} is closed and
+ * renamed to {@code <journal>.<g>}, and a new journal of generation {@code g + 1}
+ * takes its place. This costs two array copies of the top-level shapes and two
+ * file operations. A background thread then writes the captured shapes as the
+ * scene file {@code <journal>.checkpoint} (see {@link SceneFile}), recording
+ * {@code g + 1} as the first generation it does not cover, and deletes the
+ * renamed journals it covers, with the file copies they keep (see
+ * {@link MutationJournal}). Commands keep running meanwhile; at most one
+ * checkpoint is written at a time.
+ * <p>
+ * Recovery ({@link #open}) loads the checkpoint, if there is one, and replays
+ * the renamed journals it does not cover and then the current journal, oldest
+ * first. A crash at any point leaves either the old checkpoint with every
+ * journal after it, or the new one, so nothing is lost. The undo history is
+ * not recovered: a recovered scene starts with nothing to undo.
+ * <p>
+ * A checkpoint that fails leaves the journals as they were, so nothing is lost;
+ * the problem is kept for the caller to report ({@link #takeWarnings()}).
+ */
+public final class Checkpointer {
+
+    /** Default number of journal records between checkpoints. */
+    public static final long DEFAULT_EVERY_RECORDS = 100_000;
+
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+    private final File journalFile;
+    private final ShapeManager manager;
+    private final long everyRecords;
+    private final long replayed;
+    private final long discarded;
+    private final boolean restored;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        final Thread t = new Thread(r, "clevis-checkpoint");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** The checkpoint being written, or null; guarded by this. */
+    private Future<?> pending;
+    /** Set when switching journals failed; no more checkpoints are taken. */
+    private volatile boolean disabled;
+    /** Problems met since the last {@link #takeWarnings()}, oldest first. */
+    private final Queue<String> warnings = new ConcurrentLinkedQueue<>();
+
+    private Checkpointer(final File journalFile, final ShapeManager manager, final long everyRecords,
+                         final long replayed, final long discarded, final boolean restored) {
+        this.journalFile = journalFile;
+        this.manager = manager;
+        this.everyRecords = everyRecords;
+        this.replayed = replayed;
+        this.discarded = discarded;
+        this.restored = restored;
+    }
+
+    /**
+     * Recovers the scene from a journal and its checkpoint, then attaches a
+     * journal and a checkpointer to {@code manager}.
+     *
+     * @param journalFile  journal file (created if missing)
+     * @param manager      empty scene with no journal attached
+     * @param everyRecords journal records between checkpoints (0 for none)
+     * @return the checkpointer
+     * @throws IOException if the checkpoint or a journal cannot be read or does not apply
+     */
+    public static Checkpointer open(final File journalFile, final ShapeManager manager, final long everyRecords)
+            throws IOException {
+        final File checkpoint = checkpointFileOf(journalFile);
+        long covered = 0;
+        boolean restored = false;
+        if (checkpoint.exists()) {
+            covered = SceneFile.journalGeneration(checkpoint);
+            SceneFile.load(checkpoint, manager);
+            restored = true;
+        }
+
+        long replayed = 0;
+        long discarded = 0;
+        long next = covered;
+        for (Map.Entry<Long, File> e : rotated(journalFile).entrySet()) {
+            if (e.getKey() < covered) {
+                // Already in the checkpoint; left behind by a crash before it was deleted.
+                Files.deleteIfExists(e.getValue().toPath());
+                continue;
+            }
+            final MutationJournal.Replay r = MutationJournal.replay(e.getValue(), manager);
+            replayed += r.getRecords();
+            discarded += r.getDiscardedBytes();
+            next = e.getKey() + 1;
+        }
+        final MutationJournal.Replay tail = MutationJournal.replay(journalFile, manager);
+        replayed += tail.getRecords();
+        discarded += tail.getDiscardedBytes();
+        manager.clearUndoHistory();
+
+        final MutationJournal journal = new MutationJournal(journalFile, next);
+        final Checkpointer checkpointer = new Checkpointer(journalFile, manager, everyRecords, replayed, discarded,
+                restored);
+        manager.setJournal(journal);
+        manager.setCheckpointer(checkpointer);
+        checkpointer.deleteCopies(covered - 1);
+        return checkpointer;
+    }
+
+    /**
+     * @param journalFile journal file
+     * @return the checkpoint file kept next to it
+     */
+    public static File checkpointFileOf(final File journalFile) {
+        return new File(journalFile.getPath() + CHECKPOINT_SUFFIX);
+    }
+
+    /**
+     * @return number of journal records replayed by {@link #open}
+     */
+    public long getReplayed() {
+        return replayed;
+    }
+
+    /**
+     * @return number of bytes of torn or corrupt journal records {@link #open} cut off
+     */
+    public long getDiscardedBytes() {
+        return discarded;
+    }
+
+    /**
+     * @return true if {@link #open} loaded a checkpoint
+     */
+    public boolean isRestored() {
+        return restored;
+    }
+
+    /**
+     * Takes the problems met by checkpoints since the last call, including those
+     * of checkpoints written in the background.
+     *
+     * @return the messages, oldest first (empty if there were none)
+     */
+    public List<String> takeWarnings() {
+        final List<String> taken = new ArrayList<>();
+        for (String w = warnings.poll(); w != null; w = warnings.poll()) {
+            taken.add(w);
+        }
+        return taken;
+    }
+
+    /**
+     * Starts a checkpoint if the journal has reached the interval. Called by
+     * {@link ShapeManager} after each mutation.
+     */
+    void checkpointIfDue() {
+        final MutationJournal journal = manager.getJournal();
+        if (everyRecords > 0 && !disabled && journal != null && journal.getRecordCount() >= everyRecords) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Starts a checkpoint now, unless one is still being written or a
+     * transaction is open.
+     *
+     * @return true if a checkpoint was started
+     */
+    public synchronized boolean checkpoint() {
+        if (pending != null && !pending.isDone() || disabled) {
+            return false;
+        }
+        final Shape[] shapes;
+        final long[] z;
+        final long nextZ;
+        final long generation;
+        final Lock exclusive = manager.exclusiveLock();
+        exclusive.lock();
+        try {
+            final MutationJournal journal = manager.getJournal();
+            if (journal == null || journal.inTransaction() || manager.getMappedScene() != null) {
+                return false;
+            }
+            generation = journal.getGeneration();
+            shapes = manager.capture();
+            z = manager.zNumbers();
+            nextZ = manager.nextZ();
+            try {
+                switchJournal(journal, generation);
+            } catch (IOException e) {
+                manager.release();
+                disabled = true;
+                warnings.add("Cannot switch mutation journals, checkpoints disabled: " + e.getMessage());
+                return false;
+            }
+        } finally {
+            exclusive.unlock();
+        }
+        pending = writer.submit(() -> write(shapes, z, nextZ, generation));
+        return true;
+    }
+
+    /**
+     * Waits for the checkpoint being written, if any, and stops the checkpoint
+     * thread. The journal stays open.
+     */
+    public void close() {
+        writer.shutdown();
+        boolean interrupted = false;
+        while (!writer.isTerminated()) {
+            try {
+                writer.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Renames the current journal after its generation and attaches a new one.
+     * If that fails, journaling goes on in the old file.
+     */
+    private void switchJournal(final MutationJournal journal, final long generation) throws IOException {
+        final File old = rotatedFileOf(journalFile, generation);
+        journal.close();
+        try {
+            move(journalFile, old);
+        } catch (IOException e) {
+            manager.setJournal(new MutationJournal(journalFile));
+            throw e;
+        }
+        try {
+            manager.setJournal(new MutationJournal(journalFile, generation + 1));
+        } catch (IOException e) {
+            Files.deleteIfExists(journalFile.toPath());
+            move(old, journalFile);
+            manager.setJournal(new MutationJournal(journalFile));
+            throw e;
+        }
+    }
+
+    /**
+     * Background part: writes the captured shapes and deletes the journals they cover.
+     */
+    private void write(final Shape[] shapes, final long[] z, final long nextZ, final long generation) {
+        try {
+            SceneFile.checkpoint(checkpointFileOf(journalFile), shapes, z, nextZ, generation + 1);
+        } catch (IOException | RuntimeException e) {
+            warnings.add("Cannot write checkpoint: " + e.getMessage());
+            return;
+        } finally {
+            manager.release();
+        }
+        for (Map.Entry<Long, File> e : rotated(journalFile).headMap(generation, true).entrySet()) {
+            if (!e.getValue().delete()) {
+                warnings.add("Cannot delete covered journal " + e.getValue().getName());
+            }
+        }
+        deleteCopies(generation);
+    }
+
+    /**
+     * Deletes the file copies kept for the journals a checkpoint covers.
+     */
+    private void deleteCopies(final long throughGeneration) {
+        for (File f : MutationJournal.deleteCopies(journalFile, throughGeneration)) {
+            warnings.add("Cannot delete covered journal copy " + f.getName());
+        }
+    }
+
+    /**
+     * Lists the renamed journals next to {@code journalFile} by generation.
+     */
+    private static TreeMap<Long, File> rotated(final File journalFile) {
+        final TreeMap<Long, File> files = new TreeMap<>();
+        final File dir = journalFile.getAbsoluteFile().getParentFile();
+        final String prefix = journalFile.getName() + ".";
+        final File[] all = dir.listFiles();
+        if (all == null) {
+            return files;
+        }
+        for (File f : all) {
+            final String name = f.getName();
+            if (name.startsWith(prefix) && name.length() > prefix.length()
+                    && name.substring(prefix.length()).chars().allMatch(Character::isDigit)) {
+                files.put(Long.parseLong(name.substring(prefix.length())), f);
+            }
+        }
+        return files;
+    }
+
+    private static File rotatedFileOf(final File journalFile, final long generation) {
+        return new File(journalFile.getPath() + "." + generation);
+    }
+
+    private static void move(final File from, final File to) throws IOException {
+        try {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
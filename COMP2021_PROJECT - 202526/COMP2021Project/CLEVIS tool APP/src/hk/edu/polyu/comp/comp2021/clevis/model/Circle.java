@@ -1,7 +1,5 @@
 package hk.edu.polyu.comp.comp2021.clevis.model;
 
-import java.util.Locale;
-
 /**
  * Represents a circle shape in the Clevis system.
  * <p>
@@ -36,6 +34,33 @@ public final class Circle implements Shape {
         this.radius = radius;
     }
 
+    /**
+     * Returns the x-coordinate of the center.
+     *
+     * @return x-coordinate of the center
+     */
+    public double getX() {
+        return x;
+    }
+
+    /**
+     * Returns the y-coordinate of the center.
+     *
+     * @return y-coordinate of the center
+     */
+    public double getY() {
+        return y;
+    }
+
+    /**
+     * Returns the radius.
+     *
+     * @return radius
+     */
+    public double getRadius() {
+        return radius;
+    }
+
     @Override
     public double getArea() {
         return Math.PI * radius * radius;
@@ -58,18 +83,29 @@ public final class Circle implements Shape {
     }
 
     @Override
-    public String getBoundingBox() {
-        final double topLeftX = x - radius;
-        final double topLeftY = y - radius;
+    public BoundingBox getBounds() {
         final double diameter = 2 * radius;
-        return String.format(Locale.ROOT, "%.2f %.2f %.2f %.2f",
-                topLeftX, topLeftY, diameter, diameter);
+        return new BoundingBox(x - radius, y - radius, diameter, diameter);
     }
 
     @Override
     public boolean coversPoint(final double px, final double py) {
+        return covers(x, y, radius, px, py);
+    }
+
+    /**
+     * Point test on raw values, shared with shapes read straight from a scene file.
+     *
+     * @return true if the circle (x, y, radius) covers (px, py)
+     */
+    static boolean covers(final double x, final double y, final double radius, final double px, final double py) {
         final double dx = px - x;
         final double dy = py - y;
         return (dx * dx + dy * dy) <= radius * radius;
     }
+
+    @Override
+    public Shape copy() {
+        return new Circle(name, x, y, radius);
+    }
 }
@@ -1,21 +1,207 @@
 package hk.edu.polyu.comp.comp2021.clevis.model;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.InputStream;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 
 /**
  * Handles logging for REQ1.
  * <p>
- * Logs all executed commands to both text and HTML files.
+ * Logs all executed commands to both text and HTML files. While the session
+ * runs, each command is appended to a compact binary journal only (a varint
+ * timestamp delta and the UTF-8 command, see {@link LogRenderer}); the HTML and
+ * text logs are rendered from the journal by {@link #close()}, or offline with
+ * {@link LogRenderer} if the session never closed.
+ * <p>
+ * The journal is split into segments: a new segment starts when the current one
+ * reaches a size or age limit ({@link #setRotation}). Closed segments are
+ * gzip-compressed in the background, and a manifest lists them in order (see
+ * {@link LogSegments}). Only the newest segments are kept ({@link #setRetention});
+ * the oldest are deleted once they have been rendered. A rendered log that has
+ * reached its size limit is moved aside to {@code <name>.1.<ext>} before the next
+ * session is rendered, and only a few such copies are kept. A sparse time index of every segment
+ * lets {@link #history} read a time range without scanning the whole log. The active segment stays open for
+ * the whole session behind a large buffer; {@link FlushPolicy} decides when
+ * buffered records are pushed to it. Records are encoded straight into that
+ * reusable buffer, so logging a command allocates nothing. With
+ * {@link WriteMode#MAPPED} the segment is written through a memory-mapped
+ * window instead, so appending is a memory copy and flushing is free.
+ * <p>
+ * In asynchronous mode ({@link #startAsync}) {@link #logCommand} only places the
+ * record in a preallocated ring buffer and a background thread writes it, so a
+ * slow disk does not delay commands. Asynchronous mode expects a single thread
+ * to log at a time; all other methods are thread-safe.
+ * <p>
+ * {@link Durability} decides how often the journal is forced to stable storage.
+ * Forces use group commit: records written while a force is in progress are
+ * covered together by the next single force.
+ * <p>
+ * {@link QueryLogging} lets read-only commands be sampled or only counted,
+ * since they usually far outnumber the commands that change the scene. The
+ * caller classifies commands and asks {@link #shouldLogQuery()} for queries.
  */
 public final class ClevisLogger {
 
+    /** Size of each log channel's write buffer, in bytes. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * When buffered log records are written through to the log files.
+     */
+    public enum FlushPolicy {
+        /** Flush the journal after every record, so it is always up to date. */
+        EVERY_RECORD,
+        /** Flush only when a buffer fills, on {@link #flush()} and on {@link #close()}. */
+        BUFFERED
+    }
+
+    /**
+     * What {@link #logCommand} does when the asynchronous ring buffer is full.
+     */
+    public enum OverflowPolicy {
+        /** Wait until the writer thread frees a slot. No record is lost. */
+        BLOCK,
+        /** Discard the record and count it (see {@link #getDroppedCount()}). */
+        DROP,
+        /**
+         * Append the record to an overflow file next to the text log instead.
+         * Later records are spilled too until the writer thread has drained the
+         * ring and moved the spilled records into the journal, so they keep their
+         * order and are rendered with the rest.
+         */
+        SPILL
+    }
+
+    /**
+     * How often logged records are forced to stable storage with {@link FileChannel#force}.
+     */
+    public enum Durability {
+        /** Never force; the operating system writes the files back when it chooses. */
+        NONE,
+        /** Force once at least N records have been logged since the last force. */
+        EVERY_N_RECORDS,
+        /** Force when a record arrives at least T milliseconds after the last force. */
+        INTERVAL,
+        /** Force before {@link #logCommand} returns (after the writer drains, when asynchronous). */
+        EVERY_RECORD
+    }
+
+    /**
+     * How records reach the active journal segment.
+     */
+    public enum WriteMode {
+        /** Encode into a buffer that is written to the file when it fills or is flushed. */
+        CHANNEL,
+        /**
+         * Encode straight into a memory-mapped window of the file, which grows by
+         * a fixed chunk at a time. Records are in the page cache as soon as they
+         * are logged, so they survive a crash of the process; pair this with
+         * {@link Durability#INTERVAL} to force them to the disk periodically.
+         */
+        MAPPED
+    }
+
+    /**
+     * Which read-only commands (queries) are logged. Commands that change the
+     * scene are always logged.
+     */
+    public enum QueryLogging {
+        /** Log every query. */
+        LOG,
+        /** Log the first of every N queries and count the rest. */
+        SAMPLE,
+        /**
+         * Log no queries, only count them. The count of unlogged queries is
+         * written as a final record when the logger closes.
+         */
+        COUNT
+    }
+
+    /** Default size of each mapped window in {@link WriteMode#MAPPED}, in bytes. */
+    public static final int DEFAULT_MAP_CHUNK = 16 * 1024 * 1024;
+
+    /** Default maximum size of a journal segment, in bytes. */
+    public static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+
+    /** Default size at which a rendered HTML or text log is moved aside, in bytes. */
+    public static final long DEFAULT_RENDERED_BYTES = 64L * 1024 * 1024;
+
+    /** Default number of moved-aside copies kept of each rendered log. */
+    public static final int DEFAULT_KEPT_LOGS = 4;
+
+    /** Default number of journal segments kept. */
+    public static final int DEFAULT_KEPT_SEGMENTS = 64;
+
+    /** Default number of slots in the asynchronous ring buffer. */
+    public static final int DEFAULT_RING_CAPACITY = 8192;
+
+    /** Maximum records written by the writer thread per lock acquisition. */
+    private static final int DRAIN_BATCH = 256;
+
     private final File txtLog;
     private final File htmlLog;
-    private final SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    private final LogSegments segments;
+
+    // Active journal segment; all guarded by this.
+    private LogChannel journal;
+    private LogSegments.Segment segment;
+    private LogSegments.Segment sessionStart;
+    /** Timestamp of the previous record in the segment. */
+    private long lastTimestamp;
+    private long segmentRecords;
+    private long segmentFirst;
+    private long segmentOpened;
+    private LogIndex segmentIndex;
+    private long maxSegmentBytes = DEFAULT_SEGMENT_BYTES;
+    private long maxSegmentAge;
+    private long maxRenderedBytes = DEFAULT_RENDERED_BYTES;
+    private int keptLogs = DEFAULT_KEPT_LOGS;
+    private int keptSegments = DEFAULT_KEPT_SEGMENTS;
+    private WriteMode writeMode = WriteMode.CHANNEL;
+    private int mapChunk = DEFAULT_MAP_CHUNK;
+    private FlushPolicy flushPolicy = FlushPolicy.EVERY_RECORD;
+    private volatile boolean closed;
+
+    // Asynchronous mode; ring and writer are null while logging synchronously.
+    private volatile LogRingBuffer ring;
+    private OverflowPolicy overflowPolicy;
+    private Thread writerThread;
+    private volatile boolean writerIdle;
+    private volatile boolean stopping;
+    private LogChannel spillWriter;
+    /** Timestamp of the previous spilled record; guarded by this. */
+    private long spillLast;
+    /** True while spilled records wait to be moved into the journal. */
+    private volatile boolean spillPending;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+
+    // Durability and group commit.
+    private volatile Durability durability = Durability.NONE;
+    private volatile long syncEvery;
+    /** Records handed to the writers so far; guarded by this. */
+    private long writtenSeq;
+    /** Records known to be on stable storage. */
+    private volatile long durableSeq;
+    private volatile long lastSyncMillis = System.currentTimeMillis();
+    /** Held by the thread performing a force; later arrivals find their record already covered. */
+    private final Object syncLock = new Object();
+    private final AtomicLong syncs = new AtomicLong();
+
+    // Query filtering.
+    private volatile QueryLogging queryLogging = QueryLogging.LOG;
+    private volatile long sampleEvery = 1;
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong unloggedQueries = new AtomicLong();
 
     /**
      * Creates a new logger that writes to the given HTML and text file paths.
@@ -44,72 +230,735 @@ public final class ClevisLogger {
 
         this.htmlLog = new File(logDir, htmlPath);
         this.txtLog = new File(logDir, txtPath);
+        final String name = txtLog.getName();
+        final int dot = name.lastIndexOf('.');
+        this.segments = new LogSegments(logDir, dot > 0 ? name.substring(0, dot) : name);
         initializeLogs();
     }
 
     /**
-     * Initializes log files with headers if they do not already exist.
+     * Starts this session's first journal segment. Segments of earlier sessions,
+     * including ones that never closed, stay listed in the manifest.
      */
-    private void initializeLogs() {
+    private synchronized void initializeLogs() {
         try {
-            if (!txtLog.exists() && txtLog.createNewFile()) {
-                try (FileWriter fw = new FileWriter(txtLog, true)) {
-                    fw.write("=== CLEVIS LOG START ===\n");
-                }
-            }
+            openSegment();
+            sessionStart = segment;
+            journal.flush();
+        } catch (IOException e) {
+            System.err.println("Error initializing logs: " + e.getMessage());
+        }
+    }
 
-            if (!htmlLog.exists() && htmlLog.createNewFile()) {
-                try (FileWriter fw = new FileWriter(htmlLog, true)) {
-                    fw.write("""
-                        <html><head><title>Clevis Log</title></head><body>
-                        <h2>Clevis Command Log</h2><ul>
-                        """);
-                }
+    /**
+     * Opens the next journal segment and writes its header, and drops the oldest
+     * segments of earlier sessions beyond the retention limit. Caller holds the lock.
+     */
+    private void openSegment() throws IOException {
+        segment = segments.next();
+        segments.prune(keptSegments, sessionStart == null ? segment : sessionStart);
+        journal = writeMode == WriteMode.MAPPED
+                ? LogChannel.mapped(segments.fileOf(segment), mapChunk)
+                : new LogChannel(segments.fileOf(segment), BUFFER_SIZE);
+        journal.put(LogRenderer.MAGIC);
+        journal.put((byte) LogRenderer.VERSION);
+        journal.putVarLong(0);
+        lastTimestamp = 0;
+        segmentRecords = 0;
+        segmentFirst = 0;
+        segmentOpened = System.currentTimeMillis();
+        segmentIndex = new LogIndex();
+    }
+
+    /**
+     * Closes the active segment and hands it to the background compressor.
+     * Caller holds the lock.
+     */
+    private void closeSegment() {
+        try {
+            journal.flush();
+            if (durability != Durability.NONE) {
+                journal.force();
+                syncs.incrementAndGet();
             }
         } catch (IOException e) {
-            System.err.println("Error initializing logs: " + e.getMessage());
+            System.err.println("Error syncing log: " + e.getMessage());
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            System.err.println("Error closing log journal: " + e.getMessage());
+        }
+        journal = null;
+        segments.closed(segment, segmentRecords, segmentFirst, lastTimestamp, segmentIndex);
+    }
+
+    /**
+     * Sets when the journal moves on to a new segment. A limit of 0 disables it.
+     *
+     * @param maxBytes     segment size that triggers rotation, in bytes
+     * @param maxAgeMillis segment age that triggers rotation, in milliseconds
+     * @throws IllegalArgumentException if a limit is negative
+     */
+    public synchronized void setRotation(final long maxBytes, final long maxAgeMillis) {
+        if (maxBytes < 0 || maxAgeMillis < 0) {
+            throw new IllegalArgumentException("Rotation limits must not be negative.");
+        }
+        this.maxSegmentBytes = maxBytes;
+        this.maxSegmentAge = maxAgeMillis;
+    }
+
+    /**
+     * Sets how much log history is kept. At close, a rendered log that has reached
+     * {@code maxRenderedBytes} is renamed to {@code <name>.1.<ext>} (older copies move
+     * up one number) and a new one is started; copies beyond {@code keptLogs} are
+     * deleted. Once this session is rendered, only the newest {@code keptSegments}
+     * journal segments are kept; the current session's segments are never dropped
+     * before they are rendered. A limit of 0 disables it.
+     *
+     * @param maxRenderedBytes rendered log size that triggers a new file, in bytes
+     * @param keptLogs         moved-aside copies to keep of each rendered log
+     * @param keptSegments     journal segments to keep
+     * @throws IllegalArgumentException if a limit is negative
+     */
+    public synchronized void setRetention(final long maxRenderedBytes, final int keptLogs,
+                                          final int keptSegments) {
+        if (maxRenderedBytes < 0 || keptLogs < 0 || keptSegments < 0) {
+            throw new IllegalArgumentException("Retention limits must not be negative.");
+        }
+        this.maxRenderedBytes = maxRenderedBytes;
+        this.keptLogs = keptLogs;
+        this.keptSegments = keptSegments;
+    }
+
+    /**
+     * Sets how records are written to the journal. A change takes effect at
+     * once by starting a new segment.
+     *
+     * @param mode       the write mode
+     * @param chunkBytes size of each mapped window for {@link WriteMode#MAPPED}; ignored otherwise
+     * @throws IllegalArgumentException if {@code chunkBytes} is not positive where it is needed
+     */
+    public synchronized void setWriteMode(final WriteMode mode, final int chunkBytes) {
+        if (mode == WriteMode.MAPPED && chunkBytes <= 0) {
+            throw new IllegalArgumentException("Map chunk size must be positive.");
+        }
+        final boolean changed = mode != writeMode || mode == WriteMode.MAPPED && chunkBytes != mapChunk;
+        writeMode = mode;
+        if (mode == WriteMode.MAPPED) {
+            mapChunk = chunkBytes;
+        }
+        if (changed && journal != null && !closed) {
+            closeSegment();
+            try {
+                openSegment();
+            } catch (IOException e) {
+                System.err.println("Error opening log journal: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return the current write mode
+     */
+    public synchronized WriteMode getWriteMode() {
+        return writeMode;
+    }
+
+    /**
+     * @return the journal segment the running session writes to
+     */
+    public synchronized File getJournalFile() {
+        return segments.fileOf(segment);
+    }
+
+    /**
+     * @return the manifest listing every journal segment in order
+     */
+    public File getManifestFile() {
+        return segments.manifestFile();
+    }
+
+    /**
+     * Sets when buffered records are written through to the journal.
+     * Switching to {@link FlushPolicy#EVERY_RECORD} flushes pending records immediately.
+     *
+     * @param policy the new flush policy
+     */
+    public void setFlushPolicy(final FlushPolicy policy) {
+        synchronized (this) {
+            this.flushPolicy = policy;
+        }
+        if (policy == FlushPolicy.EVERY_RECORD) {
+            flush();
+        }
+    }
+
+    /**
+     * Sets how often logged records are forced to stable storage.
+     *
+     * @param mode  the durability mode
+     * @param every record count for {@link Durability#EVERY_N_RECORDS}, milliseconds for
+     *              {@link Durability#INTERVAL}; ignored otherwise
+     * @throws IllegalArgumentException if {@code every} is not positive where it is needed
+     */
+    public void setDurability(final Durability mode, final long every) {
+        if ((mode == Durability.EVERY_N_RECORDS || mode == Durability.INTERVAL) && every <= 0) {
+            throw new IllegalArgumentException("Sync interval must be positive.");
+        }
+        syncEvery = every;
+        durability = mode;
+    }
+
+    /**
+     * @return the current durability mode
+     */
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * @return number of forces performed so far
+     */
+    public long getSyncCount() {
+        return syncs.get();
+    }
+
+    /**
+     * @return the current flush policy
+     */
+    public synchronized FlushPolicy getFlushPolicy() {
+        return flushPolicy;
+    }
+
+    /**
+     * Sets which read-only commands are logged.
+     *
+     * @param mode        the query logging mode
+     * @param sampleEvery for {@link QueryLogging#SAMPLE}, log one query in this many; ignored otherwise
+     * @throws IllegalArgumentException if {@code sampleEvery} is not positive in SAMPLE mode
+     */
+    public void setQueryLogging(final QueryLogging mode, final long sampleEvery) {
+        if (mode == QueryLogging.SAMPLE && sampleEvery <= 0) {
+            throw new IllegalArgumentException("Sample rate must be positive.");
+        }
+        this.sampleEvery = sampleEvery;
+        this.queryLogging = mode;
+    }
+
+    /**
+     * @return the current query logging mode
+     */
+    public QueryLogging getQueryLogging() {
+        return queryLogging;
+    }
+
+    /**
+     * Counts one read-only command and tells whether it should be logged under
+     * the current {@link QueryLogging} mode.
+     *
+     * @return true if the caller should log the query
+     */
+    public boolean shouldLogQuery() {
+        final long n = queries.getAndIncrement();
+        final QueryLogging mode = queryLogging;
+        if (mode == QueryLogging.LOG || mode == QueryLogging.SAMPLE && n % sampleEvery == 0) {
+            return true;
+        }
+        unloggedQueries.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * @return number of read-only commands seen by {@link #shouldLogQuery()}
+     */
+    public long getQueryCount() {
+        return queries.get();
+    }
+
+    /**
+     * @return number of read-only commands that were counted but not logged
+     */
+    public long getUnloggedQueryCount() {
+        return unloggedQueries.get();
+    }
+
+    /**
+     * Switches to asynchronous logging: records go through a ring buffer of
+     * {@code capacity} slots drained by a background writer thread.
+     * With {@link FlushPolicy#EVERY_RECORD} the writer flushes after each batch it drains.
+     *
+     * @param capacity minimum ring capacity (rounded up to a power of two)
+     * @param policy   what to do with records that arrive while the ring is full
+     * @throws IllegalStateException if the logger is closed or already asynchronous
+     */
+    public synchronized void startAsync(final int capacity, final OverflowPolicy policy) {
+        if (closed) {
+            throw new IllegalStateException("Logger is closed.");
+        }
+        if (ring != null) {
+            throw new IllegalStateException("Asynchronous logging is already running.");
         }
+        overflowPolicy = policy;
+        stopping = false;
+        ring = new LogRingBuffer(capacity);
+        writerThread = new Thread(this::drainLoop, "clevis-log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * @return true if records are written by the background writer thread
+     */
+    public boolean isAsync() {
+        return ring != null;
+    }
+
+    /**
+     * @return number of records waiting in the ring buffer (0 when synchronous)
+     */
+    public int getQueueDepth() {
+        final LogRingBuffer r = ring;
+        return r == null ? 0 : r.size();
+    }
+
+    /**
+     * @return number of records discarded under {@link OverflowPolicy#DROP}
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return number of records that went through the overflow file under {@link OverflowPolicy#SPILL}
+     */
+    public long getSpilledCount() {
+        return spilled.get();
+    }
+
+    /**
+     * @return the overflow file used by {@link OverflowPolicy#SPILL}; it only
+     *         exists while spilled records wait to be moved into the journal
+     */
+    public File getOverflowFile() {
+        return new File(txtLog.getPath() + ".overflow");
     }
 
     /**
      * Logs a single command with a timestamp (REQ1).
+     * Commands logged after {@link #close()} are ignored.
      *
      * @param command the command to log
      */
     public void logCommand(final String command) {
-        final String time = timeFormat.format(new Date());
-        final String txtLine = "[" + time + "] " + command + "\n";
-        final String htmlLine = "<li><b>" + time + ":</b> " + escapeHTML(command) + "</li>\n";
-
-        try (FileWriter txtWriter = new FileWriter(txtLog, true);
-             FileWriter htmlWriter = new FileWriter(htmlLog, true)) {
-            txtWriter.write(txtLine);
-            htmlWriter.write(htmlLine);
+        if (closed) {
+            return;
+        }
+        final LogRingBuffer r = ring;
+        if (r == null) {
+            final long seq;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                writeRecord(command, System.currentTimeMillis());
+                if (flushPolicy == FlushPolicy.EVERY_RECORD) {
+                    flushWriters();
+                }
+                seq = writtenSeq;
+            }
+            syncIfDue(seq);
+            return;
+        }
+        enqueue(r, command, System.currentTimeMillis());
+    }
+
+    private void enqueue(final LogRingBuffer r, final String command, final long now) {
+        // While records are spilled, later ones must not overtake them through the ring.
+        if (!spillPending && r.offer(command, now)) {
+            if (writerIdle) {
+                LockSupport.unpark(writerThread);
+            }
+            return;
+        }
+        switch (overflowPolicy) {
+            case DROP:
+                dropped.incrementAndGet();
+                break;
+            case SPILL:
+                spill(command, now);
+                break;
+            default:
+                // BLOCK: wake the writer and wait for a free slot.
+                while (!r.offer(command, now)) {
+                    LockSupport.unpark(writerThread);
+                    LockSupport.parkNanos(50_000L);
+                }
+                if (writerIdle) {
+                    LockSupport.unpark(writerThread);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Appends a record to the overflow file, encoded as in a journal segment
+     * (without the header), for {@link #mergeSpilled()}.
+     */
+    private synchronized void spill(final String command, final long now) {
+        try {
+            if (spillWriter == null) {
+                spillWriter = new LogChannel(getOverflowFile(), BUFFER_SIZE);
+                // Resets the time base, in case a failed merge left older records behind.
+                spillWriter.putVarLong(0);
+                spillLast = 0;
+            }
+            final long delta = now - spillLast;
+            spillWriter.putVarLong(LogChannel.utf8Length(command) + 1L);
+            spillWriter.putVarLong(delta << 1 ^ delta >> 63);
+            spillWriter.putText(command, false);
+            spillLast = now;
+            spillPending = true;
+            spilled.incrementAndGet();
+        } catch (IOException e) {
+            dropped.incrementAndGet();
+            System.err.println("Error writing log overflow: " + e.getMessage());
+        }
+        if (writerIdle) {
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    /**
+     * Moves the spilled records into the journal, in order, and deletes the
+     * overflow file. Caller holds the lock, and the ring is empty: nothing
+     * enters it while records are spilled.
+     *
+     * @return number of records moved
+     */
+    private long mergeSpilled() {
+        long merged = 0;
+        try {
+            spillWriter.close();
+            try (InputStream in = LogRenderer.open(getOverflowFile(), 0)) {
+                merged = LogRenderer.readRecords(in, 0, (time, command, length) -> {
+                    writeRecord(new String(command, 0, length, StandardCharsets.UTF_8), time);
+                    return true;
+                });
+            }
+            Files.delete(getOverflowFile().toPath());
+        } catch (IOException e) {
+            System.err.println("Error merging log overflow " + getOverflowFile().getName() + ": " + e.getMessage());
+        } finally {
+            spillWriter = null;
+            spillPending = false;
+        }
+        return merged;
+    }
+
+    /**
+     * Body of the asynchronous writer thread: drains the ring until stopped and empty.
+     */
+    private void drainLoop() {
+        final LogRingBuffer r = ring;
+        while (true) {
+            final boolean stop = stopping;
+            int n;
+            final long seq;
+            synchronized (this) {
+                try {
+                    n = r.drainTo(this::writeRecord, DRAIN_BATCH);
+                } catch (IOException e) {
+                    // Not reached: writeRecord reports its own I/O errors.
+                    n = 0;
+                }
+                if (n == 0 && spillPending) {
+                    // The ring is empty, so the spilled records are next in order.
+                    n = (int) Math.min(mergeSpilled(), DRAIN_BATCH);
+                }
+                if (n > 0 && flushPolicy == FlushPolicy.EVERY_RECORD && r.size() == 0) {
+                    flushWriters();
+                }
+                seq = writtenSeq;
+            }
+            if (n > 0) {
+                syncIfDue(seq);
+            } else {
+                if (stop) {
+                    return;
+                }
+                writerIdle = true;
+                if (r.size() == 0 && !stopping) {
+                    LockSupport.parkNanos(1_000_000L);
+                }
+                writerIdle = false;
+            }
+        }
+    }
+
+    /**
+     * Appends one record to the journal. Caller holds the lock.
+     */
+    private void writeRecord(final String command, final long timestamp) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            if (segmentRecords % LogIndex.INTERVAL == 0) {
+                segmentIndex.add(timestamp, lastTimestamp, journal.size());
+            }
+            final long delta = timestamp - lastTimestamp;
+            journal.putVarLong(LogChannel.utf8Length(command) + 1L);
+            journal.putVarLong(delta << 1 ^ delta >> 63);
+            journal.putText(command, false);
+            lastTimestamp = timestamp;
+            if (segmentRecords++ == 0) {
+                segmentFirst = timestamp;
+            }
+            writtenSeq++;
+
+            if (maxSegmentBytes > 0 && journal.size() >= maxSegmentBytes
+                    || maxSegmentAge > 0 && timestamp - segmentOpened >= maxSegmentAge) {
+                closeSegment();
+                openSegment();
+            }
         } catch (IOException e) {
             System.err.println("Error writing log: " + e.getMessage());
         }
     }
 
     /**
-     * Closes the HTML log properly (called at program end).
+     * Forces the files if the durability mode says record {@code seq} is due.
      */
-    public void close() {
-        try (FileWriter fw = new FileWriter(htmlLog, true)) {
-            fw.write("</ul></body></html>");
+    private void syncIfDue(final long seq) {
+        switch (durability) {
+            case EVERY_RECORD:
+                awaitDurable(seq);
+                break;
+            case EVERY_N_RECORDS:
+                if (seq - durableSeq >= syncEvery) {
+                    awaitDurable(seq);
+                }
+                break;
+            case INTERVAL:
+                if (System.currentTimeMillis() - lastSyncMillis >= syncEvery) {
+                    awaitDurable(seq);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Returns once record {@code seq} is on stable storage (group commit).
+     * The first thread to get here flushes and forces everything written so far,
+     * outside the writer lock; threads queued behind it usually find their
+     * record already covered and return without forcing again.
+     */
+    private void awaitDurable(final long seq) {
+        synchronized (syncLock) {
+            if (durableSeq >= seq) {
+                return;
+            }
+            final long target;
+            final LogChannel active;
+            synchronized (this) {
+                if (closed || journal == null) {
+                    return;
+                }
+                flushWriters();
+                target = writtenSeq;
+                active = journal;
+            }
+            try {
+                active.force();
+                syncs.incrementAndGet();
+            } catch (ClosedChannelException e) {
+                // Rotated meanwhile; closing the segment already forced it.
+            } catch (IOException e) {
+                System.err.println("Error syncing log: " + e.getMessage());
+            }
+            durableSeq = target;
+            lastSyncMillis = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Writes any buffered records through to the journal. In asynchronous mode
+     * this first waits until the writer thread has drained the ring.
+     */
+    public void flush() {
+        final LogRingBuffer r = ring;
+        if (r != null) {
+            while ((r.size() > 0 || spillPending) && !closed) {
+                LockSupport.unpark(writerThread);
+                LockSupport.parkNanos(100_000L);
+            }
+        }
+        synchronized (this) {
+            if (!closed) {
+                flushWriters();
+            }
+        }
+    }
+
+    private void flushWriters() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.flush();
+            if (spillWriter != null) {
+                spillWriter.flush();
+            }
         } catch (IOException e) {
-            System.err.println("Error closing HTML log: " + e.getMessage());
+            System.err.println("Error flushing log: " + e.getMessage());
         }
     }
 
     /**
-     * Escapes HTML special characters for safety.
+     * Streams every logged command whose time is in {@code [fromMillis, toMillis]},
+     * oldest first, as "[time] command" lines. Covers earlier sessions listed in
+     * the manifest as well as the running one, whose pending records are flushed first.
      *
-     * @param s string to escape
-     * @return escaped HTML-safe string
+     * @param fromMillis start of the range (epoch ms, inclusive)
+     * @param toMillis   end of the range (epoch ms, inclusive)
+     * @param out        receives the matching lines
+     * @return number of matching records
+     * @throws IOException if a segment cannot be read
+     */
+    public long history(final long fromMillis, final long toMillis, final Consumer<String> out) throws IOException {
+        flush();
+        final List<LogSegments.Segment> list;
+        final LogSegments.Segment active;
+        final LogIndex activeIndex;
+        final long activeRecords;
+        final long activeFirst;
+        final long activeLast;
+        synchronized (this) {
+            list = segments.list();
+            active = journal == null ? null : segment;
+            activeIndex = active == null ? null : segmentIndex.copy();
+            activeRecords = segmentRecords;
+            activeFirst = segmentFirst;
+            activeLast = lastTimestamp;
+        }
+        long count = 0;
+        for (LogSegments.Segment s : list) {
+            final boolean open = s == active;
+            if (open ? activeRecords > 0 && LogHistory.overlaps(activeRecords, activeFirst, activeLast,
+                    fromMillis, toMillis)
+                    : LogHistory.overlaps(s.records(), s.firstMillis(), s.lastMillis(), fromMillis, toMillis)) {
+                final LogIndex index = open ? activeIndex : LogIndex.read(LogSegments.indexFileOf(segments.fileOf(s)));
+                count += LogHistory.scan(() -> segments.fileOf(s), index, fromMillis, toMillis, out);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Closes the journal and renders this session's segments into the HTML and
+     * text logs (called at program end), after their background compression has
+     * finished. Full rendered logs are moved aside first and, once rendering has
+     * succeeded, segments beyond the retention limit are deleted. In asynchronous
+     * mode the writer thread drains every queued record first.
+     * Only the first call has any effect.
+     */
+    public void close() {
+        final Thread writer;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            writer = writerThread;
+        }
+        if (writer != null) {
+            stopping = true;
+            LockSupport.unpark(writer);
+            boolean interrupted = false;
+            while (writer.isAlive()) {
+                try {
+                    writer.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        closeWriters();
+        segments.shutdown();
+        if (sessionStart != null) {
+            rotateRendered(htmlLog);
+            rotateRendered(txtLog);
+            try {
+                LogRenderer.render(segments.filesFrom(sessionStart), htmlLog, txtLog);
+                segments.prune(keptSegments, null);
+            } catch (IOException e) {
+                System.err.println("Error rendering log: " + e.getMessage()
+                        + " (segments are listed in " + segments.manifestFile().getPath() + ")");
+            }
+        }
+    }
+
+    /**
+     * Moves a rendered log aside if it has reached the size limit, so rendering
+     * starts a new file. Copies are numbered from 1 (newest); the oldest is
+     * dropped once {@code keptLogs} exist.
      */
-    private static String escapeHTML(final String s) {
-        return s.replace("&", "&amp;")
-                .replace("<", "&lt;")
-                .replace(">", "&gt;");
+    private void rotateRendered(final File log) {
+        if (maxRenderedBytes == 0 || log.length() < maxRenderedBytes) {
+            return;
+        }
+        try {
+            if (keptLogs == 0) {
+                Files.delete(log.toPath());
+                return;
+            }
+            for (int n = keptLogs; n >= 1; n--) {
+                final File from = n == 1 ? log : rotatedLog(log, n - 1);
+                if (from.exists()) {
+                    Files.move(from.toPath(), rotatedLog(log, n).toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error rotating log " + log.getName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the name copy {@code n} of a rendered log gets, such as
+     * {@code clevis_log.1.txt} for {@code clevis_log.txt}.
+     */
+    private static File rotatedLog(final File log, final int n) {
+        final String name = log.getName();
+        final int dot = name.lastIndexOf('.');
+        return new File(log.getParentFile(), dot > 0
+                ? name.substring(0, dot) + "." + n + name.substring(dot)
+                : name + "." + n);
+    }
+
+    /**
+     * Closes the active journal segment and the overflow file.
+     */
+    private synchronized void closeWriters() {
+        if (journal != null) {
+            final long unlogged = unloggedQueries.get();
+            if (unlogged > 0) {
+                writeRecord("(" + unlogged + " of " + queries.get() + " read-only command(s) not logged)",
+                        System.currentTimeMillis());
+            }
+            closeSegment();
+        }
+        try {
+            if (spillWriter != null) {
+                spillWriter.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing log overflow: " + e.getMessage());
+        }
     }
 }
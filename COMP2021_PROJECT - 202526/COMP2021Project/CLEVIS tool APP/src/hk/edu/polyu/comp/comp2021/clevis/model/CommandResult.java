@@ -0,0 +1,620 @@
+package hk.edu.polyu.comp.comp2021.clevis.model;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Typed outcome of a single Clevis command.
+ * <p>
+ * Results are immutable values (a shape is captured as the fields that are
+ * rendered, never copied), so they can be inspected programmatically or
+ * rendered to text later by the view without re-reading the live scene.
+ */
+public abstract class CommandResult {
+
+    /** Result of a blank command or one queued inside a batch: produces no output. */
+    public static final CommandResult NONE = new Sequence(Collections.emptyList());
+
+    private CommandResult() {
+    }
+
+    /**
+     * Tells whether this result (or any part of it) reports a failure.
+     *
+     * @return true if the command failed
+     */
+    public boolean isFailure() {
+        return false;
+    }
+
+    // ============================================================
+    // Subclasses of CommandResult
+    // ============================================================
+
+    /**
+     * Error categories reported by {@link Failure}.
+     */
+    public enum ErrorCode {
+        /** Wrong number or kind of arguments, or an invalid state. */
+        INVALID_COMMAND,
+        /** A numeric argument could not be parsed. */
+        INVALID_NUMBER,
+        /** A shape name is already in use. */
+        DUPLICATE_SHAPE,
+        /** A named shape or selector matched nothing. */
+        SHAPE_NOT_FOUND,
+        /** Grouping or ungrouping failed. */
+        GROUPING,
+        /** The command name is not recognised. */
+        UNKNOWN_COMMAND,
+        /** Any other runtime failure. */
+        RUNTIME
+    }
+
+    /**
+     * A rectangle, line, circle or square was created.
+     */
+    public static final class Created extends CommandResult {
+
+        /** Kinds of shape that can be created. */
+        public enum Kind {
+            /** Values: x, y, width, height. */
+            RECTANGLE,
+            /** Values: x1, y1, x2, y2. */
+            LINE,
+            /** Values: centre x, centre y, radius. */
+            CIRCLE,
+            /** Values: x, y, side length. */
+            SQUARE
+        }
+
+        private final Kind kind;
+        private final String name;
+        private final double[] values;
+
+        /**
+         * Creates the result from the new shape's current geometry.
+         *
+         * @param shape the new rectangle, line, circle or square (not retained)
+         * @throws IllegalArgumentException for any other kind of shape
+         */
+        public Created(final Shape shape) {
+            this.name = shape.getName();
+            if (shape instanceof Rectangle r) {
+                this.kind = Kind.RECTANGLE;
+                this.values = new double[] {r.getX(), r.getY(), r.getWidth(), r.getHeight()};
+            } else if (shape instanceof Line l) {
+                this.kind = Kind.LINE;
+                this.values = new double[] {l.getX1(), l.getY1(), l.getX2(), l.getY2()};
+            } else if (shape instanceof Circle c) {
+                this.kind = Kind.CIRCLE;
+                this.values = new double[] {c.getX(), c.getY(), c.getRadius()};
+            } else if (shape instanceof Square s) {
+                this.kind = Kind.SQUARE;
+                this.values = new double[] {s.getX(), s.getY(), s.getLength()};
+            } else {
+                throw new IllegalArgumentException("Not a basic shape: " + shape.getName());
+            }
+        }
+
+        /**
+         * @return kind of the created shape
+         */
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * @return name of the created shape
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @param i index of the value, in the order listed by {@link Kind}
+         * @return the i-th geometry value
+         */
+        public double getValue(final int i) {
+            return values[i];
+        }
+    }
+
+    /**
+     * Shapes were grouped into a new group, or a group was split into its members.
+     */
+    public static final class Grouping extends CommandResult {
+        private final String name;
+        private final List<String> members;
+        private final boolean grouped;
+
+        /**
+         * Creates the result.
+         *
+         * @param name    group name
+         * @param members member names in order
+         * @param grouped true for 'group', false for 'ungroup'
+         */
+        public Grouping(final String name, final List<String> members, final boolean grouped) {
+            this.name = name;
+            this.members = List.copyOf(members);
+            this.grouped = grouped;
+        }
+
+        /**
+         * @return group name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return member names in order
+         */
+        public List<String> getMembers() {
+            return members;
+        }
+
+        /**
+         * @return true if the group was created, false if it was ungrouped
+         */
+        public boolean isGrouped() {
+            return grouped;
+        }
+    }
+
+    /**
+     * One or more shapes were deleted or moved.
+     */
+    public static final class Changed extends CommandResult {
+        private final String target;
+        private final int count;
+        private final boolean selector;
+        private final boolean moved;
+        private final double dx;
+        private final double dy;
+
+        /**
+         * Creates the result.
+         *
+         * @param target   shape name or selector
+         * @param count    number of shapes affected
+         * @param selector true if {@code target} is a selector
+         * @param moved    true for 'move', false for 'delete'
+         * @param dx       horizontal offset (moves only)
+         * @param dy       vertical offset (moves only)
+         */
+        public Changed(final String target, final int count, final boolean selector,
+                       final boolean moved, final double dx, final double dy) {
+            this.target = target;
+            this.count = count;
+            this.selector = selector;
+            this.moved = moved;
+            this.dx = dx;
+            this.dy = dy;
+        }
+
+        /**
+         * @return shape name or selector
+         */
+        public String getTarget() {
+            return target;
+        }
+
+        /**
+         * @return number of shapes affected
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @return true if the target was a selector
+         */
+        public boolean isSelector() {
+            return selector;
+        }
+
+        /**
+         * @return true for a move, false for a delete
+         */
+        public boolean isMoved() {
+            return moved;
+        }
+
+        /**
+         * @return horizontal offset
+         */
+        public double getDx() {
+            return dx;
+        }
+
+        /**
+         * @return vertical offset
+         */
+        public double getDy() {
+            return dy;
+        }
+    }
+
+    /**
+     * Bounding box of a shape or selection.
+     */
+    public static final class Bounds extends CommandResult {
+        private final String target;
+        private final BoundingBox box;
+
+        /**
+         * Creates the result.
+         *
+         * @param target shape name or selector
+         * @param box    bounding box
+         */
+        public Bounds(final String target, final BoundingBox box) {
+            this.target = target;
+            this.box = box;
+        }
+
+        /**
+         * @return shape name or selector
+         */
+        public String getTarget() {
+            return target;
+        }
+
+        /**
+         * @return bounding box
+         */
+        public BoundingBox getBox() {
+            return box;
+        }
+    }
+
+    /**
+     * Topmost shape covering a point, if any.
+     */
+    public static final class Hit extends CommandResult {
+        private final double x;
+        private final double y;
+        private final String name;
+
+        /**
+         * Creates the result.
+         *
+         * @param x    query x-coordinate
+         * @param y    query y-coordinate
+         * @param name name of the topmost covering shape, or null if none
+         */
+        public Hit(final double x, final double y, final String name) {
+            this.x = x;
+            this.y = y;
+            this.name = name;
+        }
+
+        /**
+         * @return query x-coordinate
+         */
+        public double getX() {
+            return x;
+        }
+
+        /**
+         * @return query y-coordinate
+         */
+        public double getY() {
+            return y;
+        }
+
+        /**
+         * @return name of the topmost covering shape, or null if none
+         */
+        public String getName() {
+            return name;
+        }
+    }
+
+    /**
+     * Whether two shapes intersect.
+     */
+    public static final class Intersection extends CommandResult {
+        private final String first;
+        private final String second;
+        private final boolean intersects;
+
+        /**
+         * Creates the result.
+         *
+         * @param first      first shape name
+         * @param second     second shape name
+         * @param intersects true if the shapes intersect
+         */
+        public Intersection(final String first, final String second, final boolean intersects) {
+            this.first = first;
+            this.second = second;
+            this.intersects = intersects;
+        }
+
+        /**
+         * @return first shape name
+         */
+        public String getFirst() {
+            return first;
+        }
+
+        /**
+         * @return second shape name
+         */
+        public String getSecond() {
+            return second;
+        }
+
+        /**
+         * @return true if the shapes intersect
+         */
+        public boolean intersects() {
+            return intersects;
+        }
+    }
+
+    /**
+     * What a listing shows of one shape: its name and description, and for a
+     * group the same of each direct member.
+     */
+    public static final class Entry {
+        private final String name;
+        private final String info;
+        private final List<Entry> members;
+
+        private Entry(final Shape shape, final boolean withMembers) {
+            this.name = shape.getName();
+            this.info = shape.getInfo();
+            if (withMembers && shape instanceof Group group) {
+                final Entry[] listed = new Entry[group.getMembers().size()];
+                for (int i = 0; i < listed.length; i++) {
+                    listed[i] = new Entry(group.getMembers().get(i), false);
+                }
+                this.members = List.of(listed);
+            } else {
+                this.members = List.of();
+            }
+        }
+
+        /**
+         * @return shape name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return shape description, as given by {@link Shape#getInfo()}
+         */
+        public String getInfo() {
+            return info;
+        }
+
+        /**
+         * @return direct members of a group listed by 'listAll' (without their own members), or an empty list
+         */
+        public List<Entry> getMembers() {
+            return members;
+        }
+    }
+
+    /**
+     * Shapes listed by 'list' or 'listAll'.
+     */
+    public static final class Listing extends CommandResult {
+        private final List<Entry> entries;
+        private final boolean all;
+
+        /**
+         * Creates the result.
+         *
+         * @param shapes listed shapes in Z-order (not retained)
+         * @param all    true for 'listAll', false for 'list'
+         */
+        public Listing(final List<Shape> shapes, final boolean all) {
+            final Entry[] listed = new Entry[shapes.size()];
+            for (int i = 0; i < listed.length; i++) {
+                listed[i] = new Entry(shapes.get(i), all);
+            }
+            this.entries = List.of(listed);
+            this.all = all;
+        }
+
+        /**
+         * @return listed shapes in Z-order
+         */
+        public List<Entry> getEntries() {
+            return entries;
+        }
+
+        /**
+         * @return true for 'listAll'
+         */
+        public boolean isAll() {
+            return all;
+        }
+    }
+
+    /**
+     * Logged commands in a time range, from 'history'.
+     */
+    public static final class History extends CommandResult {
+        private final String from;
+        private final String to;
+        private final List<String> lines;
+
+        /**
+         * Creates the result.
+         *
+         * @param from  start of the range as typed
+         * @param to    end of the range as typed
+         * @param lines "[time] command" lines, oldest first
+         */
+        public History(final String from, final String to, final List<String> lines) {
+            this.from = from;
+            this.to = to;
+            this.lines = List.copyOf(lines);
+        }
+
+        /**
+         * @return start of the range as typed
+         */
+        public String getFrom() {
+            return from;
+        }
+
+        /**
+         * @return end of the range as typed
+         */
+        public String getTo() {
+            return to;
+        }
+
+        /**
+         * @return "[time] command" lines, oldest first
+         */
+        public List<String> getLines() {
+            return lines;
+        }
+    }
+
+    /**
+     * Differences between two scene files, from 'diff'.
+     */
+    public static final class Difference extends CommandResult {
+        private final String first;
+        private final String second;
+        private final SceneDiff diff;
+
+        /**
+         * Creates the result.
+         *
+         * @param first  the older scene file as typed
+         * @param second the newer scene file as typed
+         * @param diff   the differences
+         */
+        public Difference(final String first, final String second, final SceneDiff diff) {
+            this.first = first;
+            this.second = second;
+            this.diff = diff;
+        }
+
+        /**
+         * @return the older scene file as typed
+         */
+        public String getFirst() {
+            return first;
+        }
+
+        /**
+         * @return the newer scene file as typed
+         */
+        public String getSecond() {
+            return second;
+        }
+
+        /**
+         * @return the differences
+         */
+        public SceneDiff getDiff() {
+            return diff;
+        }
+    }
+
+    /**
+     * Informational text such as help or batch status.
+     */
+    public static final class Message extends CommandResult {
+        private final String text;
+
+        /**
+         * Creates the result.
+         *
+         * @param text message text
+         */
+        public Message(final String text) {
+            this.text = text;
+        }
+
+        /**
+         * @return message text
+         */
+        public String getText() {
+            return text;
+        }
+    }
+
+    /**
+     * A command failed.
+     */
+    public static final class Failure extends CommandResult {
+        private final ErrorCode code;
+        private final String message;
+
+        /**
+         * Creates the result.
+         *
+         * @param code    error category
+         * @param message detail message
+         */
+        public Failure(final ErrorCode code, final String message) {
+            this.code = code;
+            this.message = message;
+        }
+
+        /**
+         * @return error category
+         */
+        public ErrorCode getCode() {
+            return code;
+        }
+
+        /**
+         * @return detail message
+         */
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public boolean isFailure() {
+            return true;
+        }
+    }
+
+    /**
+     * Results of several commands, such as a committed batch.
+     */
+    public static final class Sequence extends CommandResult {
+        private final List<CommandResult> results;
+
+        /**
+         * Creates the result.
+         *
+         * @param results results in execution order
+         */
+        public Sequence(final List<CommandResult> results) {
+            this.results = List.copyOf(results);
+        }
+
+        /**
+         * @return results in execution order
+         */
+        public List<CommandResult> getResults() {
+            return results;
+        }
+
+        @Override
+        public boolean isFailure() {
+            for (CommandResult r : results) {
+                if (r.isFailure()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,522 @@
+package hk.edu.polyu.comp.comp2021.clevis.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compressed scene file ({@code save file compressed}); {@link SceneFile#load}
+ * reads it as well as the raw format.
+ * <p>
+ * The raw format spends 48 bytes on every shape, most of them on 8-byte
+ * coordinates, so that it can be mapped and read in place. This one is made to
+ * be small instead:
+ * <ol>
+ *   <li>a {@value #HEADER_SIZE}-byte header: the magic bytes {@code CLVZ}, a
+ *       version byte, then the record, top-level and dictionary counts and the
+ *       next Z sequence number;</li>
+ *   <li>the name dictionary: every name once, sorted and front-coded (the
+ *       number of UTF-8 bytes shared with the previous name, then the rest);</li>
+ *   <li>the Z table: the Z sequence numbers, ascending, each as the difference
+ *       from the one before;</li>
+ *   <li>the shapes: top-level shapes in Morton (Z-curve) order of their
+ *       bounding box centres, so that shapes next to each other in the file lie
+ *       close together in the drawing; each with its rank in the Z-order, then
+ *       its members depth first.</li>
+ * </ol>
+ * A shape is its name's dictionary number and type in one varint, then, for a
+ * group, its member count, otherwise its values (as in {@link SceneFile}
+ * records, without unused ones). A value is coded against the same value of the
+ * shape before it: when it is a whole number of thousandths (checked by a round
+ * trip, so nothing is lost) as the difference in thousandths, zigzag-coded,
+ * otherwise as its raw IEEE 754 bits. All integers are unsigned LEB128 varints.
+ * <p>
+ * Loading reads the file into memory in one go and decodes it in a single
+ * pass; shapes go straight to their rank in the Z-order and the name index
+ * comes from the dictionary order, so nothing is sorted. A compressed file
+ * cannot be mapped, so {@code open} and {@code diff} need the raw format.
+ */
+public final class CompressedSceneFile {
+
+    /** Magic bytes at the start of every compressed scene file. */
+    static final byte[] MAGIC = LogChannel.ascii("CLVZ");
+    /** Current compressed format version. */
+    static final int VERSION = 1;
+    /** Size of the header in bytes. */
+    static final int HEADER_SIZE = 40;
+
+    // Header fields (byte offsets).
+    private static final int H_RECORDS = 8;
+    private static final int H_TOP_LEVEL = 16;
+    private static final int H_NAMES = 24;
+    private static final int H_NEXT_Z = 32;
+
+    /** Values that are whole numbers of 1/SCALE are coded as differences. */
+    private static final double SCALE = 1000;
+    /** Largest magnitude coded as a difference, so that differences cannot overflow. */
+    private static final double MAX_SCALED = 1e12;
+    /** Bits per axis of the Morton grid. */
+    private static final int GRID_BITS = 16;
+    /** Number of values of each shape type, by type. */
+    private static final int[] VALUES = new int[MutationJournal.TYPE_GROUP + 1];
+
+    static {
+        VALUES[MutationJournal.TYPE_RECTANGLE] = 4;
+        VALUES[MutationJournal.TYPE_LINE] = 4;
+        VALUES[MutationJournal.TYPE_CIRCLE] = 3;
+        VALUES[MutationJournal.TYPE_SQUARE] = 3;
+    }
+
+    private CompressedSceneFile() {
+    }
+
+    /**
+     * Writes the scene of {@code manager} to {@code file} compressed, replacing it atomically.
+     *
+     * @param file    destination file
+     * @param manager scene to save
+     * @return number of top-level shapes written
+     * @throws IOException if the file cannot be written
+     */
+    public static long save(final File file, final ShapeManager manager) throws IOException {
+        final MappedScene mapped = manager.getMappedScene();
+        final Shape[] shapes;
+        final long[] z;
+        final long nextZ;
+        if (mapped != null) {
+            shapes = mapped.getAll().toArray(new Shape[0]);
+            z = mapped.zNumbers();
+            nextZ = mapped.nextZ();
+        } else {
+            shapes = manager.shapes().toArray(new Shape[0]);
+            z = manager.zNumbers();
+            nextZ = manager.nextZ();
+        }
+
+        final String[] names = dictionary(shapes);
+        final Encoder out = new Encoder(names);
+        out.skip(HEADER_SIZE);
+        byte[] previous = new byte[0];
+        for (String name : names) {
+            final byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            int shared = 0;
+            while (shared < bytes.length && shared < previous.length && bytes[shared] == previous[shared]) {
+                shared++;
+            }
+            out.putVarint(shared);
+            out.putVarint(bytes.length - shared);
+            out.put(bytes, shared, bytes.length - shared);
+            previous = bytes;
+        }
+        for (int i = 0; i < z.length; i++) {
+            out.putVarint(i == 0 ? z[0] : z[i] - z[i - 1]);
+        }
+        for (int rank : spatialOrder(shapes)) {
+            out.putVarint(rank);
+            out.putShape(shapes[rank]);
+        }
+
+        final ByteBuffer header = ByteBuffer.wrap(out.bytes, 0, HEADER_SIZE);
+        header.put(MAGIC).put((byte) VERSION);
+        header.putLong(H_RECORDS, out.records)
+                .putLong(H_TOP_LEVEL, shapes.length)
+                .putLong(H_NAMES, names.length)
+                .putLong(H_NEXT_Z, nextZ);
+
+        final File tmp = new File(file.getPath() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            final ByteBuffer src = ByteBuffer.wrap(out.bytes, 0, out.length);
+            while (src.hasRemaining()) {
+                ch.write(src);
+            }
+            ch.force(true);
+        }
+        SceneFile.replace(tmp, file);
+        return shapes.length;
+    }
+
+    /**
+     * Tells whether an open file starts with the compressed magic bytes.
+     *
+     * @param ch open file
+     * @return true for a compressed scene file
+     * @throws IOException if the file cannot be read
+     */
+    static boolean isCompressed(final FileChannel ch) throws IOException {
+        if (ch.size() < MAGIC.length) {
+            return false;
+        }
+        final ByteBuffer b = ByteBuffer.allocate(MAGIC.length);
+        SceneFile.readFully(ch, b, 0);
+        return Arrays.equals(b.array(), MAGIC);
+    }
+
+    /**
+     * Replaces the scene of {@code manager} with the one in a compressed file.
+     * The file is decoded completely before the scene changes.
+     *
+     * @param file    the file, for the journal
+     * @param ch      the file, open for reading
+     * @param manager scene to replace
+     * @return number of top-level shapes loaded
+     * @throws IOException if the file cannot be read or is not a valid compressed scene file
+     */
+    static long load(final File file, final FileChannel ch, final ShapeManager manager) throws IOException {
+        if (ch.size() < HEADER_SIZE || ch.size() > Integer.MAX_VALUE - 8) {
+            throw SceneFile.corrupt("bad compressed file size");
+        }
+        final byte[] data = new byte[(int) ch.size()];
+        SceneFile.readFully(ch, ByteBuffer.wrap(data), 0);
+        final ByteBuffer header = ByteBuffer.wrap(data, 0, HEADER_SIZE);
+        if (header.get(MAGIC.length) != VERSION) {
+            throw new IOException("Unsupported compressed scene file version: " + header.get(MAGIC.length));
+        }
+        final long records = header.getLong(H_RECORDS);
+        final long topLevel = header.getLong(H_TOP_LEVEL);
+        final long nameCount = header.getLong(H_NAMES);
+        final long nextZ = header.getLong(H_NEXT_Z);
+        // Every record takes at least two bytes, every name and Z number at least one.
+        if (topLevel < 0 || topLevel > records || nameCount < 0 || nameCount > records
+                || records > data.length / 2) {
+            throw SceneFile.corrupt("inconsistent header");
+        }
+
+        final Decoder in = new Decoder(data, (int) nameCount);
+        final String[] names = in.dictionary();
+        final long[] z = new long[(int) topLevel];
+        for (int i = 0; i < z.length; i++) {
+            final long delta = in.varint();
+            z[i] = i == 0 ? delta : z[i - 1] + delta;
+            if (i > 0 && delta <= 0 || z[i] < 0) {
+                throw SceneFile.corrupt("Z table not ascending");
+            }
+        }
+        if (z.length > 0 && nextZ <= z[z.length - 1]) {
+            throw SceneFile.corrupt("Z table not ascending");
+        }
+
+        final Shape[] shapes = new Shape[z.length];
+        final int[] rankOf = new int[names.length];
+        Arrays.fill(rankOf, -1);
+        for (int i = 0; i < shapes.length; i++) {
+            final long rank = in.varint();
+            if (rank >= shapes.length || shapes[(int) rank] != null) {
+                throw SceneFile.corrupt("bad Z rank " + rank);
+            }
+            final long head = in.varint();
+            shapes[(int) rank] = in.shape(head, names);
+            rankOf[(int) (head >>> 3)] = (int) rank;
+        }
+        if (in.records != records || in.at != data.length) {
+            throw SceneFile.corrupt("record count does not match the header");
+        }
+
+        final int[] byName = new int[shapes.length];
+        int n = 0;
+        for (int rank : rankOf) {
+            if (rank >= 0) {
+                byName[n++] = rank;
+            }
+        }
+        if (n != shapes.length) {
+            throw SceneFile.corrupt("duplicate top-level name");
+        }
+        manager.replaceScene(file, shapes, z, byName, nextZ);
+        return shapes.length;
+    }
+
+    /**
+     * Collects every name in the scene, members included, sorted and without duplicates.
+     */
+    private static String[] dictionary(final Shape[] shapes) {
+        final List<String> all = new ArrayList<>(shapes.length);
+        for (Shape s : shapes) {
+            collectNames(s, all);
+        }
+        final String[] names = all.toArray(new String[0]);
+        Arrays.parallelSort(names);
+        int n = 0;
+        for (String name : names) {
+            if (n == 0 || !names[n - 1].equals(name)) {
+                names[n++] = name;
+            }
+        }
+        return Arrays.copyOf(names, n);
+    }
+
+    private static void collectNames(final Shape shape, final List<String> into) {
+        into.add(shape.getName());
+        if (shape instanceof Group g) {
+            for (Shape m : g.getMembers()) {
+                collectNames(m, into);
+            }
+        }
+    }
+
+    /**
+     * Orders top-level shapes along a Morton curve over the centres of their
+     * bounding boxes.
+     *
+     * @return positions in {@code shapes}, in curve order
+     */
+    private static int[] spatialOrder(final Shape[] shapes) {
+        final double[] cx = new double[shapes.length];
+        final double[] cy = new double[shapes.length];
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < shapes.length; i++) {
+            final BoundingBox b = shapes[i].getBounds();
+            cx[i] = b.getX() + b.getWidth() / 2;
+            cy[i] = b.getY() + b.getHeight() / 2;
+            minX = Math.min(minX, cx[i]);
+            minY = Math.min(minY, cy[i]);
+            maxX = Math.max(maxX, cx[i]);
+            maxY = Math.max(maxY, cy[i]);
+        }
+        final double cells = (1 << GRID_BITS) - 1;
+        final double sx = maxX > minX ? cells / (maxX - minX) : 0;
+        final double sy = maxY > minY ? cells / (maxY - minY) : 0;
+        // Curve position in the high half, shape position in the low half: sorting the longs sorts both.
+        final long[] keys = new long[shapes.length];
+        for (int i = 0; i < keys.length; i++) {
+            final long key = spread((int) ((cx[i] - minX) * sx)) | spread((int) ((cy[i] - minY) * sy)) << 1;
+            keys[i] = key << 32 | i;
+        }
+        Arrays.parallelSort(keys);
+        final int[] order = new int[keys.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = (int) keys[i];
+        }
+        return order;
+    }
+
+    /**
+     * Spreads the low {@value #GRID_BITS} bits of {@code v} to the even bit positions.
+     */
+    private static long spread(final int v) {
+        long x = v & 0xFFFFL;
+        x = (x | x << 8) & 0x00FF00FFL;
+        x = (x | x << 4) & 0x0F0F0F0FL;
+        x = (x | x << 2) & 0x33333333L;
+        x = (x | x << 1) & 0x55555555L;
+        return x;
+    }
+
+    /**
+     * Builds the file in a growing byte array.
+     */
+    private static final class Encoder {
+        private final String[] names;
+        /** Last value coded as a difference, per value slot. */
+        private final long[] previous = new long[4];
+        private byte[] bytes = new byte[1 << 16];
+        private int length;
+        private long records;
+
+        Encoder(final String[] names) {
+            this.names = names;
+        }
+
+        void putShape(final Shape shape) {
+            records++;
+            final int id = Arrays.binarySearch(names, shape.getName());
+            if (shape instanceof Group g) {
+                putVarint((long) id << 3 | MutationJournal.TYPE_GROUP);
+                putVarint(g.getMembers().size());
+                for (Shape m : g.getMembers()) {
+                    putShape(m);
+                }
+            } else if (shape instanceof Rectangle r) {
+                putVarint((long) id << 3 | MutationJournal.TYPE_RECTANGLE);
+                putValues(r.getX(), r.getY(), r.getWidth(), r.getHeight());
+            } else if (shape instanceof Line l) {
+                putVarint((long) id << 3 | MutationJournal.TYPE_LINE);
+                putValues(l.getX1(), l.getY1(), l.getX2(), l.getY2());
+            } else if (shape instanceof Circle c) {
+                putVarint((long) id << 3 | MutationJournal.TYPE_CIRCLE);
+                putValues(c.getX(), c.getY(), c.getRadius());
+            } else if (shape instanceof Square s) {
+                putVarint((long) id << 3 | MutationJournal.TYPE_SQUARE);
+                putValues(s.getX(), s.getY(), s.getLength());
+            } else {
+                throw new IllegalArgumentException("Cannot save shape type: " + shape.getClass().getName());
+            }
+        }
+
+        private void putValues(final double... values) {
+            for (int slot = 0; slot < values.length; slot++) {
+                final double v = values[slot];
+                final long q = Math.round(v * SCALE);
+                if (Math.abs(v) < MAX_SCALED
+                        && Double.doubleToRawLongBits(q / SCALE) == Double.doubleToRawLongBits(v)) {
+                    final long d = q - previous[slot];
+                    putVarint((d << 1 ^ d >> 63) << 1);
+                    previous[slot] = q;
+                } else {
+                    putVarint(1);
+                    final long bits = Double.doubleToRawLongBits(v);
+                    ensure(Long.BYTES);
+                    for (int shift = 56; shift >= 0; shift -= 8) {
+                        bytes[length++] = (byte) (bits >>> shift);
+                    }
+                }
+            }
+        }
+
+        void putVarint(final long value) {
+            ensure(10);
+            long v = value;
+            while ((v & ~0x7FL) != 0) {
+                bytes[length++] = (byte) (v & 0x7F | 0x80);
+                v >>>= 7;
+            }
+            bytes[length++] = (byte) v;
+        }
+
+        void put(final byte[] src, final int offset, final int count) {
+            ensure(count);
+            System.arraycopy(src, offset, bytes, length, count);
+            length += count;
+        }
+
+        void skip(final int count) {
+            ensure(count);
+            length += count;
+        }
+
+        private void ensure(final int count) {
+            if (bytes.length - length < count) {
+                final long grown = Math.max((long) bytes.length * 2, (long) length + count);
+                if (grown > Integer.MAX_VALUE - 8) {
+                    throw new IllegalStateException("Scene too large to save compressed.");
+                }
+                bytes = Arrays.copyOf(bytes, (int) grown);
+            }
+        }
+    }
+
+    /**
+     * Reads the file back from its bytes, checking every number against the data left.
+     */
+    private static final class Decoder {
+        private final byte[] data;
+        private final int nameCount;
+        private final long[] previous = new long[4];
+        private int at = HEADER_SIZE;
+        private long records;
+
+        Decoder(final byte[] data, final int nameCount) {
+            this.data = data;
+            this.nameCount = nameCount;
+        }
+
+        String[] dictionary() throws IOException {
+            final String[] names = new String[nameCount];
+            byte[] name = new byte[64];
+            int length = 0;
+            for (int i = 0; i < names.length; i++) {
+                final long shared = varint();
+                final long rest = varint();
+                if (shared > length || rest > data.length - at || shared + rest == 0) {
+                    throw SceneFile.corrupt("bad dictionary entry " + i);
+                }
+                length = (int) (shared + rest);
+                if (length > name.length) {
+                    name = Arrays.copyOf(name, Math.max(length, name.length * 2));
+                }
+                System.arraycopy(data, at, name, (int) shared, (int) rest);
+                at += (int) rest;
+                names[i] = new String(name, 0, length, StandardCharsets.UTF_8);
+                if (i > 0 && names[i - 1].compareTo(names[i]) >= 0) {
+                    throw SceneFile.corrupt("dictionary not sorted");
+                }
+            }
+            return names;
+        }
+
+        /**
+         * Decodes a shape whose first varint (name and type) has been read.
+         */
+        Shape shape(final long head, final String[] names) throws IOException {
+            records++;
+            final long id = head >>> 3;
+            final byte type = (byte) (head & 7);
+            if (id >= names.length) {
+                throw SceneFile.corrupt("name out of range");
+            }
+            final String name = names[(int) id];
+            try {
+                if (type == MutationJournal.TYPE_GROUP) {
+                    final long count = varint();
+                    if (count <= 0 || count > data.length - at) {
+                        throw SceneFile.corrupt("bad group " + name);
+                    }
+                    final List<Shape> members = new ArrayList<>((int) count);
+                    for (long i = 0; i < count; i++) {
+                        members.add(shape(varint(), names));
+                    }
+                    return new Group(name, members);
+                }
+                if (type <= 0 || type >= VALUES.length || VALUES[type] == 0) {
+                    throw SceneFile.corrupt("unknown shape type " + type);
+                }
+                final double a = value(0);
+                final double b = value(1);
+                final double c = value(2);
+                switch (type) {
+                    case MutationJournal.TYPE_RECTANGLE:
+                        return new Rectangle(name, a, b, c, value(3));
+                    case MutationJournal.TYPE_LINE:
+                        return new Line(name, a, b, c, value(3));
+                    case MutationJournal.TYPE_CIRCLE:
+                        return new Circle(name, a, b, c);
+                    default:
+                        return new Square(name, a, b, c);
+                }
+            } catch (IllegalArgumentException e) {
+                throw SceneFile.corrupt(e.getMessage());
+            }
+        }
+
+        private double value(final int slot) throws IOException {
+            final long tag = varint();
+            if ((tag & 1) == 0) {
+                final long zigzag = tag >>> 1;
+                previous[slot] += zigzag >>> 1 ^ -(zigzag & 1);
+                return previous[slot] / SCALE;
+            }
+            if (tag != 1 || data.length - at < Long.BYTES) {
+                throw SceneFile.corrupt("bad value");
+            }
+            long bits = 0;
+            for (int i = 0; i < Long.BYTES; i++) {
+                bits = bits << 8 | data[at++] & 0xFF;
+            }
+            return Double.longBitsToDouble(bits);
+        }
+
+        long varint() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (at == data.length) {
+                    throw SceneFile.corrupt("unexpected end of data");
+                }
+                final byte b = data[at++];
+                v |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return v;
+                }
+            }
+            throw SceneFile.corrupt("bad varint");
+        }
+    }
+}
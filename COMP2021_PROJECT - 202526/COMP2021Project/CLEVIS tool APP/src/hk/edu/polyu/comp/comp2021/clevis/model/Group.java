@@ -67,27 +67,12 @@ public final class Group implements Shape {
     }
 
     @Override
-    public String getBoundingBox() {
-        double minX = Double.POSITIVE_INFINITY;
-        double minY = Double.POSITIVE_INFINITY;
-        double maxX = Double.NEGATIVE_INFINITY;
-        double maxY = Double.NEGATIVE_INFINITY;
-
-        for (Shape s : members) {
-            final String[] bb = s.getBoundingBox().split("\\s+");
-            final double x = Double.parseDouble(bb[0]);
-            final double y = Double.parseDouble(bb[1]);
-            final double w = Double.parseDouble(bb[2]);
-            final double h = Double.parseDouble(bb[3]);
-
-            minX = Math.min(minX, x);
-            minY = Math.min(minY, y);
-            maxX = Math.max(maxX, x + w);
-            maxY = Math.max(maxY, y + h);
+    public BoundingBox getBounds() {
+        BoundingBox box = members.get(0).getBounds();
+        for (int i = 1; i < members.size(); i++) {
+            box = box.union(members.get(i).getBounds());
         }
-
-        return String.format(Locale.ROOT, "%.2f %.2f %.2f %.2f",
-                minX, minY, (maxX - minX), (maxY - minY));
+        return box;
     }
 
     @Override
@@ -99,4 +84,13 @@ public final class Group implements Shape {
         }
         return false;
     }
+
+    @Override
+    public Shape copy() {
+        final List<Shape> copies = new ArrayList<>(members.size());
+        for (Shape s : members) {
+            copies.add(s.copy());
+        }
+        return new Group(name, copies);
+    }
 }
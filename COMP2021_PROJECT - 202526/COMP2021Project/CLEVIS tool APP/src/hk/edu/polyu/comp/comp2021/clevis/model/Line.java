@@ -1,7 +1,5 @@
 package hk.edu.polyu.comp.comp2021.clevis.model;
 
-import java.util.Locale;
-
 /**
  * Represents a line segment shape in the Clevis system.
  * <p>
@@ -41,6 +39,42 @@ public final class Line implements Shape {
         this.y2 = y2;
     }
 
+    /**
+     * Returns the x-coordinate of the first endpoint.
+     *
+     * @return x-coordinate of the first endpoint
+     */
+    public double getX1() {
+        return x1;
+    }
+
+    /**
+     * Returns the y-coordinate of the first endpoint.
+     *
+     * @return y-coordinate of the first endpoint
+     */
+    public double getY1() {
+        return y1;
+    }
+
+    /**
+     * Returns the x-coordinate of the second endpoint.
+     *
+     * @return x-coordinate of the second endpoint
+     */
+    public double getX2() {
+        return x2;
+    }
+
+    /**
+     * Returns the y-coordinate of the second endpoint.
+     *
+     * @return y-coordinate of the second endpoint
+     */
+    public double getY2() {
+        return y2;
+    }
+
     @Override
     public double getArea() {
         return 0.0;
@@ -65,21 +99,35 @@ public final class Line implements Shape {
     }
 
     @Override
-    public String getBoundingBox() {
+    public BoundingBox getBounds() {
         final double minX = Math.min(x1, x2);
         final double minY = Math.min(y1, y2);
         final double width = Math.abs(x2 - x1);
         final double height = Math.abs(y2 - y1);
-        return String.format(Locale.ROOT, "%.2f %.2f %.2f %.2f",
-                minX, minY, width, height);
+        return new BoundingBox(minX, minY, width, height);
     }
 
     @Override
     public boolean coversPoint(final double px, final double py) {
+        return covers(x1, y1, x2, y2, px, py);
+    }
+
+    /**
+     * Point test on raw values, shared with shapes read straight from a scene file.
+     *
+     * @return true if the line from (x1, y1) to (x2, y2) covers (px, py)
+     */
+    static boolean covers(final double x1, final double y1, final double x2, final double y2,
+                          final double px, final double py) {
         final double minX = Math.min(x1, x2);
         final double maxX = Math.max(x1, x2);
         final double minY = Math.min(y1, y2);
         final double maxY = Math.max(y1, y2);
         return px >= minX && px <= maxX && py >= minY && py <= maxY;
     }
+
+    @Override
+    public Shape copy() {
+        return new Line(name, x1, y1, x2, y2);
+    }
 }
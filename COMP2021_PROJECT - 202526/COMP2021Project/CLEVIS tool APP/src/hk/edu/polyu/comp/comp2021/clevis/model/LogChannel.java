@@ -0,0 +1,361 @@
+package hk.edu.polyu.comp.comp2021.clevis.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Append-only log file with a reusable byte buffer.
+ * <p>
+ * Text is UTF-8 encoded straight into the buffer one char at a time (optionally
+ * HTML-escaped on the way), so writing a record allocates nothing. The buffer
+ * is written to the file when it fills and on {@link #flush()}.
+ * <p>
+ * A mapped channel ({@link #mapped}) instead encodes straight into a
+ * memory-mapped window of the file, so an append is a plain memory copy and
+ * {@link #flush()} has nothing to do: the bytes are in the page cache at once
+ * and survive a crash of the process. When a window fills, the file is grown
+ * and the next window is mapped. {@link #close()} cuts the file back to the
+ * bytes written; if that fails (some systems refuse to shrink a mapped file),
+ * the tail stays zero-filled, which the journal format reads as empty markers.
+ * <p>
+ * Not thread-safe, except that {@link #force()} may run concurrently with
+ * appends; {@link ClevisLogger} serializes access.
+ */
+final class LogChannel {
+
+    private static final byte[] AMP = ascii("&amp;");
+    private static final byte[] LT = ascii("&lt;");
+    private static final byte[] GT = ascii("&gt;");
+
+    private final FileChannel channel;
+    private ByteBuffer buffer;
+    /** Bytes in the file, excluding the buffer (for a mapped channel: file offset of the window). */
+    private long written;
+    /** Size of each mapped window, or 0 for a buffered channel. */
+    private final int mapChunk;
+    /** Current mapped window, published for {@link #force()} on other threads. */
+    private volatile MappedByteBuffer window;
+
+    /**
+     * Opens {@code file} for appending, creating it if needed.
+     *
+     * @param file       log file
+     * @param bufferSize size of the write buffer in bytes
+     * @throws IOException if the file cannot be opened
+     */
+    LogChannel(final File file, final int bufferSize) throws IOException {
+        this(file, bufferSize, 0);
+    }
+
+    private LogChannel(final File file, final int bufferSize, final int mapChunk) throws IOException {
+        this.channel = mapChunk > 0
+                ? FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.mapChunk = mapChunk;
+        try {
+            this.written = channel.size();
+            if (mapChunk > 0) {
+                remap(0);
+            } else {
+                this.buffer = ByteBuffer.allocateDirect(bufferSize);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens {@code file} for appending through memory-mapped windows of
+     * {@code chunkBytes} bytes, creating it if needed.
+     *
+     * @param file       log file
+     * @param chunkBytes size of each mapped window (the file grows by this much at a time)
+     * @return the channel
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    static LogChannel mapped(final File file, final int chunkBytes) throws IOException {
+        if (chunkBytes <= 0) {
+            throw new IllegalArgumentException("Map chunk size must be positive.");
+        }
+        return new LogChannel(file, 0, chunkBytes);
+    }
+
+    /**
+     * Encodes a constant ASCII string once, for use with {@link #put(byte[])}.
+     *
+     * @param s ASCII text
+     * @return its bytes
+     */
+    static byte[] ascii(final String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Appends raw bytes.
+     *
+     * @param bytes bytes to append
+     * @throws IOException if a full buffer cannot be written out
+     */
+    void put(final byte[] bytes) throws IOException {
+        if (buffer.remaining() < bytes.length) {
+            drain(bytes.length);
+            if (buffer.remaining() < bytes.length) {
+                written += writeFully(ByteBuffer.wrap(bytes));
+                return;
+            }
+        }
+        buffer.put(bytes);
+    }
+
+    /**
+     * Appends part of a byte array.
+     *
+     * @param bytes  source bytes
+     * @param offset first byte to append
+     * @param length number of bytes to append
+     * @throws IOException if a full buffer cannot be written out
+     */
+    void put(final byte[] bytes, final int offset, final int length) throws IOException {
+        if (buffer.remaining() < length) {
+            drain(length);
+            if (buffer.remaining() < length) {
+                written += writeFully(ByteBuffer.wrap(bytes, offset, length));
+                return;
+            }
+        }
+        buffer.put(bytes, offset, length);
+    }
+
+    /**
+     * Appends UTF-8 bytes, escaping {@code & < >} for HTML. These are ASCII, so
+     * escaping byte by byte never splits a multi-byte character.
+     *
+     * @param bytes  UTF-8 source bytes
+     * @param offset first byte to append
+     * @param length number of bytes to append
+     * @throws IOException if a full buffer cannot be written out
+     */
+    void putEscaped(final byte[] bytes, final int offset, final int length) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            final byte b = bytes[i];
+            if (b == '&') {
+                put(AMP);
+            } else if (b == '<') {
+                put(LT);
+            } else if (b == '>') {
+                put(GT);
+            } else {
+                put(b);
+            }
+        }
+    }
+
+    /**
+     * Appends {@code value} as an unsigned LEB128 varint.
+     *
+     * @param value value to append (treated as unsigned)
+     * @throws IOException if a full buffer cannot be written out
+     */
+    void putVarLong(final long value) throws IOException {
+        ensure(10);
+        long v = value;
+        while ((v & ~0x7FL) != 0) {
+            buffer.put((byte) (v & 0x7F | 0x80));
+            v >>>= 7;
+        }
+        buffer.put((byte) v);
+    }
+
+    /**
+     * Returns the number of bytes {@link #putText(String, boolean)} writes for {@code s}
+     * without HTML escaping.
+     *
+     * @param s text
+     * @return its UTF-8 length
+     */
+    static int utf8Length(final String s) {
+        final int n = s.length();
+        int length = 0;
+        for (int i = 0; i < n; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * @return size of the file including bytes still buffered
+     */
+    long size() {
+        return written + buffer.position();
+    }
+
+    /**
+     * Appends one raw byte.
+     *
+     * @param b byte to append
+     * @throws IOException if a full buffer cannot be written out
+     */
+    void put(final byte b) throws IOException {
+        ensure(1);
+        buffer.put(b);
+    }
+
+    /**
+     * Appends the UTF-8 encoding of {@code s}, escaping {@code & < >} when {@code html} is set.
+     * Unpaired surrogates are written as '?'.
+     *
+     * @param s    text to append
+     * @param html true to escape HTML special characters
+     * @throws IOException if a full buffer cannot be written out
+     */
+    void putText(final String s, final boolean html) throws IOException {
+        final int n = s.length();
+        for (int i = 0; i < n; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                if (html && c == '&') {
+                    put(AMP);
+                } else if (html && c == '<') {
+                    put(LT);
+                } else if (html && c == '>') {
+                    put(GT);
+                } else {
+                    ensure(1);
+                    buffer.put((byte) c);
+                }
+            } else if (c < 0x800) {
+                ensure(2);
+                buffer.put((byte) (0xC0 | c >> 6));
+                buffer.put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    final int cp = Character.toCodePoint(c, s.charAt(++i));
+                    ensure(4);
+                    buffer.put((byte) (0xF0 | cp >> 18));
+                    buffer.put((byte) (0x80 | cp >> 12 & 0x3F));
+                    buffer.put((byte) (0x80 | cp >> 6 & 0x3F));
+                    buffer.put((byte) (0x80 | cp & 0x3F));
+                } else {
+                    ensure(1);
+                    buffer.put((byte) '?');
+                }
+            } else {
+                ensure(3);
+                buffer.put((byte) (0xE0 | c >> 12));
+                buffer.put((byte) (0x80 | c >> 6 & 0x3F));
+                buffer.put((byte) (0x80 | c & 0x3F));
+            }
+        }
+    }
+
+    private void ensure(final int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            drain(bytes);
+        }
+    }
+
+    /**
+     * Makes room for at least {@code needed} bytes: writes the buffer out, or
+     * maps the next window of a mapped channel.
+     */
+    private void drain(final int needed) throws IOException {
+        if (mapChunk > 0) {
+            remap(needed);
+            return;
+        }
+        buffer.flip();
+        written += writeFully(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Maps the window that starts right after the bytes written so far and ends
+     * on the next chunk boundary with room for {@code needed} bytes. Mapping past
+     * the end of the file grows it, so the file grows in whole chunks.
+     */
+    private void remap(final int needed) throws IOException {
+        if (buffer != null) {
+            written += buffer.position();
+        }
+        final long end = (written + Math.max(needed, 1) + mapChunk - 1) / mapChunk * mapChunk;
+        final MappedByteBuffer next = channel.map(FileChannel.MapMode.READ_WRITE, written, end - written);
+        buffer = next;
+        window = next;
+    }
+
+    private int writeFully(final ByteBuffer src) throws IOException {
+        final int n = src.remaining();
+        while (src.hasRemaining()) {
+            channel.write(src);
+        }
+        return n;
+    }
+
+    /**
+     * Writes buffered bytes to the file.
+     *
+     * @throws IOException if the write fails
+     */
+    void flush() throws IOException {
+        if (mapChunk == 0 && buffer.position() > 0) {
+            drain(0);
+        }
+    }
+
+    /**
+     * Forces bytes already written to the file to stable storage. Does not flush
+     * the buffer, so it may run concurrently with appends. For a mapped channel
+     * this writes back the current window; earlier windows are covered by the
+     * file force.
+     *
+     * @throws IOException if the force fails
+     */
+    void force() throws IOException {
+        final MappedByteBuffer w = window;
+        if (w != null) {
+            w.force();
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Flushes and closes the file.
+     *
+     * @throws IOException if the write or close fails
+     */
+    void close() throws IOException {
+        try {
+            flush();
+            if (mapChunk > 0) {
+                window = null;
+                try {
+                    channel.truncate(size());
+                } catch (IOException e) {
+                    // The file is still mapped; keep the zero-filled tail.
+                }
+            }
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package hk.edu.polyu.comp.comp2021.clevis.model;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Time range queries over the command journal ({@code history t1 t2}).
+ * <p>
+ * Segments whose manifest time span misses the range are skipped. Inside a
+ * segment, the sparse {@link LogIndex} gives the last entry at or before the
+ * start of the range, and reading starts there (in a compressed segment, at
+ * the gzip member of that entry). Reading stops at the first record after the
+ * range, so only the records around the range are decoded. This assumes the
+ * clock does not go backwards within a segment.
+ * <p>
+ * Offline use: {@code java hk.edu.polyu.comp.comp2021.clevis.model.LogHistory manifest t1 t2}
+ * prints the matching records as "[time] command" lines.
+ */
+public final class LogHistory {
+
+    private LogHistory() {
+    }
+
+    /**
+     * Command-line entry point of the offline history tool.
+     *
+     * @param args manifest file, start and end of the range (see {@link #parseTime})
+     */
+    public static void main(final String[] args) {
+        if (args.length != 3) {
+            System.err.println("Usage: history <manifest> <from> <to>");
+            System.exit(2);
+        }
+        try {
+            final long from = parseTime(args[1], false);
+            final long to = parseTime(args[2], true);
+            final File manifest = new File(args[0]);
+            final PrintStream out = System.out;
+            long count = 0;
+            for (LogSegments.Segment s : LogSegments.readSegments(manifest)) {
+                if (overlaps(s.records(), s.firstMillis(), s.lastMillis(), from, to)) {
+                    final File file = new File(manifest.getParentFile(), s.name());
+                    count += scan(() -> file, LogIndex.read(LogSegments.indexFileOf(file)), from, to, out::println);
+                }
+            }
+            out.flush();
+            System.err.println(count + " record(s)");
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Error reading history: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Parses one end of a time range in the local time zone. Accepted forms are
+     * {@code HH:mm} or {@code HH:mm:ss} (today), {@code yyyy-MM-dd},
+     * {@code yyyy-MM-ddTHH:mm[:ss]} and epoch milliseconds. The end of a range
+     * covers its whole last unit, so "14:05" as an end means up to 14:05:59.999.
+     *
+     * @param spec time text
+     * @param end  true for the end of the range
+     * @return epoch milliseconds
+     * @throws IllegalArgumentException if the text is not a time
+     */
+    public static long parseTime(final String spec, final boolean end) {
+        final ZoneId zone = ZoneId.systemDefault();
+        try {
+            if (!spec.isEmpty() && spec.chars().allMatch(Character::isDigit)) {
+                return Long.parseLong(spec);
+            }
+            final LocalDateTime start;
+            final long unit;
+            if (spec.length() == 10 && spec.indexOf(':') < 0) {
+                start = LocalDate.parse(spec).atStartOfDay();
+                unit = 24L * 60 * 60 * 1000;
+            } else {
+                final int t = spec.indexOf('T');
+                final LocalDate day = t < 0 ? LocalDate.now(zone) : LocalDate.parse(spec.substring(0, t));
+                final String clock = spec.substring(t + 1);
+                start = day.atTime(LocalTime.parse(clock));
+                unit = clock.length() == 5 ? 60_000L : 1000L;
+            }
+            final long millis = start.atZone(zone).toInstant().toEpochMilli();
+            return end ? millis + unit - 1 : millis;
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid time: " + spec, e);
+        }
+    }
+
+    /**
+     * Tells whether a segment may hold records in the range, from its manifest statistics.
+     *
+     * @param records number of records (0 if unknown)
+     * @param first   first timestamp
+     * @param last    last timestamp
+     * @param from    start of the range
+     * @param to      end of the range
+     * @return false only if the segment certainly has no record in the range
+     */
+    static boolean overlaps(final long records, final long first, final long last, final long from, final long to) {
+        return records == 0 || last >= from && first <= to;
+    }
+
+    /**
+     * Streams the records of one segment whose time is in {@code [from, to]}.
+     *
+     * @param file  supplies the segment's current file (asked again if it was
+     *              compressed, and so renamed, meanwhile)
+     * @param index the segment's sparse index, or null to read from the start
+     * @param from  start of the range (epoch ms, inclusive)
+     * @param to    end of the range (epoch ms, inclusive)
+     * @param out   receives "[time] command" lines in log order
+     * @return number of records passed to {@code out}
+     * @throws IOException if the segment cannot be read
+     */
+    static long scan(final Supplier<File> file, final LogIndex index, final long from, final long to,
+                     final Consumer<String> out) throws IOException {
+        File f = file.get();
+        InputStream opened;
+        long base = 0;
+        boolean header = true;
+        while (true) {
+            long offset = 0;
+            if (index != null) {
+                final int e = index.floor(from);
+                final long at = e < 0 ? -1
+                        : f.getName().endsWith(".gz") ? index.compressedOffset(e) : index.rawOffset(e);
+                if (at >= 0) {
+                    offset = at;
+                    base = index.base(e);
+                    header = false;
+                }
+            }
+            try {
+                opened = LogRenderer.open(f, offset);
+                break;
+            } catch (FileNotFoundException e) {
+                final File renamed = file.get();
+                if (renamed.equals(f)) {
+                    throw e;
+                }
+                f = renamed;
+                header = true;
+                base = 0;
+            }
+        }
+
+        final LogTimestamp stamp = new LogTimestamp();
+        final long[] count = new long[1];
+        try (InputStream in = opened) {
+            if (header) {
+                LogRenderer.readHeader(in);
+            }
+            LogRenderer.readRecords(in, base, (time, command, length) -> {
+                if (time > to) {
+                    return false;
+                }
+                if (time >= from) {
+                    out.accept("[" + new String(stamp.bytes(time), StandardCharsets.US_ASCII) + "] "
+                            + new String(command, 0, length, StandardCharsets.UTF_8));
+                    count[0]++;
+                }
+                return true;
+            });
+        }
+        return count[0];
+    }
+}
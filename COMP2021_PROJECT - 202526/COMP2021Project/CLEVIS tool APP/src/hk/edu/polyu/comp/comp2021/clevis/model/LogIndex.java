@@ -0,0 +1,198 @@
+package hk.edu.polyu.comp.comp2021.clevis.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Sparse time index of one journal segment: one entry every
+ * {@link #INTERVAL} records, so a time range can be read without decoding the
+ * segment from its start.
+ * <p>
+ * An entry holds the timestamp of the record it points at, the timestamp of the
+ * record before it (the base its delta is relative to), its offset in the raw
+ * segment and its offset in the compressed segment ({@code -1} until the
+ * segment has been compressed). Compressed segments are written as one gzip
+ * member per entry, so a compressed offset is where a member starts and
+ * decompression can begin there.
+ * <p>
+ * File layout: the magic bytes {@code CLVI} and a version byte, then the
+ * entries as four big-endian longs each. Not thread-safe.
+ */
+final class LogIndex {
+
+    /** Records between two index entries. */
+    static final int INTERVAL = 256;
+
+    private static final byte[] MAGIC = LogChannel.ascii("CLVI");
+    private static final int VERSION = 1;
+    private static final int FIELDS = 4;
+
+    private long[] entries = new long[FIELDS * 16];
+    private int size;
+
+    /**
+     * Adds an entry; entries are added in file order.
+     *
+     * @param time      timestamp of the record at {@code rawOffset}
+     * @param base      timestamp of the record before it (0 at the start of a segment)
+     * @param rawOffset offset of the record in the raw segment
+     */
+    void add(final long time, final long base, final long rawOffset) {
+        if (entries.length == size * FIELDS) {
+            entries = Arrays.copyOf(entries, entries.length * 2);
+        }
+        final int i = size++ * FIELDS;
+        entries[i] = time;
+        entries[i + 1] = base;
+        entries[i + 2] = rawOffset;
+        entries[i + 3] = -1;
+    }
+
+    /**
+     * @return number of entries
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param entry entry number
+     * @return timestamp of the record the entry points at
+     */
+    long time(final int entry) {
+        return entries[entry * FIELDS];
+    }
+
+    /**
+     * @param entry entry number
+     * @return timestamp the first delta read at the entry is relative to
+     */
+    long base(final int entry) {
+        return entries[entry * FIELDS + 1];
+    }
+
+    /**
+     * @param entry entry number
+     * @return offset of the entry's record in the raw segment
+     */
+    long rawOffset(final int entry) {
+        return entries[entry * FIELDS + 2];
+    }
+
+    /**
+     * @param entry entry number
+     * @return offset of the entry's gzip member in the compressed segment, or -1
+     */
+    long compressedOffset(final int entry) {
+        return entries[entry * FIELDS + 3];
+    }
+
+    /**
+     * @param entry  entry number
+     * @param offset offset of the entry's gzip member in the compressed segment
+     */
+    void setCompressedOffset(final int entry, final long offset) {
+        entries[entry * FIELDS + 3] = offset;
+    }
+
+    /**
+     * Finds where to start reading for records at or after {@code time}.
+     * Timestamps are assumed not to go backwards within a segment.
+     *
+     * @param time earliest timestamp of interest
+     * @return the last entry whose record is not later than {@code time}, or -1 if there is none
+     */
+    int floor(final long time) {
+        int lo = 0;
+        int hi = size - 1;
+        int found = -1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (time(mid) <= time) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return an independent copy of this index
+     */
+    LogIndex copy() {
+        final LogIndex c = new LogIndex();
+        c.entries = Arrays.copyOf(entries, Math.max(FIELDS, size * FIELDS));
+        c.size = size;
+        return c;
+    }
+
+    /**
+     * Writes the index atomically (through a temporary file).
+     *
+     * @param file index file
+     * @throws IOException if it cannot be written
+     */
+    void write(final File file) throws IOException {
+        final File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.write(MAGIC);
+            out.write(VERSION);
+            for (int i = 0; i < size * FIELDS; i++) {
+                out.writeLong(entries[i]);
+            }
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Reads an index file.
+     *
+     * @param file index file
+     * @return the index, or null if the file does not exist
+     * @throws IOException if the file cannot be read or is not an index
+     */
+    static LogIndex read(final File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            final byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || in.read() != VERSION) {
+                throw new IOException("Not a Clevis log index: " + file.getName());
+            }
+            final LogIndex index = new LogIndex();
+            try {
+                while (true) {
+                    final long time = in.readLong();
+                    final long base = in.readLong();
+                    final long raw = in.readLong();
+                    final long compressed = in.readLong();
+                    index.add(time, base, raw);
+                    index.setCompressedOffset(index.size() - 1, compressed);
+                }
+            } catch (EOFException e) {
+                // end of entries
+            }
+            return index;
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package hk.edu.polyu.comp.comp2021.clevis.model;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Renders a command journal written by {@link ClevisLogger} into the HTML log
+ * and, optionally, the text log (REQ1).
+ * <p>
+ * The journal is streamed record by record through fixed buffers, so memory use
+ * does not depend on its size. Command bytes are copied as-is (they are already
+ * UTF-8) and HTML-escaped byte by byte; no Strings are built.
+ * <p>
+ * Journal layout: the magic bytes {@code CLVJ} and a version byte, then entries
+ * starting with an unsigned varint {@code n}. {@code n == 0} marks the start of
+ * a logger session and resets the timestamp base to 0. Otherwise the entry holds
+ * a zig-zag varint timestamp delta in milliseconds followed by {@code n - 1}
+ * bytes of UTF-8 command text. A truncated final entry (e.g. after a crash) is ignored.
+ * Every segment starts with the magic bytes and a session marker, and segments
+ * whose name ends in ".gz" are read through gzip.
+ * <p>
+ * Offline use: {@code java hk.edu.polyu.comp.comp2021.clevis.model.LogRenderer journal html [txt]},
+ * where {@code journal} is a segment file or a {@code .manifest} listing segments in order.
+ */
+public final class LogRenderer {
+
+    /** Magic bytes at the start of every journal. */
+    static final byte[] MAGIC = LogChannel.ascii("CLVJ");
+    /** Current journal format version. */
+    static final int VERSION = 1;
+    /** Size of the magic bytes and version at the start of every segment. */
+    static final int HEADER_SIZE = MAGIC.length + 1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] TXT_HEADER = LogChannel.ascii("=== CLEVIS LOG START ===\n");
+    private static final byte[] HTML_HEADER = LogChannel.ascii("""
+            <html><head><title>Clevis Log</title></head><body>
+            <h2>Clevis Command Log</h2><ul>
+            """);
+    private static final byte[] HTML_FOOTER = LogChannel.ascii("</ul></body></html>");
+    private static final byte[] TXT_STAMP_CLOSE = LogChannel.ascii("] ");
+    private static final byte[] HTML_ITEM_OPEN = LogChannel.ascii("<li><b>");
+    private static final byte[] HTML_STAMP_CLOSE = LogChannel.ascii(":</b> ");
+    private static final byte[] HTML_ITEM_CLOSE = LogChannel.ascii("</li>\n");
+
+    /**
+     * Receives decoded journal records.
+     */
+    @FunctionalInterface
+    interface RecordVisitor {
+        /**
+         * @param time    record timestamp in epoch milliseconds
+         * @param command UTF-8 command bytes; the array is reused for the next record
+         * @param length  number of command bytes
+         * @return false to stop reading
+         * @throws IOException if the record cannot be handled
+         */
+        boolean visit(long time, byte[] command, int length) throws IOException;
+    }
+
+    private LogRenderer() {
+    }
+
+    /**
+     * Command-line entry point of the offline renderLog tool.
+     *
+     * @param args journal segment or manifest, HTML output file and optional text output file
+     */
+    public static void main(final String[] args) {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: renderLog <journal|manifest> <html> [txt]");
+            System.exit(2);
+        }
+        try {
+            final File source = new File(args[0]);
+            final List<File> segments = args[0].endsWith(".manifest")
+                    ? LogSegments.readManifest(source) : List.of(source);
+            final long n = render(segments, new File(args[1]), args.length == 3 ? new File(args[2]) : null);
+            System.out.println("Rendered " + n + " record(s) from " + args[0]);
+        } catch (IOException e) {
+            System.err.println("Error rendering log: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Appends every record of {@code journal} to the HTML log (and the text log if given).
+     * Headers are written to output files that do not exist yet; the HTML log
+     * gets a closing footer, as {@link ClevisLogger#close()} always wrote.
+     *
+     * @param journal journal written by {@link ClevisLogger}
+     * @param html    HTML log to append to
+     * @param txt     text log to append to, or null to skip the text form
+     * @return number of records rendered
+     * @throws IOException if the journal is not valid or a file cannot be read or written
+     */
+    public static long render(final File journal, final File html, final File txt) throws IOException {
+        return render(List.of(journal), html, txt);
+    }
+
+    /**
+     * Appends every record of the given journal segments, in order, to the HTML log
+     * (and the text log if given), as one session block with a single footer.
+     *
+     * @param segments journal segments in order (".gz" names are decompressed)
+     * @param html     HTML log to append to
+     * @param txt      text log to append to, or null to skip the text form
+     * @return number of records rendered
+     * @throws IOException if a segment is not valid or a file cannot be read or written
+     */
+    public static long render(final List<File> segments, final File html, final File txt) throws IOException {
+        final boolean newHtml = !html.exists();
+        final boolean newTxt = txt != null && !txt.exists();
+        final LogTimestamp stamp = new LogTimestamp();
+        long count = 0;
+
+        final LogChannel htmlOut = new LogChannel(html, BUFFER_SIZE);
+        final LogChannel txtOut = txt == null ? null : new LogChannel(txt, BUFFER_SIZE);
+        try {
+            if (newHtml) {
+                htmlOut.put(HTML_HEADER);
+            }
+            if (newTxt) {
+                txtOut.put(TXT_HEADER);
+            }
+            for (File segment : segments) {
+                try (InputStream in = open(segment, 0)) {
+                    count += renderSegment(in, stamp, htmlOut, txtOut);
+                }
+            }
+            htmlOut.put(HTML_FOOTER);
+        } finally {
+            htmlOut.close();
+            if (txtOut != null) {
+                txtOut.close();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Renders the records of one segment.
+     */
+    private static long renderSegment(final InputStream in, final LogTimestamp stamp,
+                                      final LogChannel htmlOut, final LogChannel txtOut) throws IOException {
+        readHeader(in);
+        return readRecords(in, 0, (time, command, length) -> {
+            final byte[] when = stamp.bytes(time);
+            htmlOut.put(HTML_ITEM_OPEN);
+            htmlOut.put(when);
+            htmlOut.put(HTML_STAMP_CLOSE);
+            htmlOut.putEscaped(command, 0, length);
+            htmlOut.put(HTML_ITEM_CLOSE);
+            if (txtOut != null) {
+                txtOut.put((byte) '[');
+                txtOut.put(when);
+                txtOut.put(TXT_STAMP_CLOSE);
+                txtOut.put(command, 0, length);
+                txtOut.put((byte) '\n');
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Decodes records from {@code in} until it ends or {@code visitor} stops.
+     * A truncated final record is ignored.
+     *
+     * @param in      stream positioned at the start of a record (after the header)
+     * @param base    timestamp the first delta is relative to
+     * @param visitor receives each record
+     * @return number of records passed to the visitor
+     * @throws IOException if the stream cannot be read or holds a corrupt record
+     */
+    static long readRecords(final InputStream in, final long base, final RecordVisitor visitor) throws IOException {
+        byte[] command = new byte[256];
+        long count = 0;
+        long time = base;
+        try {
+            while (true) {
+                final int first = in.read();
+                if (first < 0) {
+                    break;
+                }
+                final long n = readVarLong(in, first);
+                if (n == 0) {
+                    time = 0;
+                    continue;
+                }
+                if (n < 0 || n - 1 > Integer.MAX_VALUE) {
+                    throw new IOException("Corrupt journal record.");
+                }
+                final long delta = readVarLong(in, in.read());
+                final int length = (int) (n - 1);
+                if (command.length < length) {
+                    command = new byte[Math.max(length, command.length * 2)];
+                }
+                if (!readFully(in, command, length)) {
+                    break;
+                }
+                time += delta >>> 1 ^ -(delta & 1);
+                count++;
+                if (!visitor.visit(time, command, length)) {
+                    break;
+                }
+            }
+        } catch (EOFException e) {
+            // Truncated final record: everything before it has been read.
+        }
+        return count;
+    }
+
+    /**
+     * Opens a segment for reading, decompressing ".gz" names.
+     *
+     * @param segment journal segment
+     * @param offset  byte offset to start at (in the compressed file for ".gz",
+     *                where it must be the start of a gzip member)
+     * @return buffered stream of raw journal bytes
+     * @throws IOException if the file cannot be opened
+     */
+    static InputStream open(final File segment, final long offset) throws IOException {
+        final FileInputStream raw = new FileInputStream(segment);
+        try {
+            raw.getChannel().position(offset);
+            return new BufferedInputStream(segment.getName().endsWith(".gz")
+                    ? new GZIPInputStream(raw, BUFFER_SIZE) : raw, BUFFER_SIZE);
+        } catch (IOException e) {
+            raw.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads and checks the magic bytes and version at the start of a segment.
+     *
+     * @param in segment stream
+     * @throws IOException if the segment is not a journal of this version
+     */
+    static void readHeader(final InputStream in) throws IOException {
+        for (byte b : MAGIC) {
+            if (in.read() != b) {
+                throw new IOException("Not a Clevis journal.");
+            }
+        }
+        final int version = in.read();
+        if (version != VERSION) {
+            throw new IOException("Unsupported journal version: " + version);
+        }
+    }
+
+    /**
+     * Reads an unsigned varint whose first byte has already been read.
+     *
+     * @param first first byte of the varint, or -1 at end of stream
+     * @return the value
+     * @throws EOFException if the stream ends inside the varint
+     */
+    private static long readVarLong(final InputStream in, final int first) throws IOException {
+        long value = 0;
+        int b = first;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (shift > 0) {
+                b = in.read();
+            }
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupt journal varint.");
+    }
+
+    private static boolean readFully(final InputStream in, final byte[] buf, final int length) throws IOException {
+        int off = 0;
+        while (off < length) {
+            final int r = in.read(buf, off, length - off);
+            if (r < 0) {
+                return false;
+            }
+            off += r;
+        }
+        return true;
+    }
+}
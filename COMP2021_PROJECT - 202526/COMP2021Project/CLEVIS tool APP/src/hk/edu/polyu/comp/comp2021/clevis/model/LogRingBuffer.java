@@ -0,0 +1,112 @@
+package hk.edu.polyu.comp.comp2021.clevis.model;
+
+import java.io.IOException;
+
+/**
+ * Preallocated single-producer/single-consumer ring of log records.
+ * <p>
+ * One thread offers records and one thread drains them; no locks are taken.
+ * The producer publishes a slot by advancing the volatile {@code tail}, and the
+ * consumer frees it by advancing the volatile {@code head}.
+ */
+final class LogRingBuffer {
+
+    /**
+     * Receives drained records.
+     */
+    @FunctionalInterface
+    interface Sink {
+        /**
+         * @param record    logged command
+         * @param timestamp time the command was logged, in epoch milliseconds
+         * @throws IOException if the record cannot be written
+         */
+        void accept(String record, long timestamp) throws IOException;
+    }
+
+    private final String[] records;
+    private final long[] timestamps;
+    private final int mask;
+
+    /** Next slot to read; written by the consumer only. */
+    private volatile long head;
+    /** Next slot to write; written by the producer only. */
+    private volatile long tail;
+    /** Producer's last seen value of {@code head}, to avoid reading it on every offer. */
+    private long cachedHead;
+
+    /**
+     * Creates a ring with room for at least {@code capacity} records.
+     *
+     * @param capacity minimum capacity (rounded up to a power of two)
+     */
+    LogRingBuffer(final int capacity) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Ring capacity must be between 1 and 2^30.");
+        }
+        final int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.records = new String[size];
+        this.timestamps = new long[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Adds a record if there is room. Producer thread only.
+     *
+     * @param record    logged command
+     * @param timestamp time the command was logged, in epoch milliseconds
+     * @return false if the ring is full
+     */
+    boolean offer(final String record, final long timestamp) {
+        final long t = tail;
+        if (t - cachedHead == records.length) {
+            cachedHead = head;
+            if (t - cachedHead == records.length) {
+                return false;
+            }
+        }
+        final int i = (int) t & mask;
+        records[i] = record;
+        timestamps[i] = timestamp;
+        tail = t + 1;
+        return true;
+    }
+
+    /**
+     * Passes up to {@code max} records to {@code sink} in order. Consumer thread only.
+     * Slots are released only after the whole batch has been handed over.
+     *
+     * @param sink destination of the records
+     * @param max  maximum number of records to drain
+     * @return number of records drained
+     * @throws IOException if the sink fails; the failing batch is released anyway
+     */
+    int drainTo(final Sink sink, final int max) throws IOException {
+        final long h = head;
+        final int n = (int) Math.min(tail - h, max);
+        try {
+            for (int k = 0; k < n; k++) {
+                final int i = (int) (h + k) & mask;
+                sink.accept(records[i], timestamps[i]);
+                records[i] = null;
+            }
+        } finally {
+            head = h + n;
+        }
+        return n;
+    }
+
+    /**
+     * @return number of records waiting to be drained
+     */
+    int size() {
+        return (int) (tail - head);
+    }
+
+    /**
+     * @return number of slots in the ring
+     */
+    int capacity() {
+        return records.length;
+    }
+}
@@ -0,0 +1,395 @@
+package hk.edu.polyu.comp.comp2021.clevis.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.FilterOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Journal segment files of one log, their manifest and background compression.
+ * <p>
+ * Segments are named {@code <stem>.<index>.journal} with a zero-padded, ever
+ * increasing index. Once a segment is closed it is gzip-compressed on a
+ * background thread to {@code <stem>.<index>.journal.gz} and the raw file is
+ * deleted. The manifest {@code <stem>.manifest} lists every segment in order,
+ * one per line: file name, record count, first and last timestamp (epoch ms).
+ * It is rewritten atomically whenever a segment is added, closed, compressed or
+ * pruned. {@link #prune} deletes the oldest segments beyond a retention limit.
+ * <p>
+ * Each closed segment also gets a sparse time index {@code <stem>.<index>.idx}
+ * ({@link LogIndex}). Compression writes one gzip member per index entry and
+ * records where each member starts, so the index can seek into the compressed
+ * segment as well.
+ */
+final class LogSegments {
+
+    private static final String MANIFEST_HEADER = "# clevis log manifest v1";
+
+    /** One segment listed in the manifest. */
+    static final class Segment {
+        private final int index;
+        private volatile String name;
+        private long records;
+        private long firstMillis;
+        private long lastMillis;
+
+        private Segment(final int index, final String name) {
+            this.index = index;
+            this.name = name;
+        }
+
+        /**
+         * @return current file name (".gz" once compressed)
+         */
+        String name() {
+            return name;
+        }
+
+        /**
+         * @return number of records (0 while the segment is open)
+         */
+        long records() {
+            return records;
+        }
+
+        /**
+         * @return timestamp of the first record (0 while open or empty)
+         */
+        long firstMillis() {
+            return firstMillis;
+        }
+
+        /**
+         * @return timestamp of the last record (0 while open or empty)
+         */
+        long lastMillis() {
+            return lastMillis;
+        }
+    }
+
+    private final File dir;
+    private final String stem;
+    private final File manifest;
+    private final List<Segment> entries = new ArrayList<>();
+    private final ExecutorService compressor = Executors.newSingleThreadExecutor(r -> {
+        final Thread t = new Thread(r, "clevis-log-compressor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Loads the manifest of {@code stem} in {@code dir}, if there is one.
+     *
+     * @param dir  log directory
+     * @param stem log name without extension
+     */
+    LogSegments(final File dir, final String stem) {
+        this.dir = dir;
+        this.stem = stem;
+        this.manifest = new File(dir, stem + ".manifest");
+        if (manifest.exists()) {
+            try {
+                entries.addAll(readSegments(manifest));
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Warning: ignoring unreadable log manifest: " + e.getMessage());
+                entries.clear();
+            }
+        }
+    }
+
+    /**
+     * Reads the segments listed in a manifest, in order.
+     *
+     * @param manifest manifest file
+     * @return the segments with their statistics
+     * @throws IOException if the manifest cannot be read
+     */
+    static List<Segment> readSegments(final File manifest) throws IOException {
+        final List<Segment> list = new ArrayList<>();
+        for (String line : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            final String[] f = line.split(" ");
+            final Segment s = new Segment(indexOf(f[0]), f[0]);
+            s.records = Long.parseLong(f[1]);
+            s.firstMillis = Long.parseLong(f[2]);
+            s.lastMillis = Long.parseLong(f[3]);
+            list.add(s);
+        }
+        return list;
+    }
+
+    /**
+     * Reads the segment files listed in a manifest, in order.
+     *
+     * @param manifest manifest file
+     * @return the segment files
+     * @throws IOException if the manifest cannot be read
+     */
+    static List<File> readManifest(final File manifest) throws IOException {
+        final List<File> files = new ArrayList<>();
+        for (Segment s : readSegments(manifest)) {
+            files.add(new File(manifest.getParentFile(), s.name));
+        }
+        return files;
+    }
+
+    /**
+     * Returns the index file of a segment, compressed or not.
+     *
+     * @param segment segment file
+     * @return its sparse time index (which may not exist)
+     */
+    static File indexFileOf(final File segment) {
+        final String name = segment.getName();
+        final int journal = name.lastIndexOf(".journal");
+        return new File(segment.getParentFile(), (journal > 0 ? name.substring(0, journal) : name) + ".idx");
+    }
+
+    /**
+     * @return the manifest file
+     */
+    File manifestFile() {
+        return manifest;
+    }
+
+    /**
+     * Adds a new, empty segment after the last one.
+     *
+     * @return the new segment
+     */
+    synchronized Segment next() {
+        final int index = entries.isEmpty() ? 1 : entries.get(entries.size() - 1).index + 1;
+        final Segment s = new Segment(index, String.format(Locale.ROOT, "%s.%06d.journal", stem, index));
+        entries.add(s);
+        writeManifest();
+        return s;
+    }
+
+    /**
+     * @param s a segment
+     * @return its current file (compressed once compression has finished)
+     */
+    File fileOf(final Segment s) {
+        return new File(dir, s.name);
+    }
+
+    /**
+     * Records the final statistics of a closed segment, writes its index and
+     * compresses it in the background.
+     *
+     * @param s           the closed segment
+     * @param records     number of records in it
+     * @param firstMillis timestamp of its first record (0 if empty)
+     * @param lastMillis  timestamp of its last record (0 if empty)
+     * @param index       sparse time index of the segment (raw offsets)
+     */
+    synchronized void closed(final Segment s, final long records, final long firstMillis, final long lastMillis,
+                             final LogIndex index) {
+        s.records = records;
+        s.firstMillis = firstMillis;
+        s.lastMillis = lastMillis;
+        writeManifest();
+        try {
+            index.write(indexFileOf(fileOf(s)));
+        } catch (IOException e) {
+            System.err.println("Error writing log index: " + e.getMessage());
+        }
+        compressor.execute(() -> compress(s, index));
+    }
+
+    /**
+     * @return a copy of the segment list, in order
+     */
+    synchronized List<Segment> list() {
+        return new ArrayList<>(entries);
+    }
+
+    /**
+     * Returns the current files of the segments from {@code first} on.
+     *
+     * @param first first segment of interest
+     * @return their files in order
+     */
+    synchronized List<File> filesFrom(final Segment first) {
+        final List<File> files = new ArrayList<>();
+        boolean found = false;
+        for (Segment s : entries) {
+            found |= s == first;
+            if (found) {
+                files.add(fileOf(s));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Deletes the oldest segments, with their index files, until at most
+     * {@code keep} are listed. Pruning stops at {@code first}, which is kept
+     * together with every segment after it. The manifest is rewritten before
+     * any file is deleted, so it never lists a missing segment.
+     *
+     * @param keep  number of segments to keep; 0 keeps them all
+     * @param first oldest segment that must stay, or null if any may go
+     * @return number of segments removed from the manifest
+     */
+    synchronized int prune(final int keep, final Segment first) {
+        int removed = 0;
+        while (keep > 0 && entries.size() - removed > keep && entries.get(removed) != first) {
+            removed++;
+        }
+        if (removed == 0) {
+            return 0;
+        }
+        final List<Segment> gone = new ArrayList<>(entries.subList(0, removed));
+        entries.subList(0, removed).clear();
+        writeManifest();
+        for (Segment s : gone) {
+            final File file = fileOf(s);
+            for (File f : new File[] {file, indexFileOf(file)}) {
+                try {
+                    Files.deleteIfExists(f.toPath());
+                } catch (IOException e) {
+                    System.err.println("Error deleting log segment " + f.getName() + ": " + e.getMessage());
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Waits for every queued compression to finish and stops the compressor thread.
+     */
+    void shutdown() {
+        compressor.shutdown();
+        boolean interrupted = false;
+        while (!compressor.isTerminated()) {
+            try {
+                compressor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void compress(final Segment s, final LogIndex index) {
+        final File raw = new File(dir, s.name);
+        final File gz = new File(dir, s.name + ".gz");
+        final File tmp = new File(dir, s.name + ".gz.tmp");
+        try (InputStream in = new BufferedInputStream(new FileInputStream(raw), 1 << 16);
+             FileOutputStream file = new FileOutputStream(tmp);
+             OutputStream out = new BufferedOutputStream(file, 1 << 16)) {
+            // One gzip member per index entry, so reading can start at any entry.
+            final OutputStream shield = new FilterOutputStream(out) {
+                @Override
+                public void write(final byte[] b, final int off, final int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    out.flush();
+                }
+            };
+            final byte[] buf = new byte[1 << 16];
+            long position = 0;
+            for (int e = 0; e <= index.size(); e++) {
+                try (GZIPOutputStream member = new GZIPOutputStream(shield, 1 << 16)) {
+                    if (e == index.size()) {
+                        in.transferTo(member);
+                    } else {
+                        position += copy(in, member, index.rawOffset(e) - position, buf);
+                    }
+                }
+                if (e < index.size()) {
+                    index.setCompressedOffset(e, file.getChannel().position());
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error compressing log segment " + raw.getName() + ": " + e.getMessage());
+            tmp.delete();
+            return;
+        }
+        try {
+            if (index.size() > 0) {
+                index.write(indexFileOf(raw));
+            }
+            move(tmp, gz);
+            synchronized (this) {
+                s.name = gz.getName();
+                writeManifest();
+            }
+            Files.delete(raw.toPath());
+        } catch (IOException e) {
+            System.err.println("Error compressing log segment " + raw.getName() + ": " + e.getMessage());
+        }
+    }
+
+    private static long copy(final InputStream in, final OutputStream out, final long length, final byte[] buf)
+            throws IOException {
+        long copied = 0;
+        while (copied < length) {
+            final int r = in.read(buf, 0, (int) Math.min(buf.length, length - copied));
+            if (r < 0) {
+                break;
+            }
+            out.write(buf, 0, r);
+            copied += r;
+        }
+        return copied;
+    }
+
+    private void writeManifest() {
+        final File tmp = new File(dir, manifest.getName() + ".tmp");
+        try (Writer out = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+            out.write(MANIFEST_HEADER);
+            out.write('\n');
+            for (Segment s : entries) {
+                out.write(s.name + " " + s.records + " " + s.firstMillis + " " + s.lastMillis + "\n");
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing log manifest: " + e.getMessage());
+            return;
+        }
+        try {
+            move(tmp, manifest);
+        } catch (IOException e) {
+            System.err.println("Error writing log manifest: " + e.getMessage());
+        }
+    }
+
+    private static void move(final File from, final File to) throws IOException {
+        try {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static int indexOf(final String name) {
+        final String[] parts = name.split("\\.");
+        return Integer.parseInt(parts[parts.length - (name.endsWith(".gz") ? 3 : 2)]);
+    }
+}
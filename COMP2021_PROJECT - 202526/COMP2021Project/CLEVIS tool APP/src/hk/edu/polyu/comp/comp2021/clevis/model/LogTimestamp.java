@@ -0,0 +1,51 @@
+package hk.edu.polyu.comp.comp2021.clevis.model;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * "yyyy-MM-dd HH:mm:ss" log timestamp, cached as bytes and re-rendered only when
+ * the second changes. Not thread-safe; callers serialize access.
+ */
+final class LogTimestamp {
+
+    private final ZoneId zone = ZoneId.systemDefault();
+    private final byte[] stamp = new byte[19];
+    private long second = Long.MIN_VALUE;
+
+    /**
+     * Returns the timestamp of {@code millis}. The returned array is reused by
+     * the next call, so it must be consumed before then.
+     *
+     * @param millis time in epoch milliseconds
+     * @return the encoded timestamp (19 ASCII bytes)
+     */
+    byte[] bytes(final long millis) {
+        final long s = Math.floorDiv(millis, 1000L);
+        if (s != second) {
+            second = s;
+            final LocalDateTime t = LocalDateTime.ofInstant(Instant.ofEpochSecond(s), zone);
+            digits(0, t.getYear(), 4);
+            stamp[4] = '-';
+            digits(5, t.getMonthValue(), 2);
+            stamp[7] = '-';
+            digits(8, t.getDayOfMonth(), 2);
+            stamp[10] = ' ';
+            digits(11, t.getHour(), 2);
+            stamp[13] = ':';
+            digits(14, t.getMinute(), 2);
+            stamp[16] = ':';
+            digits(17, t.getSecond(), 2);
+        }
+        return stamp;
+    }
+
+    private void digits(final int offset, final int value, final int width) {
+        int v = value;
+        for (int i = offset + width - 1; i >= offset; i--) {
+            stamp[i] = (byte) ('0' + v % 10);
+            v /= 10;
+        }
+    }
+}
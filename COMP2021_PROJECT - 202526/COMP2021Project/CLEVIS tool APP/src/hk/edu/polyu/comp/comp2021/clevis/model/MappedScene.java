@@ -0,0 +1,384 @@
+package hk.edu.polyu.comp.comp2021.clevis.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A scene file ({@link SceneFile}) mapped read-only into memory ({@code open file}).
+ * <p>
+ * Nothing is decoded up front: opening only checks the header and maps the
+ * file, so it takes the same time for ten shapes or ten million. Shapes are
+ * materialized from their records when a command asks for them, names are
+ * found by binary search over the mapped name index, and point queries read
+ * coordinates straight from the mapped records. The pages belong to the
+ * operating system's page cache, so every process that opens the same file
+ * shares one copy of it in memory.
+ * <p>
+ * The file must not be rewritten in place while it is open; {@link SceneFile#save}
+ * replaces files by renaming, which leaves existing mappings on the old contents.
+ * Instances are immutable and thread-safe.
+ */
+public final class MappedScene {
+
+    /** Largest single mapping, in bytes. */
+    private static final int MAX_PIECE = 1 << 30;
+
+    private final File file;
+    private final int topLevel;
+    private final ByteBuffer header;
+    private final Section records;
+    private final Section topTable;
+    private final Section nameIndex;
+    private final ByteBuffer heap;
+    /** Z table, or null for a version 1 file. */
+    private final Section zTable;
+    /** Content hashes of the top-level shapes, or null for a file before version 3. */
+    private final Section hashes;
+    /** Z sequence number for the next insertion. */
+    private final long nextZ;
+
+    private MappedScene(final File file, final FileChannel ch, final SceneFile.Header h) throws IOException {
+        this.file = file;
+        this.topLevel = (int) h.topLevel;
+        this.header = ch.map(FileChannel.MapMode.READ_ONLY, 0, SceneFile.HEADER_SIZE);
+        this.records = new Section(ch, SceneFile.HEADER_SIZE, h.records, SceneFile.RECORD_SIZE);
+        this.topTable = new Section(ch, h.topTable, h.topLevel, Integer.BYTES);
+        this.nameIndex = new Section(ch, h.nameIndex, h.topLevel, Integer.BYTES);
+        this.heap = ch.map(FileChannel.MapMode.READ_ONLY, h.heap, h.heapLength);
+        this.zTable = h.zTable < 0 ? null : new Section(ch, h.zTable, h.topLevel + 1, Long.BYTES);
+        this.hashes = h.hashTable < 0 ? null : new Section(ch, h.hashTable, h.topLevel, Long.BYTES);
+        this.nextZ = zTable == null ? h.records : zTable.piece(topLevel).getLong(zTable.offset(topLevel));
+    }
+
+    /**
+     * Maps a scene file read-only. The mappings stay valid after this returns;
+     * no file handle is kept open.
+     *
+     * @param file scene file written by {@link SceneFile#save}
+     * @return the mapped scene
+     * @throws IOException if the file cannot be mapped or is not a valid scene file
+     */
+    public static MappedScene open(final File file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return new MappedScene(file, ch, SceneFile.Header.read(ch));
+        }
+    }
+
+    /**
+     * @return the mapped file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return number of top-level shapes
+     */
+    public int size() {
+        return topLevel;
+    }
+
+    /**
+     * Materializes a top-level shape.
+     *
+     * @param ordinal position in Z-order (0 is the bottom)
+     * @return a new shape object with the stored name and geometry
+     * @throws UncheckedIOException if the record is corrupt
+     */
+    public Shape get(final int ordinal) {
+        try {
+            return materialize(recordOf(ordinal));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Finds and materializes a top-level shape by name.
+     *
+     * @param name shape name
+     * @return the shape, or null if there is none with that name
+     */
+    public Shape get(final String name) {
+        final int position = firstAtOrAfter(name);
+        if (position < topLevel) {
+            final int ordinal = ordinalAt(position);
+            if (nameOf(ordinal).equals(name)) {
+                return get(ordinal);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Materializes every top-level shape.
+     *
+     * @return the shapes in Z-order (bottom first)
+     */
+    public List<Shape> getAll() {
+        final List<Shape> all = new ArrayList<>(topLevel);
+        for (int i = 0; i < topLevel; i++) {
+            all.add(get(i));
+        }
+        return all;
+    }
+
+    /**
+     * Finds the topmost shape covering a point, reading coordinates straight
+     * from the mapped records; nothing is materialized.
+     *
+     * @param x x-coordinate
+     * @param y y-coordinate
+     * @return Z-order position of the shape, or -1 if no shape covers the point
+     */
+    public int topmostAt(final double x, final double y) {
+        for (int i = topLevel - 1; i >= 0; i--) {
+            final long first = recordOf(i);
+            final long last = first + subtree(first);
+            for (long r = first; r <= last; r++) {
+                if (covers(r, x, y)) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param ordinal Z-order position of a top-level shape
+     * @return its name
+     */
+    public String nameOf(final int ordinal) {
+        final long r = recordOf(ordinal);
+        final ByteBuffer b = records.piece(r);
+        final int at = records.offset(r);
+        return name(b.getLong(at + SceneFile.R_NAME_OFFSET), b.getInt(at + SceneFile.R_NAME_LENGTH));
+    }
+
+    /**
+     * @param ordinal Z-order position of a top-level shape
+     * @return its type keyword, as {@link ShapeManager#typeOf} returns it
+     */
+    public String typeOf(final int ordinal) {
+        final long r = recordOf(ordinal);
+        switch (records.piece(r).get(records.offset(r) + SceneFile.R_TYPE)) {
+            case MutationJournal.TYPE_RECTANGLE:
+                return "rectangle";
+            case MutationJournal.TYPE_LINE:
+                return "line";
+            case MutationJournal.TYPE_CIRCLE:
+                return "circle";
+            case MutationJournal.TYPE_SQUARE:
+                return "square";
+            default:
+                return "group";
+        }
+    }
+
+    /**
+     * Binary search over the name index.
+     *
+     * @param name name to look for
+     * @return the first position in name order whose name is not less than {@code name}
+     *         ({@link #size()} if there is none)
+     */
+    public int firstAtOrAfter(final String name) {
+        int lo = 0;
+        int hi = topLevel;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (nameOf(ordinalAt(mid)).compareTo(name) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @param position position in name order
+     * @return the Z-order position of the shape at that position
+     */
+    public int ordinalAt(final int position) {
+        return nameIndex.piece(position).getInt(nameIndex.offset(position));
+    }
+
+    /**
+     * Returns the Z sequence numbers of the top-level shapes; a version 1 file
+     * numbers them by record, as {@link SceneFile#load} does.
+     *
+     * @return ascending Z sequence numbers, in Z-order
+     */
+    long[] zNumbers() {
+        final long[] z = new long[topLevel];
+        for (int i = 0; i < topLevel; i++) {
+            z[i] = zTable == null ? recordOf(i) : zTable.piece(i).getLong(zTable.offset(i));
+        }
+        return z;
+    }
+
+    /**
+     * @return the Z sequence number the next new shape would get
+     */
+    long nextZ() {
+        return nextZ;
+    }
+
+    /**
+     * Reads the content hash of a top-level shape from the hash table; files
+     * without one have the shape materialized and hashed.
+     *
+     * @param ordinal Z-order position of a top-level shape
+     * @return its {@link SceneFile#contentHash}
+     */
+    long contentHash(final int ordinal) {
+        if (hashes == null) {
+            return SceneFile.contentHash(get(ordinal));
+        }
+        recordOf(ordinal);
+        return hashes.piece(ordinal).getLong(hashes.offset(ordinal));
+    }
+
+    /**
+     * Copies the mapped file, byte for byte, to {@code out}.
+     *
+     * @param out destination
+     * @throws IOException if writing fails
+     */
+    void writeTo(final WritableByteChannel out) throws IOException {
+        write(out, header);
+        records.writeTo(out);
+        topTable.writeTo(out);
+        nameIndex.writeTo(out);
+        write(out, heap);
+        if (zTable != null) {
+            zTable.writeTo(out);
+        }
+        if (hashes != null) {
+            hashes.writeTo(out);
+        }
+    }
+
+    private long recordOf(final int ordinal) {
+        if (ordinal < 0 || ordinal >= topLevel) {
+            throw new IndexOutOfBoundsException("No top-level shape " + ordinal);
+        }
+        return topTable.piece(ordinal).getInt(topTable.offset(ordinal));
+    }
+
+    /**
+     * @return number of records after {@code r} that belong to it (0 for a non-group)
+     */
+    private int subtree(final long r) {
+        final ByteBuffer b = records.piece(r);
+        final int at = records.offset(r);
+        return b.get(at + SceneFile.R_TYPE) == MutationJournal.TYPE_GROUP ? b.getInt(at + SceneFile.R_SUBTREE) : 0;
+    }
+
+    private boolean covers(final long r, final double px, final double py) {
+        final ByteBuffer b = records.piece(r);
+        final int at = records.offset(r);
+        final int v = at + SceneFile.R_VALUES;
+        switch (b.get(at + SceneFile.R_TYPE)) {
+            case MutationJournal.TYPE_RECTANGLE:
+                return Rectangle.covers(b.getDouble(v), b.getDouble(v + 8), b.getDouble(v + 16), b.getDouble(v + 24),
+                        px, py);
+            case MutationJournal.TYPE_LINE:
+                return Line.covers(b.getDouble(v), b.getDouble(v + 8), b.getDouble(v + 16), b.getDouble(v + 24),
+                        px, py);
+            case MutationJournal.TYPE_CIRCLE:
+                return Circle.covers(b.getDouble(v), b.getDouble(v + 8), b.getDouble(v + 16), px, py);
+            case MutationJournal.TYPE_SQUARE:
+                return Square.covers(b.getDouble(v), b.getDouble(v + 8), b.getDouble(v + 16), px, py);
+            default:
+                // A group covers a point through its member records, which follow it.
+                return false;
+        }
+    }
+
+    /**
+     * Builds the shape stored at record {@code r}, with its whole subtree.
+     */
+    private Shape materialize(final long r) throws IOException {
+        final ByteBuffer b = records.piece(r);
+        final int at = records.offset(r);
+        final String name = name(b.getLong(at + SceneFile.R_NAME_OFFSET), b.getInt(at + SceneFile.R_NAME_LENGTH));
+        final byte type = b.get(at + SceneFile.R_TYPE);
+        try {
+            if (type != MutationJournal.TYPE_GROUP) {
+                return SceneFile.leaf(type, name, b, at + SceneFile.R_VALUES);
+            }
+            final int count = b.getInt(at + SceneFile.R_MEMBERS);
+            final List<Shape> members = new ArrayList<>(count);
+            long next = r + 1;
+            for (int i = 0; i < count; i++) {
+                members.add(materialize(next));
+                next += 1 + subtree(next);
+            }
+            return new Group(name, members);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw SceneFile.corrupt("bad record " + r);
+        }
+    }
+
+    private String name(final long offset, final int length) {
+        if (offset < 0 || length <= 0 || offset + length > heap.capacity()) {
+            throw new UncheckedIOException(SceneFile.corrupt("name out of range"));
+        }
+        final byte[] bytes = new byte[length];
+        heap.get((int) offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void write(final WritableByteChannel out, final ByteBuffer src) throws IOException {
+        final ByteBuffer b = src.duplicate().clear();
+        while (b.hasRemaining()) {
+            out.write(b);
+        }
+    }
+
+    /**
+     * A table of fixed-size elements, mapped in pieces of whole elements
+     * (a single mapping cannot exceed 2 GiB).
+     */
+    private static final class Section {
+        private final MappedByteBuffer[] pieces;
+        private final long perPiece;
+        private final int unit;
+
+        Section(final FileChannel ch, final long offset, final long count, final int unit) throws IOException {
+            this.unit = unit;
+            this.perPiece = MAX_PIECE / unit;
+            this.pieces = new MappedByteBuffer[(int) ((count + perPiece - 1) / perPiece)];
+            for (int i = 0; i < pieces.length; i++) {
+                final long first = i * perPiece;
+                pieces[i] = ch.map(FileChannel.MapMode.READ_ONLY, offset + first * unit,
+                        Math.min(perPiece, count - first) * unit);
+            }
+        }
+
+        ByteBuffer piece(final long element) {
+            return pieces[(int) (element / perPiece)];
+        }
+
+        int offset(final long element) {
+            return (int) (element % perPiece) * unit;
+        }
+
+        void writeTo(final WritableByteChannel out) throws IOException {
+            for (MappedByteBuffer p : pieces) {
+                write(out, p);
+            }
+        }
+    }
+}
@@ -0,0 +1,858 @@
+package hk.edu.polyu.comp.comp2021.clevis.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+/**
+ * Binary write-ahead journal of {@link ShapeManager} mutations, used to rebuild
+ * the scene after a crash without re-parsing any commands.
+ * <p>
+ * The file starts with the magic bytes {@code CLVW}, a version byte and the
+ * journal's generation (a long; see {@link Checkpointer}), followed by records.
+ * Version 1 files have no generation and count as generation 0. A record is a
+ * 4-byte payload length, the CRC-32C of the payload and the payload: one or
+ * more operations that belong together. A single
+ * mutation is a one-operation record; a transaction (a committed batch, or a
+ * selector command touching many shapes) is one record, so recovery applies all
+ * of it or none of it.
+ * <p>
+ * An operation is an opcode byte followed by its arguments: add (an encoded
+ * shape), delete (name), move (name, dx, dy), group (name, member count, member
+ * names), ungroup (name), load (a {@link SceneFile} that replaced the whole
+ * scene), open (a scene file mapped read-only) or import (a CSV or SVG file
+ * whose shapes were added; see {@link SceneImport}). A file is journaled as the
+ * name of a copy taken when the record is made and kept next to the journal
+ * ({@code <journal>.<generation>.<n>.scene}), so replay does not depend on what
+ * the original file holds by then; {@link Checkpointer} deletes the copies with
+ * the journals it covers. Journals written before copies were kept hold the
+ * original file's absolute path instead. A skip
+ * operation fills the rest of its record with padding and changes nothing. Undo and redo
+ * are journaled as the primitives they apply: insert (a Z sequence number and an encoded
+ * shape, put back at that place in the Z-order), remove (name of a top-level shape,
+ * without its members' namesakes) and move. Names are a varint length
+ * and UTF-8 bytes; numbers are the raw IEEE 754 bits, so replay reproduces every coordinate exactly.
+ * <p>
+ * Each record is handed to the operating system as soon as it is complete, so it
+ * survives a crash of the process; {@link #sync()} also forces it to the disk.
+ * <p>
+ * Moves outside a transaction may be journaled from several threads at once:
+ * such a record is encoded by the calling thread alone and written at a file
+ * offset reserved for it, so the only shared step is one atomic addition.
+ * Records of different shapes may land in either order, which replay does not
+ * mind; moves of one shape are ordered by their caller. If a write fails, the
+ * bytes reserved for it are overwritten with a skip record, so the records
+ * written after it by other threads still replay; if even that fails, the
+ * journal refuses every later record instead of losing them silently.
+ */
+public final class MutationJournal {
+
+    /** Magic bytes at the start of every mutation journal. */
+    static final byte[] MAGIC = LogChannel.ascii("CLVW");
+    /** Current journal format version. */
+    static final int VERSION = 2;
+    /** Largest accepted record payload in bytes. */
+    static final int MAX_RECORD = 64 << 20;
+
+    private static final int HEADER_SIZE = MAGIC.length + 1 + Long.BYTES;
+    private static final int V1_HEADER_SIZE = MAGIC.length + 1;
+    private static final int RECORD_HEADER = 8;
+    private static final int READ_BUFFER = 1 << 20;
+
+    static final byte OP_ADD = 1;
+    static final byte OP_DELETE = 2;
+    static final byte OP_MOVE = 3;
+    static final byte OP_GROUP = 4;
+    static final byte OP_UNGROUP = 5;
+    static final byte OP_LOAD = 6;
+    static final byte OP_OPEN = 7;
+    static final byte OP_IMPORT = 8;
+    static final byte OP_INSERT = 9;
+    static final byte OP_REMOVE = 10;
+    static final byte OP_SKIP = 11;
+
+    /** Suffix of the file copies kept next to the journal. */
+    private static final String COPY_SUFFIX = ".scene";
+
+    static final byte TYPE_RECTANGLE = 1;
+    static final byte TYPE_LINE = 2;
+    static final byte TYPE_CIRCLE = 3;
+    static final byte TYPE_SQUARE = 4;
+    static final byte TYPE_GROUP = 5;
+
+    private final File file;
+    private final FileChannel channel;
+    private final long generation;
+    private final CRC32C crc = new CRC32C();
+    /** Record being built; the first {@link #RECORD_HEADER} bytes are filled in when it is written. */
+    private ByteBuffer pending = ByteBuffer.allocate(4096);
+    /** Open transaction nesting depth. */
+    private int depth;
+    private final AtomicLong records = new AtomicLong();
+    /** File offset of the next record; each record reserves its bytes from it before it is written. */
+    private final AtomicLong end = new AtomicLong();
+    /** Set when a failed write could not be covered by a skip record; no more records are written. */
+    private volatile IOException broken;
+
+    /**
+     * Opens a journal for appending, creating it (as generation 0) if needed.
+     * Run {@link #replay} first on an existing journal: it also cuts off a torn
+     * final record.
+     *
+     * @param file journal file
+     * @throws IOException if the file cannot be opened or is not a mutation journal
+     */
+    public MutationJournal(final File file) throws IOException {
+        this(file, 0);
+    }
+
+    /**
+     * Opens a journal for appending, creating it with the given generation if
+     * needed (an existing journal keeps its own).
+     *
+     * @param file       journal file
+     * @param generation generation of a new journal
+     * @throws IOException if the file cannot be opened or is not a mutation journal
+     */
+    public MutationJournal(final File file, final long generation) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (channel.size() == 0) {
+                final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.put(MAGIC).put((byte) VERSION).putLong(generation).flip();
+                writeFully(header);
+                this.generation = generation;
+            } else {
+                this.generation = checkHeader(channel).generation;
+            }
+            end.set(channel.size());
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        pending.position(RECORD_HEADER);
+    }
+
+    /**
+     * Rebuilds a scene by applying every intact record of a journal, in order.
+     * Replay stops at the first torn or corrupt record (e.g. one cut short by a
+     * crash) and truncates the file there, so appending can resume cleanly; the
+     * result tells how many bytes were cut off, for the caller to report.
+     * <p>
+     * {@code manager} should have no journal attached, or the replayed mutations
+     * would be journaled again.
+     *
+     * @param file    journal file (a missing or empty file replays nothing)
+     * @param manager scene to apply the mutations to
+     * @return number of records applied and of bytes discarded
+     * @throws IOException if the file cannot be read, is not a mutation journal,
+     *                     or holds a record that does not apply to the scene
+     */
+    public static Replay replay(final File file, final ShapeManager manager) throws IOException {
+        if (!file.exists() || file.length() == 0) {
+            return new Replay(0, 0);
+        }
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final Header header = checkHeader(ch);
+            ch.position(header.size);
+
+            final CRC32C check = new CRC32C();
+            final List<String> names = new ArrayList<>();
+            final File dir = file.getAbsoluteFile().getParentFile();
+            ByteBuffer buf = ByteBuffer.allocate(READ_BUFFER).flip();
+            boolean eof = false;
+            long good = header.size;
+            long applied = 0;
+            while (true) {
+                int need = RECORD_HEADER;
+                int length = 0;
+                if (buf.remaining() >= RECORD_HEADER) {
+                    length = buf.getInt(buf.position());
+                    if (length <= 0 || length > MAX_RECORD) {
+                        break;
+                    }
+                    need += length;
+                }
+                if (buf.remaining() < need) {
+                    if (eof) {
+                        break;
+                    }
+                    if (need > buf.capacity()) {
+                        buf = ByteBuffer.allocate(Math.max(need, buf.capacity() * 2)).put(buf);
+                    } else {
+                        buf.compact();
+                    }
+                    eof = ch.read(buf) < 0;
+                    buf.flip();
+                    continue;
+                }
+
+                final int start = buf.position() + RECORD_HEADER;
+                check.reset();
+                check.update(buf.array(), start, length);
+                if ((int) check.getValue() != buf.getInt(buf.position() + 4)) {
+                    break;
+                }
+                final ByteBuffer payload = buf.slice(start, length);
+                try {
+                    while (payload.hasRemaining()) {
+                        apply(payload, manager, names, dir);
+                    }
+                } catch (ClevisException | IllegalArgumentException | BufferUnderflowException e) {
+                    throw new IOException("Journal record at offset " + good + " does not apply: " + e.getMessage(), e);
+                }
+                buf.position(start + length);
+                good += need;
+                applied++;
+            }
+
+            final long discarded = ch.size() - good;
+            if (discarded > 0) {
+                ch.truncate(good);
+            }
+            return new Replay(applied, discarded);
+        }
+    }
+
+    /**
+     * Reads the generation of a journal file.
+     *
+     * @param file journal file
+     * @return its generation
+     * @throws IOException if the file cannot be read or is not a mutation journal
+     */
+    public static long generationOf(final File file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return checkHeader(ch).generation;
+        }
+    }
+
+    /**
+     * @return the generation this journal was created with
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return the journal file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return true while a transaction is open, so the scene may hold mutations
+     *         that are not journaled yet
+     */
+    synchronized boolean inTransaction() {
+        return depth > 0;
+    }
+
+    /**
+     * @return number of records written since this journal was opened
+     */
+    public long getRecordCount() {
+        return records.get();
+    }
+
+    /**
+     * Forces every written record to stable storage.
+     *
+     * @throws IOException if the force fails
+     */
+    public void sync() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * Forces and closes the journal. Any open transaction is discarded.
+     */
+    public synchronized void close() {
+        if (!channel.isOpen()) {
+            return;
+        }
+        try {
+            try {
+                channel.force(false);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing mutation journal: " + e.getMessage());
+        }
+    }
+
+    // --- Recording, called by ShapeManager before it applies each mutation ---
+
+    /**
+     * Opens a transaction: operations are collected until the matching
+     * {@link #commit()} writes them as one record. Transactions nest.
+     */
+    synchronized void begin() {
+        depth++;
+    }
+
+    /**
+     * Closes a transaction, writing its operations when it is the outermost one.
+     *
+     * @throws UncheckedIOException if the record cannot be written
+     */
+    synchronized void commit() {
+        if (depth > 0 && --depth == 0) {
+            writePending();
+        }
+    }
+
+    /**
+     * Discards every open transaction and its operations.
+     */
+    synchronized void abort() {
+        depth = 0;
+        pending.clear().position(RECORD_HEADER);
+    }
+
+    /**
+     * Records that {@code shape} (with all its members, if a group) is added.
+     *
+     * @param shape new top-level shape
+     * @throws UncheckedIOException if the record cannot be written
+     */
+    synchronized void added(final Shape shape) {
+        putByte(OP_ADD);
+        putShape(shape);
+        endOperation();
+    }
+
+    /**
+     * Records that a top-level shape is deleted.
+     *
+     * @param name shape name
+     * @throws UncheckedIOException if the record cannot be written
+     */
+    synchronized void deleted(final String name) {
+        putByte(OP_DELETE);
+        putName(name);
+        endOperation();
+    }
+
+    /**
+     * Records that a top-level shape is moved.
+     *
+     * @param name shape name
+     * @param dx   horizontal offset
+     * @param dy   vertical offset
+     * @throws UncheckedIOException if the record cannot be written
+     */
+    void moved(final String name, final double dx, final double dy) {
+        synchronized (this) {
+            if (depth > 0) {
+                putByte(OP_MOVE);
+                putName(name);
+                putDouble(dx);
+                putDouble(dy);
+                return;
+            }
+        }
+        // Concurrent append path: nothing shared is touched until the offset is reserved.
+        final byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + 1 + 5 + bytes.length + 2 * Double.BYTES);
+        record.position(RECORD_HEADER);
+        record.put(OP_MOVE);
+        putVarInt(record, bytes.length);
+        record.put(bytes).putDouble(dx).putDouble(dy);
+        append(record, new CRC32C());
+    }
+
+    /**
+     * Records that top-level shapes are grouped.
+     *
+     * @param name    group name
+     * @param members member names in order
+     * @throws UncheckedIOException if the record cannot be written
+     */
+    synchronized void grouped(final String name, final List<String> members) {
+        putByte(OP_GROUP);
+        putName(name);
+        putVarInt(members.size());
+        for (String m : members) {
+            putName(m);
+        }
+        endOperation();
+    }
+
+    /**
+     * Records that a group is split back into its members.
+     *
+     * @param name group name
+     * @throws UncheckedIOException if the record cannot be written
+     */
+    synchronized void ungrouped(final String name) {
+        putByte(OP_UNGROUP);
+        putName(name);
+        endOperation();
+    }
+
+    /**
+     * Records that the shapes of a CSV or SVG file are added to the scene.
+     *
+     * @param source imported file; a copy is kept for replay
+     * @throws UncheckedIOException if the file cannot be copied or the record cannot be written
+     */
+    synchronized void imported(final File source) {
+        putFileOperation(OP_IMPORT, source);
+    }
+
+    /**
+     * Records that a shape is put back into the Z-order at a given place (undo and redo).
+     *
+     * @param shape top-level shape
+     * @param z     its Z sequence number
+     * @throws UncheckedIOException if the record cannot be written
+     */
+    synchronized void inserted(final Shape shape, final long z) {
+        putByte(OP_INSERT);
+        ensure(Long.BYTES);
+        pending.putLong(z);
+        putShape(shape);
+        endOperation();
+    }
+
+    /**
+     * Records that a top-level shape is taken out of the scene (undo and redo).
+     *
+     * @param name shape name
+     * @throws UncheckedIOException if the record cannot be written
+     */
+    synchronized void removed(final String name) {
+        putByte(OP_REMOVE);
+        putName(name);
+        endOperation();
+    }
+
+    /**
+     * Records that the whole scene is replaced by the contents of a scene file.
+     *
+     * @param source scene file; a copy is kept for replay
+     * @throws UncheckedIOException if the file cannot be copied or the record cannot be written
+     */
+    synchronized void loaded(final File source) {
+        putFileOperation(OP_LOAD, source);
+    }
+
+    /**
+     * Records that the scene is replaced by a read-only mapped scene file.
+     *
+     * @param source scene file; a copy is kept for replay
+     * @throws UncheckedIOException if the file cannot be copied or the record cannot be written
+     */
+    synchronized void opened(final File source) {
+        putFileOperation(OP_OPEN, source);
+    }
+
+    /**
+     * Copies {@code source} next to the journal and records {@code op} with the copy's name.
+     */
+    private void putFileOperation(final byte op, final File source) {
+        final Path copy;
+        try {
+            copy = keepCopy(source);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot copy " + source.getName() + " for mutation journal "
+                    + file.getName(), e);
+        }
+        putByte(op);
+        putName(copy.getFileName().toString());
+        try {
+            endOperation();
+        } catch (UncheckedIOException e) {
+            copy.toFile().delete();
+            throw e;
+        }
+    }
+
+    private Path keepCopy(final File source) throws IOException {
+        final Path dir = file.getAbsoluteFile().getParentFile().toPath();
+        final Path copy = Files.createTempFile(dir, file.getName() + "." + generation + ".", COPY_SUFFIX);
+        try {
+            Files.copy(source.toPath(), copy, StandardCopyOption.REPLACE_EXISTING);
+            try (FileChannel ch = FileChannel.open(copy, StandardOpenOption.WRITE)) {
+                ch.force(true);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(copy);
+            throw e;
+        }
+        return copy;
+    }
+
+    /**
+     * Deletes the file copies kept for journals up to a generation, once a
+     * checkpoint covers them.
+     *
+     * @param journalFile       journal file
+     * @param throughGeneration last generation whose copies are deleted
+     * @return the copies that could not be deleted
+     */
+    static List<File> deleteCopies(final File journalFile, final long throughGeneration) {
+        final List<File> left = new ArrayList<>();
+        final String prefix = journalFile.getName() + ".";
+        final File[] all = journalFile.getAbsoluteFile().getParentFile().listFiles();
+        if (all == null) {
+            return left;
+        }
+        for (File f : all) {
+            final String name = f.getName();
+            if (!name.startsWith(prefix) || !name.endsWith(COPY_SUFFIX)) {
+                continue;
+            }
+            final int dot = name.indexOf('.', prefix.length());
+            final String generation = dot < 0 ? "" : name.substring(prefix.length(), dot);
+            if (!generation.isEmpty() && generation.chars().allMatch(Character::isDigit)
+                    && Long.parseLong(generation) <= throughGeneration && !f.delete()) {
+                left.add(f);
+            }
+        }
+        return left;
+    }
+
+    private void endOperation() {
+        if (depth == 0) {
+            writePending();
+        }
+    }
+
+    private void writePending() {
+        if (pending.position() == RECORD_HEADER) {
+            return;
+        }
+        try {
+            crc.reset();
+            append(pending, crc);
+        } finally {
+            pending.clear().position(RECORD_HEADER);
+        }
+    }
+
+    /**
+     * Seals a record (the payload follows {@link #RECORD_HEADER} bytes, up to
+     * the buffer's position) and writes it at an offset reserved for it.
+     * May run on several threads at once.
+     *
+     * @throws UncheckedIOException if the record cannot be written
+     */
+    private void append(final ByteBuffer record, final CRC32C checksum) {
+        if (broken != null) {
+            throw new UncheckedIOException("Mutation journal " + file.getName() + " is unusable after a failed write",
+                    broken);
+        }
+        final int length = record.position() - RECORD_HEADER;
+        long start = -1;
+        try {
+            if (length > MAX_RECORD) {
+                throw new IOException("Journal record too large: " + length + " bytes.");
+            }
+            checksum.update(record.array(), RECORD_HEADER, length);
+            record.putInt(0, length).putInt(4, (int) checksum.getValue()).flip();
+            start = end.getAndAdd(record.remaining());
+            while (record.hasRemaining()) {
+                channel.write(record, start + record.position());
+            }
+            records.incrementAndGet();
+        } catch (IOException e) {
+            if (start >= 0) {
+                skip(start, record.limit());
+            }
+            throw new UncheckedIOException("Cannot write mutation journal " + file.getName(), e);
+        }
+    }
+
+    /**
+     * Overwrites the bytes reserved for a record that could not be written with
+     * a skip record of the same size, so replay does not stop there and drop the
+     * records written after it. If that fails too, the journal is marked broken.
+     */
+    private void skip(final long start, final int size) {
+        final ByteBuffer filler = ByteBuffer.allocate(size);
+        filler.position(RECORD_HEADER);
+        filler.put(OP_SKIP);
+        final CRC32C checksum = new CRC32C();
+        checksum.update(filler.array(), RECORD_HEADER, size - RECORD_HEADER);
+        filler.putInt(0, size - RECORD_HEADER).putInt(4, (int) checksum.getValue()).clear();
+        try {
+            while (filler.hasRemaining()) {
+                channel.write(filler, start + filler.position());
+            }
+        } catch (IOException e) {
+            broken = e;
+        }
+    }
+
+    private void writeFully(final ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            channel.write(src);
+        }
+    }
+
+    // --- Encoding ---
+
+    private void putShape(final Shape shape) {
+        if (shape instanceof Rectangle r) {
+            putByte(TYPE_RECTANGLE);
+            putName(r.getName());
+            putDoubles(r.getX(), r.getY(), r.getWidth(), r.getHeight());
+        } else if (shape instanceof Line l) {
+            putByte(TYPE_LINE);
+            putName(l.getName());
+            putDoubles(l.getX1(), l.getY1(), l.getX2(), l.getY2());
+        } else if (shape instanceof Circle c) {
+            putByte(TYPE_CIRCLE);
+            putName(c.getName());
+            putDoubles(c.getX(), c.getY(), c.getRadius());
+        } else if (shape instanceof Square s) {
+            putByte(TYPE_SQUARE);
+            putName(s.getName());
+            putDoubles(s.getX(), s.getY(), s.getLength());
+        } else if (shape instanceof Group g) {
+            putByte(TYPE_GROUP);
+            putName(g.getName());
+            putVarInt(g.getMembers().size());
+            for (Shape m : g.getMembers()) {
+                putShape(m);
+            }
+        } else {
+            throw new IllegalArgumentException("Cannot journal shape type: " + shape.getClass().getName());
+        }
+    }
+
+    private void putDoubles(final double... values) {
+        for (double v : values) {
+            putDouble(v);
+        }
+    }
+
+    private void putDouble(final double v) {
+        ensure(Double.BYTES);
+        pending.putDouble(v);
+    }
+
+    private void putByte(final byte b) {
+        ensure(1);
+        pending.put(b);
+    }
+
+    private void putVarInt(final int value) {
+        ensure(5);
+        putVarInt(pending, value);
+    }
+
+    private static void putVarInt(final ByteBuffer out, final int value) {
+        int v = value;
+        while ((v & ~0x7F) != 0) {
+            out.put((byte) (v & 0x7F | 0x80));
+            v >>>= 7;
+        }
+        out.put((byte) v);
+    }
+
+    private void putName(final String name) {
+        final byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        putVarInt(bytes.length);
+        ensure(bytes.length);
+        pending.put(bytes);
+    }
+
+    private void ensure(final int bytes) {
+        if (pending.remaining() < bytes) {
+            final ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2,
+                    pending.position() + bytes));
+            pending.flip();
+            pending = bigger.put(pending);
+        }
+    }
+
+    // --- Decoding ---
+
+    private static void apply(final ByteBuffer in, final ShapeManager manager, final List<String> names,
+                              final File dir) throws ClevisException, IOException {
+        final byte op = in.get();
+        switch (op) {
+            case OP_ADD:
+                manager.addShape(readShape(in));
+                break;
+            case OP_DELETE:
+                manager.deleteShape(readName(in));
+                break;
+            case OP_MOVE:
+                manager.moveShape(readName(in), in.getDouble(), in.getDouble());
+                break;
+            case OP_GROUP:
+                final String group = readName(in);
+                final int count = readVarInt(in);
+                names.clear();
+                for (int i = 0; i < count; i++) {
+                    names.add(readName(in));
+                }
+                manager.group(group, names);
+                break;
+            case OP_UNGROUP:
+                manager.ungroup(readName(in));
+                break;
+            case OP_LOAD:
+                SceneFile.load(journaledFile(dir, readName(in)), manager);
+                break;
+            case OP_OPEN:
+                manager.open(MappedScene.open(journaledFile(dir, readName(in))));
+                break;
+            case OP_IMPORT:
+                SceneImport.read(journaledFile(dir, readName(in)), manager);
+                break;
+            case OP_INSERT:
+                final long z = in.getLong();
+                manager.insertShape(readShape(in), z);
+                break;
+            case OP_REMOVE:
+                manager.removeShape(readName(in));
+                break;
+            case OP_SKIP:
+                in.position(in.limit());
+                break;
+            default:
+                throw new IOException("Unknown journal operation: " + op);
+        }
+    }
+
+    /**
+     * Resolves a journaled file: the name of a copy next to the journal, or the
+     * absolute path of the original file in older journals.
+     */
+    private static File journaledFile(final File dir, final String name) {
+        final File f = new File(name);
+        return f.isAbsolute() ? f : new File(dir, name);
+    }
+
+    private static Shape readShape(final ByteBuffer in) throws IOException {
+        final byte type = in.get();
+        final String name = readName(in);
+        switch (type) {
+            case TYPE_RECTANGLE:
+                return new Rectangle(name, in.getDouble(), in.getDouble(), in.getDouble(), in.getDouble());
+            case TYPE_LINE:
+                return new Line(name, in.getDouble(), in.getDouble(), in.getDouble(), in.getDouble());
+            case TYPE_CIRCLE:
+                return new Circle(name, in.getDouble(), in.getDouble(), in.getDouble());
+            case TYPE_SQUARE:
+                return new Square(name, in.getDouble(), in.getDouble(), in.getDouble());
+            case TYPE_GROUP:
+                final int count = readVarInt(in);
+                final List<Shape> members = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    members.add(readShape(in));
+                }
+                return new Group(name, members);
+            default:
+                throw new IOException("Unknown journal shape type: " + type);
+        }
+    }
+
+    private static String readName(final ByteBuffer in) throws IOException {
+        final int length = readVarInt(in);
+        if (length > in.remaining()) {
+            throw new IOException("Corrupt journal name.");
+        }
+        final String name = new String(in.array(), in.arrayOffset() + in.position(), length,
+                StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return name;
+    }
+
+    private static int readVarInt(final ByteBuffer in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            final byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    break;
+                }
+                return value;
+            }
+        }
+        throw new IOException("Corrupt journal varint.");
+    }
+
+    private static Header checkHeader(final FileChannel ch) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining() && ch.read(header, header.position()) > 0) {
+            // keep reading until the header is complete or the file ends
+        }
+        header.flip();
+        for (byte b : MAGIC) {
+            if (!header.hasRemaining() || header.get() != b) {
+                throw new IOException("Not a Clevis mutation journal.");
+            }
+        }
+        final int version = header.hasRemaining() ? header.get() : -1;
+        if (version == 1) {
+            return new Header(V1_HEADER_SIZE, 0);
+        }
+        if (version != VERSION || header.remaining() < Long.BYTES) {
+            throw new IOException("Unsupported mutation journal version.");
+        }
+        return new Header(HEADER_SIZE, header.getLong());
+    }
+
+    /**
+     * Outcome of {@link #replay}.
+     */
+    public static final class Replay {
+        private final long records;
+        private final long discardedBytes;
+
+        Replay(final long records, final long discardedBytes) {
+            this.records = records;
+            this.discardedBytes = discardedBytes;
+        }
+
+        /**
+         * @return number of records applied
+         */
+        public long getRecords() {
+            return records;
+        }
+
+        /**
+         * @return number of bytes of torn or corrupt records cut off the end of the journal
+         */
+        public long getDiscardedBytes() {
+            return discardedBytes;
+        }
+    }
+
+    /**
+     * Size and generation read from a journal header.
+     */
+    private static final class Header {
+        final int size;
+        final long generation;
+
+        Header(final int size, final long generation) {
+            this.size = size;
+            this.generation = generation;
+        }
+    }
+}
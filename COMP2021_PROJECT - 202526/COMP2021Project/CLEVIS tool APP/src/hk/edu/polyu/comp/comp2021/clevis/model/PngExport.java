@@ -0,0 +1,202 @@
+package hk.edu.polyu.comp.comp2021.clevis.model;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Writes a scene as a PNG raster ({@code exportPng file width height [x y w h]}).
+ * <p>
+ * The viewport (or, without one, the bounding box of the whole scene) is
+ * fitted into the image as the SVG view box is by {@link SvgExport}: scaled
+ * uniformly and centred. Shapes are drawn as outlines, black on white, in
+ * Z-order (bottom first).
+ * <p>
+ * The image is cut into {@value #TILE_SIZE}-pixel square tiles, rasterized in
+ * parallel on the common fork-join pool and then stitched together. Each tile
+ * finds the shapes touching it with its own query on the scene's spatial index
+ * ({@link ShapeManager#spatialIndex}), so a tile only draws what it shows. For
+ * a read-only mapped scene, an index is packed over the shapes in the viewport
+ * first. Rendering runs with AWT in headless mode, so no display is needed.
+ */
+public final class PngExport {
+
+    /** Edge of a tile, in pixels. */
+    static final int TILE_SIZE = 256;
+    /** Largest image, in pixels (4 bytes each in memory). */
+    public static final long MAX_PIXELS = 1L << 27;
+
+    static {
+        if (System.getProperty("java.awt.headless") == null) {
+            System.setProperty("java.awt.headless", "true");
+        }
+    }
+
+    private PngExport() {
+    }
+
+    /**
+     * Renders the scene of {@code manager} to {@code file}.
+     *
+     * @param file     destination file (replaced)
+     * @param manager  scene to export
+     * @param width    image width in pixels
+     * @param height   image height in pixels
+     * @param viewport area to export, or null for the whole scene
+     * @return number of tiles rendered
+     * @throws IOException if the file cannot be written
+     */
+    public static int write(final File file, final ShapeManager manager, final int width, final int height,
+                            final BoundingBox viewport) throws IOException {
+        if (width <= 0 || height <= 0 || (long) width * height > MAX_PIXELS) {
+            throw new IllegalArgumentException("Image size out of range: " + width + "x" + height);
+        }
+        BoundingBox view = viewport != null ? viewport : SvgExport.boundsOf(manager);
+        if (view == null) {
+            view = new BoundingBox(0, 0, width, height);
+        }
+        final SpatialIndex index = manager.getMappedScene() == null ? manager.spatialIndex()
+                : SpatialIndex.build(manager.shapesIn(view).toArray(new Shape[0]));
+
+        final Raster raster = new Raster(index, view, width, height);
+        final BufferedImage[] tiles = new BufferedImage[raster.columns * raster.rows];
+        ForkJoinPool.commonPool().invoke(new TileTask(raster, tiles, 0, tiles.length));
+
+        final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int t = 0; t < tiles.length; t++) {
+            image.getRaster().setRect((t % raster.columns) * TILE_SIZE, (t / raster.columns) * TILE_SIZE,
+                    tiles[t].getRaster());
+        }
+        if (!ImageIO.write(image, "png", file)) {
+            throw new IOException("No PNG image writer available.");
+        }
+        return tiles.length;
+    }
+
+    /**
+     * Maps scene coordinates to pixels and draws single tiles.
+     */
+    private static final class Raster {
+        final SpatialIndex index;
+        final int width;
+        final int height;
+        final int columns;
+        final int rows;
+        /** Pixels per scene unit. */
+        final double scale;
+        /** Scene coordinates of the image's top-left pixel corner. */
+        final double originX;
+        final double originY;
+
+        Raster(final SpatialIndex index, final BoundingBox view, final int width, final int height) {
+            this.index = index;
+            this.width = width;
+            this.height = height;
+            this.columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+            this.rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+            final double sx = view.getWidth() > 0 ? width / view.getWidth() : Double.POSITIVE_INFINITY;
+            final double sy = view.getHeight() > 0 ? height / view.getHeight() : Double.POSITIVE_INFINITY;
+            final double s = Math.min(sx, sy);
+            this.scale = Double.isInfinite(s) ? 1 : s;
+            this.originX = view.getX() - (width / scale - view.getWidth()) / 2;
+            this.originY = view.getY() - (height / scale - view.getHeight()) / 2;
+        }
+
+        BufferedImage tile(final int t) {
+            final int left = (t % columns) * TILE_SIZE;
+            final int top = (t / columns) * TILE_SIZE;
+            final int w = Math.min(TILE_SIZE, width - left);
+            final int h = Math.min(TILE_SIZE, height - top);
+            final BufferedImage tile = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+            final Graphics2D g = tile.createGraphics();
+            try {
+                g.setColor(Color.WHITE);
+                g.fillRect(0, 0, w, h);
+                g.setColor(Color.BLACK);
+                g.setStroke(new BasicStroke(1f));
+                g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_NORMALIZE);
+                // The tile's area in the scene, widened by a pixel for strokes that spill over the edge.
+                final double margin = 1 / scale;
+                final BoundingBox area = new BoundingBox(originX + left / scale - margin,
+                        originY + top / scale - margin, w / scale + 2 * margin, h / scale + 2 * margin);
+                for (int position : index.query(area)) {
+                    draw(g, index.shape(position), left, top);
+                }
+            } finally {
+                g.dispose();
+            }
+            return tile;
+        }
+
+        private void draw(final Graphics2D g, final Shape shape, final int left, final int top) {
+            if (shape instanceof Group group) {
+                for (Shape m : group.getMembers()) {
+                    draw(g, m, left, top);
+                }
+            } else if (shape instanceof Rectangle r) {
+                g.draw(new Rectangle2D.Double(x(r.getX(), left), y(r.getY(), top),
+                        r.getWidth() * scale, r.getHeight() * scale));
+            } else if (shape instanceof Square s) {
+                g.draw(new Rectangle2D.Double(x(s.getX(), left), y(s.getY(), top),
+                        s.getLength() * scale, s.getLength() * scale));
+            } else if (shape instanceof Circle c) {
+                g.draw(new Ellipse2D.Double(x(c.getX() - c.getRadius(), left), y(c.getY() - c.getRadius(), top),
+                        2 * c.getRadius() * scale, 2 * c.getRadius() * scale));
+            } else if (shape instanceof Line l) {
+                g.draw(new Line2D.Double(x(l.getX1(), left), y(l.getY1(), top),
+                        x(l.getX2(), left), y(l.getY2(), top)));
+            } else {
+                throw new IllegalArgumentException("Cannot export shape type: " + shape.getClass().getName());
+            }
+        }
+
+        private double x(final double sceneX, final int left) {
+            return (sceneX - originX) * scale - left;
+        }
+
+        private double y(final double sceneY, final int top) {
+            return (sceneY - originY) * scale - top;
+        }
+    }
+
+    /**
+     * Renders a range of tiles, split in halves down to single tiles.
+     */
+    private static final class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Raster raster;
+        private final transient BufferedImage[] tiles;
+        private final int from;
+        private final int to;
+
+        TileTask(final Raster raster, final BufferedImage[] tiles, final int from, final int to) {
+            this.raster = raster;
+            this.tiles = tiles;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                tiles[from] = raster.tile(from);
+                return;
+            }
+            final int middle = (from + to) >>> 1;
+            invokeAll(new TileTask(raster, tiles, from, middle), new TileTask(raster, tiles, middle, to));
+        }
+    }
+}
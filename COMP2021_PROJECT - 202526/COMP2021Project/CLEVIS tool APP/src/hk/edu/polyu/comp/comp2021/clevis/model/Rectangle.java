@@ -1,7 +1,5 @@
 package hk.edu.polyu.comp.comp2021.clevis.model;
 
-import java.util.Locale;
-
 /**
  * Represents a rectangle shape in the Clevis system.
  * <p>
@@ -41,6 +39,42 @@ public final class Rectangle implements Shape {
         this.height = height;
     }
 
+    /**
+     * Returns the x-coordinate of the top-left corner.
+     *
+     * @return x-coordinate of the top-left corner
+     */
+    public double getX() {
+        return x;
+    }
+
+    /**
+     * Returns the y-coordinate of the top-left corner.
+     *
+     * @return y-coordinate of the top-left corner
+     */
+    public double getY() {
+        return y;
+    }
+
+    /**
+     * Returns the width.
+     *
+     * @return width
+     */
+    public double getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height.
+     *
+     * @return height
+     */
+    public double getHeight() {
+        return height;
+    }
+
     @Override
     public double getArea() {
         return width * height;
@@ -63,12 +97,27 @@ public final class Rectangle implements Shape {
     }
 
     @Override
-    public String getBoundingBox() {
-        return String.format(Locale.ROOT, "%.2f %.2f %.2f %.2f", x, y, width, height);
+    public BoundingBox getBounds() {
+        return new BoundingBox(x, y, width, height);
     }
 
     @Override
     public boolean coversPoint(final double px, final double py) {
+        return covers(x, y, width, height, px, py);
+    }
+
+    /**
+     * Point test on raw values, shared with shapes read straight from a scene file.
+     *
+     * @return true if the rectangle (x, y, width, height) covers (px, py)
+     */
+    static boolean covers(final double x, final double y, final double width, final double height,
+                          final double px, final double py) {
         return px >= x && px <= x + width && py >= y && py <= y + height;
     }
+
+    @Override
+    public Shape copy() {
+        return new Rectangle(name, x, y, width, height);
+    }
 }
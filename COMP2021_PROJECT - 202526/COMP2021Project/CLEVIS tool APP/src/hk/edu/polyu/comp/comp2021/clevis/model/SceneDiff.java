@@ -0,0 +1,407 @@
+package hk.edu.polyu.comp.comp2021.clevis.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Differences between two scene files ({@code diff a b}), matched by shape name.
+ * <p>
+ * Both files (saved with {@code save}, or checkpoints written by the
+ * {@link Checkpointer}) are mapped ({@link MappedScene}), not loaded, and their
+ * name indexes are walked side by side, so the top-level shapes are paired up
+ * in one pass. A pair whose content hashes agree (kept per top-level shape in
+ * the file, see {@link SceneFile#contentHash}) is unchanged with its whole
+ * subtree and is never materialized; in a large drawing with few edits nearly
+ * every shape is skipped that way. Only the shapes that differ, or exist on one
+ * side only, are built and compared member by member.
+ * <p>
+ * A change is reported at the highest level it applies to: a group moved as a
+ * whole is one {@link Kind#MOVED} change, and the members of a removed group
+ * are not listed again. Top-level shapes found in both scenes are
+ * {@link Kind#REORDERED} when their place in the Z-order changed relative to
+ * the others; the fewest such shapes are reported, so that all the rest keep
+ * their order (a longest increasing subsequence).
+ */
+public final class SceneDiff {
+
+    /** Relative tolerance when checking that a shape was translated as a whole. */
+    private static final double EPSILON = 1e-9;
+
+    /**
+     * Kinds of change, in the order they are reported.
+     */
+    public enum Kind {
+        /** The shape exists in the second scene only. */
+        ADDED,
+        /** The shape exists in the first scene only. */
+        REMOVED,
+        /** The shape was translated as a whole. */
+        MOVED,
+        /** The shape has another type or geometry. */
+        CHANGED,
+        /** The shape has another parent group, or went to or from the top level. */
+        REGROUPED,
+        /** The shape (or a group's member list) has another place in the Z-order. */
+        REORDERED
+    }
+
+    /**
+     * One difference.
+     */
+    public static final class Change {
+        private final Kind kind;
+        private final String name;
+        private final String detail;
+
+        Change(final Kind kind, final String name, final String detail) {
+            this.kind = kind;
+            this.name = name;
+            this.detail = detail;
+        }
+
+        /**
+         * @return kind of change
+         */
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * @return name of the shape
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return what changed, e.g. "by (5, 0)" or "g1 -> top level"; empty if nothing to add
+         */
+        public String getDetail() {
+            return detail;
+        }
+    }
+
+    private final Map<Kind, List<Change>> changes = new EnumMap<>(Kind.class);
+    private long unchanged;
+
+    private SceneDiff() {
+        for (Kind k : Kind.values()) {
+            changes.put(k, new ArrayList<>());
+        }
+    }
+
+    /**
+     * Compares two scene files.
+     *
+     * @param first  the older scene
+     * @param second the newer scene
+     * @return the differences from {@code first} to {@code second}
+     * @throws IOException if either file cannot be mapped or is not a valid scene file
+     */
+    public static SceneDiff compare(final File first, final File second) throws IOException {
+        return compare(MappedScene.open(first), MappedScene.open(second));
+    }
+
+    /**
+     * Compares two mapped scenes.
+     *
+     * @param a the older scene
+     * @param b the newer scene
+     * @return the differences from {@code a} to {@code b}
+     */
+    public static SceneDiff compare(final MappedScene a, final MappedScene b) {
+        final SceneDiff diff = new SceneDiff();
+        // Shapes without a counterpart, with every descendant, by name; resolved once both walks are done.
+        final Map<String, Node> onlyA = new LinkedHashMap<>();
+        final Map<String, Node> onlyB = new LinkedHashMap<>();
+        // Z-order position in a of each top-level shape of b, or -1.
+        final int[] inA = new int[b.size()];
+        Arrays.fill(inA, -1);
+
+        int pa = 0;
+        int pb = 0;
+        String nameA = pa < a.size() ? a.nameOf(a.ordinalAt(pa)) : null;
+        String nameB = pb < b.size() ? b.nameOf(b.ordinalAt(pb)) : null;
+        while (nameA != null || nameB != null) {
+            final int c = nameA == null ? 1 : nameB == null ? -1 : nameA.compareTo(nameB);
+            if (c <= 0) {
+                final int oa = a.ordinalAt(pa);
+                if (c == 0) {
+                    final int ob = b.ordinalAt(pb);
+                    inA[ob] = oa;
+                    if (a.contentHash(oa) == b.contentHash(ob)) {
+                        diff.unchanged++;
+                    } else {
+                        diff.compare(a.get(oa), b.get(ob), onlyA, onlyB);
+                    }
+                } else {
+                    collect(a.get(oa), null, onlyA);
+                }
+                nameA = ++pa < a.size() ? a.nameOf(a.ordinalAt(pa)) : null;
+            } else {
+                collect(b.get(b.ordinalAt(pb)), null, onlyB);
+            }
+            if (c >= 0) {
+                nameB = ++pb < b.size() ? b.nameOf(b.ordinalAt(pb)) : null;
+            }
+        }
+        diff.resolve(onlyA, onlyB);
+        diff.reordered(b, inA);
+        return diff;
+    }
+
+    /**
+     * @return every change, grouped by kind in {@link Kind} order
+     */
+    public List<Change> getChanges() {
+        final List<Change> all = new ArrayList<>();
+        for (List<Change> list : changes.values()) {
+            all.addAll(list);
+        }
+        return all;
+    }
+
+    /**
+     * @param kind kind of change
+     * @return the changes of that kind
+     */
+    public List<Change> getChanges(final Kind kind) {
+        return Collections.unmodifiableList(changes.get(kind));
+    }
+
+    /**
+     * @return number of top-level shapes found identical in both scenes
+     */
+    public long getUnchanged() {
+        return unchanged;
+    }
+
+    /**
+     * @return true if the scenes hold the same shapes in the same order
+     */
+    public boolean isEmpty() {
+        for (List<Change> list : changes.values()) {
+            if (!list.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void add(final Kind kind, final String name, final String detail) {
+        changes.get(kind).add(new Change(kind, name, detail));
+    }
+
+    /**
+     * Compares two shapes of the same name whose content differs.
+     */
+    private void compare(final Shape sa, final Shape sb, final Map<String, Node> onlyA,
+                         final Map<String, Node> onlyB) {
+        final double[] d = offset(sa, sb);
+        if (d != null) {
+            add(Kind.MOVED, sa.getName(), "by (" + SvgExport.num(d[0]) + ", " + SvgExport.num(d[1]) + ")");
+            return;
+        }
+        if (!(sa instanceof Group ga) || !(sb instanceof Group gb)) {
+            final String ta = ShapeManager.typeOf(sa);
+            final String tb = ShapeManager.typeOf(sb);
+            add(Kind.CHANGED, sa.getName(), ta.equals(tb) ? "" : ta + " -> " + tb);
+            return;
+        }
+        // Same group with other members or member geometry: pair the members up by name.
+        final Map<String, Shape> membersB = new LinkedHashMap<>();
+        for (Shape m : gb.getMembers()) {
+            membersB.put(m.getName(), m);
+        }
+        final List<String> kept = new ArrayList<>();
+        for (Shape m : ga.getMembers()) {
+            final Shape mb = membersB.remove(m.getName());
+            if (mb == null) {
+                collect(m, ga.getName(), onlyA);
+                continue;
+            }
+            kept.add(m.getName());
+            if (SceneFile.contentHash(m) != SceneFile.contentHash(mb)) {
+                compare(m, mb, onlyA, onlyB);
+            }
+        }
+        for (Shape m : membersB.values()) {
+            collect(m, gb.getName(), onlyB);
+        }
+        final Set<String> keptNames = new HashSet<>(kept);
+        final List<String> keptInB = new ArrayList<>(kept.size());
+        for (Shape m : gb.getMembers()) {
+            if (keptNames.contains(m.getName())) {
+                keptInB.add(m.getName());
+            }
+        }
+        if (!kept.equals(keptInB)) {
+            add(Kind.REORDERED, ga.getName(), "member order");
+        }
+    }
+
+    /**
+     * Reports the shapes found on one side only: a name on both sides has
+     * changed groups; otherwise it was added or removed, unless its parent was too.
+     */
+    private void resolve(final Map<String, Node> onlyA, final Map<String, Node> onlyB) {
+        for (Node n : onlyA.values()) {
+            final String name = n.shape.getName();
+            final Node m = onlyB.get(name);
+            if (m == null) {
+                if (n.parent == null || !onlyA.containsKey(n.parent) || onlyB.containsKey(n.parent)) {
+                    add(Kind.REMOVED, name, n.parent == null ? "" : "from " + n.parent);
+                }
+            } else if (!Objects.equals(n.parent, m.parent)) {
+                add(Kind.REGROUPED, name, place(n.parent) + " -> " + place(m.parent));
+            }
+        }
+        for (Node n : onlyB.values()) {
+            final String name = n.shape.getName();
+            if (!onlyA.containsKey(name)
+                    && (n.parent == null || !onlyB.containsKey(n.parent) || onlyA.containsKey(n.parent))) {
+                add(Kind.ADDED, name, n.parent == null ? "" : "in " + n.parent);
+            }
+        }
+    }
+
+    /**
+     * Reports the top-level shapes in both scenes that are out of order: all
+     * but a longest run whose positions in {@code a} ascend in {@code b}'s Z-order.
+     *
+     * @param inA Z-order position in a of each top-level shape of b, or -1
+     */
+    private void reordered(final MappedScene b, final int[] inA) {
+        final int[] ordinals = new int[inA.length];
+        int n = 0;
+        for (int ob = 0; ob < inA.length; ob++) {
+            if (inA[ob] >= 0) {
+                ordinals[n++] = ob;
+            }
+        }
+        // Patience sorting: tails[k] ends the best increasing run of length k + 1.
+        final int[] tails = new int[n];
+        final int[] previous = new int[n];
+        int length = 0;
+        for (int i = 0; i < n; i++) {
+            final int v = inA[ordinals[i]];
+            int lo = 0;
+            int hi = length;
+            while (lo < hi) {
+                final int mid = (lo + hi) >>> 1;
+                if (inA[ordinals[tails[mid]]] < v) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            previous[i] = lo > 0 ? tails[lo - 1] : -1;
+            tails[lo] = i;
+            if (lo == length) {
+                length++;
+            }
+        }
+        final boolean[] inOrder = new boolean[n];
+        for (int i = length > 0 ? tails[length - 1] : -1; i >= 0; i = previous[i]) {
+            inOrder[i] = true;
+        }
+        for (int i = 0; i < n; i++) {
+            if (!inOrder[i]) {
+                add(Kind.REORDERED, b.nameOf(ordinals[i]), "Z position " + inA[ordinals[i]] + " -> " + ordinals[i]);
+            }
+        }
+    }
+
+    /**
+     * Indexes a shape and its descendants by name.
+     */
+    private static void collect(final Shape shape, final String parent, final Map<String, Node> into) {
+        into.put(shape.getName(), new Node(shape, parent));
+        if (shape instanceof Group g) {
+            for (Shape m : g.getMembers()) {
+                collect(m, g.getName(), into);
+            }
+        }
+    }
+
+    private static String place(final String parent) {
+        return parent == null ? "top level" : parent;
+    }
+
+    /**
+     * Tells whether {@code b} is {@code a} translated as a whole: the same
+     * structure and names, every point shifted by one offset.
+     *
+     * @return the offset (dx, dy), or null if it is not
+     */
+    private static double[] offset(final Shape a, final Shape b) {
+        if (a.getClass() != b.getClass() || !a.getName().equals(b.getName())) {
+            return null;
+        }
+        if (a instanceof Group ga) {
+            final List<Shape> ma = ga.getMembers();
+            final List<Shape> mb = ((Group) b).getMembers();
+            if (ma.size() != mb.size()) {
+                return null;
+            }
+            double[] d = null;
+            for (int i = 0; i < ma.size(); i++) {
+                final double[] di = offset(ma.get(i), mb.get(i));
+                if (di == null || d != null && (!close(d[0], di[0]) || !close(d[1], di[1]))) {
+                    return null;
+                }
+                d = d == null ? di : d;
+            }
+            return d;
+        }
+        final double[] pa = points(a);
+        final double[] pb = points(b);
+        final double dx = pb[0] - pa[0];
+        final double dy = pb[1] - pa[1];
+        return close(pa[2] + dx, pb[2]) && close(pa[3] + dy, pb[3]) ? new double[]{dx, dy} : null;
+    }
+
+    /**
+     * Two points that fix a non-group shape: a corner (or centre, or end) and
+     * the opposite corner (or a point on the rim, or the other end).
+     */
+    private static double[] points(final Shape shape) {
+        if (shape instanceof Rectangle r) {
+            return new double[]{r.getX(), r.getY(), r.getX() + r.getWidth(), r.getY() + r.getHeight()};
+        } else if (shape instanceof Square s) {
+            return new double[]{s.getX(), s.getY(), s.getX() + s.getLength(), s.getY() + s.getLength()};
+        } else if (shape instanceof Circle c) {
+            return new double[]{c.getX(), c.getY(), c.getX() + c.getRadius(), c.getY() + c.getRadius()};
+        } else if (shape instanceof Line l) {
+            return new double[]{l.getX1(), l.getY1(), l.getX2(), l.getY2()};
+        }
+        throw new IllegalArgumentException("Cannot compare shape type: " + shape.getClass().getName());
+    }
+
+    private static boolean close(final double u, final double v) {
+        return Math.abs(u - v) <= EPSILON * Math.max(1, Math.max(Math.abs(u), Math.abs(v)));
+    }
+
+    /**
+     * A shape without a counterpart of the same place, and the group it is in.
+     */
+    private static final class Node {
+        final Shape shape;
+        final String parent;
+
+        Node(final Shape shape, final String parent) {
+            this.shape = shape;
+            this.parent = parent;
+        }
+    }
+}
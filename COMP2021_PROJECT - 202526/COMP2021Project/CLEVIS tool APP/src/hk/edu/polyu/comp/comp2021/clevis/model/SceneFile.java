@@ -0,0 +1,752 @@
+package hk.edu.polyu.comp.comp2021.clevis.model;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary snapshot of a whole scene ({@code save file} / {@code load file}).
+ * <p>
+ * Every part of the file is either fixed-size or addressed by offset, so it can
+ * be read with a few bulk reads (or mapped) and decoded without parsing:
+ * <ol>
+ *   <li>a {@value #HEADER_SIZE}-byte header: the magic bytes {@code CLVS}, a
+ *       version byte, then the counts and offsets of the other parts;</li>
+ *   <li>the record table: one {@value #RECORD_SIZE}-byte record per shape, top-level
+ *       shapes in Z-order (bottom first), each group directly followed by the
+ *       records of its members (depth first);</li>
+ *   <li>the top-level table: the record number of each top-level shape, in Z-order;</li>
+ *   <li>the name index: the top-level shapes (as positions in the top-level
+ *       table) sorted by name, for binary search;</li>
+ *   <li>the name heap: every name in UTF-8, back to back;</li>
+ *   <li>the Z table: the Z sequence number of each top-level shape, in Z-order,
+ *       then the next one to hand out (see {@link ShapeManager}), so that
+ *       journaled undo steps find their places in a loaded scene. Version 1
+ *       files have no Z table; their shapes are numbered by record;</li>
+ *   <li>the hash table: the content hash ({@link #contentHash}) of each
+ *       top-level shape, in Z-order, so that {@link SceneDiff} can tell
+ *       unchanged shapes apart without reading their records. Files before
+ *       version 3 have no hash table.</li>
+ * </ol>
+ * A record holds the shape type (as in {@link MutationJournal}), the name's
+ * length and heap offset, and four values: the coordinates of a rectangle,
+ * line, circle or square in constructor order (unused ones zero), or, for a
+ * group, its member count and the number of records in its subtree. Numbers
+ * are big-endian; coordinates are raw IEEE 754 bits, so a loaded scene is exact.
+ * <p>
+ * A checkpoint ({@link Checkpointer}) is a scene file whose header also holds
+ * the generation of the first mutation journal it does not cover.
+ * <p>
+ * Files are written to a temporary file, forced to disk and renamed into
+ * place, so a crash never leaves a half-written snapshot under the real name.
+ */
+public final class SceneFile {
+
+    /** Magic bytes at the start of every scene file. */
+    static final byte[] MAGIC = LogChannel.ascii("CLVS");
+    /** Current scene file format version. */
+    static final int VERSION = 3;
+    /** Size of the header in bytes. */
+    static final int HEADER_SIZE = 64;
+    /** Size of one shape record in bytes. */
+    static final int RECORD_SIZE = 48;
+
+    // Header fields (byte offsets).
+    static final int H_RECORDS = 8;
+    static final int H_TOP_LEVEL = 16;
+    static final int H_TOP_TABLE = 24;
+    static final int H_NAME_INDEX = 32;
+    static final int H_HEAP = 40;
+    static final int H_HEAP_LENGTH = 48;
+    static final int H_JOURNAL = 56;
+
+    // Record fields (byte offsets).
+    static final int R_TYPE = 0;
+    static final int R_NAME_LENGTH = 4;
+    static final int R_NAME_OFFSET = 8;
+    static final int R_VALUES = 16;
+    static final int R_MEMBERS = 16;
+    static final int R_SUBTREE = 20;
+
+    /** Records per bulk read or write. */
+    private static final int CHUNK_RECORDS = 16 * 1024;
+
+    private SceneFile() {
+    }
+
+    /**
+     * Writes the scene of {@code manager} to {@code file}, replacing it atomically.
+     *
+     * @param file    destination file
+     * @param manager scene to save
+     * @return number of top-level shapes written
+     * @throws IOException if the file cannot be written
+     */
+    public static long save(final File file, final ShapeManager manager) throws IOException {
+        final MappedScene mapped = manager.getMappedScene();
+        if (mapped != null) {
+            return copy(mapped, file);
+        }
+        final long[] z = manager.zNumbers();
+        return write(file, manager.shapes(), nameOrder(manager, z), z, manager.nextZ(), 0);
+    }
+
+    /**
+     * Writes a checkpoint: top-level shapes captured by {@link ShapeManager#capture()}.
+     * Runs on the checkpoint thread, so the name order is worked out here
+     * rather than read from the live name index.
+     *
+     * @param file       destination file
+     * @param shapes     top-level shapes in Z-order
+     * @param z          their Z sequence numbers
+     * @param nextZ      the next Z sequence number
+     * @param generation first journal generation the checkpoint does not cover
+     * @throws IOException if the file cannot be written
+     */
+    static void checkpoint(final File file, final Shape[] shapes, final long[] z, final long nextZ,
+                           final long generation) throws IOException {
+        write(file, Arrays.asList(shapes), sortByName(shapes), z, nextZ, generation);
+    }
+
+    /**
+     * Sorts shapes by name.
+     *
+     * @param shapes shapes
+     * @return positions in {@code shapes}, in name order
+     */
+    static int[] sortByName(final Shape[] shapes) {
+        final Integer[] order = new Integer[shapes.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.parallelSort(order, (a, b) -> shapes[a].getName().compareTo(shapes[b].getName()));
+        final int[] byName = new int[order.length];
+        for (int i = 0; i < byName.length; i++) {
+            byName[i] = order[i];
+        }
+        return byName;
+    }
+
+    /**
+     * Reads the journal generation recorded in a checkpoint.
+     *
+     * @param file scene file
+     * @return first journal generation it does not cover (0 for a plain saved scene)
+     * @throws IOException if the file cannot be read or is not a valid scene file
+     */
+    static long journalGeneration(final File file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return Header.read(ch).journal;
+        }
+    }
+
+    private static long write(final File file, final Collection<Shape> shapes, final int[] byName,
+                              final long[] z, final long nextZ, final long generation) throws IOException {
+        final int topLevel = shapes.size();
+        long recordCount = 0;
+        for (Shape s : shapes) {
+            recordCount += countRecords(s);
+        }
+        if (recordCount > Integer.MAX_VALUE) {
+            throw new IOException("Scene too large to save: " + recordCount + " shapes.");
+        }
+
+        final long topTable = HEADER_SIZE + recordCount * RECORD_SIZE;
+        final long nameIndex = topTable + (long) topLevel * Integer.BYTES;
+        final long heap = nameIndex + (long) topLevel * Integer.BYTES;
+
+        final File tmp = new File(file.getPath() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            final Writer out = new Writer(ch, heap);
+            final int[] topRecords = new int[topLevel];
+            final long[] hashes = new long[topLevel];
+            int i = 0;
+            for (Shape s : shapes) {
+                hashes[i] = contentHash(s);
+                topRecords[i++] = out.record;
+                out.putShape(s);
+            }
+            out.flush();
+
+            putInts(ch, topTable, topRecords);
+            putInts(ch, nameIndex, byName);
+            final long[] zTable = Arrays.copyOf(z, topLevel + 1);
+            zTable[topLevel] = nextZ;
+            putLongs(ch, heap + out.heapLength, zTable);
+            putLongs(ch, heap + out.heapLength + (long) zTable.length * Long.BYTES, hashes);
+
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.put(MAGIC).put((byte) VERSION);
+            header.putLong(H_RECORDS, recordCount)
+                    .putLong(H_TOP_LEVEL, topLevel)
+                    .putLong(H_TOP_TABLE, topTable)
+                    .putLong(H_NAME_INDEX, nameIndex)
+                    .putLong(H_HEAP, heap)
+                    .putLong(H_HEAP_LENGTH, out.heapLength)
+                    .putLong(H_JOURNAL, generation);
+            header.clear();
+            writeFully(ch, header, 0);
+            ch.force(true);
+        }
+        replace(tmp, file);
+        return topLevel;
+    }
+
+    /**
+     * Saves a read-only scene by copying its mapped file.
+     */
+    private static long copy(final MappedScene mapped, final File file) throws IOException {
+        final File tmp = new File(file.getPath() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            mapped.writeTo(ch);
+            ch.force(true);
+        }
+        replace(tmp, file);
+        return mapped.size();
+    }
+
+    static void replace(final File tmp, final File file) throws IOException {
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Replaces the scene of {@code manager} with the one saved in {@code file}.
+     * The file is decoded completely before the scene changes, so a corrupt
+     * file leaves the scene as it was. Compressed files
+     * ({@link CompressedSceneFile}) are recognized by their magic bytes.
+     *
+     * @param file    scene file written by {@link #save} or {@link CompressedSceneFile#save}
+     * @param manager scene to replace
+     * @return number of top-level shapes loaded
+     * @throws IOException if the file cannot be read or is not a valid scene file
+     */
+    public static long load(final File file, final ShapeManager manager) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (CompressedSceneFile.isCompressed(ch)) {
+                return CompressedSceneFile.load(file, ch, manager);
+            }
+            final Header h = Header.read(ch);
+            final byte[] heap = new byte[(int) h.heapLength];
+            readFully(ch, ByteBuffer.wrap(heap), h.heap);
+
+            final Shape[] shapes = new Shape[(int) h.topLevel];
+            final long[] z = new long[shapes.length];
+            decodeRecords(ch, h, heap, shapes, z);
+
+            long nextZ = h.records;
+            if (h.zTable >= 0) {
+                final long[] zTable = getLongs(ch, h.zTable, shapes.length + 1);
+                for (int i = 0; i < zTable.length; i++) {
+                    if (i > 0 ? zTable[i] <= zTable[i - 1] : zTable[i] < 0) {
+                        throw corrupt("Z table not ascending");
+                    }
+                }
+                System.arraycopy(zTable, 0, z, 0, shapes.length);
+                nextZ = zTable[shapes.length];
+            }
+
+            final int[] byName = getInts(ch, h.nameIndex, shapes.length);
+            String previous = null;
+            for (int ordinal : byName) {
+                if (ordinal < 0 || ordinal >= shapes.length) {
+                    throw corrupt("name index entry out of range");
+                }
+                final String name = shapes[ordinal].getName();
+                if (previous != null && previous.compareTo(name) >= 0) {
+                    throw corrupt("name index not sorted");
+                }
+                previous = name;
+            }
+            manager.replaceScene(file, shapes, z, byName, nextZ);
+            return shapes.length;
+        }
+    }
+
+    /**
+     * Decodes the record table into top-level shapes, one chunk at a time.
+     * Groups are built bottom-up with an explicit stack, so nesting depth does
+     * not matter and a chunk boundary can fall anywhere.
+     */
+    private static void decodeRecords(final FileChannel ch, final Header h, final byte[] heap,
+                                      final Shape[] shapes, final long[] z) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocateDirect(CHUNK_RECORDS * RECORD_SIZE);
+        final Deque<PendingGroup> open = new ArrayDeque<>();
+        int top = 0;
+        long position = HEADER_SIZE;
+        for (long r = 0; r < h.records; r++) {
+            if (!buf.hasRemaining() || r == 0) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), (h.records - r) * RECORD_SIZE));
+                readFully(ch, buf, position);
+                position += buf.limit();
+                buf.flip();
+            }
+            final int at = buf.position();
+            buf.position(at + RECORD_SIZE);
+
+            final String name = name(heap, buf.getLong(at + R_NAME_OFFSET), buf.getInt(at + R_NAME_LENGTH));
+            Shape shape;
+            try {
+                final byte type = buf.get(at + R_TYPE);
+                if (type == MutationJournal.TYPE_GROUP) {
+                    final int members = buf.getInt(at + R_MEMBERS);
+                    if (members <= 0) {
+                        throw corrupt("empty group " + name);
+                    }
+                    if (open.isEmpty()) {
+                        if (top == shapes.length) {
+                            throw corrupt("too many top-level shapes");
+                        }
+                        z[top] = r;
+                    }
+                    open.push(new PendingGroup(name, members));
+                    continue;
+                }
+                shape = leaf(type, name, buf, at + R_VALUES);
+            } catch (IllegalArgumentException e) {
+                throw corrupt(e.getMessage());
+            }
+
+            // Attach the shape to its group; completed groups are attached in turn.
+            while (!open.isEmpty()) {
+                final PendingGroup g = open.peek();
+                g.members.add(shape);
+                if (g.members.size() < g.count) {
+                    shape = null;
+                    break;
+                }
+                open.pop();
+                shape = new Group(g.name, g.members);
+            }
+            if (shape != null) {
+                if (top == shapes.length) {
+                    throw corrupt("too many top-level shapes");
+                }
+                if (!(shape instanceof Group)) {
+                    z[top] = r;
+                }
+                shapes[top++] = shape;
+            }
+        }
+        if (!open.isEmpty() || top != shapes.length) {
+            throw corrupt("record table does not match the top-level count");
+        }
+    }
+
+    /**
+     * Builds a non-group shape from the four values of its record.
+     *
+     * @throws IOException if the type is unknown
+     */
+    static Shape leaf(final byte type, final String name, final ByteBuffer buf, final int values)
+            throws IOException {
+        final double a = buf.getDouble(values);
+        final double b = buf.getDouble(values + 8);
+        final double c = buf.getDouble(values + 16);
+        switch (type) {
+            case MutationJournal.TYPE_RECTANGLE:
+                return new Rectangle(name, a, b, c, buf.getDouble(values + 24));
+            case MutationJournal.TYPE_LINE:
+                return new Line(name, a, b, c, buf.getDouble(values + 24));
+            case MutationJournal.TYPE_CIRCLE:
+                return new Circle(name, a, b, c);
+            case MutationJournal.TYPE_SQUARE:
+                return new Square(name, a, b, c);
+            default:
+                throw corrupt("unknown shape type " + type);
+        }
+    }
+
+    /**
+     * Decodes a name from the heap.
+     *
+     * @throws IOException if it lies outside the heap
+     */
+    static String name(final byte[] heap, final long offset, final int length) throws IOException {
+        if (offset < 0 || length <= 0 || offset + length > heap.length) {
+            throw corrupt("name out of range");
+        }
+        return new String(heap, (int) offset, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Hashes everything a scene file stores about a shape: its type, name and
+     * values, and for a group the hashes of its members in order. Two shapes
+     * with the same hash are taken to be identical, subtree and all.
+     *
+     * @param shape shape
+     * @return 64-bit content hash
+     */
+    static long contentHash(final Shape shape) {
+        final String name = shape.getName();
+        long h = mix(0, name.length());
+        for (int i = 0; i < name.length(); i++) {
+            h = mix(h, name.charAt(i));
+        }
+        if (shape instanceof Group g) {
+            h = mix(mix(h, MutationJournal.TYPE_GROUP), g.getMembers().size());
+            for (Shape m : g.getMembers()) {
+                h = mix(h, contentHash(m));
+            }
+            return h;
+        }
+        if (shape instanceof Rectangle r) {
+            return mix(h, MutationJournal.TYPE_RECTANGLE, r.getX(), r.getY(), r.getWidth(), r.getHeight());
+        } else if (shape instanceof Line l) {
+            return mix(h, MutationJournal.TYPE_LINE, l.getX1(), l.getY1(), l.getX2(), l.getY2());
+        } else if (shape instanceof Circle c) {
+            return mix(h, MutationJournal.TYPE_CIRCLE, c.getX(), c.getY(), c.getRadius(), 0);
+        } else if (shape instanceof Square s) {
+            return mix(h, MutationJournal.TYPE_SQUARE, s.getX(), s.getY(), s.getLength(), 0);
+        }
+        throw new IllegalArgumentException("Cannot hash shape type: " + shape.getClass().getName());
+    }
+
+    private static long mix(final long h, final byte type, final double a, final double b, final double c,
+                            final double d) {
+        return mix(mix(mix(mix(mix(h, type), Double.doubleToLongBits(a)), Double.doubleToLongBits(b)),
+                Double.doubleToLongBits(c)), Double.doubleToLongBits(d));
+    }
+
+    private static long mix(final long h, final long v) {
+        return Long.rotateLeft(h ^ v * 0xC2B2AE3D27D4EB4FL, 31) * 0x9E3779B97F4A7C15L;
+    }
+
+    static IOException corrupt(final String detail) {
+        return new IOException("Corrupt scene file: " + detail + ".");
+    }
+
+    /**
+     * Lists the top-level shapes by name, as positions in the top-level table.
+     * The manager's sorted name index gives the order; each name's Z sequence
+     * number is matched to its position among the (ascending) Z numbers.
+     */
+    private static int[] nameOrder(final ShapeManager manager, final long[] zAscending) {
+        final int[] order = new int[zAscending.length];
+        int i = 0;
+        for (Map.Entry<String, Long> e : manager.nameIndex().entrySet()) {
+            order[i++] = Arrays.binarySearch(zAscending, e.getValue());
+        }
+        return order;
+    }
+
+    private static long countRecords(final Shape s) {
+        if (s instanceof Group g) {
+            long n = 1;
+            for (Shape m : g.getMembers()) {
+                n += countRecords(m);
+            }
+            return n;
+        }
+        return 1;
+    }
+
+    private static void putInts(final FileChannel ch, final long position, final int[] values) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocateDirect(CHUNK_RECORDS * RECORD_SIZE);
+        long at = position;
+        for (int v : values) {
+            if (!buf.hasRemaining()) {
+                buf.flip();
+                at += writeFully(ch, buf, at);
+                buf.clear();
+            }
+            buf.putInt(v);
+        }
+        buf.flip();
+        writeFully(ch, buf, at);
+    }
+
+    private static void putLongs(final FileChannel ch, final long position, final long[] values)
+            throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocateDirect(CHUNK_RECORDS * RECORD_SIZE);
+        long at = position;
+        for (long v : values) {
+            if (!buf.hasRemaining()) {
+                buf.flip();
+                at += writeFully(ch, buf, at);
+                buf.clear();
+            }
+            buf.putLong(v);
+        }
+        buf.flip();
+        writeFully(ch, buf, at);
+    }
+
+    private static long[] getLongs(final FileChannel ch, final long position, final int count) throws IOException {
+        final long[] values = new long[count];
+        final ByteBuffer buf = ByteBuffer.allocateDirect(CHUNK_RECORDS * RECORD_SIZE);
+        long at = position;
+        int i = 0;
+        while (i < count) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), (long) (count - i) * Long.BYTES));
+            readFully(ch, buf, at);
+            at += buf.limit();
+            buf.flip();
+            buf.asLongBuffer().get(values, i, buf.limit() / Long.BYTES);
+            i += buf.limit() / Long.BYTES;
+        }
+        return values;
+    }
+
+    private static int[] getInts(final FileChannel ch, final long position, final int count) throws IOException {
+        final int[] values = new int[count];
+        final ByteBuffer buf = ByteBuffer.allocateDirect(CHUNK_RECORDS * RECORD_SIZE);
+        long at = position;
+        int i = 0;
+        while (i < count) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), (long) (count - i) * Integer.BYTES));
+            readFully(ch, buf, at);
+            at += buf.limit();
+            buf.flip();
+            buf.asIntBuffer().get(values, i, buf.limit() / Integer.BYTES);
+            i += buf.limit() / Integer.BYTES;
+        }
+        return values;
+    }
+
+    private static int writeFully(final FileChannel ch, final ByteBuffer src, final long position) throws IOException {
+        final int n = src.remaining();
+        long at = position;
+        while (src.hasRemaining()) {
+            at += ch.write(src, at);
+        }
+        return n;
+    }
+
+    static void readFully(final FileChannel ch, final ByteBuffer dst, final long position) throws IOException {
+        long at = position;
+        while (dst.hasRemaining()) {
+            final int r = ch.read(dst, at);
+            if (r < 0) {
+                throw new EOFException("Corrupt scene file: unexpected end of file.");
+            }
+            at += r;
+        }
+    }
+
+    /**
+     * Header fields, checked against each other and the file size.
+     */
+    static final class Header {
+        final long records;
+        final long topLevel;
+        final long topTable;
+        final long nameIndex;
+        final long heap;
+        final long heapLength;
+        final long journal;
+        /** Offset of the Z table, or -1 for a version 1 file without one. */
+        final long zTable;
+        /** Offset of the hash table, or -1 for a file before version 3. */
+        final long hashTable;
+
+        private Header(final ByteBuffer b) {
+            records = b.getLong(H_RECORDS);
+            topLevel = b.getLong(H_TOP_LEVEL);
+            topTable = b.getLong(H_TOP_TABLE);
+            nameIndex = b.getLong(H_NAME_INDEX);
+            heap = b.getLong(H_HEAP);
+            heapLength = b.getLong(H_HEAP_LENGTH);
+            journal = b.getLong(H_JOURNAL);
+            final byte version = b.get(MAGIC.length);
+            zTable = version == 1 ? -1 : heap + heapLength;
+            hashTable = version < 3 ? -1 : zTable + (topLevel + 1) * Long.BYTES;
+        }
+
+        /**
+         * Reads and checks the header of a scene file.
+         *
+         * @param ch open scene file
+         * @return the header
+         * @throws IOException if the file is not a scene file of this version or its layout is inconsistent
+         */
+        static Header read(final FileChannel ch) throws IOException {
+            final ByteBuffer b = ByteBuffer.allocate(HEADER_SIZE);
+            if (ch.size() < HEADER_SIZE) {
+                throw new IOException("Not a Clevis scene file.");
+            }
+            readFully(ch, b, 0);
+            if (CompressedSceneFile.isCompressed(ch)) {
+                throw new IOException("Compressed scene files cannot be mapped; use load.");
+            }
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (b.get(i) != MAGIC[i]) {
+                    throw new IOException("Not a Clevis scene file.");
+                }
+            }
+            if (b.get(MAGIC.length) < 1 || b.get(MAGIC.length) > VERSION) {
+                throw new IOException("Unsupported scene file version: " + b.get(MAGIC.length));
+            }
+            final Header h = new Header(b);
+            if (h.records < 0 || h.records > Integer.MAX_VALUE || h.topLevel < 0 || h.topLevel > h.records
+                    || h.topTable != HEADER_SIZE + h.records * RECORD_SIZE
+                    || h.nameIndex != h.topTable + h.topLevel * Integer.BYTES
+                    || h.heap != h.nameIndex + h.topLevel * Integer.BYTES
+                    || h.heapLength < 0 || h.heapLength > Integer.MAX_VALUE - 8 || h.journal < 0
+                    || h.heap + h.heapLength + (h.zTable < 0 ? 0 : (h.topLevel + 1) * Long.BYTES)
+                            + (h.hashTable < 0 ? 0 : h.topLevel * Long.BYTES) != ch.size()) {
+                throw corrupt("inconsistent header");
+            }
+            return h;
+        }
+    }
+
+    /**
+     * A group whose member records are still being read.
+     */
+    private static final class PendingGroup {
+        final String name;
+        final int count;
+        final List<Shape> members;
+
+        PendingGroup(final String name, final int count) {
+            this.name = name;
+            this.count = count;
+            this.members = new ArrayList<>(Math.min(count, 1024));
+        }
+    }
+
+    /**
+     * Encodes shapes into the record table and the name heap through two
+     * positioned buffers.
+     */
+    private static final class Writer {
+        private final FileChannel ch;
+        private final ByteBuffer records = ByteBuffer.allocateDirect(CHUNK_RECORDS * RECORD_SIZE);
+        private final ByteBuffer names = ByteBuffer.allocateDirect(CHUNK_RECORDS * RECORD_SIZE);
+        private long recordPosition = HEADER_SIZE;
+        private long namePosition;
+        /** Number of the next record. */
+        private int record;
+        private long heapLength;
+
+        Writer(final FileChannel ch, final long heap) {
+            this.ch = ch;
+            this.namePosition = heap;
+        }
+
+        /**
+         * Writes the records of a shape and, for a group, of its subtree.
+         */
+        void putShape(final Shape shape) throws IOException {
+            final int at = reserve();
+            if (shape instanceof Group g) {
+                records.put(at + R_TYPE, MutationJournal.TYPE_GROUP);
+                putName(at, g.getName());
+                final int first = record;
+                for (Shape m : g.getMembers()) {
+                    putShape(m);
+                }
+                // The group's record may already have been written out with its chunk.
+                final int members = g.getMembers().size();
+                final int subtree = record - first;
+                patchGroup(first - 1, at, members, subtree);
+                return;
+            }
+            if (shape instanceof Rectangle r) {
+                leafRecord(at, MutationJournal.TYPE_RECTANGLE, r.getName(), r.getX(), r.getY(), r.getWidth(), r.getHeight());
+            } else if (shape instanceof Line l) {
+                leafRecord(at, MutationJournal.TYPE_LINE, l.getName(), l.getX1(), l.getY1(), l.getX2(), l.getY2());
+            } else if (shape instanceof Circle c) {
+                leafRecord(at, MutationJournal.TYPE_CIRCLE, c.getName(), c.getX(), c.getY(), c.getRadius(), 0);
+            } else if (shape instanceof Square s) {
+                leafRecord(at, MutationJournal.TYPE_SQUARE, s.getName(), s.getX(), s.getY(), s.getLength(), 0);
+            } else {
+                throw new IllegalArgumentException("Cannot save shape type: " + shape.getClass().getName());
+            }
+        }
+
+        /**
+         * Makes room for one record in the buffer and returns its position there.
+         */
+        private int reserve() throws IOException {
+            if (!records.hasRemaining()) {
+                records.flip();
+                recordPosition += writeFully(ch, records, recordPosition);
+                records.clear();
+            }
+            final int at = records.position();
+            for (int i = 0; i < RECORD_SIZE; i += Long.BYTES) {
+                records.putLong(0L);
+            }
+            record++;
+            return at;
+        }
+
+        private void leafRecord(final int at, final byte type, final String name,
+                                final double a, final double b, final double c, final double d)
+                throws IOException {
+            records.put(at + R_TYPE, type);
+            putName(at, name);
+            records.putDouble(at + R_VALUES, a)
+                    .putDouble(at + R_VALUES + 8, b)
+                    .putDouble(at + R_VALUES + 16, c)
+                    .putDouble(at + R_VALUES + 24, d);
+        }
+
+        private void putName(final int at, final String name) throws IOException {
+            final byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            records.putInt(at + R_NAME_LENGTH, bytes.length);
+            records.putLong(at + R_NAME_OFFSET, heapLength);
+            heapLength += bytes.length;
+            if (names.remaining() < bytes.length) {
+                names.flip();
+                namePosition += writeFully(ch, names, namePosition);
+                names.clear();
+                if (names.remaining() < bytes.length) {
+                    namePosition += writeFully(ch, ByteBuffer.wrap(bytes), namePosition);
+                    return;
+                }
+            }
+            names.put(bytes);
+        }
+
+        /**
+         * Fills in the member count and subtree size of a group record, in the
+         * buffer if it is still there, otherwise in the file.
+         */
+        private void patchGroup(final int number, final int at, final int members, final int subtree)
+                throws IOException {
+            final long fileOffset = HEADER_SIZE + (long) number * RECORD_SIZE;
+            if (fileOffset >= recordPosition) {
+                records.putInt(at + R_MEMBERS, members).putInt(at + R_SUBTREE, subtree);
+                return;
+            }
+            final ByteBuffer patch = ByteBuffer.allocate(2 * Integer.BYTES).putInt(members).putInt(subtree);
+            patch.flip();
+            writeFully(ch, patch, fileOffset + R_MEMBERS);
+        }
+
+        void flush() throws IOException {
+            records.flip();
+            recordPosition += writeFully(ch, records, recordPosition);
+            records.clear();
+            names.flip();
+            namePosition += writeFully(ch, names, namePosition);
+            names.clear();
+        }
+    }
+}
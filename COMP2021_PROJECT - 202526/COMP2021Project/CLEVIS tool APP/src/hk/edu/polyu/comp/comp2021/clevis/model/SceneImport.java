@@ -0,0 +1,456 @@
+package hk.edu.polyu.comp.comp2021.clevis.model;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Bulk import of shapes from a CSV or SVG file ({@code import file}).
+ * <p>
+ * CSV files hold one shape per line, {@code type,name,values...}, with the
+ * values of the matching creation command (for example
+ * {@code rectangle,r1,0,0,4,3}); blank lines and lines starting with '#' are
+ * skipped. SVG files (".svg") are read one element per line, as
+ * {@link SvgExport} writes them: {@code rect} becomes a rectangle,
+ * {@code circle} a circle, {@code line} a line and {@code g} a group of the
+ * elements inside it. Names come from {@code id} attributes; a shape element
+ * without one is named after its tag and line number, and a {@code g} without
+ * one (such as the styling wrapper written by the export) is not a group: its
+ * elements belong to the enclosing one. Other elements and attributes are ignored.
+ * <p>
+ * The file is read in blocks of whole lines, and the blocks are parsed in
+ * parallel. The shapes are then added in file order as one step
+ * ({@link ShapeManager#importShapes}), so the scene changes only if the whole
+ * file is valid, the journal gets a single record and the spatial index is
+ * packed once over the new scene.
+ */
+public final class SceneImport {
+
+    /** Bytes per parse block. */
+    private static final int BLOCK_SIZE = 4 << 20;
+
+    /** Most fields a CSV line can have: type, name and four values. */
+    private static final int CSV_FIELDS = 6;
+
+    private static final Pattern ATTRIBUTE = Pattern.compile("([\\w:-]+)\\s*=\\s*\"([^\"]*)\"");
+
+    private SceneImport() {
+    }
+
+    /**
+     * Imports the shapes of a CSV or SVG file into {@code manager}.
+     *
+     * @param file    CSV file, or SVG file if its name ends in ".svg"
+     * @param manager scene to add the shapes to
+     * @return number of top-level shapes added
+     * @throws IOException     if the file cannot be read
+     * @throws ClevisException if a line is not a valid shape or a name is taken
+     */
+    public static long read(final File file, final ShapeManager manager) throws IOException, ClevisException {
+        final boolean svg = file.getName().toLowerCase(Locale.ROOT).endsWith(".svg");
+        final int threads = Runtime.getRuntime().availableProcessors();
+        final ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            final Thread t = new Thread(r, "clevis-import");
+            t.setDaemon(true);
+            return t;
+        });
+        final List<Future<List<Item>>> blocks = new ArrayList<>();
+        try {
+            try (InputStream in = new FileInputStream(file)) {
+                final byte[] buf = new byte[BLOCK_SIZE];
+                byte[] carry = new byte[0];
+                long line = 1;
+                while (true) {
+                    final int n = in.readNBytes(buf, 0, buf.length);
+                    final boolean last = n < buf.length;
+                    // Cut after the last complete line; the rest starts the next block.
+                    int end = n;
+                    while (!last && end > 0 && buf[end - 1] != '\n') {
+                        end--;
+                    }
+                    if (!last && end == 0) {
+                        carry = concat(carry, buf, n);
+                        continue;
+                    }
+                    final byte[] block = concat(carry, buf, end);
+                    carry = last ? new byte[0] : Arrays.copyOfRange(buf, end, n);
+                    final long first = line;
+                    for (byte b : block) {
+                        if (b == '\n') {
+                            line++;
+                        }
+                    }
+                    blocks.add(pool.submit(() -> parse(block, first, svg)));
+                    if (last) {
+                        break;
+                    }
+                }
+            }
+            final Shape[] shapes = assemble(blocks);
+            manager.importShapes(file, shapes);
+            return shapes.length;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Import interrupted.", e);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static byte[] concat(final byte[] head, final byte[] buf, final int length) {
+        final byte[] joined = Arrays.copyOf(head, head.length + length);
+        System.arraycopy(buf, 0, joined, head.length, length);
+        return joined;
+    }
+
+    /**
+     * Joins the parsed blocks in order, building groups from their open and
+     * close items, and checks that top-level names are distinct.
+     */
+    private static Shape[] assemble(final List<Future<List<Item>>> blocks)
+            throws InterruptedException, ClevisException {
+        final List<Shape> top = new ArrayList<>();
+        final Set<String> names = new HashSet<>();
+        final Deque<Item> open = new ArrayDeque<>();
+        for (Future<List<Item>> block : blocks) {
+            final List<Item> items;
+            try {
+                items = block.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof ClevisException c) {
+                    throw c;
+                }
+                throw new IllegalStateException(e.getCause());
+            }
+            for (Item item : items) {
+                if (item.opensGroup) {
+                    open.push(item);
+                } else if (item.shape != null) {
+                    place(item.shape, open, top, names);
+                } else {
+                    if (open.isEmpty()) {
+                        throw new ClevisException("Line " + item.line + ": '</g>' without a matching '<g>'.");
+                    }
+                    final Item g = open.pop();
+                    if (g.name == null) {
+                        for (Shape member : g.members) {
+                            place(member, open, top, names);
+                        }
+                    } else if (g.members.isEmpty()) {
+                        throw new ClevisException("Line " + g.line + ": group '" + g.name + "' is empty.");
+                    } else {
+                        place(new Group(g.name, g.members), open, top, names);
+                    }
+                }
+            }
+        }
+        if (!open.isEmpty()) {
+            throw new ClevisException("Line " + open.peek().line + ": '<g>' is not closed.");
+        }
+        return top.toArray(new Shape[0]);
+    }
+
+    /**
+     * Adds a shape to the innermost open group, or to the top level.
+     */
+    private static void place(final Shape shape, final Deque<Item> open, final List<Shape> top,
+                              final Set<String> names) throws ClevisException {
+        if (!open.isEmpty()) {
+            open.peek().members.add(shape);
+            return;
+        }
+        if (!names.add(shape.getName())) {
+            throw new ClevisException.DuplicateShapeException(
+                    "The shape '" + shape.getName() + "' appears more than once.");
+        }
+        top.add(shape);
+    }
+
+    /**
+     * Parses one block of whole lines.
+     *
+     * @param block UTF-8 lines
+     * @param line  number of the first line in the file
+     * @param svg   true for SVG, false for CSV
+     * @return the shapes and group markers in file order
+     * @throws ClevisException if a line is not a valid shape
+     */
+    static List<Item> parse(final byte[] block, final long line, final boolean svg) throws ClevisException {
+        final List<Item> items = new ArrayList<>();
+        long number = line;
+        int start = 0;
+        while (start < block.length) {
+            int end = start;
+            while (end < block.length && block[end] != '\n') {
+                end++;
+            }
+            try {
+                if (svg) {
+                    parseSvg(new String(block, start, end - start, StandardCharsets.UTF_8).trim(), number, items);
+                } else {
+                    final Shape shape = parseCsv(block, start, end);
+                    if (shape != null) {
+                        items.add(Item.shape(number, shape));
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                throw new ClevisException("Line " + number + ": " + e.getMessage());
+            }
+            number++;
+            start = end + 1;
+        }
+        return items;
+    }
+
+    /**
+     * Parses one CSV line straight from the block's bytes; only the type and
+     * the name become Strings.
+     *
+     * @return the shape, or null for a blank or comment line
+     */
+    private static Shape parseCsv(final byte[] b, final int start, final int end) {
+        // Field boundaries: field i is [from[i], to[i]), trimmed.
+        int at = start;
+        while (at < end && b[at] <= ' ') {
+            at++;
+        }
+        if (at == end || b[at] == '#') {
+            return null;
+        }
+        final int[] from = new int[CSV_FIELDS];
+        final int[] to = new int[CSV_FIELDS];
+        int fields = 0;
+        while (true) {
+            int e = at;
+            while (e < end && b[e] != ',') {
+                e++;
+            }
+            if (fields == CSV_FIELDS) {
+                throw new IllegalArgumentException("too many values.");
+            }
+            int s = at;
+            int t = e;
+            while (s < t && b[s] <= ' ') {
+                s++;
+            }
+            while (t > s && b[t - 1] <= ' ') {
+                t--;
+            }
+            from[fields] = s;
+            to[fields++] = t;
+            if (e == end) {
+                break;
+            }
+            at = e + 1;
+        }
+        final String[] f = new String[fields];
+        f[0] = new String(b, from[0], to[0] - from[0], StandardCharsets.UTF_8);
+        if (fields > 1) {
+            f[1] = new String(b, from[1], to[1] - from[1], StandardCharsets.UTF_8);
+        }
+        final String type = f[0].toLowerCase(Locale.ROOT);
+        final int values;
+        switch (type) {
+            case "rectangle":
+            case "line":
+                values = 4;
+                break;
+            case "circle":
+            case "square":
+                values = 3;
+                break;
+            default:
+                throw new IllegalArgumentException("unknown shape type '" + f[0] + "'.");
+        }
+        if (fields != values + 2) {
+            throw new IllegalArgumentException("expected " + type + ",name and " + values + " values.");
+        }
+        final double[] v = new double[values];
+        for (int i = 0; i < values; i++) {
+            v[i] = number(b, from[i + 2], to[i + 2]);
+        }
+        switch (type) {
+            case "rectangle":
+                return new Rectangle(f[1], v[0], v[1], v[2], v[3]);
+            case "line":
+                return new Line(f[1], v[0], v[1], v[2], v[3]);
+            case "circle":
+                return new Circle(f[1], v[0], v[1], v[2]);
+            default:
+                return new Square(f[1], v[0], v[1], v[2]);
+        }
+    }
+
+    private static void parseSvg(final String text, final long line, final List<Item> items) {
+        if (text.startsWith("</g")) {
+            items.add(Item.close(line));
+            return;
+        }
+        if (!text.startsWith("<")) {
+            return;
+        }
+        int nameEnd = 1;
+        while (nameEnd < text.length() && !Character.isWhitespace(text.charAt(nameEnd))
+                && text.charAt(nameEnd) != '>' && text.charAt(nameEnd) != '/') {
+            nameEnd++;
+        }
+        final String tag = text.substring(1, nameEnd);
+        if (!tag.equals("g") && !tag.equals("rect") && !tag.equals("circle") && !tag.equals("line")) {
+            return;
+        }
+        String id = null;
+        double x = 0;
+        double y = 0;
+        double width = 0;
+        double height = 0;
+        double r = 0;
+        double x1 = 0;
+        double y1 = 0;
+        double x2 = 0;
+        double y2 = 0;
+        final Matcher m = ATTRIBUTE.matcher(text);
+        while (m.find(nameEnd)) {
+            nameEnd = m.end();
+            final String value = m.group(2);
+            switch (m.group(1)) {
+                case "id":
+                    id = unescape(value);
+                    break;
+                case "x":
+                case "cx":
+                    x = number(value);
+                    break;
+                case "y":
+                case "cy":
+                    y = number(value);
+                    break;
+                case "width":
+                    width = number(value);
+                    break;
+                case "height":
+                    height = number(value);
+                    break;
+                case "r":
+                    r = number(value);
+                    break;
+                case "x1":
+                    x1 = number(value);
+                    break;
+                case "y1":
+                    y1 = number(value);
+                    break;
+                case "x2":
+                    x2 = number(value);
+                    break;
+                case "y2":
+                    y2 = number(value);
+                    break;
+                default:
+                    break;
+            }
+        }
+        final String name = id != null ? id : tag + line;
+        switch (tag) {
+            case "g":
+                if (text.endsWith("/>")) {
+                    throw new IllegalArgumentException("group '" + name + "' is empty.");
+                }
+                items.add(Item.open(line, id));
+                break;
+            case "rect":
+                items.add(Item.shape(line, new Rectangle(name, x, y, width, height)));
+                break;
+            case "circle":
+                items.add(Item.shape(line, new Circle(name, x, y, r)));
+                break;
+            default:
+                items.add(Item.shape(line, new Line(name, x1, y1, x2, y2)));
+                break;
+        }
+    }
+
+    /**
+     * Parses a number, with a fast path for plain integers.
+     */
+    private static double number(final byte[] b, final int start, final int end) {
+        int i = start;
+        final boolean negative = i < end && b[i] == '-';
+        if (negative) {
+            i++;
+        }
+        if (i < end && end - i <= 15) {
+            long value = 0;
+            while (i < end && b[i] >= '0' && b[i] <= '9') {
+                value = value * 10 + (b[i++] - '0');
+            }
+            if (i == end) {
+                return negative ? -value : value;
+            }
+        }
+        return number(new String(b, start, end - start, StandardCharsets.ISO_8859_1));
+    }
+
+    private static double number(final String text) {
+        try {
+            return Double.parseDouble(text);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("'" + text + "' is not a number.");
+        }
+    }
+
+    private static String unescape(final String text) {
+        if (text.indexOf('&') < 0) {
+            return text;
+        }
+        return text.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"")
+                .replace("&apos;", "'").replace("&amp;", "&");
+    }
+
+    /**
+     * A parsed line: a shape, the start of a group, or the end of one.
+     */
+    static final class Item {
+        final long line;
+        final Shape shape;
+        final boolean opensGroup;
+        final String name;
+        final List<Shape> members;
+
+        private Item(final long line, final Shape shape, final boolean opensGroup, final String name) {
+            this.line = line;
+            this.shape = shape;
+            this.opensGroup = opensGroup;
+            this.name = name;
+            this.members = opensGroup ? new ArrayList<>() : null;
+        }
+
+        static Item shape(final long line, final Shape shape) {
+            return new Item(line, shape, false, null);
+        }
+
+        /** The start of a group, or of a plain wrapper if {@code name} is null. */
+        static Item open(final long line, final String name) {
+            return new Item(line, null, true, name);
+        }
+
+        static Item close(final long line) {
+            return new Item(line, null, false, null);
+        }
+    }
+}
@@ -35,12 +35,21 @@ public interface Shape {
      */
     void move(double dx, double dy);
 
+    /**
+     * Returns the bounding box of this shape.
+     *
+     * @return minimum axis-aligned bounding box
+     */
+    BoundingBox getBounds();
+
     /**
      * Returns the bounding box of this shape as a formatted string "x y w h".
      *
      * @return bounding box string
      */
-    String getBoundingBox();
+    default String getBoundingBox() {
+        return getBounds().toString();
+    }
 
     /**
      * Determines whether the shape covers a given point (x, y).
@@ -50,4 +59,11 @@ public interface Shape {
      * @return true if the point is covered, false otherwise
      */
     boolean coversPoint(double x, double y);
+
+    /**
+     * Returns an independent deep copy of this shape.
+     *
+     * @return copy with the same name and geometry
+     */
+    Shape copy();
 }
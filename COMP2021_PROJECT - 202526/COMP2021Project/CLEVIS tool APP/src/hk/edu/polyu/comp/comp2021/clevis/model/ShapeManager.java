@@ -1,17 +1,399 @@
 package hk.edu.polyu.comp.comp2021.clevis.model;
 
+import java.io.File;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
 
 /**
  * Manages all shapes in the Clevis system.
  * <p>
  * Maintains insertion order (Z-order: later shapes on top) and provides
  * operations used by the controller.
+ * <p>
+ * The scene may instead be a read-only {@link MappedScene} ({@link #open}):
+ * queries then read the mapped file and every mutation is refused until a
+ * scene is loaded.
+ * <p>
+ * While a {@link Checkpointer} writes the shapes captured by {@link #capture()},
+ * moving a captured shape replaces it with a moved copy instead of changing it
+ * in place, so the checkpoint sees the scene as it was when captured.
+ * <p>
+ * Every change is also recorded in a bounded {@link UndoLog} as primitives
+ * (insert, remove, move), which {@link #undo()} and {@link #redo()} apply in
+ * reverse. That is why top-level shapes are ordered by a Z sequence number
+ * rather than by insertion: an undone delete puts the shape back at its own
+ * Z number, in the middle of the order. Named checkpoints
+ * ({@link #markCheckpoint}) are marks in the same history, so taking one copies
+ * nothing and rolling back only touches the shapes changed since.
+ * <p>
+ * Moves of different shapes may run concurrently ({@code ParallelScriptExecutor}):
+ * each one holds the scene lock shared and a lock striped by shape name, and
+ * journals itself through {@link MutationJournal}'s concurrent append path. A
+ * checkpoint's capture and an undo take the scene lock exclusively, so they
+ * never see a move half done. Other mutations are not run concurrently.
  */
 public final class ShapeManager {
 
-    /** Stores shapes by name, preserving insertion order. */
-    private final Map<String, Shape> shapesByName = new LinkedHashMap<>();
+    /** Top-level shapes by name. */
+    private Map<String, Shape> shapesByName = new HashMap<>();
+
+    /** Top-level shapes by Z sequence number (Z-order: later shapes on top). */
+    private NavigableMap<Long, Shape> zOrder = new TreeMap<>();
+
+    /** Sorted name index (name to Z sequence) used for prefix pattern lookups. */
+    private final NavigableMap<String, Long> nameIndex = new TreeMap<>();
+
+    /** Next Z sequence number; increases with every insertion. */
+    private long nextZ;
+
+    /** R-tree over the top-level shapes, packed at the first area query after a change; null when stale. */
+    private SpatialIndex spatial;
+
+    /** Read-only mapped scene in place of the maps above, or null. */
+    private MappedScene mapped;
+
+    /** Journal receiving every mutation before it is applied, or null. */
+    private MutationJournal journal;
+
+    /** Writes periodic checkpoints of the scene and rotates the journal, or null. */
+    private Checkpointer checkpointer;
+
+    /** True while a checkpoint still reads the shapes returned by {@link #capture()}. */
+    private volatile boolean shared;
+
+    /** Changes that {@link #undo()} and {@link #redo()} can take back. */
+    private final UndoLog undoLog = new UndoLog();
+
+    /** Held shared by each move, exclusively while the scene is captured or reverted. */
+    private final ReadWriteLock sceneLock = new ReentrantReadWriteLock();
+
+    /** Locks striped by shape name, so concurrent moves of one shape apply and journal in turn. */
+    private final Object[] moveLocks = new Object[64];
+
+    {
+        for (int i = 0; i < moveLocks.length; i++) {
+            moveLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * Attaches a write-ahead journal: every later mutation is recorded in it
+     * before it is applied.
+     *
+     * @param journal journal to write to, or null to stop journaling
+     */
+    public void setJournal(final MutationJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Returns the attached write-ahead journal.
+     *
+     * @return the journal, or null if none is attached
+     */
+    public MutationJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Attaches the checkpointer that is asked after every journaled mutation
+     * whether a checkpoint is due.
+     *
+     * @param checkpointer checkpointer, or null for none
+     */
+    void setCheckpointer(final Checkpointer checkpointer) {
+        this.checkpointer = checkpointer;
+    }
+
+    /**
+     * Returns the attached checkpointer.
+     *
+     * @return the checkpointer, or null if none is attached
+     */
+    public Checkpointer getCheckpointer() {
+        return checkpointer;
+    }
+
+    /**
+     * Starts a transaction: the mutations up to the matching
+     * {@link #commitTransaction()} are journaled as one record, so recovery
+     * replays all of them or none. Transactions nest.
+     */
+    public void beginTransaction() {
+        if (journal != null) {
+            journal.begin();
+        }
+        undoLog.begin();
+    }
+
+    /**
+     * Ends a transaction, journaling its mutations if it is the outermost one.
+     * The mutations of the outermost transaction are undone as one step. If
+     * the journal cannot be written, they are taken back as by
+     * {@link #abortTransaction()}.
+     *
+     * @throws java.io.UncheckedIOException if the journal cannot be written
+     */
+    public void commitTransaction() {
+        if (journal != null) {
+            try {
+                journal.commit();
+            } catch (UncheckedIOException e) {
+                takeBack();
+                throw e;
+            }
+        }
+        undoLog.commit();
+        checkpointIfDue();
+    }
+
+    /**
+     * Drops every open transaction without journaling it, taking back its
+     * mutations through their inverses. Only the changed shapes are touched;
+     * the undo history before the transaction and the named checkpoints stay.
+     */
+    public void abortTransaction() {
+        try {
+            takeBack();
+        } finally {
+            if (journal != null) {
+                journal.abort();
+            }
+        }
+    }
+
+    /**
+     * Applies the inverses of the open transaction's primitives, unrecorded and unjournaled.
+     */
+    private void takeBack() {
+        final UndoLog.Entry entry = undoLog.startAbort();
+        try {
+            if (entry != null) {
+                applyInverses(entry, false);
+            }
+        } finally {
+            undoLog.endAbort();
+        }
+    }
+
+    /**
+     * Sets how many changes can be undone; the oldest ones beyond that are forgotten.
+     *
+     * @param depth maximum number of undoable changes (0 turns undo off)
+     * @throws IllegalArgumentException if {@code depth} is negative
+     */
+    public void setUndoDepth(final int depth) {
+        undoLog.setLimit(depth);
+    }
+
+    /**
+     * Returns how many changes can be undone at most.
+     *
+     * @return the undo depth
+     */
+    public int getUndoDepth() {
+        return undoLog.getLimit();
+    }
+
+    /**
+     * Takes back the latest change (one command, or one committed batch) that
+     * has not been undone yet. The undo is journaled as the primitives it applies.
+     *
+     * @return number of primitive changes taken back, or 0 if there was nothing to undo
+     * @throws java.io.UncheckedIOException if the journal cannot be written
+     */
+    public int undo() {
+        requireWritable();
+        final UndoLog.Entry entry = undoLog.startUndo();
+        if (entry == null) {
+            return 0;
+        }
+        try {
+            revert(entry);
+        } finally {
+            undoLog.endUndo();
+        }
+        return entry.size();
+    }
+
+    /**
+     * Applies again the latest change taken back by {@link #undo()}. Any other
+     * change since that undo makes the redo unavailable.
+     *
+     * @return number of primitive changes applied again, or 0 if there was nothing to redo
+     * @throws java.io.UncheckedIOException if the journal cannot be written
+     */
+    public int redo() {
+        requireWritable();
+        final UndoLog.Entry entry = undoLog.startRedo();
+        if (entry == null) {
+            return 0;
+        }
+        try {
+            revert(entry);
+        } finally {
+            undoLog.endRedo();
+        }
+        return entry.size();
+    }
+
+    /**
+     * Marks the current state of the scene under a name. Nothing is copied:
+     * the checkpoint is a position in the undo history, and the changes made
+     * after it are kept (beyond the undo depth) until it is dropped.
+     *
+     * @param name checkpoint name; an existing checkpoint of that name is moved here
+     */
+    public void markCheckpoint(final String name) {
+        requireWritable();
+        undoLog.mark(name);
+    }
+
+    /**
+     * Brings the scene back to a named checkpoint by undoing the changes made
+     * since it (or redoing those undone past it), as one journal record. The
+     * checkpoint stays, and the undone changes can be redone.
+     * <p>
+     * All or nothing: the history is checked to reach the checkpoint before
+     * anything changes, and if a step or the journal write fails, the steps
+     * already taken are taken back and nothing is journaled.
+     *
+     * @param name checkpoint name
+     * @return number of changes undone or redone
+     * @throws ClevisException if there is no such checkpoint, or if the history
+     *                         no longer reaches it
+     * @throws java.io.UncheckedIOException if the journal cannot be written
+     */
+    public int rollbackToCheckpoint(final String name) throws ClevisException {
+        requireWritable();
+        final Long target = undoLog.checkpoint(name);
+        if (target == null) {
+            throw new ClevisException("No checkpoint named '" + name + "'.");
+        }
+        final long from = undoLog.position();
+        if (from > target ? undoLog.undoable() < from - target : undoLog.redoable() < target - from) {
+            throw new ClevisException("Cannot reach checkpoint '" + name + "': the undo history no longer reaches it.");
+        }
+        int steps = 0;
+        undoLog.pin();
+        if (journal != null) {
+            journal.begin();
+        }
+        try {
+            while (undoLog.position() > target && undo() > 0) {
+                steps++;
+            }
+            while (undoLog.position() < target && redo() > 0) {
+                steps++;
+            }
+            if (undoLog.position() != target) {
+                throw new IllegalStateException("Undo history ended before checkpoint '" + name + "'.");
+            }
+            if (journal != null) {
+                journal.commit();
+            }
+        } catch (RuntimeException e) {
+            // Return to where we started; the journal collects the steps back but never writes them.
+            if (journal != null && !journal.inTransaction()) {
+                journal.begin();
+            }
+            try {
+                while (undoLog.position() > from && undo() > 0) {
+                    // keep undoing
+                }
+                while (undoLog.position() < from && redo() > 0) {
+                    // keep redoing
+                }
+            } finally {
+                if (journal != null) {
+                    journal.abort();
+                }
+            }
+            throw e;
+        } finally {
+            undoLog.unpin();
+        }
+        checkpointIfDue();
+        return steps;
+    }
+
+    /**
+     * Removes a named checkpoint, releasing the changes it kept beyond the undo depth.
+     *
+     * @param name checkpoint name
+     * @throws ClevisException if there is no such checkpoint
+     */
+    public void dropCheckpoint(final String name) throws ClevisException {
+        if (!undoLog.unmark(name)) {
+            throw new ClevisException("No checkpoint named '" + name + "'.");
+        }
+    }
+
+    /**
+     * Returns the names of the named checkpoints that can still be rolled back to.
+     *
+     * @return checkpoint names in alphabetical order
+     */
+    public Set<String> getCheckpointNames() {
+        return undoLog.checkpoints().keySet();
+    }
+
+    /**
+     * Applies the inverse of each primitive of an undo log entry, last first,
+     * as one journal record.
+     */
+    private void revert(final UndoLog.Entry entry) {
+        if (journal != null) {
+            journal.begin();
+        }
+        try {
+            applyInverses(entry, journal != null);
+        } finally {
+            if (journal != null) {
+                journal.commit();
+            }
+        }
+        checkpointIfDue();
+    }
+
+    /**
+     * Applies the inverse of each primitive of an undo log entry, last first,
+     * journaling each one if {@code journaled}.
+     */
+    private void applyInverses(final UndoLog.Entry entry, final boolean journaled) {
+        final Lock exclusive = sceneLock.writeLock();
+        exclusive.lock();
+        try {
+            for (int i = entry.size() - 1; i >= 0; i--) {
+                switch (entry.op(i)) {
+                    case UndoLog.INSERTED:
+                        if (journaled) {
+                            journal.removed(entry.name(i));
+                        }
+                        removeTop(entry.name(i));
+                        break;
+                    case UndoLog.REMOVED:
+                        if (journaled) {
+                            journal.inserted(entry.shape(i), entry.z(i));
+                        }
+                        insertAt(entry.shape(i), entry.z(i));
+                        break;
+                    default:
+                        if (journaled) {
+                            journal.moved(entry.name(i), -entry.dx(i), -entry.dy(i));
+                        }
+                        shift(shapesByName.get(entry.name(i)), -entry.dx(i), -entry.dy(i));
+                        break;
+                }
+            }
+        } finally {
+            exclusive.unlock();
+        }
+    }
 
     /**
      * Adds a new shape to the manager.
@@ -20,11 +402,16 @@ public final class ShapeManager {
      * @throws ClevisException.DuplicateShapeException if a shape with the same name already exists
      */
     public void addShape(final Shape shape) throws ClevisException.DuplicateShapeException {
+        requireWritable();
         if (shapesByName.containsKey(shape.getName())) {
             throw new ClevisException.DuplicateShapeException(
                     "The shape '" + shape.getName() + "' is already in the list.");
         }
-        shapesByName.put(shape.getName(), shape);
+        if (journal != null) {
+            journal.added(shape);
+        }
+        insert(shape);
+        checkpointIfDue();
     }
 
     /**
@@ -34,19 +421,427 @@ public final class ShapeManager {
      * @throws ClevisException.ShapeNotFoundException if the shape does not exist
      */
     public void deleteShape(final String name) throws ClevisException.ShapeNotFoundException {
+        requireWritable();
         final Shape shape = shapesByName.get(name);
         if (shape == null) {
             throw new ClevisException.ShapeNotFoundException("The shape '" + name + "' is not in the list.");
         }
+        if (journal != null) {
+            journal.deleted(name);
+        }
+        undoLog.begin();
+        remove(shape);
+        undoLog.commit();
+        checkpointIfDue();
+    }
+
+    /**
+     * Moves a top-level shape (a group moves all its members).
+     *
+     * @param name name of the shape to move
+     * @param dx   horizontal offset
+     * @param dy   vertical offset
+     * @throws ClevisException.ShapeNotFoundException if the shape does not exist
+     */
+    public void moveShape(final String name, final double dx, final double dy)
+            throws ClevisException.ShapeNotFoundException {
+        requireWritable();
+        // Moves of other shapes go on concurrently; the shared scene lock keeps each
+        // one wholly before or after a checkpoint's capture and journal switch.
+        final Lock moving = sceneLock.readLock();
+        moving.lock();
+        try {
+            synchronized (moveLockOf(name)) {
+                final Shape shape = shapesByName.get(name);
+                if (shape == null) {
+                    throw new ClevisException.ShapeNotFoundException("Shape not found: " + name);
+                }
+                if (journal != null) {
+                    journal.moved(name, dx, dy);
+                }
+                shift(shape, dx, dy);
+            }
+        } finally {
+            moving.unlock();
+        }
+        checkpointIfDue();
+    }
+
+    private Object moveLockOf(final String name) {
+        final int h = name.hashCode();
+        return moveLocks[(h ^ (h >>> 16)) & (moveLocks.length - 1)];
+    }
+
+    /**
+     * Moves a top-level shape, copying it first while a checkpoint reads the scene.
+     * The caller holds the scene lock and the shape's move lock, or the scene lock exclusively.
+     */
+    private void shift(final Shape shape, final double dx, final double dy) {
+        final String name = shape.getName();
+        if (shared) {
+            final Shape moved = shape.copy();
+            moved.move(dx, dy);
+            // Only values of existing keys change, but the maps are not thread-safe.
+            synchronized (undoLog) {
+                shapesByName.put(name, moved);
+                zOrder.put(nameIndex.get(name), moved);
+            }
+        } else {
+            shape.move(dx, dy);
+        }
+        synchronized (undoLog) {
+            undoLog.moved(name, dx, dy);
+        }
+        spatial = null;
+    }
+
+    /**
+     * Returns the scene lock held exclusively while the scene is captured, so no move is half done.
+     *
+     * @return exclusive side of the scene lock
+     */
+    Lock exclusiveLock() {
+        return sceneLock.writeLock();
+    }
+
+    /**
+     * Groups top-level shapes into a new group placed on top of the Z-order (REQ6).
+     * Nothing changes if the command fails. The group may reuse the name of one of its members.
+     *
+     * @param name        name of the new group
+     * @param memberNames names of the shapes to group, in order (not retained)
+     * @return the new group
+     * @throws ClevisException if a member does not exist or is listed twice,
+     *                         or the name is already taken by another shape
+     */
+    public Group group(final String name, final List<String> memberNames) throws ClevisException {
+        requireWritable();
+        final List<Shape> members = new ArrayList<>(memberNames.size());
+        final Set<String> seen = new HashSet<>();
+        for (String memberName : memberNames) {
+            final Shape s = shapesByName.get(memberName);
+            if (s == null) {
+                throw new ClevisException.ShapeNotFoundException("Shape not found: " + memberName);
+            }
+            if (!seen.add(memberName)) {
+                throw new ClevisException.GroupingException("Shape '" + memberName + "' is listed more than once.");
+            }
+            members.add(s);
+        }
+        if (shapesByName.containsKey(name) && !seen.contains(name)) {
+            throw new ClevisException.DuplicateShapeException("The shape '" + name + "' is already in the list.");
+        }
+
+        final Group group = new Group(name, members);
+        if (journal != null) {
+            journal.grouped(name, memberNames);
+        }
+        undoLog.begin();
+        for (Shape s : members) {
+            removeTop(s.getName());
+        }
+        insert(group);
+        undoLog.commit();
+        checkpointIfDue();
+        return group;
+    }
+
+    /**
+     * Replaces a group by its members, which go on top of the Z-order in their group order (REQ7).
+     *
+     * @param name name of the group
+     * @return the removed group
+     * @throws ClevisException if the shape does not exist or is not a group
+     */
+    public Group ungroup(final String name) throws ClevisException {
+        requireWritable();
+        final Shape shape = shapesByName.get(name);
+        if (shape == null) {
+            throw new ClevisException.ShapeNotFoundException("Shape not found: " + name);
+        }
+        if (!(shape instanceof Group group)) {
+            throw new ClevisException("Shape '" + name + "' is not a group.");
+        }
+        if (journal != null) {
+            journal.ungrouped(name);
+        }
+        undoLog.begin();
+        remove(group);
+        for (Shape member : group.getMembers()) {
+            insert(member);
+        }
+        undoLog.commit();
+        checkpointIfDue();
+        return group;
+    }
+
+    /**
+     * Adds the shapes of an imported file on top of the Z-order in one step
+     * (see {@link SceneImport}). Nothing is added if a name is already taken.
+     * The spatial index is packed over the new scene right away, in one pass.
+     *
+     * @param source file the shapes were read from; a copy is journaled so recovery imports the same shapes
+     * @param shapes top-level shapes in Z-order (bottom first), with distinct names
+     * @throws ClevisException.DuplicateShapeException if a shape's name is already in the scene
+     * @throws java.io.UncheckedIOException if the journal cannot be written
+     */
+    void importShapes(final File source, final Shape[] shapes) throws ClevisException.DuplicateShapeException {
+        requireWritable();
+        for (Shape s : shapes) {
+            if (shapesByName.containsKey(s.getName())) {
+                throw new ClevisException.DuplicateShapeException(
+                        "The shape '" + s.getName() + "' is already in the list.");
+            }
+        }
+        if (journal != null) {
+            journal.imported(source);
+        }
+        final long[] z = new long[shapes.length];
+        undoLog.begin();
+        for (int i = 0; i < shapes.length; i++) {
+            shapesByName.put(shapes[i].getName(), shapes[i]);
+            z[i] = nextZ++;
+            undoLog.inserted(shapes[i].getName());
+        }
+        undoLog.commit();
+        for (int i = 0; i < shapes.length; i++) {
+            zOrder.put(z[i], shapes[i]);
+            nameIndex.put(shapes[i].getName(), z[i]);
+        }
+        spatial = SpatialIndex.build(zOrder.values().toArray(new Shape[0]));
+        checkpointIfDue();
+    }
+
+    /**
+     * Puts a top-level shape into the Z-order at a given place; journal replay
+     * of an undo or redo.
+     *
+     * @param shape new top-level shape
+     * @param z     its Z sequence number, not taken by another shape
+     * @throws ClevisException.DuplicateShapeException if a shape with the same name already exists
+     */
+    void insertShape(final Shape shape, final long z) throws ClevisException.DuplicateShapeException {
+        requireWritable();
+        if (shapesByName.containsKey(shape.getName())) {
+            throw new ClevisException.DuplicateShapeException(
+                    "The shape '" + shape.getName() + "' is already in the list.");
+        }
+        if (zOrder.containsKey(z)) {
+            throw new IllegalArgumentException("Z position " + z + " is already taken.");
+        }
+        if (journal != null) {
+            journal.inserted(shape, z);
+        }
+        insertAt(shape, z);
+        nextZ = Math.max(nextZ, z + 1);
+        checkpointIfDue();
+    }
+
+    /**
+     * Takes a top-level shape out of the scene, leaving other shapes that share
+     * a member's name alone; journal replay of an undo or redo.
+     *
+     * @param name shape name
+     * @throws ClevisException.ShapeNotFoundException if the shape does not exist
+     */
+    void removeShape(final String name) throws ClevisException.ShapeNotFoundException {
+        requireWritable();
+        if (!shapesByName.containsKey(name)) {
+            throw new ClevisException.ShapeNotFoundException("The shape '" + name + "' is not in the list.");
+        }
+        if (journal != null) {
+            journal.removed(name);
+        }
+        removeTop(name);
+        checkpointIfDue();
+    }
+
+    /**
+     * Replaces the whole scene with one read from a scene file (see {@link SceneFile}).
+     * Both indexes are filled in key order, from the Z sequence numbers and the
+     * name order stored in the file, so no sorting is needed.
+     * The undo history and named checkpoints are cleared.
+     *
+     * @param source file the scene was read from; a copy is journaled so recovery loads the same scene
+     * @param shapes top-level shapes in Z-order (bottom first)
+     * @param z      Z sequence number of each shape, increasing
+     * @param byName positions in {@code shapes}, sorted by shape name
+     * @param nextZ  Z sequence number for the next insertion (greater than every {@code z})
+     * @throws java.io.UncheckedIOException if the journal cannot be written
+     */
+    void replaceScene(final File source, final Shape[] shapes, final long[] z, final int[] byName,
+                      final long nextZ) {
+        if (journal != null) {
+            journal.loaded(source);
+        }
+        final Map<String, Shape> names = new HashMap<>(Math.max(16, (int) (shapes.length / 0.75f) + 1));
+        for (Shape s : shapes) {
+            names.put(s.getName(), s);
+        }
+        shapesByName = names;
+        final NavigableMap<Long, Shape> order = new TreeMap<>();
+        for (int i = 0; i < shapes.length; i++) {
+            order.put(z[i], shapes[i]);
+        }
+        zOrder = order;
+        spatial = null;
+        mapped = null;
+        nameIndex.clear();
+        for (int ordinal : byName) {
+            nameIndex.put(shapes[ordinal].getName(), z[ordinal]);
+        }
+        this.nextZ = nextZ;
+        undoLog.clear();
+    }
+
+    /**
+     * Replaces the whole scene with a read-only mapped scene file. Mutations are
+     * refused until a scene is loaded again, and the undo history and named checkpoints are cleared.
+     *
+     * @param scene mapped scene
+     * @throws java.io.UncheckedIOException if the journal cannot be written
+     */
+    public void open(final MappedScene scene) {
+        if (journal != null) {
+            journal.opened(scene.getFile());
+        }
+        shapesByName = new HashMap<>();
+        zOrder = new TreeMap<>();
+        nameIndex.clear();
+        spatial = null;
+        mapped = scene;
+        undoLog.clear();
+    }
+
+    /**
+     * Returns the mapped scene, if the scene is open read-only.
+     *
+     * @return the mapped scene, or null if the scene is in memory
+     */
+    public MappedScene getMappedScene() {
+        return mapped;
+    }
+
+    /**
+     * Captures the top-level shapes for a checkpoint. Until {@link #release()},
+     * moves copy a shape instead of changing it, so the captured shapes keep
+     * their state; other mutations never change a shape in place. The caller
+     * holds {@link #exclusiveLock()}, so no move is half done.
+     *
+     * @return top-level shapes in Z-order
+     */
+    Shape[] capture() {
+        shared = true;
+        return zOrder.values().toArray(new Shape[0]);
+    }
+
+    /**
+     * Ends a capture: moves change shapes in place again.
+     */
+    void release() {
+        shared = false;
+    }
+
+    private void checkpointIfDue() {
+        if (checkpointer != null && mapped == null) {
+            checkpointer.checkpointIfDue();
+        }
+    }
+
+    private void requireWritable() {
+        if (mapped != null) {
+            throw new IllegalStateException("The scene " + mapped.getFile().getName()
+                    + " is open read-only; use 'load' to edit it.");
+        }
+    }
+
+    /**
+     * Returns the top-level shapes in Z-order, without copying.
+     *
+     * @return unmodifiable view of the top-level shapes
+     */
+    Collection<Shape> shapes() {
+        return Collections.unmodifiableCollection(zOrder.values());
+    }
+
+    /**
+     * Returns the Z sequence numbers of the top-level shapes, in Z-order.
+     *
+     * @return ascending Z sequence numbers
+     */
+    long[] zNumbers() {
+        final long[] z = new long[zOrder.size()];
+        int i = 0;
+        for (long key : zOrder.keySet()) {
+            z[i++] = key;
+        }
+        return z;
+    }
+
+    /**
+     * Returns the Z sequence number the next new shape will get.
+     *
+     * @return the next Z sequence number, greater than every one in use
+     */
+    long nextZ() {
+        return nextZ;
+    }
+
+    /**
+     * Forgets every change that could be undone or redone.
+     */
+    void clearUndoHistory() {
+        undoLog.clear();
+    }
 
+    /**
+     * Returns the sorted name index (name to Z sequence number).
+     *
+     * @return unmodifiable view of the name index
+     */
+    NavigableMap<String, Long> nameIndex() {
+        return Collections.unmodifiableNavigableMap(nameIndex);
+    }
+
+    private void insert(final Shape shape) {
+        insertAt(shape, nextZ++);
+    }
+
+    /**
+     * Puts a top-level shape at a Z sequence number and records it for undo.
+     */
+    private void insertAt(final Shape shape, final long z) {
+        shapesByName.put(shape.getName(), shape);
+        zOrder.put(z, shape);
+        nameIndex.put(shape.getName(), z);
+        undoLog.inserted(shape.getName());
+        spatial = null;
+    }
+
+    private void remove(final Shape shape) {
         // If group, remove its members as well (REQ8)
         if (shape instanceof Group group) {
             for (Shape member : group.getMembers()) {
-                shapesByName.remove(member.getName());
+                final Shape namesake = shapesByName.get(member.getName());
+                if (namesake != null && namesake != shape) {
+                    removeTop(member.getName());
+                }
             }
         }
 
-        shapesByName.remove(name);
+        removeTop(shape.getName());
+    }
+
+    /**
+     * Takes a top-level shape out of the scene and records it, with its Z
+     * sequence number, for undo.
+     */
+    private void removeTop(final String name) {
+        final Shape shape = shapesByName.remove(name);
+        final long z = nameIndex.remove(name);
+        zOrder.remove(z);
+        undoLog.removed(shape, z);
+        spatial = null;
     }
 
     /**
@@ -56,6 +851,9 @@ public final class ShapeManager {
      * @return the Shape object or null if not found
      */
     public Shape getShape(final String name) {
+        if (mapped != null) {
+            return mapped.get(name);
+        }
         return shapesByName.get(name);
     }
 
@@ -65,7 +863,72 @@ public final class ShapeManager {
      * @return list of all shapes
      */
     public List<Shape> getAllShapes() {
-        return new ArrayList<>(shapesByName.values());
+        if (mapped != null) {
+            return mapped.getAll();
+        }
+        return new ArrayList<>(zOrder.values());
+    }
+
+    /**
+     * Finds the topmost shape covering a point (REQ11).
+     *
+     * @param x x-coordinate
+     * @param y y-coordinate
+     * @return the shape with the highest Z-order covering (x, y), or null
+     */
+    public Shape topmostAt(final double x, final double y) {
+        if (mapped != null) {
+            final int hit = mapped.topmostAt(x, y);
+            return hit < 0 ? null : mapped.get(hit);
+        }
+        for (Shape s : zOrder.descendingMap().values()) {
+            if (s.coversPoint(x, y)) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the top-level shapes whose bounding boxes intersect an area, through
+     * the spatial index (packed again first if the scene changed since the last
+     * area query). A read-only mapped scene is scanned instead.
+     *
+     * @param area area to search (touching edges count)
+     * @return matching shapes in bottom-to-top (increasing Z) order
+     */
+    public List<Shape> shapesIn(final BoundingBox area) {
+        final List<Shape> result = new ArrayList<>();
+        if (mapped != null) {
+            for (int i = 0; i < mapped.size(); i++) {
+                final Shape s = mapped.get(i);
+                if (s.getBounds().intersects(area)) {
+                    result.add(s);
+                }
+            }
+            return result;
+        }
+        final SpatialIndex index = spatialIndex();
+        for (int position : index.query(area)) {
+            result.add(index.shape(position));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the spatial index over the in-memory scene, packing it first if
+     * the scene changed since it was last packed. The index is immutable, so
+     * it can be queried from several threads while the scene does not change.
+     *
+     * @return the index
+     */
+    SpatialIndex spatialIndex() {
+        SpatialIndex index = spatial;
+        if (index == null) {
+            index = SpatialIndex.build(zOrder.values().toArray(new Shape[0]));
+            spatial = index;
+        }
+        return index;
     }
 
     /**
@@ -82,4 +945,167 @@ public final class ShapeManager {
         }
         return shape.getBoundingBox();
     }
+
+    /**
+     * Tells whether a name argument should be treated as a selector rather than
+     * a plain shape name. Selectors contain the glob wildcards '*' or '?', or
+     * start with a type filter such as "circle:".
+     *
+     * @param token command argument
+     * @return true if the token is a selector
+     */
+    public static boolean isSelector(final String token) {
+        return token.indexOf('*') >= 0 || token.indexOf('?') >= 0 || typeFilterOf(token) != null;
+    }
+
+    /**
+     * Selects all top-level shapes matching a selector in a single pass.
+     * <p>
+     * A selector is an optional type filter ({@code rectangle:}, {@code line:},
+     * {@code circle:}, {@code square:} or {@code group:}) followed by a glob
+     * pattern where '*' matches any run of characters and '?' matches one.
+     * Patterns with a literal prefix (e.g. {@code row7_*}) are resolved through
+     * the sorted name index instead of scanning every shape.
+     *
+     * @param selector selector such as {@code row7_*} or {@code circle:*}
+     * @return matching shapes in bottom-to-top (increasing Z) order
+     */
+    public List<Shape> select(final String selector) {
+        final String type = typeFilterOf(selector);
+        final String glob = type == null ? selector : selector.substring(type.length() + 1);
+        final Pattern pattern = compileGlob(glob);
+        final String prefix = literalPrefix(glob);
+        if (mapped != null) {
+            return selectMapped(type, pattern, prefix);
+        }
+
+        final List<Shape> result = new ArrayList<>();
+        if (prefix.isEmpty()) {
+            for (Shape s : zOrder.values()) {
+                if (matches(s, type, pattern)) {
+                    result.add(s);
+                }
+            }
+            return result;
+        }
+
+        // Prefix range of the name index, re-ordered by Z sequence afterwards.
+        final List<Map.Entry<String, Long>> hits = new ArrayList<>();
+        for (Map.Entry<String, Long> e : nameIndex.tailMap(prefix, true).entrySet()) {
+            if (!e.getKey().startsWith(prefix)) {
+                break;
+            }
+            if (matches(shapesByName.get(e.getKey()), type, pattern)) {
+                hits.add(e);
+            }
+        }
+        hits.sort(Map.Entry.comparingByValue());
+        for (Map.Entry<String, Long> e : hits) {
+            result.add(shapesByName.get(e.getKey()));
+        }
+        return result;
+    }
+
+    /**
+     * {@link #select} over the mapped scene: names and types are read from the
+     * file and only matching shapes are materialized.
+     */
+    private List<Shape> selectMapped(final String type, final Pattern pattern, final String prefix) {
+        final List<Integer> hits = new ArrayList<>();
+        if (prefix.isEmpty()) {
+            for (int i = 0; i < mapped.size(); i++) {
+                if (mappedMatches(i, type, pattern)) {
+                    hits.add(i);
+                }
+            }
+        } else {
+            for (int p = mapped.firstAtOrAfter(prefix); p < mapped.size(); p++) {
+                final int ordinal = mapped.ordinalAt(p);
+                if (!mapped.nameOf(ordinal).startsWith(prefix)) {
+                    break;
+                }
+                if (mappedMatches(ordinal, type, pattern)) {
+                    hits.add(ordinal);
+                }
+            }
+            Collections.sort(hits);
+        }
+        final List<Shape> result = new ArrayList<>(hits.size());
+        for (int ordinal : hits) {
+            result.add(mapped.get(ordinal));
+        }
+        return result;
+    }
+
+    private boolean mappedMatches(final int ordinal, final String type, final Pattern pattern) {
+        return (type == null || type.equals(mapped.typeOf(ordinal))) && pattern.matcher(mapped.nameOf(ordinal)).matches();
+    }
+
+    /**
+     * Returns the type keyword of a shape, as used in selectors and commands.
+     *
+     * @param shape shape
+     * @return "rectangle", "line", "circle", "square" or "group"
+     */
+    public static String typeOf(final Shape shape) {
+        if (shape instanceof Rectangle) {
+            return "rectangle";
+        } else if (shape instanceof Square) {
+            return "square";
+        } else if (shape instanceof Circle) {
+            return "circle";
+        } else if (shape instanceof Line) {
+            return "line";
+        }
+        return "group";
+    }
+
+    private static boolean matches(final Shape s, final String type, final Pattern pattern) {
+        return (type == null || type.equals(typeOf(s))) && pattern.matcher(s.getName()).matches();
+    }
+
+    private static String typeFilterOf(final String selector) {
+        final int colon = selector.indexOf(':');
+        if (colon <= 0) {
+            return null;
+        }
+        final String type = selector.substring(0, colon).toLowerCase(Locale.ROOT);
+        switch (type) {
+            case "rectangle":
+            case "line":
+            case "circle":
+            case "square":
+            case "group":
+                return type;
+            default:
+                return null;
+        }
+    }
+
+    private static String literalPrefix(final String glob) {
+        int i = 0;
+        while (i < glob.length() && glob.charAt(i) != '*' && glob.charAt(i) != '?') {
+            i++;
+        }
+        return glob.substring(0, i);
+    }
+
+    private static Pattern compileGlob(final String glob) {
+        final StringBuilder regex = new StringBuilder();
+        int literalStart = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            final char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                if (i > literalStart) {
+                    regex.append(Pattern.quote(glob.substring(literalStart, i)));
+                }
+                regex.append(c == '*' ? ".*" : ".");
+                literalStart = i + 1;
+            }
+        }
+        if (literalStart < glob.length()) {
+            regex.append(Pattern.quote(glob.substring(literalStart)));
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
 }
@@ -0,0 +1,289 @@
+package hk.edu.polyu.comp.comp2021.clevis.model;
+
+import java.util.Arrays;
+
+/**
+ * Static R-tree over the bounding boxes of the top-level shapes, used to find
+ * the shapes in an area without testing every one.
+ * <p>
+ * The tree is packed in one pass with sort-tile-recursive (STR) packing:
+ * shapes are sorted by the x of their box centers, cut into vertical slices
+ * of about sqrt(n / {@value #NODE_CAPACITY}) leaves each, sorted by y within
+ * each slice and packed {@value #NODE_CAPACITY} to a leaf. Each level of nodes
+ * is packed the same way into the level above, up to a single root. Nodes are
+ * stored level by level in flat arrays, and only nodes carry boxes: a leaf's
+ * shapes are tested against their own bounds, so the index costs a few bytes
+ * per shape.
+ * <p>
+ * The index is never updated in place; {@link ShapeManager} drops it when the
+ * scene changes and packs a new one at the next area query. Instances are
+ * immutable.
+ */
+final class SpatialIndex {
+
+    /** Maximum number of children of a node. */
+    static final int NODE_CAPACITY = 16;
+
+    private final Shape[] shapes;
+    /** Positions in {@link #shapes}, in packing order; leaf i holds a run of them. */
+    private final int[] entries;
+    /** Node levels, leaves first; the last level is the root. Empty if there are no shapes. */
+    private final Level[] levels;
+
+    private SpatialIndex(final Shape[] shapes, final int[] entries, final Level[] levels) {
+        this.shapes = shapes;
+        this.entries = entries;
+        this.levels = levels;
+    }
+
+    /**
+     * Packs an index over the given shapes.
+     *
+     * @param shapes top-level shapes in Z-order; kept, not copied
+     * @return the index
+     */
+    static SpatialIndex build(final Shape[] shapes) {
+        final int n = shapes.length;
+        if (n == 0) {
+            return new SpatialIndex(shapes, new int[0], new Level[0]);
+        }
+        final float[] cx = new float[n];
+        final float[] cy = new float[n];
+        for (int i = 0; i < n; i++) {
+            final BoundingBox b = shapes[i].getBounds();
+            cx[i] = (float) (b.getX() + b.getWidth() / 2);
+            cy[i] = (float) (b.getY() + b.getHeight() / 2);
+        }
+        final int[] entries = strOrder(n, cx, cy);
+
+        final int leaves = (n + NODE_CAPACITY - 1) / NODE_CAPACITY;
+        Level level = new Level(leaves);
+        for (int j = 0; j < leaves; j++) {
+            final int first = j * NODE_CAPACITY;
+            final int end = Math.min(first + NODE_CAPACITY, n);
+            level.first[j] = first;
+            level.count[j] = end - first;
+            level.empty(j);
+            for (int e = first; e < end; e++) {
+                final BoundingBox b = shapes[entries[e]].getBounds();
+                level.extend(j, b.getX(), b.getY(), b.getX() + b.getWidth(), b.getY() + b.getHeight());
+            }
+        }
+
+        Level[] levels = {level};
+        while (level.size() > 1) {
+            level = packAbove(level);
+            levels = Arrays.copyOf(levels, levels.length + 1);
+            levels[levels.length - 1] = level;
+        }
+        return new SpatialIndex(shapes, entries, levels);
+    }
+
+    /**
+     * @return number of shapes in the index
+     */
+    int size() {
+        return shapes.length;
+    }
+
+    /**
+     * @param position position in Z-order
+     * @return the shape at that position
+     */
+    Shape shape(final int position) {
+        return shapes[position];
+    }
+
+    /**
+     * Finds the shapes whose bounding boxes intersect an area.
+     *
+     * @param area area to search (touching edges count)
+     * @return their positions in Z-order, ascending
+     */
+    int[] query(final BoundingBox area) {
+        if (levels.length == 0) {
+            return new int[0];
+        }
+        final double minX = area.getX();
+        final double minY = area.getY();
+        final double maxX = minX + area.getWidth();
+        final double maxY = minY + area.getHeight();
+
+        int[] hits = new int[16];
+        int found = 0;
+        // Explicit stack of (level, node) pairs.
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = levels.length - 1;
+        stack[top++] = 0;
+        while (top > 0) {
+            final int node = stack[--top];
+            final int depth = stack[--top];
+            final Level level = levels[depth];
+            if (!level.intersects(node, minX, minY, maxX, maxY)) {
+                continue;
+            }
+            final int first = level.first[node];
+            final int end = first + level.count[node];
+            if (depth > 0) {
+                if (stack.length < top + 2 * (end - first)) {
+                    stack = Arrays.copyOf(stack, Math.max(stack.length * 2, top + 2 * (end - first)));
+                }
+                for (int c = first; c < end; c++) {
+                    stack[top++] = depth - 1;
+                    stack[top++] = c;
+                }
+                continue;
+            }
+            for (int e = first; e < end; e++) {
+                final int position = entries[e];
+                if (shapes[position].getBounds().intersects(area)) {
+                    if (found == hits.length) {
+                        hits = Arrays.copyOf(hits, found * 2);
+                    }
+                    hits[found++] = position;
+                }
+            }
+        }
+        final int[] result = Arrays.copyOf(hits, found);
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Packs a level of nodes into the level above it. The nodes of {@code below}
+     * are first reordered in place into STR order, so each parent covers a run.
+     */
+    private static Level packAbove(final Level below) {
+        final int n = below.size();
+        final float[] cx = new float[n];
+        final float[] cy = new float[n];
+        for (int i = 0; i < n; i++) {
+            cx[i] = (float) ((below.minX[i] + below.maxX[i]) / 2);
+            cy[i] = (float) ((below.minY[i] + below.maxY[i]) / 2);
+        }
+        below.permute(strOrder(n, cx, cy));
+
+        final int parents = (n + NODE_CAPACITY - 1) / NODE_CAPACITY;
+        final Level above = new Level(parents);
+        for (int p = 0; p < parents; p++) {
+            final int first = p * NODE_CAPACITY;
+            final int end = Math.min(first + NODE_CAPACITY, n);
+            above.first[p] = first;
+            above.count[p] = end - first;
+            above.empty(p);
+            for (int c = first; c < end; c++) {
+                above.extend(p, below.minX[c], below.minY[c], below.maxX[c], below.maxY[c]);
+            }
+        }
+        return above;
+    }
+
+    /**
+     * Sort-tile-recursive order of {@code n} items given their centers.
+     *
+     * @return item numbers in packing order
+     */
+    static int[] strOrder(final int n, final float[] cx, final float[] cy) {
+        final long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = key(cx[i], i);
+        }
+        Arrays.parallelSort(keys);
+
+        final int nodes = (n + NODE_CAPACITY - 1) / NODE_CAPACITY;
+        final int slices = (int) Math.ceil(Math.sqrt(nodes));
+        final long sliceSize = (long) slices * NODE_CAPACITY;
+        for (long start = 0; start < n; start += sliceSize) {
+            final int from = (int) start;
+            final int to = (int) Math.min(n, start + sliceSize);
+            for (int i = from; i < to; i++) {
+                final int item = (int) keys[i];
+                keys[i] = key(cy[item], item);
+            }
+            Arrays.sort(keys, from, to);
+        }
+
+        final int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = (int) keys[i];
+        }
+        return order;
+    }
+
+    /**
+     * Packs a coordinate and an item number into one long that sorts by the
+     * coordinate: the float's bits are flipped so signed order matches numeric order.
+     */
+    private static long key(final float coordinate, final int item) {
+        final int bits = Float.floatToIntBits(coordinate);
+        return (long) (bits ^ (bits >> 31 & 0x7FFFFFFF)) << 32 | item & 0xFFFFFFFFL;
+    }
+
+    /**
+     * One level of nodes: a box and a run of children (entries for leaves,
+     * nodes of the level below otherwise) per node.
+     */
+    private static final class Level {
+        double[] minX;
+        double[] minY;
+        double[] maxX;
+        double[] maxY;
+        int[] first;
+        int[] count;
+
+        Level(final int size) {
+            minX = new double[size];
+            minY = new double[size];
+            maxX = new double[size];
+            maxY = new double[size];
+            first = new int[size];
+            count = new int[size];
+        }
+
+        int size() {
+            return first.length;
+        }
+
+        void empty(final int i) {
+            minX[i] = Double.POSITIVE_INFINITY;
+            minY[i] = Double.POSITIVE_INFINITY;
+            maxX[i] = Double.NEGATIVE_INFINITY;
+            maxY[i] = Double.NEGATIVE_INFINITY;
+        }
+
+        void extend(final int i, final double x0, final double y0, final double x1, final double y1) {
+            minX[i] = Math.min(minX[i], x0);
+            minY[i] = Math.min(minY[i], y0);
+            maxX[i] = Math.max(maxX[i], x1);
+            maxY[i] = Math.max(maxY[i], y1);
+        }
+
+        boolean intersects(final int i, final double x0, final double y0, final double x1, final double y1) {
+            return !(maxX[i] < x0 || x1 < minX[i] || maxY[i] < y0 || y1 < minY[i]);
+        }
+
+        /**
+         * Reorders the nodes so that node {@code order[i]} becomes node {@code i}.
+         */
+        void permute(final int[] order) {
+            final int n = order.length;
+            final Level p = new Level(n);
+            for (int i = 0; i < n; i++) {
+                final int from = order[i];
+                p.minX[i] = minX[from];
+                p.minY[i] = minY[from];
+                p.maxX[i] = maxX[from];
+                p.maxY[i] = maxY[from];
+                p.first[i] = first[from];
+                p.count[i] = count[from];
+            }
+            minX = p.minX;
+            minY = p.minY;
+            maxX = p.maxX;
+            maxY = p.maxY;
+            first = p.first;
+            count = p.count;
+        }
+    }
+}
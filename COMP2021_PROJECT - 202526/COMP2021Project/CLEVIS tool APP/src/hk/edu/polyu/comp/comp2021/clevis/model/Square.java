@@ -1,7 +1,5 @@
 package hk.edu.polyu.comp.comp2021.clevis.model;
 
-import java.util.Locale;
-
 /**
  * Represents a square shape in the Clevis system.
  * <p>
@@ -36,6 +34,33 @@ public final class Square implements Shape {
         this.length = length;
     }
 
+    /**
+     * Returns the x-coordinate of the top-left corner.
+     *
+     * @return x-coordinate of the top-left corner
+     */
+    public double getX() {
+        return x;
+    }
+
+    /**
+     * Returns the y-coordinate of the top-left corner.
+     *
+     * @return y-coordinate of the top-left corner
+     */
+    public double getY() {
+        return y;
+    }
+
+    /**
+     * Returns the side length.
+     *
+     * @return side length
+     */
+    public double getLength() {
+        return length;
+    }
+
     @Override
     public double getArea() {
         return length * length;
@@ -58,13 +83,26 @@ public final class Square implements Shape {
     }
 
     @Override
-    public String getBoundingBox() {
-        return String.format(Locale.ROOT, "%.2f %.2f %.2f %.2f",
-                x, y, length, length);
+    public BoundingBox getBounds() {
+        return new BoundingBox(x, y, length, length);
     }
 
     @Override
     public boolean coversPoint(final double px, final double py) {
+        return covers(x, y, length, px, py);
+    }
+
+    /**
+     * Point test on raw values, shared with shapes read straight from a scene file.
+     *
+     * @return true if the square (x, y, length) covers (px, py)
+     */
+    static boolean covers(final double x, final double y, final double length, final double px, final double py) {
         return px >= x && px <= x + length && py >= y && py <= y + length;
     }
+
+    @Override
+    public Shape copy() {
+        return new Square(name, x, y, length);
+    }
 }
@@ -0,0 +1,189 @@
+package hk.edu.polyu.comp.comp2021.clevis.model;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Writes a scene as SVG ({@code exportSvg file [x y w h]}).
+ * <p>
+ * Shapes are written in Z-order (bottom first, so later shapes paint on top):
+ * rectangles and squares as {@code rect}, circles as {@code circle}, lines as
+ * {@code line} and groups as {@code g} elements around their members. Every
+ * element's {@code id} is the shape name. Output streams through a buffered
+ * writer straight from the scene; no document tree or copy of the shape list
+ * is built.
+ * <p>
+ * With a viewport, the SVG view box is the viewport and only the top-level
+ * shapes whose bounding boxes intersect it are written, found through the
+ * scene's spatial index ({@link ShapeManager#shapesIn}). Without one, the view
+ * box is the bounding box of the whole scene.
+ */
+public final class SvgExport {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String[] RECT = {"x", "y", "width", "height"};
+    private static final String[] CIRCLE = {"cx", "cy", "r"};
+    private static final String[] LINE = {"x1", "y1", "x2", "y2"};
+
+    private SvgExport() {
+    }
+
+    /**
+     * Writes the scene of {@code manager} to {@code file}.
+     *
+     * @param file     destination file (replaced)
+     * @param manager  scene to export
+     * @param viewport area to export, or null for the whole scene
+     * @return number of top-level shapes written
+     * @throws IOException if the file cannot be written
+     */
+    public static long write(final File file, final ShapeManager manager, final BoundingBox viewport)
+            throws IOException {
+        final MappedScene mapped = manager.getMappedScene();
+        final List<Shape> visible = viewport == null ? null : manager.shapesIn(viewport);
+        final BoundingBox view = viewport != null ? viewport : boundsOf(manager);
+
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+                StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write("<svg xmlns=\"http://www.w3.org/2000/svg\"");
+            if (view != null) {
+                out.write(" viewBox=\"" + num(view.getX()) + ' ' + num(view.getY()) + ' '
+                        + num(view.getWidth()) + ' ' + num(view.getHeight()) + '"');
+            }
+            out.write(">\n<g fill=\"none\" stroke=\"black\">\n");
+            long count = 0;
+            if (visible != null) {
+                for (Shape s : visible) {
+                    writeShape(out, s, 1);
+                    count++;
+                }
+            } else if (mapped != null) {
+                for (int i = 0; i < mapped.size(); i++) {
+                    writeShape(out, mapped.get(i), 1);
+                    count++;
+                }
+            } else {
+                for (Shape s : manager.shapes()) {
+                    writeShape(out, s, 1);
+                    count++;
+                }
+            }
+            out.write("</g>\n</svg>\n");
+            return count;
+        }
+    }
+
+    private static void writeShape(final Writer out, final Shape shape, final int depth) throws IOException {
+        for (int i = 0; i < depth; i++) {
+            out.write("  ");
+        }
+        if (shape instanceof Group g) {
+            out.write("<g id=\"");
+            escape(out, g.getName());
+            out.write("\">\n");
+            for (Shape m : g.getMembers()) {
+                writeShape(out, m, depth + 1);
+            }
+            for (int i = 0; i < depth; i++) {
+                out.write("  ");
+            }
+            out.write("</g>\n");
+            return;
+        }
+        if (shape instanceof Rectangle r) {
+            element(out, "rect", r.getName(), RECT, r.getX(), r.getY(), r.getWidth(), r.getHeight());
+        } else if (shape instanceof Square s) {
+            element(out, "rect", s.getName(), RECT, s.getX(), s.getY(), s.getLength(), s.getLength());
+        } else if (shape instanceof Circle c) {
+            element(out, "circle", c.getName(), CIRCLE, c.getX(), c.getY(), c.getRadius());
+        } else if (shape instanceof Line l) {
+            element(out, "line", l.getName(), LINE, l.getX1(), l.getY1(), l.getX2(), l.getY2());
+        } else {
+            throw new IllegalArgumentException("Cannot export shape type: " + shape.getClass().getName());
+        }
+    }
+
+    /**
+     * Writes an empty element with an id and one numeric attribute per value.
+     */
+    private static void element(final Writer out, final String tag, final String name, final String[] attributes,
+                                final double... values) throws IOException {
+        out.write('<');
+        out.write(tag);
+        out.write(" id=\"");
+        escape(out, name);
+        out.write('"');
+        for (int i = 0; i < values.length; i++) {
+            out.write(' ');
+            out.write(attributes[i]);
+            out.write("=\"");
+            out.write(num(values[i]));
+            out.write('"');
+        }
+        out.write("/>\n");
+    }
+
+    /**
+     * @return bounding box of the whole scene, or null if it is empty
+     */
+    static BoundingBox boundsOf(final ShapeManager manager) {
+        final MappedScene mapped = manager.getMappedScene();
+        return mapped != null ? boundsOf(mapped) : boundsOf(manager.shapes());
+    }
+
+    private static BoundingBox boundsOf(final Collection<Shape> shapes) {
+        BoundingBox box = null;
+        for (Shape s : shapes) {
+            box = box == null ? s.getBounds() : box.union(s.getBounds());
+        }
+        return box;
+    }
+
+    private static BoundingBox boundsOf(final MappedScene scene) {
+        BoundingBox box = null;
+        for (int i = 0; i < scene.size(); i++) {
+            final BoundingBox b = scene.get(i).getBounds();
+            box = box == null ? b : box.union(b);
+        }
+        return box;
+    }
+
+    /**
+     * Formats a coordinate: whole numbers without a fraction, others in full precision.
+     */
+    static String num(final double v) {
+        final long whole = (long) v;
+        return whole == v ? Long.toString(whole) : Double.toString(v);
+    }
+
+    private static void escape(final Writer out, final String text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    out.write("&amp;");
+                    break;
+                case '<':
+                    out.write("&lt;");
+                    break;
+                case '>':
+                    out.write("&gt;");
+                    break;
+                case '"':
+                    out.write("&quot;");
+                    break;
+                default:
+                    out.write(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,374 @@
+package hk.edu.polyu.comp.comp2021.clevis.model;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Bounded history of scene changes for {@code undo} and {@code redo}.
+ * <p>
+ * Every change is broken down into three primitives, recorded as it is
+ * applied: a top-level shape was inserted (name), removed (the shape and its
+ * Z sequence number) or moved (name, dx, dy). A command's primitives form one
+ * entry; a transaction (a committed batch, or a selector command touching many
+ * shapes) is one entry as well. Undoing an entry applies the inverse of each
+ * primitive, last first: remove the shape, put the shape back at its Z number,
+ * move by -dx, -dy. Applying the inverses records a new entry, which is the
+ * redo entry, and redoing it records the undo entry again. An aborted
+ * transaction is taken back the same way, but its inverses are not recorded.
+ * <p>
+ * Only the changed shapes are kept, never a copy of the scene, so the history
+ * costs memory in proportion to what was edited. At most {@link #getLimit()}
+ * entries are kept; the oldest one is dropped when a new one exceeds the
+ * limit. Any new change clears the redo entries.
+ * <p>
+ * A named checkpoint is a mark in this history, not a copy of the scene: the
+ * number of changes applied at the time ({@link #position()}). Rolling back to
+ * it undoes (or redoes) entries until the position matches, so it costs time in
+ * proportion to the changes since the checkpoint and nothing to take. Entries
+ * between the checkpoints and the current position are kept whatever the
+ * limit. A checkpoint that can no longer be reached (a new change after
+ * undoing past it, or the history being cleared) is dropped.
+ * <p>
+ * The log is guarded by its {@link ShapeManager}: it is only used under the
+ * manager's lock or while no other command runs.
+ */
+final class UndoLog {
+
+    /** Default number of undoable entries. */
+    static final int DEFAULT_LIMIT = 100;
+
+    static final byte INSERTED = 0;
+    static final byte REMOVED = 1;
+    static final byte MOVED = 2;
+
+    private final Deque<Entry> undo = new ArrayDeque<>();
+    private final Deque<Entry> redo = new ArrayDeque<>();
+    private int limit = DEFAULT_LIMIT;
+    /** Number of entries applied since the history began: undone ones count down, redone ones up. */
+    private long position;
+    /** Named checkpoints and the position each marks. */
+    private final NavigableMap<String, Long> checkpoints = new TreeMap<>();
+    /** Position kept reachable like a checkpoint while a rollback may have to return to it, or null. */
+    private Long pin;
+
+    /** Entry of the open transaction, or of the change in progress; null between changes. */
+    private Entry pending;
+    /** Open transaction nesting depth. */
+    private int depth;
+    /** Entry recording the inverses applied by an undo or redo, or null. */
+    private Entry inverse;
+
+    /**
+     * @return maximum number of undoable entries
+     */
+    int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Sets the maximum number of undoable entries, dropping the oldest ones
+     * beyond it. A limit of 0 turns the history off.
+     *
+     * @param limit maximum number of entries (not negative)
+     */
+    void setLimit(final int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Undo depth must not be negative.");
+        }
+        this.limit = limit;
+        trim(undo);
+        trim(redo);
+    }
+
+    /**
+     * @return number of entries that can be undone
+     */
+    int undoable() {
+        return undo.size();
+    }
+
+    /**
+     * @return number of entries that can be redone
+     */
+    int redoable() {
+        return redo.size();
+    }
+
+    /**
+     * @return number of entries applied since the history began
+     */
+    long position() {
+        return position;
+    }
+
+    /**
+     * Marks the current position under a name, replacing any earlier mark of
+     * that name.
+     *
+     * @param name checkpoint name
+     */
+    void mark(final String name) {
+        checkpoints.put(name, position);
+    }
+
+    /**
+     * Removes a checkpoint; the entries it kept fall under the limit again.
+     *
+     * @param name checkpoint name
+     * @return true if it existed
+     */
+    boolean unmark(final String name) {
+        if (checkpoints.remove(name) == null) {
+            return false;
+        }
+        trim(undo);
+        trim(redo);
+        return true;
+    }
+
+    /**
+     * @param name checkpoint name
+     * @return the position it marks, or null if there is no such checkpoint
+     */
+    Long checkpoint(final String name) {
+        return checkpoints.get(name);
+    }
+
+    /**
+     * Keeps the entries needed to return to the current position, as a
+     * checkpoint would, until {@link #unpin()}.
+     */
+    void pin() {
+        pin = position;
+    }
+
+    void unpin() {
+        pin = null;
+        trim(undo);
+        trim(redo);
+    }
+
+    /**
+     * @return checkpoint names and positions, by name
+     */
+    NavigableMap<String, Long> checkpoints() {
+        return Collections.unmodifiableNavigableMap(checkpoints);
+    }
+
+    void begin() {
+        depth++;
+    }
+
+    void commit() {
+        if (depth > 0 && --depth == 0) {
+            push();
+        }
+    }
+
+    /**
+     * Drops every open transaction and takes its primitives; the inverses the
+     * caller applies until {@link #endAbort} are not recorded, and the history
+     * before the transaction is left as it was.
+     *
+     * @return the primitives of the open transaction, or null if there are none
+     */
+    Entry startAbort() {
+        final Entry entry = pending;
+        depth = 0;
+        pending = null;
+        inverse = new Entry();
+        return entry;
+    }
+
+    void endAbort() {
+        inverse = null;
+    }
+
+    /**
+     * Forgets every entry, e.g. when the whole scene is replaced.
+     */
+    void clear() {
+        undo.clear();
+        redo.clear();
+        pending = null;
+        checkpoints.clear();
+    }
+
+    void inserted(final String name) {
+        record(INSERTED, name, 0, 0);
+    }
+
+    void removed(final Shape shape, final long z) {
+        record(REMOVED, shape, z, 0);
+    }
+
+    void moved(final String name, final double dx, final double dy) {
+        record(MOVED, name, Double.doubleToRawLongBits(dx), Double.doubleToRawLongBits(dy));
+    }
+
+    /**
+     * Takes the newest entry to undo; the inverses the caller applies until
+     * {@link #endUndo} make up its redo entry.
+     *
+     * @return the entry, or null if there is nothing to undo
+     */
+    Entry startUndo() {
+        return start(undo);
+    }
+
+    void endUndo() {
+        end(redo);
+    }
+
+    /**
+     * Takes the newest entry to redo; the inverses the caller applies until
+     * {@link #endRedo} make up its undo entry again.
+     *
+     * @return the entry, or null if there is nothing to redo
+     */
+    Entry startRedo() {
+        return start(redo);
+    }
+
+    void endRedo() {
+        end(undo);
+    }
+
+    private Entry start(final Deque<Entry> from) {
+        final Entry entry = from.pollLast();
+        if (entry != null) {
+            inverse = new Entry();
+            position += from == undo ? -1 : 1;
+        }
+        return entry;
+    }
+
+    private void end(final Deque<Entry> to) {
+        to.addLast(inverse);
+        inverse = null;
+        trim(to);
+    }
+
+    private void record(final byte op, final Object subject, final long a, final long b) {
+        if (inverse != null) {
+            inverse.add(op, subject, a, b);
+            return;
+        }
+        // An open transaction is recorded whatever the limit, so it can be aborted.
+        if (limit == 0 && checkpoints.isEmpty() && depth == 0) {
+            return;
+        }
+        if (pending == null) {
+            redo.clear();
+            // Checkpoints only reachable through the discarded redo entries are gone.
+            checkpoints.values().removeIf(p -> p > position);
+            pending = new Entry();
+        }
+        pending.add(op, subject, a, b);
+        if (depth == 0) {
+            push();
+        }
+    }
+
+    private void push() {
+        if (pending != null) {
+            undo.addLast(pending);
+            pending = null;
+            position++;
+            trim(undo);
+        }
+    }
+
+    /**
+     * Drops the oldest entries beyond the limit, except those needed to reach
+     * a checkpoint.
+     */
+    private void trim(final Deque<Entry> entries) {
+        if (entries == undo) {
+            long keepFrom = checkpoints.isEmpty() ? Long.MAX_VALUE : Collections.min(checkpoints.values());
+            if (pin != null) {
+                keepFrom = Math.min(keepFrom, pin);
+            }
+            while (undo.size() > limit && position - undo.size() < keepFrom) {
+                undo.pollFirst();
+            }
+        } else {
+            long keepTo = checkpoints.isEmpty() ? Long.MIN_VALUE : Collections.max(checkpoints.values());
+            if (pin != null) {
+                keepTo = Math.max(keepTo, pin);
+            }
+            while (redo.size() > limit && position + redo.size() > keepTo) {
+                redo.pollFirst();
+            }
+        }
+    }
+
+    /**
+     * The primitives of one undoable change, in the order they were applied,
+     * in parallel arrays: an opcode, a subject (a name, or the removed shape)
+     * and two numbers (the Z number, or the raw bits of dx and dy).
+     */
+    static final class Entry {
+        private byte[] ops = new byte[4];
+        private Object[] subjects = new Object[4];
+        private long[] args = new long[8];
+        private int size;
+
+        void add(final byte op, final Object subject, final long a, final long b) {
+            if (size == ops.length) {
+                ops = Arrays.copyOf(ops, size * 2);
+                subjects = Arrays.copyOf(subjects, size * 2);
+                args = Arrays.copyOf(args, size * 4);
+            }
+            ops[size] = op;
+            subjects[size] = subject;
+            args[2 * size] = a;
+            args[2 * size + 1] = b;
+            size++;
+        }
+
+        /**
+         * @return number of primitives
+         */
+        int size() {
+            return size;
+        }
+
+        byte op(final int i) {
+            return ops[i];
+        }
+
+        /**
+         * @return name of the inserted or moved shape
+         */
+        String name(final int i) {
+            return (String) subjects[i];
+        }
+
+        /**
+         * @return the removed shape
+         */
+        Shape shape(final int i) {
+            return (Shape) subjects[i];
+        }
+
+        /**
+         * @return Z sequence number of the removed shape
+         */
+        long z(final int i) {
+            return args[2 * i];
+        }
+
+        double dx(final int i) {
+            return Double.longBitsToDouble(args[2 * i]);
+        }
+
+        double dy(final int i) {
+            return Double.longBitsToDouble(args[2 * i + 1]);
+        }
+    }
+}
@@ -1,5 +1,10 @@
 package hk.edu.polyu.comp.comp2021.clevis.view;
 
+import hk.edu.polyu.comp.comp2021.clevis.model.*;
+
+import java.io.PrintStream;
+import java.util.Locale;
+
 /**
  * ConsoleView handles all text-based interactions with the user.
  * <p>
@@ -46,4 +51,138 @@ public final class ConsoleView {
     public void showError(final String error) {
         System.err.println("Error: " + error);
     }
+
+    /**
+     * Renders the result of a command as text.
+     *
+     * @param result the command result
+     * @param out    destination stream
+     */
+    public void showResult(final CommandResult result, final PrintStream out) {
+        if (result instanceof CommandResult.Sequence seq) {
+            for (CommandResult r : seq.getResults()) {
+                showResult(r, out);
+            }
+        } else if (result instanceof CommandResult.Created c) {
+            showCreated(c, out);
+        } else if (result instanceof CommandResult.Grouping g) {
+            out.printf(g.isGrouped() ? "Created group %s containing: %s%n" : "Ungrouped %s into: %s%n",
+                    g.getName(), String.join(",", g.getMembers()));
+        } else if (result instanceof CommandResult.Changed c) {
+            showChanged(c, out);
+        } else if (result instanceof CommandResult.Bounds b) {
+            final BoundingBox box = b.getBox();
+            out.printf("Bounding box of %s: (x=%.2f, y=%.2f, width=%.2f, height=%.2f)%n",
+                    b.getTarget(), box.getX(), box.getY(), box.getWidth(), box.getHeight());
+        } else if (result instanceof CommandResult.Hit h) {
+            if (h.getName() != null) {
+                out.println("The topmost shape covering point (" + h.getX() + ", " + h.getY() + ") is: " + h.getName());
+            } else {
+                out.println("No shape covers the given point (" + h.getX() + ", " + h.getY() + ").");
+            }
+        } else if (result instanceof CommandResult.Intersection i) {
+            out.printf("Shapes %s and %s intersect: %b%n", i.getFirst(), i.getSecond(), i.intersects());
+        } else if (result instanceof CommandResult.Listing l) {
+            showListing(l, out);
+        } else if (result instanceof CommandResult.History h) {
+            if (h.getLines().isEmpty()) {
+                out.println("No commands logged between " + h.getFrom() + " and " + h.getTo() + ".");
+            }
+            for (String line : h.getLines()) {
+                out.println(line);
+            }
+        } else if (result instanceof CommandResult.Difference d) {
+            showDifference(d, out);
+        } else if (result instanceof CommandResult.Message m) {
+            out.println(m.getText());
+        } else if (result instanceof CommandResult.Failure f) {
+            switch (f.getCode()) {
+                case UNKNOWN_COMMAND:
+                    out.println("Unknown command: " + f.getMessage());
+                    break;
+                case RUNTIME:
+                    out.println("Runtime error: " + f.getMessage());
+                    break;
+                default:
+                    out.println("Error: " + f.getMessage());
+                    break;
+            }
+        }
+    }
+
+    private static void showCreated(final CommandResult.Created c, final PrintStream out) {
+        switch (c.getKind()) {
+            case RECTANGLE:
+                out.printf("Created a Rectangle named %s at (%.2f,%.2f) w=%.2f h=%.2f%n",
+                        c.getName(), c.getValue(0), c.getValue(1), c.getValue(2), c.getValue(3));
+                break;
+            case LINE:
+                out.printf("Created line %s from (%.2f,%.2f) to (%.2f,%.2f)%n",
+                        c.getName(), c.getValue(0), c.getValue(1), c.getValue(2), c.getValue(3));
+                break;
+            case CIRCLE:
+                out.printf("Created circle %s center=(%.2f,%.2f) r=%.2f%n",
+                        c.getName(), c.getValue(0), c.getValue(1), c.getValue(2));
+                break;
+            default:
+                out.printf("Created square %s at (%.2f,%.2f) side=%.2f%n",
+                        c.getName(), c.getValue(0), c.getValue(1), c.getValue(2));
+                break;
+        }
+    }
+
+    private static void showChanged(final CommandResult.Changed c, final PrintStream out) {
+        if (c.isMoved()) {
+            if (c.isSelector()) {
+                out.printf("Moved %d shape(s) matching %s by (%.2f,%.2f)%n",
+                        c.getCount(), c.getTarget(), c.getDx(), c.getDy());
+            } else {
+                out.printf("Moved %s by (%.2f,%.2f)%n", c.getTarget(), c.getDx(), c.getDy());
+            }
+        } else if (c.isSelector()) {
+            out.println("Deleted " + c.getCount() + " shape(s) matching " + c.getTarget());
+        } else {
+            out.println("Deleted shape " + c.getTarget());
+        }
+    }
+
+    private static void showDifference(final CommandResult.Difference d, final PrintStream out) {
+        final SceneDiff diff = d.getDiff();
+        if (diff.isEmpty()) {
+            out.println("No differences between " + d.getFirst() + " and " + d.getSecond() + ".");
+            return;
+        }
+        final StringBuilder counts = new StringBuilder();
+        for (SceneDiff.Kind kind : SceneDiff.Kind.values()) {
+            counts.append(diff.getChanges(kind).size()).append(' ')
+                    .append(kind.name().toLowerCase(Locale.ROOT)).append(", ");
+        }
+        out.println("Differences from " + d.getFirst() + " to " + d.getSecond() + ": " + counts
+                + diff.getUnchanged() + " unchanged");
+        for (SceneDiff.Change c : diff.getChanges()) {
+            out.println(" - " + c.getKind().name().toLowerCase(Locale.ROOT) + " " + c.getName()
+                    + (c.getDetail().isEmpty() ? "" : " " + c.getDetail()));
+        }
+    }
+
+    private static void showListing(final CommandResult.Listing l, final PrintStream out) {
+        if (!l.isAll()) {
+            for (CommandResult.Entry e : l.getEntries()) {
+                out.println("Shape " + e.getName() + ": " + e.getInfo());
+            }
+            return;
+        }
+        if (l.getEntries().isEmpty()) {
+            out.println("No shapes currently exist.");
+            return;
+        }
+        out.println("Listing all shapes (bottom to top):");
+        for (CommandResult.Entry e : l.getEntries()) {
+            out.println(" - " + e.getInfo());
+
+            for (CommandResult.Entry member : e.getMembers()) {
+                out.println("  " + member.getName() + ": " + member.getInfo());
+            }
+        }
+    }
 }
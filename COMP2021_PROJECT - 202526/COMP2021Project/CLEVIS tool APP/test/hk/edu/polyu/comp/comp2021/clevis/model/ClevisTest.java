@@ -2,6 +2,8 @@ package hk.edu.polyu.comp.comp2021.clevis.test;
 
 import hk.edu.polyu.comp.comp2021.clevis.model.*;
 import hk.edu.polyu.comp.comp2021.clevis.controller.Clevis;
+import hk.edu.polyu.comp.comp2021.clevis.controller.ParallelScriptExecutor;
+import hk.edu.polyu.comp.comp2021.clevis.controller.ScriptPipeline;
 
 import org.junit.*;
 import static org.junit.Assert.*;
@@ -102,6 +104,12 @@ public final class ClevisTest {
         } catch (Exception ignored) {
             // intentionally ignored
         }
+        try {
+            String manifest = logger.getManifestFile().getName();
+            deleteLogs(manifest.substring(0, manifest.lastIndexOf('.')));
+        } catch (Exception ignored) {
+            // intentionally ignored
+        }
     }
     
     // REQ1: Logger should write commands to TXT and HTML
@@ -656,4 +664,1596 @@ public final class ClevisTest {
 
         assertTrue(exists);
     }
+
+    // Batch: commit applies atomically, a failing command rolls everything back (extra)
+    @Test
+    public void testBatchCommitAndRollback() {
+        // 💡 Expected:
+        //   first batch committed (b1 exists, moved), second batch rolled back (b2 absent, b1 unmoved)
+        // 🧠 Reasoning:
+        // A batch is applied against ShapeManager as one unit; any failure restores the scene.
+        parser.execute("begin");
+        parser.execute("rectangle b1 0 0 2 2");
+        parser.execute("move b1 1 1");
+        parser.execute("commit");
+
+        parser.execute("begin");
+        parser.execute("rectangle b2 5 5 1 1");
+        parser.execute("move b1 10 10");
+        parser.execute("delete missing");
+        outContent.reset();
+        parser.execute("commit");
+
+        String actual = outContent.toString().trim();
+        boolean passed = actual.endsWith("batch rolled back.")
+                && manager.getShape("b2") == null
+                && "1.00 1.00 2.00 2.00".equals(manager.getShape("b1").getBoundingBox());
+
+        printTestResult("BatchCommitAndRollback", "Second batch rolled back, b1 at (1,1)", actual, passed);
+        assertTrue(passed);
+    }
+
+    // Selectors: glob and type filters for move/delete/list (extra)
+    @Test
+    public void testSelectorBulkCommands() {
+        // 💡 Expected:
+        //   "Moved 2 shape(s) matching row7_* by (1.00,1.00)"
+        //   "Deleted 1 shape(s) matching circle:*"
+        //   a name with \uFFFF after the prefix is still selected; the selection's bounding box spans it
+        // 🧠 Reasoning:
+        // Prefix globs resolve through the name index; type filters restrict matches.
+        parser.execute("rectangle row7_a 0 0 1 1");
+        parser.execute("rectangle row7_b 2 0 1 1");
+        parser.execute("rectangle row8_a 4 0 1 1");
+        parser.execute("circle c1 0 0 1");
+        outContent.reset();
+        parser.execute("move row7_* 1 1");
+        parser.execute("delete circle:*");
+
+        String actual = outContent.toString().trim();
+        String expected = "Moved 2 shape(s) matching row7_* by (1.00,1.00)" + System.lineSeparator()
+                + "Deleted 1 shape(s) matching circle:*";
+        parser.execute("rectangle row7_\uFFFF 6 0 1 1");
+        CommandResult bounds = parser.run("boundingbox row7_*");
+        boolean passed = expected.equals(actual)
+                && manager.getShape("c1") == null
+                && "4.00 0.00 1.00 1.00".equals(manager.getShape("row8_a").getBoundingBox())
+                && manager.select("row?_*").size() == 4
+                && manager.select("row7_*").size() == 3
+                && bounds instanceof CommandResult.Bounds b && "1.00 0.00 6.00 2.00".equals(b.getBox().toString());
+
+        printTestResult("SelectorBulkCommands", expected, actual, passed);
+        assertTrue(passed);
+    }
+
+    // Script pipeline: staged replay keeps command and output order (extra)
+    @Test
+    public void testScriptPipelineReplay() throws Exception {
+        // 💡 Expected:
+        //   outputs of the three commands in order; lines after quit are ignored
+        // 🧠 Reasoning:
+        // Reader, parser, executor, log and output stages run concurrently but the
+        // executor applies commands in order, and output is emitted in that order.
+        String script = "rectangle p1 0 0 2 2\n\n  move p1 1 1\nlist p1\nquit\nrectangle p2 0 0 1 1\n";
+        ByteArrayOutputStream scriptOut = new ByteArrayOutputStream();
+        long count = new ScriptPipeline(parser, logger, 2).run(
+                new ByteArrayInputStream(script.getBytes("UTF-8")), new PrintStream(scriptOut, true, "UTF-8"));
+
+        String actual = scriptOut.toString("UTF-8").trim();
+        String expected = "Created a Rectangle named p1 at (0.00,0.00) w=2.00 h=2.00" + System.lineSeparator()
+                + "Moved p1 by (1.00,1.00)" + System.lineSeparator()
+                + "Shape p1: Rectangle(top-left=(1.00,1.00), width=2.00, height=2.00)";
+        boolean passed = count == 3 && expected.equals(actual) && manager.getShape("p2") == null;
+
+        printTestResult("ScriptPipelineReplay", expected, actual, passed);
+        assertTrue(passed);
+    }
+
+    // Script pipeline: a failing output stage is reported instead of blocking the executor (extra)
+    @Test(timeout = 20000)
+    public void testScriptPipelineOutputFailure() throws Exception {
+        // 💡 Expected:
+        //   run() throws an IOException naming the output failure, well before the script ends
+        // 🧠 Reasoning:
+        // Once the output stage has died its queue is never drained; the executor must notice
+        // rather than block on a full queue, with far more commands than the queue holds.
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            script.append("rectangle f").append(i).append(" 0 0 1 1\n");
+        }
+        PrintStream broken = new PrintStream(new OutputStream() {
+            @Override
+            public void write(final int b) {
+                throw new IllegalStateException("console gone");
+            }
+        });
+        String actual;
+        try {
+            new ScriptPipeline(parser, logger, 2).run(
+                    new ByteArrayInputStream(script.toString().getBytes("UTF-8")), broken);
+            actual = "no failure";
+        } catch (IOException e) {
+            actual = e.getMessage();
+        }
+        boolean passed = actual.contains("console gone") && manager.getShape("f199") == null;
+
+        printTestResult("ScriptPipelineOutputFailure", "IOException naming the output failure", actual, passed);
+        assertTrue(passed);
+    }
+
+    // Parallel replay: same output and final scene as serial execution (extra)
+    @Test
+    public void testParallelReplayMatchesSerial() throws Exception {
+        // 💡 Expected:
+        //   byte-identical output and listAll for serial and parallel runs
+        // 🧠 Reasoning:
+        // Commands on disjoint shapes run concurrently; conflicts are ordered by
+        // their read/write sets, and output is emitted in script order.
+        Random rnd = new Random(42);
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            String a = "s" + rnd.nextInt(40);
+            String b = "s" + rnd.nextInt(40);
+            switch (rnd.nextInt(10)) {
+                case 0: script.append("rectangle ").append(a).append(" 0 0 2 3"); break;
+                case 1: script.append("circle ").append(a).append(" 1 1 2"); break;
+                case 2: script.append("group g").append(rnd.nextInt(5)).append(' ').append(a).append(' ').append(b); break;
+                case 3: script.append("ungroup g").append(rnd.nextInt(5)); break;
+                case 4: script.append("delete ").append(a); break;
+                case 5: script.append("intersect ").append(a).append(' ').append(b); break;
+                case 6: script.append("boundingbox ").append(a); break;
+                case 7: script.append("shapeAt 1 1"); break;
+                default: script.append("move ").append(a).append(" 1 -1"); break;
+            }
+            script.append('\n');
+        }
+        script.append("listAll\n");
+
+        for (String line : script.toString().split("\n")) {
+            parser.execute(line);
+        }
+        String serial = outContent.toString("UTF-8");
+
+        ShapeManager parallelManager = new ShapeManager();
+        Clevis.CommandParser parallelParser = new Clevis.CommandParser(parallelManager, logger);
+        ByteArrayOutputStream parallelOut = new ByteArrayOutputStream();
+        new ParallelScriptExecutor(parallelParser, parallelManager, logger, 4).run(
+                new ByteArrayInputStream(script.toString().getBytes("UTF-8")),
+                new PrintStream(parallelOut, true, "UTF-8"));
+        String parallel = parallelOut.toString("UTF-8");
+
+        boolean passed = serial.equals(parallel);
+        printTestResult("ParallelReplayMatchesSerial", "serial output (" + serial.length() + " chars)",
+                "parallel output (" + parallel.length() + " chars)", passed);
+        assertEquals(serial, parallel);
+    }
+
+    // Parallel replay: group membership is re-read after an import and after a batch ends (extra)
+    @Test
+    public void testParallelReplayResyncsGroups() throws Exception {
+        // 💡 Expected:
+        //   parallel output identical to serial: moving a member right after its group is ungrouped
+        //   succeeds in both, whether the group came from an import or survived a rolled-back ungroup
+        // 🧠 Reasoning:
+        // Import adds groups the script never names, and a rolled-back batch undoes membership
+        // changes the analysis already counted, so both end the window and reseed membership.
+        File svg = File.createTempFile("clevis_groups", ".svg");
+        try {
+            ShapeManager source = new ShapeManager();
+            Clevis.CommandParser sourceParser = new Clevis.CommandParser(source, logger);
+            sourceParser.run("rectangle a 0 0 1 1");
+            sourceParser.run("circle b 5 5 1");
+            sourceParser.run("group g a b");
+            sourceParser.run("exportSvg " + svg.getPath());
+
+            StringBuilder script = new StringBuilder("import " + svg.getPath() + "\nungroup g\nmove a 1 1\n");
+            for (int i = 0; i < 50; i++) {
+                script.append("rectangle x").append(i).append(" 0 0 1 1\n")
+                        .append("rectangle y").append(i).append(" 2 2 1 1\n")
+                        .append("group h").append(i).append(" x").append(i).append(" y").append(i).append('\n')
+                        .append("begin\nungroup h").append(i).append("\nrollback\n")
+                        .append("ungroup h").append(i).append('\n')
+                        .append("move x").append(i).append(" 1 1\n");
+            }
+            script.append("listAll\n");
+
+            ByteArrayOutputStream serialOut = new ByteArrayOutputStream();
+            ShapeManager serialManager = new ShapeManager();
+            new ScriptPipeline(new Clevis.CommandParser(serialManager, logger), logger, 16).run(
+                    new ByteArrayInputStream(script.toString().getBytes("UTF-8")),
+                    new PrintStream(serialOut, true, "UTF-8"));
+            ShapeManager parallelManager = new ShapeManager();
+            ByteArrayOutputStream parallelOut = new ByteArrayOutputStream();
+            new ParallelScriptExecutor(new Clevis.CommandParser(parallelManager, logger), parallelManager, logger, 4)
+                    .run(new ByteArrayInputStream(script.toString().getBytes("UTF-8")),
+                            new PrintStream(parallelOut, true, "UTF-8"));
+            String serial = serialOut.toString("UTF-8");
+            String parallel = parallelOut.toString("UTF-8");
+
+            boolean passed = serial.equals(parallel) && !serial.contains("not found")
+                    && describe(parallelManager).equals(describe(serialManager));
+            printTestResult("ParallelReplayResyncsGroups", "serial output (" + serial.length() + " chars)",
+                    "parallel output (" + parallel.length() + " chars)", passed);
+            assertTrue(passed);
+        } finally {
+            Files.deleteIfExists(svg.toPath());
+        }
+    }
+
+    // Parallel replay: concurrent moves journal every step; sampled queries match a serial run (extra)
+    @Test
+    public void testParallelMovesJournalAndSampling() throws Exception {
+        // 💡 Expected:
+        //   the journal of a parallel run replays to the same scene as a serial run, and
+        //   SAMPLE query logging keeps the same list records in the same order
+        // 🧠 Reasoning:
+        // Moves of different shapes run concurrently and append their journal records at
+        // reserved offsets; which queries are logged is decided in script order while draining.
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            script.append("rectangle s").append(i).append(" 0 0 1 1\n");
+        }
+        Random rnd = new Random(7);
+        for (int i = 0; i < 600; i++) {
+            int s = rnd.nextInt(20);
+            script.append(rnd.nextInt(3) == 0 ? "list s" + s : "move s" + s + " 1 " + (s % 3 - 1)).append('\n');
+        }
+        String serialStem = "par_serial_" + System.nanoTime();
+        String parallelStem = "par_parallel_" + System.nanoTime();
+        ClevisLogger serialLog = new ClevisLogger(serialStem + ".html", serialStem + ".txt");
+        ClevisLogger parallelLog = new ClevisLogger(parallelStem + ".html", parallelStem + ".txt");
+        File wal = File.createTempFile("clevis_par", ".journal");
+        try {
+            serialLog.setQueryLogging(ClevisLogger.QueryLogging.SAMPLE, 7);
+            parallelLog.setQueryLogging(ClevisLogger.QueryLogging.SAMPLE, 7);
+            ShapeManager serialManager = new ShapeManager();
+            Clevis.CommandParser serialParser = new Clevis.CommandParser(serialManager, serialLog);
+            for (String line : script.toString().split("\n")) {
+                serialParser.run(line);
+            }
+            ShapeManager parallelManager = new ShapeManager();
+            parallelManager.setJournal(new MutationJournal(wal));
+            new ParallelScriptExecutor(new Clevis.CommandParser(parallelManager, parallelLog), parallelManager,
+                    parallelLog, 4).run(new ByteArrayInputStream(script.toString().getBytes("UTF-8")),
+                    new PrintStream(new ByteArrayOutputStream(), true, "UTF-8"));
+            parallelManager.getJournal().close();
+            serialLog.close();
+            parallelLog.close();
+
+            ShapeManager recovered = new ShapeManager();
+            MutationJournal.replay(wal, recovered);
+            boolean journaled = describe(recovered).equals(describe(serialManager))
+                    && describe(parallelManager).equals(describe(serialManager));
+            List<String> serialLists = loggedCommands(serialStem, "list ");
+            List<String> parallelLists = loggedCommands(parallelStem, "list ");
+            boolean sampled = !serialLists.isEmpty() && serialLists.equals(parallelLists);
+
+            boolean passed = journaled && sampled;
+            printTestResult("ParallelMovesJournalAndSampling", "journal replays to the serial scene, same samples",
+                    "journaled=" + journaled + " sampled=" + sampled + " (" + parallelLists.size() + " lists)",
+                    passed);
+            assertTrue(passed);
+        } finally {
+            serialLog.close();
+            parallelLog.close();
+            deleteLogs(serialStem);
+            deleteLogs(parallelStem);
+            Files.deleteIfExists(wal.toPath());
+        }
+    }
+
+    // Structured results: run() returns typed values instead of text (extra)
+    @Test
+    public void testCommandResultApi() {
+        // 💡 Expected:
+        //   Bounds(x=0, y=0, w=4, h=3), Intersection=true, Failure(SHAPE_NOT_FOUND), Failure(UNKNOWN_COMMAND);
+        //   Created and Listing keep the values they were built with after the shapes move
+        // 🧠 Reasoning:
+        // Handlers return CommandResult values; only execute() renders them as text.
+        CommandResult created = parser.run("rectangle r1 0 0 4 3");
+        parser.run("circle c1 4 3 1");
+        outContent.reset();
+
+        CommandResult bounds = parser.run("boundingbox r1");
+        CommandResult intersect = parser.run("intersect r1 c1");
+        CommandResult missing = parser.run("move nope 1 1");
+        CommandResult unknown = parser.run("frobnicate");
+        CommandResult listing = parser.run("listAll");
+        parser.run("move r1 5 5");
+        CommandResult.Entry first = ((CommandResult.Listing) listing).getEntries().get(0);
+        boolean captured = ((CommandResult.Created) created).getKind() == CommandResult.Created.Kind.RECTANGLE
+                && ((CommandResult.Created) created).getValue(0) == 0
+                && first.getName().equals("r1") && first.getInfo().contains("top-left=(0.00,0.00)");
+
+        BoundingBox box = ((CommandResult.Bounds) bounds).getBox();
+        boolean passed = box.getX() == 0 && box.getY() == 0 && box.getWidth() == 4 && box.getHeight() == 3
+                && ((CommandResult.Intersection) intersect).intersects()
+                && ((CommandResult.Failure) missing).getCode() == CommandResult.ErrorCode.SHAPE_NOT_FOUND
+                && ((CommandResult.Failure) unknown).getCode() == CommandResult.ErrorCode.UNKNOWN_COMMAND
+                && captured
+                && parser.run("   ") == CommandResult.NONE
+                && outContent.size() == 0;
+
+        printTestResult("CommandResultApi", "typed results, no console output",
+                passed ? "typed results, no console output" : "unexpected results", passed);
+        assertTrue(passed);
+    }
+
+    // Logger: buffered records reach the journal on flush, footer written once (extra)
+    @Test
+    public void testLoggerBufferedFlushAndSingleFooter() throws Exception {
+        // 💡 Expected:
+        //   journal unchanged before flush(), grown after; logs rendered at close with one HTML footer
+        // 🧠 Reasoning:
+        // The journal stays open behind a buffer; close() renders it once and is idempotent.
+        Path logDir = loggerDir();
+        String stem = "buffered_" + System.nanoTime();
+        ClevisLogger buffered = new ClevisLogger(stem + ".html", stem + ".txt");
+        Path txt = logDir.resolve(stem + ".txt");
+        Path html = logDir.resolve(stem + ".html");
+        Path journal = buffered.getJournalFile().toPath();
+        try {
+            long initial = Files.size(journal);
+            buffered.setFlushPolicy(ClevisLogger.FlushPolicy.BUFFERED);
+            buffered.logCommand("rectangle buf 0 0 1 1");
+            boolean pending = Files.size(journal) == initial;
+            buffered.flush();
+            boolean flushed = Files.size(journal) > initial;
+            buffered.close();
+            buffered.close();
+            String htmlContent = new String(Files.readAllBytes(html), "UTF-8");
+            boolean singleFooter = htmlContent.indexOf("</html>") == htmlContent.lastIndexOf("</html>")
+                    && htmlContent.contains("</html>")
+                    && new String(Files.readAllBytes(txt), "UTF-8").contains("rectangle buf 0 0 1 1")
+                    && !Files.exists(journal);
+
+            boolean passed = pending && flushed && singleFooter;
+            printTestResult("LoggerBufferedFlushAndSingleFooter", "pending=true flushed=true singleFooter=true",
+                    "pending=" + pending + " flushed=" + flushed + " singleFooter=" + singleFooter, passed);
+            assertTrue(passed);
+        } finally {
+            buffered.close();
+            deleteLogs(stem);
+        }
+    }
+
+    // Async logger: every record written in order under BLOCK; SPILL loses nothing (extra)
+    @Test
+    public void testAsyncLoggerPolicies() throws Exception {
+        // 💡 Expected:
+        //   BLOCK: all 2000 records in the text log, in order, queue depth 0 after flush
+        //   SPILL: some records spilled, yet all 2000 rendered in order and the overflow file gone
+        // 🧠 Reasoning:
+        // A tiny ring forces overflow; BLOCK waits for the writer, SPILL diverts to a file
+        // whose records the writer moves back into the journal once the ring drains.
+        Path logDir = loggerDir();
+        String stem = "async_" + System.nanoTime();
+        ClevisLogger blocking = new ClevisLogger(stem + "_b.html", stem + "_b.txt");
+        ClevisLogger spilling = new ClevisLogger(stem + "_s.html", stem + "_s.txt");
+        try {
+            blocking.startAsync(4, ClevisLogger.OverflowPolicy.BLOCK);
+            spilling.startAsync(4, ClevisLogger.OverflowPolicy.SPILL);
+            for (int i = 0; i < 2000; i++) {
+                blocking.logCommand("move a " + i + " 0");
+                spilling.logCommand("move a " + i + " 0");
+            }
+            blocking.flush();
+            int depth = blocking.getQueueDepth();
+            blocking.close();
+            spilling.close();
+
+            List<String> blockLines = Files.readAllLines(logDir.resolve(stem + "_b.txt"));
+            boolean inOrder = blockLines.size() == 2001;
+            for (int i = 0; inOrder && i < 2000; i++) {
+                inOrder = blockLines.get(i + 1).endsWith("move a " + i + " 0");
+            }
+            List<String> spillLines = Files.readAllLines(logDir.resolve(stem + "_s.txt"));
+            boolean spillInOrder = spillLines.size() == 2001;
+            for (int i = 0; spillInOrder && i < 2000; i++) {
+                spillInOrder = spillLines.get(i + 1).endsWith("move a " + i + " 0");
+            }
+            long spilled = spilling.getSpilledCount();
+
+            boolean passed = inOrder && depth == 0 && blocking.getDroppedCount() == 0
+                    && spillInOrder && spilled > 0 && !spilling.getOverflowFile().exists();
+            printTestResult("AsyncLoggerPolicies", "inOrder=true depth=0 spillInOrder=true spilled>0",
+                    "inOrder=" + inOrder + " depth=" + depth + " spillInOrder=" + spillInOrder
+                            + " spilled=" + spilled, passed);
+            assertTrue(passed);
+        } finally {
+            blocking.close();
+            spilling.close();
+            deleteLogs(stem);
+        }
+    }
+
+    // Durability: forces happen every N records, or once per record (extra)
+    @Test
+    public void testLoggerDurabilityModes() throws Exception {
+        // 💡 Expected:
+        //   EVERY_N_RECORDS(10): 10 forces for 100 records; EVERY_RECORD: 5 forces for 5 records
+        // 🧠 Reasoning:
+        // A single thread never shares a force, so the counts are exact.
+        Path logDir = loggerDir();
+        String stem = "durable_" + System.nanoTime();
+        ClevisLogger everyN = new ClevisLogger(stem + "_n.html", stem + "_n.txt");
+        ClevisLogger everyRecord = new ClevisLogger(stem + "_r.html", stem + "_r.txt");
+        try {
+            everyN.setDurability(ClevisLogger.Durability.EVERY_N_RECORDS, 10);
+            everyRecord.setDurability(ClevisLogger.Durability.EVERY_RECORD, 0);
+            for (int i = 0; i < 100; i++) {
+                everyN.logCommand("circle c" + i + " 0 0 1");
+            }
+            for (int i = 0; i < 5; i++) {
+                everyRecord.logCommand("circle c" + i + " 0 0 1");
+            }
+            long nForces = everyN.getSyncCount();
+            long recordForces = everyRecord.getSyncCount();
+
+            boolean passed = nForces == 10 && recordForces == 5;
+            printTestResult("LoggerDurabilityModes", "10 and 5 forces",
+                    nForces + " and " + recordForces + " forces", passed);
+            assertTrue(passed);
+        } finally {
+            everyN.close();
+            everyRecord.close();
+            deleteLogs(stem);
+        }
+    }
+
+    // Session end: input that ends without 'quit' still renders the text and HTML logs (extra)
+    @Test
+    public void testEndOfInputClosesLogs() throws Exception {
+        // 💡 Expected:
+        //   TXT log lists "rectangle r1 0 0 1 1" then "listAll"; HTML log has its footer
+        // 🧠 Reasoning:
+        // run() closes the session in a finally block, so the logs are rendered on every exit path.
+        Path logDir = loggerDir();
+        String stem = "eof_" + System.nanoTime();
+        InputStream originalIn = System.in;
+        System.setIn(new ByteArrayInputStream("rectangle r1 0 0 1 1\nlistAll\n".getBytes("UTF-8")));
+        try {
+            new Clevis(stem + ".html", stem + ".txt").run();
+            Path txtLog = logDir.resolve(stem + ".txt");
+            Path htmlLog = logDir.resolve(stem + ".html");
+            String txt = Files.exists(txtLog) ? new String(Files.readAllBytes(txtLog), "UTF-8") : "";
+            String html = Files.exists(htmlLog) ? new String(Files.readAllBytes(htmlLog), "UTF-8") : "";
+            int rect = txt.indexOf("] rectangle r1 0 0 1 1\n");
+            int list = txt.indexOf("] listAll\n");
+
+            boolean passed = rect >= 0 && list > rect && html.endsWith("</ul></body></html>");
+            printTestResult("EndOfInputClosesLogs", "both commands logged, HTML closed",
+                    txt.isEmpty() ? "no text log" : txt.trim().replace('\n', '|'), passed);
+            assertTrue(passed);
+        } finally {
+            System.setIn(originalIn);
+            deleteLogs(stem);
+        }
+    }
+
+    // Log encoding: UTF-8 text and escaped HTML written without String building (extra)
+    @Test
+    public void testLoggerEncodesUtf8AndEscapesHtml() throws Exception {
+        // 💡 Expected:
+        //   TXT: "[yyyy-MM-dd HH:mm:ss] rectangle <a&b> 圆 😀 0 0 1 1"
+        //   HTML: "<li><b>yyyy-MM-dd HH:mm:ss:</b> rectangle &lt;a&amp;b&gt; 圆 😀 0 0 1 1</li>"
+        // 🧠 Reasoning:
+        // Records are encoded byte by byte; the cached timestamp keeps the same format.
+        Path logDir = loggerDir();
+        String stem = "encode_" + System.nanoTime();
+        String command = "rectangle <a&b> \u5706 \uD83D\uDE00 0 0 1 1";
+        ClevisLogger encoding = new ClevisLogger(stem + ".html", stem + ".txt");
+        try {
+            encoding.logCommand(command);
+            encoding.close();
+            String txt = new String(Files.readAllBytes(logDir.resolve(stem + ".txt")), "UTF-8");
+            String html = new String(Files.readAllBytes(logDir.resolve(stem + ".html")), "UTF-8");
+            String time = "\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2}";
+
+            boolean passed = txt.matches("(?s).*\\[" + time + "\\] rectangle <a&b> \u5706 \uD83D\uDE00 0 0 1 1\n.*")
+                    && html.matches("(?s).*<li><b>" + time
+                    + ":</b> rectangle &lt;a&amp;b&gt; \u5706 \uD83D\uDE00 0 0 1 1</li>\n.*");
+            printTestResult("LoggerEncodesUtf8AndEscapesHtml", "encoded text and escaped HTML record",
+                    txt.trim() + " | " + html.trim(), passed);
+            assertTrue(passed);
+        } finally {
+            encoding.close();
+            deleteLogs(stem);
+        }
+    }
+
+    // Journal: a session that never closed can be rendered offline (extra)
+    @Test
+    public void testJournalRenderedOffline() throws Exception {
+        // 💡 Expected:
+        //   2 records rendered; HTML escaped, text verbatim, in order
+        // 🧠 Reasoning:
+        // The runtime writes only the journal; LogRenderer streams it into both log forms.
+        Path logDir = loggerDir();
+        String stem = "journal_" + System.nanoTime();
+        ClevisLogger crashed = new ClevisLogger(stem + ".html", stem + ".txt");
+        File html = logDir.resolve(stem + "_offline.html").toFile();
+        File txt = logDir.resolve(stem + "_offline.txt").toFile();
+        try {
+            crashed.logCommand("circle a<b 0 0 1");
+            crashed.logCommand("delete a<b");
+            crashed.flush();
+
+            long n = LogRenderer.render(crashed.getJournalFile(), html, txt);
+            String htmlContent = new String(Files.readAllBytes(html.toPath()), "UTF-8");
+            List<String> txtLines = Files.readAllLines(txt.toPath());
+
+            boolean passed = n == 2
+                    && htmlContent.contains(":</b> circle a&lt;b 0 0 1</li>")
+                    && htmlContent.indexOf("circle a&lt;b") < htmlContent.indexOf("delete a&lt;b")
+                    && htmlContent.trim().endsWith("</ul></body></html>")
+                    && txtLines.size() == 3 && txtLines.get(2).endsWith("] delete a<b");
+            printTestResult("JournalRenderedOffline", "2 records rendered",
+                    n + " records rendered", passed);
+            assertTrue(passed);
+        } finally {
+            crashed.close();
+            deleteLogs(stem);
+        }
+    }
+
+    // Log rotation: size-bounded segments, compressed and listed in the manifest (extra)
+    @Test
+    public void testLogSegmentRotation() throws Exception {
+        // 💡 Expected:
+        //   several .gz segments in the manifest; all 300 records rendered in order at close
+        // 🧠 Reasoning:
+        // A 512-byte limit forces rotation; closed segments are gzipped in the background
+        // and close() renders every segment of the session.
+        Path logDir = loggerDir();
+        String stem = "rotate_" + System.nanoTime();
+        ClevisLogger rotating = new ClevisLogger(stem + ".html", stem + ".txt");
+        try {
+            rotating.setRotation(512, 0);
+            for (int i = 0; i < 300; i++) {
+                rotating.logCommand("move shape" + i + " 1 1");
+            }
+            rotating.close();
+
+            List<String> manifest = Files.readAllLines(rotating.getManifestFile().toPath());
+            long segmentsListed = manifest.stream().filter(l -> !l.startsWith("#")).count();
+            boolean allCompressed = manifest.stream().filter(l -> !l.startsWith("#"))
+                    .allMatch(l -> l.split(" ")[0].endsWith(".journal.gz")
+                            && Files.exists(logDir.resolve(l.split(" ")[0])));
+            List<String> txtLines = Files.readAllLines(logDir.resolve(stem + ".txt"));
+            boolean inOrder = txtLines.size() == 301;
+            for (int i = 0; inOrder && i < 300; i++) {
+                inOrder = txtLines.get(i + 1).endsWith("] move shape" + i + " 1 1");
+            }
+
+            boolean passed = segmentsListed > 1 && allCompressed && inOrder;
+            printTestResult("LogSegmentRotation", "segments>1 compressed=true inOrder=true",
+                    "segments=" + segmentsListed + " compressed=" + allCompressed + " inOrder=" + inOrder, passed);
+            assertTrue(passed);
+        } finally {
+            rotating.close();
+            deleteLogs(stem);
+        }
+    }
+
+    // Log retention: old segments are pruned and full rendered logs are moved aside (extra)
+    @Test
+    public void testLogRetention() throws Exception {
+        // 💡 Expected:
+        //   2 segments left after each session; stem.txt holds only the last session,
+        //   stem.1.txt the one before, and no stem.2.txt
+        // 🧠 Reasoning:
+        // A 1-byte render limit moves the text log aside before every render after the first,
+        // one copy is kept, and only the 2 newest segments survive once a session is rendered.
+        Path logDir = loggerDir();
+        String stem = "retain_" + System.nanoTime();
+        List<String> firstSegments = new ArrayList<>();
+        long[] listed = new long[3];
+        try {
+            for (int session = 0; session < 3; session++) {
+                ClevisLogger logger = new ClevisLogger(stem + ".html", stem + ".txt");
+                logger.setRotation(512, 0);
+                logger.setRetention(1, 1, 2);
+                for (int i = 0; i < 100; i++) {
+                    logger.logCommand("move s" + session + "_" + i + " 1 1");
+                }
+                logger.close();
+                List<String> manifest = Files.readAllLines(logger.getManifestFile().toPath());
+                manifest.removeIf(l -> l.startsWith("#"));
+                listed[session] = manifest.size();
+                if (session == 0) {
+                    firstSegments.add(manifest.get(0).split(" ")[0]);
+                }
+            }
+            boolean pruned = firstSegments.stream().noneMatch(n -> Files.exists(logDir.resolve(n)));
+            List<String> current = Files.readAllLines(logDir.resolve(stem + ".txt"));
+            List<String> previous = Files.readAllLines(logDir.resolve(stem + ".1.txt"));
+            boolean rotated = current.size() == 101 && current.get(1).endsWith("] move s2_0 1 1")
+                    && previous.size() == 101 && previous.get(1).endsWith("] move s1_0 1 1")
+                    && !Files.exists(logDir.resolve(stem + ".2.txt"))
+                    && Files.exists(logDir.resolve(stem + ".1.html"));
+
+            boolean passed = listed[0] == 2 && listed[1] == 2 && listed[2] == 2 && pruned && rotated;
+            printTestResult("LogRetention", "segments=2,2,2 pruned=true rotated=true",
+                    "segments=" + listed[0] + "," + listed[1] + "," + listed[2]
+                            + " pruned=" + pruned + " rotated=" + rotated, passed);
+            assertTrue(passed);
+        } finally {
+            deleteLogs(stem);
+        }
+    }
+
+    // Mapped log: the segment grows in whole chunks and is cut back at close (extra)
+    @Test
+    public void testMappedLogWriter() throws Exception {
+        // 💡 Expected:
+        //   segment pre-sized in 4096-byte chunks while running; 500 records rendered in order after close
+        // 🧠 Reasoning:
+        // MAPPED encodes records straight into mapped windows of the segment; no flush is needed
+        // for the bytes to reach the file, and close() truncates the unused tail.
+        Path logDir = loggerDir();
+        String stem = "mapped_" + System.nanoTime();
+        ClevisLogger mapped = new ClevisLogger(stem + ".html", stem + ".txt");
+        try {
+            mapped.setWriteMode(ClevisLogger.WriteMode.MAPPED, 4096);
+            for (int i = 0; i < 500; i++) {
+                mapped.logCommand("move shape" + i + " 1 1");
+            }
+            long running = mapped.getJournalFile().length();
+            mapped.close();
+
+            List<String> txtLines = Files.readAllLines(logDir.resolve(stem + ".txt"));
+            boolean inOrder = txtLines.size() == 501;
+            for (int i = 0; inOrder && i < 500; i++) {
+                inOrder = txtLines.get(i + 1).endsWith("] move shape" + i + " 1 1");
+            }
+
+            boolean passed = running > 4096 && running % 4096 == 0 && inOrder
+                    && mapped.getWriteMode() == ClevisLogger.WriteMode.MAPPED;
+            printTestResult("MappedLogWriter", "chunked size, 500 records in order",
+                    "size=" + running + " inOrder=" + inOrder, passed);
+            assertTrue(passed);
+        } finally {
+            mapped.close();
+            deleteLogs(stem);
+        }
+    }
+
+    // History: time range query over rotated, indexed segments (extra)
+    @Test
+    public void testLogHistoryIndex() throws Exception {
+        // 💡 Expected:
+        //   every closed segment has an index; history returns exactly the records in the range, in order
+        // 🧠 Reasoning:
+        // Segments are skipped by their manifest time span and entered at the nearest index entry,
+        // so a range starting between the two halves must return only the second half.
+        Path logDir = loggerDir();
+        String stem = "history_" + System.nanoTime();
+        ClevisLogger indexed = new ClevisLogger(stem + ".html", stem + ".txt");
+        try {
+            indexed.setRotation(4096, 0);
+            for (int i = 0; i < 1000; i++) {
+                indexed.logCommand("move early" + i + " 1 1");
+            }
+            Thread.sleep(20);
+            long middle = System.currentTimeMillis();
+            Thread.sleep(20);
+            for (int i = 0; i < 1000; i++) {
+                indexed.logCommand("move late" + i + " 1 1");
+            }
+
+            List<String> all = new ArrayList<>();
+            indexed.history(0, Long.MAX_VALUE, all::add);
+            List<String> late = new ArrayList<>();
+            indexed.history(middle, Long.MAX_VALUE, late::add);
+            boolean inOrder = late.size() == 1000;
+            for (int i = 0; inOrder && i < 1000; i++) {
+                inOrder = late.get(i).endsWith("] move late" + i + " 1 1");
+            }
+            File[] indexFiles = logDir.toFile().listFiles(
+                    (dir, name) -> name.startsWith(stem) && name.endsWith(".idx"));
+            int indexes = indexFiles == null ? 0 : indexFiles.length;
+
+            boolean passed = all.size() == 2000 && inOrder && indexes > 1;
+            printTestResult("LogHistoryIndex", "2000 total, 1000 late in order, indexes written",
+                    "total=" + all.size() + " late=" + late.size() + " inOrder=" + inOrder
+                            + " indexes=" + indexes, passed);
+            assertTrue(passed);
+        } finally {
+            indexed.close();
+            deleteLogs(stem);
+        }
+    }
+
+    // Query logging: mutations always logged, queries sampled 1 in 10 (extra)
+    @Test
+    public void testQueryLoggingPolicy() throws Exception {
+        // 💡 Expected:
+        //   3 rectangles + 10 of 100 'list' queries logged, then one summary record of the 90 skipped
+        // 🧠 Reasoning:
+        // The parser classifies read-only commands and asks the logger whether to log each one;
+        // SAMPLE logs the first of every N and counts the rest.
+        Path logDir = loggerDir();
+        String stem = "queries_" + System.nanoTime();
+        ClevisLogger sampled = new ClevisLogger(stem + ".html", stem + ".txt");
+        try {
+            sampled.setQueryLogging(ClevisLogger.QueryLogging.SAMPLE, 10);
+            Clevis.CommandParser sampledParser = new Clevis.CommandParser(new ShapeManager(), sampled);
+            for (int i = 0; i < 3; i++) {
+                sampledParser.run("rectangle r" + i + " 0 0 1 1");
+            }
+            for (int i = 0; i < 100; i++) {
+                sampledParser.run("list r" + (i % 3));
+            }
+            sampled.close();
+
+            List<String> txtLines = Files.readAllLines(logDir.resolve(stem + ".txt"));
+            long rectangles = txtLines.stream().filter(l -> l.contains("] rectangle ")).count();
+            long lists = txtLines.stream().filter(l -> l.contains("] list ")).count();
+            boolean summary = txtLines.get(txtLines.size() - 1)
+                    .endsWith("] (90 of 100 read-only command(s) not logged)");
+
+            boolean passed = rectangles == 3 && lists == 10 && summary
+                    && sampled.getUnloggedQueryCount() == 90;
+            printTestResult("QueryLoggingPolicy", "3 rectangles, 10 lists, summary of 90",
+                    "rectangles=" + rectangles + " lists=" + lists + " summary=" + summary, passed);
+            assertTrue(passed);
+        } finally {
+            sampled.close();
+            deleteLogs(stem);
+        }
+    }
+
+    // Scene file: save/load round trip of shapes, nested groups and Z-order (extra)
+    @Test
+    public void testSceneSaveLoad() throws Exception {
+        // 💡 Expected:
+        //   loaded scene identical (also after ungrouping); selectors work; a truncated file is rejected
+        // 🧠 Reasoning:
+        // Records are stored depth first with member counts, so groups rebuild exactly; the
+        // sorted name index rebuilds the selector index; loading decodes fully before replacing.
+        File scene = File.createTempFile("clevis_scene", ".bin");
+        File torn = File.createTempFile("clevis_scene_torn", ".bin");
+        try {
+            parser.run("rectangle r1 0 0 4 2");
+            parser.run("circle c1 10 10 3");
+            parser.run("line l1 -1.5 2 7.25 9");
+            parser.run("square sq 5 5 1");
+            parser.run("rectangle r2 3 3 1 1");
+            parser.run("group g1 r1 c1");
+            parser.run("group g2 g1 l1");
+            parser.run("group sq sq r2");
+            parser.run("circle top 0 0 0.1");
+            CommandResult saved = parser.run("save " + scene.getPath());
+
+            ShapeManager loaded = new ShapeManager();
+            Clevis.CommandParser loader = new Clevis.CommandParser(loaded, logger);
+            CommandResult result = loader.run("load " + scene.getPath());
+            boolean same = describe(manager).equals(describe(loaded));
+            boolean selects = loaded.select("*").size() == 3 && loaded.select("s*").size() == 1;
+
+            manager.ungroup("g2");
+            manager.ungroup("g1");
+            loaded.ungroup("g2");
+            loaded.ungroup("g1");
+            boolean sameUngrouped = describe(manager).equals(describe(loaded));
+
+            byte[] bytes = Files.readAllBytes(scene.toPath());
+            Files.write(torn.toPath(), Arrays.copyOf(bytes, bytes.length - 3));
+            String before = describe(loaded);
+            boolean rejected = loader.run("load " + torn.getPath()).isFailure()
+                    && describe(loaded).equals(before);
+
+            boolean passed = !saved.isFailure() && !result.isFailure() && same && selects
+                    && sameUngrouped && rejected;
+            printTestResult("SceneSaveLoad", "identical scene, selectors work, torn file rejected",
+                    "same=" + same + " selects=" + selects + " ungrouped=" + sameUngrouped
+                            + " rejected=" + rejected, passed);
+            assertTrue(passed);
+        } finally {
+            Files.deleteIfExists(scene.toPath());
+            Files.deleteIfExists(torn.toPath());
+        }
+    }
+
+    // Mapped scene: 'open' answers queries from the file and refuses edits (extra)
+    @Test
+    public void testMappedSceneOpen() throws Exception {
+        // 💡 Expected:
+        //   same listing, hits and selections as the in-memory scene; 'move' refused; save copies the file
+        // 🧠 Reasoning:
+        // Shapes are materialized from mapped records on demand and shapeAt reads the records
+        // directly, so every query must agree with the scene that was saved.
+        File scene = File.createTempFile("clevis_mapped", ".bin");
+        File copy = File.createTempFile("clevis_mapped_copy", ".bin");
+        try {
+            parser.run("rectangle r1 0 0 4 2");
+            parser.run("circle c1 10 10 3");
+            parser.run("line l1 -1.5 2 7.25 9");
+            parser.run("square sq 5 5 1");
+            parser.run("group g1 r1 c1");
+            parser.run("group g2 g1 l1");
+            parser.run("circle top 0 0 0.1");
+            parser.run("save " + scene.getPath());
+
+            ShapeManager viewer = new ShapeManager();
+            Clevis.CommandParser viewParser = new Clevis.CommandParser(viewer, logger);
+            boolean opened = !viewParser.run("open " + scene.getPath()).isFailure();
+            boolean sameList = describe(manager).equals(describe(viewer));
+            boolean sameHits = true;
+            double[][] points = {{0, 0}, {1, 1}, {10, 12}, {5.5, 5.5}, {7, 8}, {50, 50}};
+            for (double[] p : points) {
+                Shape expected = manager.topmostAt(p[0], p[1]);
+                Shape actual = viewer.topmostAt(p[0], p[1]);
+                sameHits &= expected == null ? actual == null
+                        : actual != null && expected.getName().equals(actual.getName());
+            }
+            boolean selects = viewer.select("g*").size() == 1 && viewer.select("circle:*").size() == 1
+                    && viewer.getShape("missing") == null && viewer.getShape("sq") instanceof Square;
+            boolean refused = viewParser.run("move g2 1 1").isFailure() && describe(manager).equals(describe(viewer));
+
+            viewParser.run("save " + copy.getPath());
+            ShapeManager reloaded = new ShapeManager();
+            SceneFile.load(copy, reloaded);
+            boolean copied = describe(manager).equals(describe(reloaded));
+
+            boolean passed = opened && sameList && sameHits && selects && refused && copied;
+            printTestResult("MappedSceneOpen", "queries match, edits refused, save copies",
+                    "list=" + sameList + " hits=" + sameHits + " selects=" + selects
+                            + " refused=" + refused + " copied=" + copied, passed);
+            assertTrue(passed);
+        } finally {
+            Files.deleteIfExists(scene.toPath());
+            Files.deleteIfExists(copy.toPath());
+        }
+    }
+
+    // Checkpoints: written in the background, recovery loads one and replays only the tail (extra)
+    @Test
+    public void testBackgroundCheckpoint() throws Exception {
+        // 💡 Expected:
+        //   recovered scene identical; fewer than the 142 journaled records replayed; only the journal and
+        //   checkpoint left
+        // 🧠 Reasoning:
+        // Every 20 records the journal is switched and the captured scene written on another thread;
+        // moves right after a capture copy the shape, so the checkpoint keeps the captured coordinates.
+        Path dir = Files.createTempDirectory("clevis_checkpoint");
+        File wal = new File(dir.toFile(), "scene.journal");
+        try {
+            ShapeManager scene = new ShapeManager();
+            Checkpointer checkpointer = Checkpointer.open(wal, scene, 20);
+            Clevis.CommandParser p = new Clevis.CommandParser(scene, logger);
+            for (int i = 0; i < 70; i++) {
+                p.run("rectangle r" + i + " " + i + " 0 2 1");
+                p.run("move r" + i / 2 + " 0.5 1");
+            }
+            p.run("group g r1 r2 r3");
+            p.run("begin");
+            p.run("move g 1 1");
+            p.run("delete r9");
+            p.run("commit");
+            checkpointer.close();
+            scene.getJournal().close();
+
+            ShapeManager recovered = new ShapeManager();
+            Checkpointer reopened = Checkpointer.open(wal, recovered, 0);
+            reopened.close();
+            recovered.getJournal().close();
+            String expected = describe(scene);
+            String actual = describe(recovered);
+            String[] left = dir.toFile().list();
+
+            boolean passed = expected.equals(actual) && reopened.isRestored() && reopened.getReplayed() < 142
+                    && left != null && left.length == 2;
+            printTestResult("BackgroundCheckpoint", "same scene, < 142 replayed, 2 files",
+                    (expected.equals(actual) ? "same scene" : actual) + ", " + reopened.getReplayed()
+                            + " replayed, " + (left == null ? 0 : left.length) + " files", passed);
+            assertTrue(passed);
+        } finally {
+            File[] files = dir.toFile().listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    Files.deleteIfExists(f.toPath());
+                }
+            }
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    // Checkpoints: a failed background write is reported to the caller and loses nothing (extra)
+    @Test
+    public void testCheckpointFailureReported() throws Exception {
+        // 💡 Expected:
+        //   one "Cannot write checkpoint" warning, taken once; recovery still rebuilds the scene
+        // 🧠 Reasoning:
+        // The checkpoint file cannot replace a non-empty directory; the switched journal is kept,
+        // and the failure is queued for the caller instead of printed by the model.
+        Path dir = Files.createTempDirectory("clevis_checkpoint_fail");
+        File wal = new File(dir.toFile(), "scene.journal");
+        File blocker = Checkpointer.checkpointFileOf(wal);
+        try {
+            ShapeManager scene = new ShapeManager();
+            Checkpointer checkpointer = Checkpointer.open(wal, scene, 0);
+            Files.createDirectories(new File(blocker, "keep").toPath());
+            Clevis.CommandParser p = new Clevis.CommandParser(scene, logger);
+            p.run("rectangle r1 0 0 2 1");
+            p.run("circle c1 5 5 1");
+            boolean started = checkpointer.checkpoint();
+            checkpointer.close();
+            scene.getJournal().close();
+            List<String> warnings = checkpointer.takeWarnings();
+            boolean taken = checkpointer.takeWarnings().isEmpty();
+
+            Files.delete(new File(blocker, "keep").toPath());
+            Files.delete(blocker.toPath());
+            ShapeManager recovered = new ShapeManager();
+            Checkpointer reopened = Checkpointer.open(wal, recovered, 0);
+            reopened.close();
+            recovered.getJournal().close();
+            boolean same = describe(scene).equals(describe(recovered));
+
+            boolean passed = started && warnings.size() == 1 && warnings.get(0).startsWith("Cannot write checkpoint")
+                    && taken && same;
+            printTestResult("CheckpointFailureReported", "1 warning, scene recovered",
+                    warnings + (same ? ", scene recovered" : ", " + describe(recovered)), passed);
+            assertTrue(passed);
+        } finally {
+            Files.deleteIfExists(new File(blocker, "keep").toPath());
+            File[] files = dir.toFile().listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    Files.deleteIfExists(f.toPath());
+                }
+            }
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    // SVG export: shapes map to rect/circle/line/g in Z-order; a viewport keeps only what it touches (extra)
+    @Test
+    public void testSvgExport() throws Exception {
+        // 💡 Expected:
+        //   whole scene: 4 top-level elements in Z-order; viewport: only the shapes touching it
+        // 🧠 Reasoning:
+        // The viewport query goes through the packed spatial index, which must be rebuilt after
+        // the move so the moved circle is found at its new place.
+        File svg = File.createTempFile("clevis_export", ".svg");
+        try {
+            parser.run("rectangle r1 0 0 4 2.5");
+            parser.run("square s1 10 10 2");
+            parser.run("circle c1 20 20 1");
+            parser.run("line l1 0 0 3 4");
+            parser.run("group g1 s1 l1");
+            for (int i = 0; i < 100; i++) {
+                parser.run("circle far" + i + " " + (1000 + i * 10) + " 1000 1");
+            }
+            parser.run("exportSvg " + svg.getPath() + " -1 -1 30 30");
+            String before = new String(Files.readAllBytes(svg.toPath()), java.nio.charset.StandardCharsets.UTF_8);
+            parser.run("move c1 1000 1000");
+            parser.run("exportSvg " + svg.getPath() + " -1 -1 30 30");
+            String after = new String(Files.readAllBytes(svg.toPath()), java.nio.charset.StandardCharsets.UTF_8);
+            parser.run("exportSvg " + svg.getPath());
+            String all = new String(Files.readAllBytes(svg.toPath()), java.nio.charset.StandardCharsets.UTF_8);
+
+            boolean mapped = before.contains("<rect id=\"r1\" x=\"0\" y=\"0\" width=\"4\" height=\"2.5\"/>")
+                    && before.contains("<g id=\"g1\">\n    <rect id=\"s1\" x=\"10\" y=\"10\" width=\"2\" height=\"2\"/>\n"
+                            + "    <line id=\"l1\" x1=\"0\" y1=\"0\" x2=\"3\" y2=\"4\"/>\n  </g>")
+                    && before.contains("<circle id=\"c1\" cx=\"20\" cy=\"20\" r=\"1\"/>")
+                    && before.contains("viewBox=\"-1 -1 30 30\"") && !before.contains("far");
+            boolean pruned = !after.contains("c1") && after.contains("r1") && after.contains("g1");
+            boolean ordered = all.indexOf("id=\"r1\"") < all.indexOf("id=\"g1\"")
+                    && all.indexOf("id=\"c1\"") < all.indexOf("id=\"far0\"")
+                    && all.contains("viewBox=\"0 0 1991 1021\"");
+            boolean passed = mapped && pruned && ordered;
+            printTestResult("SvgExport", "elements mapped, viewport pruned, Z-order kept",
+                    "mapped=" + mapped + " pruned=" + pruned + " ordered=" + ordered, passed);
+            assertTrue(passed);
+        } finally {
+            Files.deleteIfExists(svg.toPath());
+        }
+    }
+
+    // Import: CSV and SVG files are bulk-added as one change; a bad line changes nothing (extra)
+    @Test
+    public void testBulkImport() throws Exception {
+        // 💡 Expected:
+        //   5000 CSV shapes added; bad file rejected with its line number; exported SVG imports back
+        // 🧠 Reasoning:
+        // Parsed blocks are joined in file order, so Z-order follows the file; the whole file is
+        // validated before ShapeManager changes, and the SVG wrapper <g> without an id is not a group.
+        File csv = File.createTempFile("clevis_import", ".csv");
+        File bad = File.createTempFile("clevis_import_bad", ".csv");
+        File svg = File.createTempFile("clevis_import", ".svg");
+        try {
+            StringBuilder text = new StringBuilder("# type,name,values\n");
+            for (int i = 0; i < 5000; i++) {
+                text.append(i % 2 == 0 ? "rectangle,r" + i + "," + i + ",0,2,1\n" : "circle,c" + i + "," + i + ",5,0.5\n");
+            }
+            Files.write(csv.toPath(), text.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8));
+            Files.write(bad.toPath(), "square,s1,0,0,1\nline,l1,0,0,1\n".getBytes(java.nio.charset.StandardCharsets.UTF_8));
+
+            boolean imported = !parser.run("import " + csv.getPath()).isFailure();
+            List<Shape> all = manager.getAllShapes();
+            boolean ordered = all.size() == 5000 && all.get(0).getName().equals("r0")
+                    && all.get(4999).getName().equals("c4999") && describe(manager.shapesIn(new BoundingBox(10, 0, 1, 5))).equals("r8 r10 c11 ");
+            CommandResult rejected = parser.run("import " + bad.getPath());
+            boolean unchanged = rejected.isFailure()
+                    && ((CommandResult.Failure) rejected).getMessage().contains("Line 2")
+                    && manager.getShape("s1") == null;
+
+            ShapeManager small = new ShapeManager();
+            Clevis.CommandParser p = new Clevis.CommandParser(small, logger);
+            p.run("rectangle r1 0 0 4 2.5");
+            p.run("circle c1 20 20 1");
+            p.run("line l1 0 0 3 4");
+            p.run("group g1 c1 l1");
+            p.run("exportSvg " + svg.getPath());
+            ShapeManager back = new ShapeManager();
+            boolean roundTrip = !new Clevis.CommandParser(back, logger).run("import " + svg.getPath()).isFailure()
+                    && describe(small).equals(describe(back));
+
+            boolean passed = imported && ordered && unchanged && roundTrip;
+            printTestResult("BulkImport", "5000 shapes, bad file rejected, SVG round trip",
+                    "imported=" + imported + " ordered=" + ordered + " unchanged=" + unchanged
+                            + " roundTrip=" + roundTrip, passed);
+            assertTrue(passed);
+        } finally {
+            Files.deleteIfExists(csv.toPath());
+            Files.deleteIfExists(bad.toPath());
+            Files.deleteIfExists(svg.toPath());
+        }
+    }
+
+    // Mutation journal: a load or import replays what was read, even after the file changes (extra)
+    @Test
+    public void testJournaledFilesKeepTheirContent() throws Exception {
+        // 💡 Expected:
+        //   after 'save s; load s; rectangle r2; save s' and an import of a CSV that is then rewritten,
+        //   recovery rebuilds the same scene; a checkpoint deletes the copies of the journals it covers
+        // 🧠 Reasoning:
+        // Each loaded or imported file is journaled as a copy kept next to the journal, so replay
+        // does not read whatever the original file holds by then.
+        Path dir = Files.createTempDirectory("clevis_journal_files");
+        File wal = new File(dir.toFile(), "scene.journal");
+        File saved = new File(dir.toFile(), "s.bin");
+        File csv = new File(dir.toFile(), "shapes.csv");
+        try {
+            ShapeManager scene = new ShapeManager();
+            Checkpointer checkpointer = Checkpointer.open(wal, scene, 0);
+            Clevis.CommandParser p = new Clevis.CommandParser(scene, logger);
+            p.run("rectangle r1 0 0 1 1");
+            p.run("save " + saved.getPath());
+            p.run("load " + saved.getPath());
+            p.run("rectangle r2 2 2 1 1");
+            p.run("save " + saved.getPath());
+            Files.write(csv.toPath(), "circle,c1,5,5,1\n".getBytes(java.nio.charset.StandardCharsets.UTF_8));
+            p.run("import " + csv.getPath());
+            Files.write(csv.toPath(), "circle,c2,5,5,1\n".getBytes(java.nio.charset.StandardCharsets.UTF_8));
+            checkpointer.close();
+            scene.getJournal().close();
+
+            ShapeManager recovered = new ShapeManager();
+            Checkpointer reopened = Checkpointer.open(wal, recovered, 0);
+            boolean same = describe(recovered).equals(describe(scene));
+            boolean checkpointed = reopened.checkpoint();
+            reopened.close();
+            recovered.getJournal().close();
+            String[] copies = dir.toFile().list((d, name) -> name.endsWith(".scene"));
+
+            boolean passed = same && checkpointed && copies != null && copies.length == 0
+                    && reopened.takeWarnings().isEmpty();
+            printTestResult("JournaledFilesKeepTheirContent", "same scene, copies deleted by the checkpoint",
+                    (same ? "same scene" : describe(recovered)) + ", "
+                            + (copies == null ? "?" : copies.length) + " copies left", passed);
+            assertTrue(passed);
+        } finally {
+            File[] files = dir.toFile().listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    Files.deleteIfExists(f.toPath());
+                }
+            }
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    // Undo/redo: changes are taken back in Z place, journaled, and bounded by the depth (extra)
+    @Test
+    public void testUndoRedo() throws Exception {
+        // 💡 Expected:
+        //   undone group puts c1 and s1 back between r1 and l1; redo regroups; a new change clears redo;
+        //   the journal replays to the same scene; with depth 1 only one change can be undone
+        // 🧠 Reasoning:
+        // Each change is logged as insert/remove/move primitives with the removed shapes' Z numbers,
+        // and a selector move is one transaction, so it is undone in one step.
+        File wal = File.createTempFile("clevis_undo", ".journal");
+        try {
+            manager.setJournal(new MutationJournal(wal));
+            for (String c : new String[] {"rectangle r1 0 0 1 1", "circle c1 5 5 1", "square s1 1 1 2",
+                    "line l1 0 0 3 3", "group g1 c1 s1", "move *1 2 0", "delete r1"}) {
+                parser.run(c);
+            }
+            parser.run("undo");
+            parser.run("undo");
+            boolean moveUndone = manager.getShape("r1").getBoundingBox().equals("0.00 0.00 1.00 1.00")
+                    && manager.getShape("g1").getBoundingBox().equals("1.00 1.00 5.00 5.00");
+            parser.run("undo");
+            boolean ungrouped = describe(manager.getAllShapes()).equals("r1 c1 s1 l1 ");
+            parser.run("redo");
+            boolean regrouped = describe(manager.getAllShapes()).equals("r1 l1 g1 ");
+            parser.run("rectangle r2 0 0 1 1");
+            boolean redoCleared = parser.run("redo").isFailure();
+            manager.getJournal().close();
+            manager.setJournal(null);
+            ShapeManager recovered = new ShapeManager();
+            MutationJournal.replay(wal, recovered);
+            boolean replayed = describe(recovered).equals(describe(manager));
+
+            manager.setUndoDepth(1);
+            parser.run("move r2 1 1");
+            parser.run("move r2 1 1");
+            boolean bounded = !parser.run("undo").isFailure() && parser.run("undo").isFailure()
+                    && manager.getShape("r2").getBoundingBox().equals("1.00 1.00 1.00 1.00");
+
+            boolean passed = moveUndone && ungrouped && regrouped && redoCleared && replayed && bounded;
+            printTestResult("UndoRedo", "Z places kept, redo cleared, journal replays, depth bounded",
+                    "moveUndone=" + moveUndone + " ungrouped=" + ungrouped + " regrouped=" + regrouped
+                            + " redoCleared=" + redoCleared + " replayed=" + replayed + " bounded=" + bounded,
+                    passed);
+            assertTrue(passed);
+        } finally {
+            manager.setJournal(null);
+            Files.deleteIfExists(wal.toPath());
+        }
+    }
+
+    // Named checkpoints: rollback undoes back to the mark, even with undo turned off (extra)
+    @Test
+    public void testNamedCheckpoints() throws Exception {
+        // 💡 Expected:
+        //   after a group, a selector move and a delete, 'rollback base' restores the scene exactly;
+        //   plain 'rollback' is still the batch command; a dropped checkpoint cannot be rolled back to
+        // 🧠 Reasoning:
+        // A checkpoint is a position in the undo history, so it copies nothing; the changes after
+        // it are kept even at undo depth 0 until the checkpoint is dropped.
+        manager.setUndoDepth(0);
+        for (String c : new String[] {"rectangle r1 0 0 1 1", "circle c1 5 5 1", "square s1 1 1 2"}) {
+            parser.run(c);
+        }
+        String before = describe(manager);
+        parser.run("checkpoint base");
+        parser.run("group g1 c1 s1");
+        parser.run("move *1 3 3");
+        parser.run("delete r1");
+        parser.run("checkpoint edited");
+        String edited = describe(manager);
+
+        CommandResult back = parser.run("rollback base");
+        boolean restored = !back.isFailure() && describe(manager).equals(before);
+        boolean forward = !parser.run("rollback edited").isFailure() && describe(manager).equals(edited);
+        boolean batchRollback = parser.run("rollback").isFailure();
+        parser.run("dropCheckpoint base");
+        boolean dropped = parser.run("rollback base").isFailure() && describe(manager).equals(edited)
+                && manager.getCheckpointNames().equals(java.util.Set.of("edited"));
+
+        boolean passed = restored && forward && batchRollback && dropped;
+        printTestResult("NamedCheckpoints", "restored, rolled forward, batch rollback intact, dropped",
+                "restored=" + restored + " forward=" + forward + " batchRollback=" + batchRollback
+                        + " dropped=" + dropped, passed);
+        assertTrue(passed);
+    }
+
+    // Scene diff: two saved scenes compared shape by shape (extra)
+    @Test
+    public void testSceneDiff() throws Exception {
+        // 💡 Expected:
+        //   added g2, n1; removed l1; moved g1 and r1; s1 and t1 regrouped into g2; c1 re-ordered;
+        //   a scene compared with itself has no differences
+        // 🧠 Reasoning:
+        // Shapes are paired by name and skipped when their content hashes agree; c1 was deleted and
+        // drawn again on top, so only its Z-order place differs, and the fewest re-ordered shapes are listed.
+        File first = File.createTempFile("clevis_diff_a", ".bin");
+        File second = File.createTempFile("clevis_diff_b", ".bin");
+        try {
+            for (String c : new String[] {
+                    "rectangle r1 0 0 4 3", "circle c1 5 5 1", "line l1 0 0 1 1", "square s1 2 2 2",
+                    "circle c2 1 1 1", "circle c3 3 3 1", "group g1 c2 c3", "square t1 7 7 1",
+                    "square x1 9 9 1"}) {
+                parser.run(c);
+            }
+            parser.run("save " + first.getPath());
+            for (String c : new String[] {
+                    "move r1 2 0", "delete l1", "group g2 s1 t1", "delete c1", "circle c1 5 5 1",
+                    "circle n1 0 9 1", "move g1 1 1"}) {
+                parser.run(c);
+            }
+            parser.run("save " + second.getPath());
+
+            CommandResult result = parser.run("diff " + first.getPath() + " " + second.getPath());
+            StringBuilder actual = new StringBuilder();
+            if (result instanceof CommandResult.Difference d) {
+                for (SceneDiff.Change c : d.getDiff().getChanges()) {
+                    actual.append(c.getKind()).append(':').append(c.getName());
+                    if (c.getKind() == SceneDiff.Kind.MOVED || c.getKind() == SceneDiff.Kind.REGROUPED) {
+                        actual.append(' ').append(c.getDetail());
+                    }
+                    actual.append("; ");
+                }
+            }
+            String expected = "ADDED:g2; ADDED:n1; REMOVED:l1; MOVED:g1 by (1, 1); MOVED:r1 by (2, 0); "
+                    + "REGROUPED:s1 top level -> g2; REGROUPED:t1 top level -> g2; REORDERED:c1; ";
+            CommandResult same = parser.run("diff " + second.getPath() + " " + second.getPath());
+            boolean identical = same instanceof CommandResult.Difference d && d.getDiff().isEmpty()
+                    && d.getDiff().getUnchanged() == manager.getAllShapes().size();
+
+            boolean passed = expected.equals(actual.toString()) && identical;
+            printTestResult("SceneDiff", expected + "identical=true", actual + "identical=" + identical, passed);
+            assertTrue(passed);
+        } finally {
+            first.delete();
+            second.delete();
+        }
+    }
+
+    // Compressed save: a smaller file that loads back the exact scene (extra)
+    @Test
+    public void testCompressedSave() throws Exception {
+        // 💡 Expected:
+        //   the compressed file is smaller than the raw one and loads the same shapes, groups and
+        //   Z-order, including a coordinate that is not a whole number of thousandths; open refuses it
+        // 🧠 Reasoning:
+        // Coordinates are stored as differences in thousandths when that round-trips exactly and as
+        // raw bits otherwise, so compression loses nothing; shapes are stored in spatial order with
+        // their Z rank, and the next Z number is kept so new shapes still land on top.
+        File raw = File.createTempFile("clevis_raw", ".bin");
+        File packed = File.createTempFile("clevis_packed", ".bin");
+        try {
+            for (int i = 0; i < 200; i++) {
+                parser.run("rectangle r" + i + " " + (i % 20) * 10 + " " + (i / 20) * 10 + " 8 8.5");
+            }
+            for (String c : new String[] {
+                    "circle c1 3.25 1 1", "line l1 0 0 100 0.1", "group g1 c1 l1", "move r7 0.1 0.2",
+                    "square s1 -4 -4 2", "group g2 g1 s1"}) {
+                parser.run(c);
+            }
+            String before = describe(manager);
+            parser.run("save " + raw.getPath());
+            CommandResult saved = parser.run("save " + packed.getPath() + " compressed");
+
+            ShapeManager loaded = new ShapeManager();
+            SceneFile.load(packed, loaded);
+            boolean same = describe(loaded).equals(before);
+            loaded.addShape(new Circle("top", 0, 0, 1));
+            List<Shape> all = loaded.getAllShapes();
+            same &= all.get(all.size() - 1).getName().equals("top");
+            boolean smaller = packed.length() < raw.length() / 2;
+            boolean openRefused = parser.run("open " + packed.getPath()).isFailure();
+
+            boolean passed = !saved.isFailure() && same && smaller && openRefused;
+            printTestResult("CompressedSave", "same=true smaller=true openRefused=true",
+                    "same=" + same + " smaller=" + smaller + " (" + packed.length() + " vs " + raw.length()
+                            + " bytes) openRefused=" + openRefused, passed);
+            assertTrue(passed);
+        } finally {
+            raw.delete();
+            packed.delete();
+        }
+    }
+
+    // PNG export: tiles rendered in parallel are stitched into one seamless image (extra)
+    @Test
+    public void testExportPng() throws Exception {
+        // 💡 Expected:
+        //   a 600x300 image in 6 tiles; the line crossing tile edges is dark on both sides of each edge,
+        //   the rectangle outline is dark and its inside and the empty corner stay white
+        // 🧠 Reasoning:
+        // The viewport 0 0 100 50 fits the image exactly at 6 pixels per unit; each 256-pixel tile
+        // queries the spatial index for its own area and only draws the shapes touching it.
+        File png = File.createTempFile("clevis_export", ".png");
+        try {
+            parser.run("line l1 0 25 100 25");
+            parser.run("rectangle r1 10 10 20 20");
+            parser.run("circle c1 80 10 5");
+            CommandResult result = parser.run("exportPng " + png.getPath() + " 600 300 0 0 100 50");
+
+            java.awt.image.BufferedImage image = javax.imageio.ImageIO.read(png);
+            boolean size = image.getWidth() == 600 && image.getHeight() == 300;
+            boolean line = true;
+            for (int x : new int[] {5, 255, 256, 511, 512, 595}) {
+                line &= dark(image, x, 150);
+            }
+            boolean rectangle = dark(image, 120, 60) && dark(image, 60, 120) && !dark(image, 120, 120);
+            boolean empty = !dark(image, 590, 290) && !dark(image, 400, 20);
+            boolean bad = parser.run("exportPng " + png.getPath() + " 0 10").isFailure();
+
+            boolean passed = !result.isFailure() && size && line && rectangle && empty && bad;
+            printTestResult("ExportPng", "size line rectangle empty bad all true",
+                    "size=" + size + " line=" + line + " rectangle=" + rectangle + " empty=" + empty
+                            + " bad=" + bad, passed);
+            assertTrue(passed);
+        } finally {
+            png.delete();
+        }
+    }
+
+    /**
+     * Tells whether any pixel next to (x, y) is drawn (darker than mid grey);
+     * antialiased one-pixel strokes may fall between two rows or columns.
+     */
+    private static boolean dark(final java.awt.image.BufferedImage image, final int x, final int y) {
+        for (int dx = -1; dx <= 1; dx++) {
+            for (int dy = -1; dy <= 1; dy++) {
+                if ((image.getRGB(x + dx, y + dy) & 0xFF) < 128) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Batch rollback: a failed commit is taken back through the undo log, history kept (extra)
+    @Test
+    public void testBatchRollbackKeepsHistory() {
+        // 💡 Expected:
+        //   after a failed batch the scene, Z-order and untouched shape objects are as before,
+        //   the earlier change can still be undone, and the checkpoint can still be rolled back to
+        // 🧠 Reasoning:
+        // The batch is one undo transaction; a failure applies the inverses of what already ran
+        // instead of copying the scene up front and restoring the copy.
+        for (String c : new String[] {"rectangle r1 0 0 1 1", "circle c1 5 5 1", "square s1 1 1 2"}) {
+            parser.run(c);
+        }
+        parser.run("checkpoint base");
+        parser.run("move r1 1 1");
+        String before = describe(manager);
+        Shape untouched = manager.getShape("s1");
+
+        parser.run("begin");
+        parser.run("delete c1");
+        parser.run("move s1 4 4");
+        parser.run("line l1 0 0 2 2");
+        parser.run("group g1 r1 l1");
+        parser.run("delete missing");
+        boolean failed = parser.run("commit").isFailure();
+        boolean restored = describe(manager).equals(before) && describe(manager.getAllShapes()).equals("r1 c1 s1 ")
+                && manager.getShape("s1") == untouched;
+        boolean undone = !parser.run("undo").isFailure()
+                && manager.getShape("r1").getBoundingBox().equals("0.00 0.00 1.00 1.00");
+        boolean checkpoint = !parser.run("rollback base").isFailure()
+                && manager.getCheckpointNames().contains("base");
+
+        boolean passed = failed && restored && undone && checkpoint;
+        printTestResult("BatchRollbackKeepsHistory", "scene restored in place, undo and checkpoint intact",
+                "failed=" + failed + " restored=" + restored + " undone=" + undone + " checkpoint=" + checkpoint,
+                passed);
+        assertTrue(passed);
+    }
+
+    // Batch: commands that act on files at once are refused while a batch is open (extra)
+    @Test
+    public void testBatchRejectsFileCommands() throws Exception {
+        // 💡 Expected:
+        //   'load' and 'save' inside begin … rollback fail, and the rollback leaves the scene
+        //   exactly as it was before 'begin'
+        // 🧠 Reasoning:
+        // Queued commands only run at commit, so a file command would run out of order with them
+        // and could not be rolled back with the batch.
+        File scene = File.createTempFile("clevis_batch", ".bin");
+        try {
+            parser.run("circle c1 5 5 1");
+            parser.run("save " + scene.getPath());
+            parser.run("rectangle r1 0 0 1 1");
+            String before = describe(manager);
+            long size = scene.length();
+
+            parser.run("begin");
+            parser.run("delete r1");
+            boolean loadRefused = parser.run("load " + scene.getPath()).isFailure();
+            boolean saveRefused = parser.run("save " + scene.getPath()).isFailure() && scene.length() == size;
+            boolean rolledBack = !parser.run("rollback").isFailure();
+            boolean intact = describe(manager).equals(before) && manager.getShape("r1") != null;
+
+            boolean passed = loadRefused && saveRefused && rolledBack && intact;
+            printTestResult("BatchRejectsFileCommands", "load and save refused, scene intact after rollback",
+                    "load=" + loadRefused + " save=" + saveRefused + " rolledBack=" + rolledBack
+                            + " intact=" + intact, passed);
+            assertTrue(passed);
+        } finally {
+            Files.deleteIfExists(scene.toPath());
+        }
+    }
+
+    // Batch: undo, redo and checkpoint commands are refused while a batch is open (extra)
+    @Test
+    public void testBatchRejectsHistoryCommands() {
+        // 💡 Expected:
+        //   undo, redo, checkpoint, 'rollback name' and dropCheckpoint fail inside begin … rollback;
+        //   afterwards the scene, the checkpoint and the undo history are as before 'begin'
+        // 🧠 Reasoning:
+        // They rewind or mark the scene while the batch is still queued, so a commit that
+        // then failed would erase their effect.
+        parser.run("rectangle r1 0 0 1 1");
+        parser.run("checkpoint base");
+        parser.run("move r1 2 2");
+        String before = describe(manager);
+
+        parser.run("begin");
+        parser.run("delete r1");
+        boolean refused = true;
+        for (String c : new String[] {"undo", "redo", "checkpoint inner", "rollback base", "dropCheckpoint base"}) {
+            refused &= parser.run(c).isFailure();
+        }
+        parser.run("rollback");
+        boolean intact = describe(manager).equals(before)
+                && manager.getCheckpointNames().equals(Set.of("base"));
+        boolean history = !parser.run("rollback base").isFailure()
+                && manager.getShape("r1").getBoundingBox().equals("0.00 0.00 1.00 1.00");
+
+        boolean passed = refused && intact && history;
+        printTestResult("BatchRejectsHistoryCommands", "refused inside the batch, history intact",
+                "refused=" + refused + " intact=" + intact + " history=" + history, passed);
+        assertTrue(passed);
+    }
+
+    // Selectors: a bulk move or delete that cannot be journaled changes nothing (extra)
+    @Test
+    public void testSelectorAllOrNone() throws Exception {
+        // 💡 Expected:
+        //   with the journal closed, 'move *' and 'delete *' fail and leave every shape in place;
+        //   the last successful change is still the one undone
+        // 🧠 Reasoning:
+        // A selector command is one transaction: it is committed only once every match succeeded,
+        // and a failure takes back the matches already applied instead of journaling half of them.
+        File wal = File.createTempFile("clevis_sel", ".journal");
+        try {
+            for (String c : new String[] {"rectangle r1 0 0 1 1", "circle c1 5 5 1", "square s1 1 1 2"}) {
+                parser.run(c);
+            }
+            manager.setJournal(new MutationJournal(wal));
+            parser.run("move r1 1 1");
+            String before = describe(manager);
+            manager.getJournal().close();
+
+            boolean moveFailed = parser.run("move * 2 2").isFailure() && describe(manager).equals(before);
+            boolean deleteFailed = parser.run("delete *").isFailure() && describe(manager).equals(before);
+            manager.setJournal(null);
+            boolean undone = !parser.run("undo").isFailure()
+                    && manager.getShape("r1").getBoundingBox().equals("0.00 0.00 1.00 1.00");
+
+            boolean passed = moveFailed && deleteFailed && undone;
+            printTestResult("SelectorAllOrNone", "failed bulk commands change nothing",
+                    "moveFailed=" + moveFailed + " deleteFailed=" + deleteFailed + " undone=" + undone, passed);
+            assertTrue(passed);
+        } finally {
+            manager.setJournal(null);
+            Files.deleteIfExists(wal.toPath());
+        }
+    }
+
+    // Checkpoints: a rollback that cannot be journaled leaves the scene and history as they were (extra)
+    @Test
+    public void testCheckpointRollbackAllOrNone() throws Exception {
+        // 💡 Expected:
+        //   with the journal closed, 'rollback base' fails and changes nothing; once the journal is
+        //   detached the same rollback succeeds and brings back the checkpointed scene
+        // 🧠 Reasoning:
+        // The undo steps are collected as one journal record; when it cannot be written the steps
+        // already taken are redone, and the pinned history keeps every entry needed for that.
+        File wal = File.createTempFile("clevis_rollback", ".journal");
+        try {
+            manager.setUndoDepth(1);
+            parser.run("rectangle r1 0 0 1 1");
+            parser.run("circle c1 5 5 1");
+            parser.run("checkpoint base");
+            String base = describe(manager);
+            parser.run("move r1 1 1");
+            parser.run("delete c1");
+            parser.run("square s1 1 1 2");
+            manager.setJournal(new MutationJournal(wal));
+            String before = describe(manager);
+            manager.getJournal().close();
+
+            boolean failed = parser.run("rollback base").isFailure() && describe(manager).equals(before)
+                    && manager.getCheckpointNames().contains("base");
+            manager.setJournal(null);
+            boolean rolledBack = !parser.run("rollback base").isFailure() && describe(manager).equals(base);
+
+            boolean passed = failed && rolledBack;
+            printTestResult("CheckpointRollbackAllOrNone", "failed rollback changes nothing, retry succeeds",
+                    "failed=" + failed + " rolledBack=" + rolledBack, passed);
+            assertTrue(passed);
+        } finally {
+            manager.setJournal(null);
+            Files.deleteIfExists(wal.toPath());
+        }
+    }
+
+    // Mutation journal: replay rebuilds the same scene; a torn tail is cut off (extra)
+    @Test
+    public void testMutationJournalRecovery() throws Exception {
+        // 💡 Expected:
+        //   12 records replayed into an identical scene; the 7 torn bytes reported and truncated on the next replay
+        // 🧠 Reasoning:
+        // Every ShapeManager mutation is journaled before it is applied; a committed batch
+        // and a selector move are one record each, a rolled-back batch writes nothing.
+        File wal = File.createTempFile("clevis_wal", ".journal");
+        try {
+            MutationJournal journal = new MutationJournal(wal);
+            manager.setJournal(journal);
+            for (String c : new String[] {
+                    "rectangle r1 0 0 4 3", "circle c1 5 5 1", "line l1 0 0 1 1", "square s1 2 2 2",
+                    "move r1 1 2", "group g1 c1 l1", "move g1 -1 -1", "ungroup g1", "group g2 r1 s1",
+                    "delete c1", "move *1 0.5 0.25",
+                    "begin", "rectangle r9 1 1 1 1", "move l1 3 3", "commit",
+                    "begin", "rectangle r8 1 1 1 1", "move nope 1 1", "commit"}) {
+                parser.run(c);
+            }
+            journal.close();
+            long length = wal.length();
+
+            ShapeManager recovered = new ShapeManager();
+            long replayed = MutationJournal.replay(wal, recovered).getRecords();
+            String expected = describe(manager);
+            String actual = describe(recovered);
+
+            try (OutputStream out = new FileOutputStream(wal, true)) {
+                out.write(new byte[] {0, 0, 0, 40, 1, 2, 3});
+            }
+            MutationJournal.Replay again = MutationJournal.replay(wal, new ShapeManager());
+            long replayedAgain = again.getRecords();
+
+            boolean passed = replayed == 12 && replayedAgain == 12 && expected.equals(actual)
+                    && again.getDiscardedBytes() == 7 && wal.length() == length && journal.getRecordCount() == 12;
+            printTestResult("MutationJournalRecovery", "12 records, " + expected,
+                    replayed + " records, " + actual, passed);
+            assertTrue(passed);
+        } finally {
+            manager.setJournal(null);
+            Files.deleteIfExists(wal.toPath());
+        }
+    }
+
+    private static String describe(final List<Shape> shapes) {
+        StringBuilder sb = new StringBuilder();
+        for (Shape s : shapes) {
+            sb.append(s.getName()).append(' ');
+        }
+        return sb.toString();
+    }
+
+    private static String describe(final ShapeManager m) {
+        StringBuilder sb = new StringBuilder();
+        for (Shape s : m.getAllShapes()) {
+            sb.append(s.getName()).append(' ').append(s.getInfo()).append(' ').append(s.getBoundingBox()).append("; ");
+        }
+        return sb.toString();
+    }
+
+    /** Deletes every file ClevisLogger created for a log name. */
+    private static void deleteLogs(final String stem) throws IOException {
+        File[] files = loggerDir().toFile().listFiles((dir, name) -> name.startsWith(stem));
+        if (files != null) {
+            for (File f : files) {
+                Files.deleteIfExists(f.toPath());
+            }
+        }
+    }
+
+    /** Directory where ClevisLogger places its log files. */
+    private static Path loggerDir() {
+        return Paths.get(System.getProperty("user.dir"), "VectorLineApp", "src", "hk", "edu",
+                "polyu", "comp", "comp2021", "clevis", "model", "logs");
+    }
+
+    /** Commands starting with {@code prefix} in a .txt log, in order, without their timestamps. */
+    private static List<String> loggedCommands(String stem, String prefix) throws IOException {
+        List<String> commands = new ArrayList<>();
+        for (String l : Files.readAllLines(loggerDir().resolve(stem + ".txt"))) {
+            int at = l.indexOf("] " + prefix);
+            if (at >= 0) {
+                commands.add(l.substring(at + 2));
+            }
+        }
+        return commands;
+    }
 }
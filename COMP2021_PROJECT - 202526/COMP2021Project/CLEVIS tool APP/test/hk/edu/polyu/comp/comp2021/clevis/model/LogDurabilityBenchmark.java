@@ -0,0 +1,93 @@
+package hk.edu.polyu.comp.comp2021.clevis.test;
+
+import hk.edu.polyu.comp.comp2021.clevis.model.ClevisLogger;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Measures throughput and tail latency of {@link ClevisLogger#logCommand} for each durability mode,
+ * and for the memory-mapped write mode.
+ * <p>
+ * Usage: {@code java ...LogDurabilityBenchmark [threads] [recordsPerThread]}.
+ * Several threads log concurrently so group commit can merge their forces.
+ */
+public final class LogDurabilityBenchmark {
+
+    private LogDurabilityBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark and prints one line per mode.
+     *
+     * @param args optional thread count and records per thread
+     * @throws Exception if a worker thread fails
+     */
+    public static void main(final String[] args) throws Exception {
+        final int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        final int perThread = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+
+        System.out.printf("%-16s %10s %10s %10s %10s %10s %8s%n",
+                "mode", "rec/s", "p50 us", "p99 us", "p99.9 us", "max us", "forces");
+        final ClevisLogger.WriteMode channel = ClevisLogger.WriteMode.CHANNEL;
+        final ClevisLogger.WriteMode mapped = ClevisLogger.WriteMode.MAPPED;
+        run("none", channel, ClevisLogger.Durability.NONE, 0, threads, perThread);
+        run("every 64", channel, ClevisLogger.Durability.EVERY_N_RECORDS, 64, threads, perThread);
+        run("every 10 ms", channel, ClevisLogger.Durability.INTERVAL, 10, threads, perThread);
+        run("every record", channel, ClevisLogger.Durability.EVERY_RECORD, 0, threads, perThread);
+        run("mapped, none", mapped, ClevisLogger.Durability.NONE, 0, threads, perThread);
+        run("mapped, 10 ms", mapped, ClevisLogger.Durability.INTERVAL, 10, threads, perThread);
+    }
+
+    private static void run(final String label, final ClevisLogger.WriteMode writeMode,
+                            final ClevisLogger.Durability mode, final long every,
+                            final int threads, final int perThread) throws Exception {
+        final String stem = "bench_" + System.nanoTime();
+        final ClevisLogger logger = new ClevisLogger(stem + ".html", stem + ".txt");
+        logger.setWriteMode(writeMode, ClevisLogger.DEFAULT_MAP_CHUNK);
+        logger.setFlushPolicy(ClevisLogger.FlushPolicy.BUFFERED);
+        logger.setDurability(mode, every);
+
+        final long[] latencies = new long[threads * perThread];
+        final Thread[] workers = new Thread[threads];
+        final long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final int base = t * perThread;
+            workers[t] = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    final long t0 = System.nanoTime();
+                    logger.logCommand("move shape" + (base + i) + " 1 1");
+                    latencies[base + i] = System.nanoTime() - t0;
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread w : workers) {
+            w.join();
+        }
+        final long elapsed = System.nanoTime() - start;
+        final long forces = logger.getSyncCount();
+        logger.close();
+
+        Arrays.sort(latencies);
+        System.out.printf(Locale.ROOT, "%-16s %10.0f %10.1f %10.1f %10.1f %10.1f %8d%n",
+                label, latencies.length * 1e9 / elapsed,
+                percentile(latencies, 0.50), percentile(latencies, 0.99),
+                percentile(latencies, 0.999), latencies[latencies.length - 1] / 1e3, forces);
+
+        final File dir = new File(System.getProperty("user.dir"), String.join(File.separator,
+                "VectorLineApp", "src", "hk", "edu", "polyu", "comp", "comp2021", "clevis", "model", "logs"));
+        final File[] files = dir.listFiles((d, name) -> name.startsWith(stem));
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+    }
+
+    private static double percentile(final long[] sorted, final double p) {
+        final int i = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(0, i)] / 1e3;
+    }
+}
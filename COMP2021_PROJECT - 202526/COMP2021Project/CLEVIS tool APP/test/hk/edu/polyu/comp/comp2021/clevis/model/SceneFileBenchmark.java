@@ -0,0 +1,86 @@
+package hk.edu.polyu.comp.comp2021.clevis.test;
+
+import hk.edu.polyu.comp.comp2021.clevis.model.Circle;
+import hk.edu.polyu.comp.comp2021.clevis.model.CompressedSceneFile;
+import hk.edu.polyu.comp.comp2021.clevis.model.Group;
+import hk.edu.polyu.comp.comp2021.clevis.model.MappedScene;
+import hk.edu.polyu.comp.comp2021.clevis.model.Rectangle;
+import hk.edu.polyu.comp.comp2021.clevis.model.SceneFile;
+import hk.edu.polyu.comp.comp2021.clevis.model.Shape;
+import hk.edu.polyu.comp.comp2021.clevis.model.ShapeManager;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Measures {@link SceneFile#save}, {@link SceneFile#load} and {@link MappedScene#open}
+ * on a large scene, then saving and loading it with {@link CompressedSceneFile}.
+ * <p>
+ * Usage: {@code java -Xmx4g ...SceneFileBenchmark [shapes]}. Every tenth shape
+ * is a group of two circles, so the scene has about 1.2 records per shape.
+ */
+public final class SceneFileBenchmark {
+
+    private SceneFileBenchmark() {
+    }
+
+    /**
+     * Builds the scene, then saves, loads and opens it once, printing the timings.
+     *
+     * @param args optional number of top-level shapes
+     * @throws Exception if the scene cannot be built, saved or loaded
+     */
+    public static void main(final String[] args) throws Exception {
+        final int shapes = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        final File file = File.createTempFile("clevis_bench", ".scene");
+        final File packed = File.createTempFile("clevis_bench", ".scenez");
+        try {
+            ShapeManager scene = new ShapeManager();
+            for (int i = 0; i < shapes; i++) {
+                final Shape s = i % 10 == 0
+                        ? new Group("g" + i, List.of(new Circle("g" + i + "a", i, i, 1), new Circle("g" + i + "b", i, 0, 2)))
+                        : new Rectangle("r" + i, i, -i, 1 + i % 7, 2);
+                scene.addShape(s);
+            }
+
+            long start = System.nanoTime();
+            SceneFile.save(file, scene);
+            final double saveMs = (System.nanoTime() - start) / 1e6;
+            start = System.nanoTime();
+            CompressedSceneFile.save(packed, scene);
+            final double packMs = (System.nanoTime() - start) / 1e6;
+            scene = null;
+            System.gc();
+
+            ShapeManager unpacked = new ShapeManager();
+            start = System.nanoTime();
+            SceneFile.load(packed, unpacked);
+            final double unpackMs = (System.nanoTime() - start) / 1e6;
+            unpacked = null;
+            System.gc();
+
+            final ShapeManager loaded = new ShapeManager();
+            start = System.nanoTime();
+            final long n = SceneFile.load(file, loaded);
+            final double loadMs = (System.nanoTime() - start) / 1e6;
+
+            start = System.nanoTime();
+            final MappedScene mapped = MappedScene.open(file);
+            final double openMs = (System.nanoTime() - start) / 1e6;
+            start = System.nanoTime();
+            final int middle = shapes / 2 + 1;
+            final Shape first = mapped.get("r" + middle);
+            final int hit = mapped.topmostAt(middle + 0.5, -middle + 0.5);
+            final double queryMs = (System.nanoTime() - start) / 1e6;
+
+            System.out.printf("%,d shapes, %,d bytes: save %.0f ms, load %.0f ms, open %.1f ms, "
+                    + "lookup + shapeAt %.0f ms (%s, %d)%n",
+                    n, file.length(), saveMs, loadMs, openMs, queryMs, first.getName(), hit);
+            System.out.printf("compressed: %,d bytes (%.1f%%), save %.0f ms, load %.0f ms%n",
+                    packed.length(), 100.0 * packed.length() / file.length(), packMs, unpackMs);
+        } finally {
+            file.delete();
+            packed.delete();
+        }
+    }
+}